@@ -0,0 +1,74 @@
+package openmap.benchmark;
+import openmap.Generator;
+import openmap.ShapeFile;
+
+//******************************************************************************
+//**  BenchmarkData
+//******************************************************************************
+/**
+ *   Used to create shapefiles for the benchmarks. Shapefiles are created
+ *   with the Generator class using a fixed seed so every run reads the same
+ *   data.
+ *
+ ******************************************************************************/
+
+public class BenchmarkData {
+
+  //**************************************************************************
+  //** create
+  //**************************************************************************
+  /** Creates a shapefile in a new temp directory and returns the shp file.
+   *  @param shapeType "point", "polyline" or "polygon"
+   *  @param numVertices Number of vertices per line or polygon
+   *  @param columns Either "numeric", "string" or "mixed". Five columns of
+   *  the given type are added to the dbf file ("mixed" adds both).
+   */
+    public static java.io.File create(String shapeType, int numRecords, int numVertices, String columns) throws Exception {
+        java.io.File dir = java.nio.file.Files.createTempDirectory("openmap").toFile();
+        ShapeFile shp = createShapeFile(shapeType, numRecords, numVertices, columns);
+        shp.saveAs("data", dir);
+        return new java.io.File(dir, "data.shp");
+    }
+
+
+  //**************************************************************************
+  //** createShapeFile
+  //**************************************************************************
+  /** Returns a new shapefile with records in memory.
+   */
+    public static ShapeFile createShapeFile(String shapeType, int numRecords, int numVertices, String columns) throws Exception {
+        Generator generator = new Generator(42);
+        generator.setShapeType(shapeType);
+        generator.setVertexCount(numVertices, numVertices);
+        if (columns.equals("numeric") || columns.equals("mixed")){
+            generator.addColumn("id", 'N', 0);
+            generator.addColumn("code", 'N', 1000);
+            generator.addColumn("value", 'F', 0);
+            generator.addColumn("score", 'F', 0);
+            generator.addColumn("rank", 'F', 100);
+        }
+        if (columns.equals("string") || columns.equals("mixed")){
+            generator.addColumn("name", 'C', 0);
+            generator.addColumn("category", 'C', 20);
+            generator.addColumn("key", 'C', 0);
+            generator.addColumn("flag", 'C', 2);
+            generator.addColumn("label", 'C', 100);
+        }
+        return generator.create(numRecords);
+    }
+
+
+  //**************************************************************************
+  //** delete
+  //**************************************************************************
+  /** Deletes a shapefile created with the create() method and its directory.
+   */
+    public static void delete(java.io.File shp){
+        java.io.File dir = shp.getParentFile();
+        java.io.File[] files = dir.listFiles();
+        if (files!=null){
+            for (java.io.File file : files) file.delete();
+        }
+        dir.delete();
+    }
+}
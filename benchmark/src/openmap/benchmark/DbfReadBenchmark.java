@@ -0,0 +1,85 @@
+package openmap.benchmark;
+import openmap.ShapeFile;
+import com.bbn.openmap.dataAccess.shape.input.DbfInputStream;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.FileInputStream;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+//******************************************************************************
+//**  DbfReadBenchmark
+//******************************************************************************
+/**
+ *   Measures how long it takes to decode the rows in a dbf file with five
+ *   numeric or five character columns. The "rows" benchmark parses every
+ *   cell with the DbfInputStream. The "column" benchmark reads a single
+ *   column with a ShapeFile.Cursor.
+ *
+ ******************************************************************************/
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DbfReadBenchmark {
+
+    @Param({"numeric", "string"})
+    public String columns;
+
+    @Param({"1000", "100000"})
+    public int numRecords;
+
+    private java.io.File file;
+    private java.io.File dbf;
+    private ShapeFile shapeFile;
+
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        file = BenchmarkData.create("point", numRecords, 1, columns);
+        dbf = new java.io.File(file.getParentFile(), "data.dbf");
+        shapeFile = new ShapeFile(file);
+    }
+
+
+    @TearDown(Level.Trial)
+    public void tearDown(){
+        BenchmarkData.delete(file);
+    }
+
+
+    @Benchmark
+    public void readRows(Blackhole bh) throws Exception {
+        DbfInputStream is = new DbfInputStream(new FileInputStream(dbf));
+        try{
+            Iterator<ArrayList<Object>> it = is.getRecords();
+            while (it.hasNext()){
+                bh.consume(it.next());
+            }
+        }
+        finally{
+            is.close();
+        }
+    }
+
+
+    @Benchmark
+    public void readColumn(Blackhole bh) throws Exception {
+        ShapeFile.Cursor cursor = shapeFile.getCursor();
+        if (columns.equals("numeric")){
+            while (cursor.advance()){
+                bh.consume(cursor.getDouble(3));
+            }
+        }
+        else{
+            while (cursor.advance()){
+                bh.consume(cursor.getString(2));
+            }
+        }
+    }
+}
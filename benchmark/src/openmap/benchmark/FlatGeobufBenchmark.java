@@ -0,0 +1,92 @@
+package openmap.benchmark;
+import openmap.FlatGeobuf;
+import openmap.Record;
+import openmap.ShapeFile;
+
+import org.locationtech.jts.geom.Envelope;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.Iterator;
+import java.util.concurrent.TimeUnit;
+
+//******************************************************************************
+//**  FlatGeobufBenchmark
+//******************************************************************************
+/**
+ *   Compares full scans and bbox queries on a FlatGeobuf file with the same
+ *   reads on the shapefile it was converted from. The bbox covers 1% of the
+ *   extent.
+ *
+ ******************************************************************************/
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FlatGeobufBenchmark {
+
+    @Param({"100000"})
+    public int numRecords;
+
+    @Param({"10", "100"})
+    public int numVertices;
+
+    private java.io.File file;
+    private ShapeFile shapeFile;
+    private FlatGeobuf flatGeobuf;
+    private Envelope bbox;
+
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        file = BenchmarkData.create("polygon", numRecords, numVertices, "mixed");
+        shapeFile = new ShapeFile(file);
+        java.io.File fgb = new java.io.File(file.getParentFile(), "data.fgb");
+        FlatGeobuf.write(shapeFile, fgb);
+        flatGeobuf = new FlatGeobuf(fgb);
+
+        Envelope extent = shapeFile.getExtent();
+        double x = extent.getMinX() + extent.getWidth()*0.45;
+        double y = extent.getMinY() + extent.getHeight()*0.45;
+        bbox = new Envelope(x, x+extent.getWidth()*0.1, y, y+extent.getHeight()*0.1);
+    }
+
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        flatGeobuf.close();
+        BenchmarkData.delete(file);
+    }
+
+
+    @Benchmark
+    public void shapeFileScan(Blackhole bh) throws Exception {
+        consume(shapeFile.getRecords(), bh);
+    }
+
+
+    @Benchmark
+    public void flatGeobufScan(Blackhole bh) throws Exception {
+        consume(flatGeobuf.getRecords(), bh);
+    }
+
+
+    @Benchmark
+    public void shapeFileBbox(Blackhole bh) throws Exception {
+        consume(shapeFile.getRecords(bbox, 0), bh);
+    }
+
+
+    @Benchmark
+    public void flatGeobufBbox(Blackhole bh) throws Exception {
+        consume(flatGeobuf.getRecords(bbox), bh);
+    }
+
+
+    private static void consume(Iterator<Record> it, Blackhole bh){
+        while (it.hasNext()) bh.consume(it.next());
+    }
+}
@@ -0,0 +1,61 @@
+package openmap.benchmark;
+import openmap.ShapeFile;
+
+import org.locationtech.jts.geom.*;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+//******************************************************************************
+//**  GeometryReadBenchmark
+//******************************************************************************
+/**
+ *   Measures how long it takes to decode all the shapes in a shp file, for
+ *   points, polylines and polygons.
+ *
+ ******************************************************************************/
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class GeometryReadBenchmark {
+
+    @Param({"point", "polyline", "polygon"})
+    public String shapeType;
+
+    @Param({"1000", "10000"})
+    public int numRecords;
+
+    @Param({"10", "100"})
+    public int numVertices;
+
+    private java.io.File file;
+    private ShapeFile shapeFile;
+
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        file = BenchmarkData.create(shapeType, numRecords, numVertices, "numeric");
+        shapeFile = new ShapeFile(file);
+    }
+
+
+    @TearDown(Level.Trial)
+    public void tearDown(){
+        BenchmarkData.delete(file);
+    }
+
+
+    @Benchmark
+    public void readGeometries(Blackhole bh) throws Exception {
+        Iterator<Geometry> it = shapeFile.getGeometries();
+        while (it.hasNext()){
+            bh.consume(it.next());
+        }
+    }
+}
@@ -0,0 +1,62 @@
+package openmap.benchmark;
+import openmap.ShapeFile;
+import com.bbn.openmap.dataAccess.shape.input.ShxInputStream;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.FileInputStream;
+import java.util.concurrent.TimeUnit;
+
+//******************************************************************************
+//**  IndexReadBenchmark
+//******************************************************************************
+/**
+ *   Measures how long it takes to parse a shx file and to open a shapefile.
+ *
+ ******************************************************************************/
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class IndexReadBenchmark {
+
+    @Param({"1000", "100000"})
+    public int numRecords;
+
+    private java.io.File file;
+    private java.io.File shx;
+
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        file = BenchmarkData.create("point", numRecords, 1, "numeric");
+        shx = new java.io.File(file.getParentFile(), "data.shx");
+    }
+
+
+    @TearDown(Level.Trial)
+    public void tearDown(){
+        BenchmarkData.delete(file);
+    }
+
+
+    @Benchmark
+    public int[][] getIndex() throws Exception {
+        ShxInputStream is = new ShxInputStream(new FileInputStream(shx));
+        try{
+            return is.getIndex();
+        }
+        finally{
+            is.close();
+        }
+    }
+
+
+    @Benchmark
+    public ShapeFile open() throws Exception {
+        return new ShapeFile(file);
+    }
+}
@@ -0,0 +1,84 @@
+package openmap.benchmark;
+import openmap.Record;
+import openmap.ShapeFile;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+//******************************************************************************
+//**  RecordReadBenchmark
+//******************************************************************************
+/**
+ *   Measures how long it takes to read full records (attributes and
+ *   geometries) using the record iterator, the pipelined record iterator and
+ *   a cursor.
+ *
+ ******************************************************************************/
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RecordReadBenchmark {
+
+    @Param({"1000", "10000"})
+    public int numRecords;
+
+    @Param({"10", "100"})
+    public int numVertices;
+
+    private java.io.File file;
+    private ShapeFile shapeFile;
+    private ShapeFile pipeline;
+
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        file = BenchmarkData.create("polygon", numRecords, numVertices, "mixed");
+        shapeFile = new ShapeFile(file);
+        pipeline = new ShapeFile(file);
+        pipeline.setPipeline(2, 4);
+    }
+
+
+    @TearDown(Level.Trial)
+    public void tearDown(){
+        BenchmarkData.delete(file);
+    }
+
+
+    @Benchmark
+    public void getRecords(Blackhole bh) throws Exception {
+        Iterator<Record> it = shapeFile.getRecords();
+        while (it.hasNext()){
+            bh.consume(it.next());
+        }
+    }
+
+
+    @Benchmark
+    public void getRecordsPipelined(Blackhole bh) throws Exception {
+        Iterator<Record> it = pipeline.getRecords();
+        while (it.hasNext()){
+            bh.consume(it.next());
+        }
+    }
+
+
+    @Benchmark
+    public void getCursor(Blackhole bh) throws Exception {
+        ShapeFile.Cursor cursor = shapeFile.getCursor();
+        int numColumns = cursor.getSchema().size();
+        while (cursor.advance()){
+            for (int i=1; i<numColumns-1; i++){
+                bh.consume(cursor.getString(i));
+            }
+            bh.consume(cursor.getGeometry());
+        }
+    }
+}
@@ -0,0 +1,97 @@
+package openmap.benchmark;
+import openmap.ShapeFile;
+
+import org.locationtech.jts.geom.*;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+//******************************************************************************
+//**  RingAssemblyBenchmark
+//******************************************************************************
+/**
+ *   Measures how long it takes to read polygon records with a large number
+ *   of rings. The "holes" layout is a single shell with a grid of holes (e.g.
+ *   a lake district). The "islands" layout is a grid of shells, each with one
+ *   hole (e.g. a coastline with lakes).
+ *
+ ******************************************************************************/
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RingAssemblyBenchmark {
+
+    @Param({"100", "1000", "10000"})
+    public int numRings;
+
+    @Param({"holes", "islands"})
+    public String layout;
+
+    private java.io.File dir;
+    private ShapeFile shapeFile;
+
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        GeometryFactory gf = new GeometryFactory();
+        int n = (int) Math.ceil(Math.sqrt(numRings));
+        Geometry geom;
+        if (layout.equals("holes")){
+            LinearRing[] holes = new LinearRing[numRings];
+            for (int i=0; i<numRings; i++){
+                holes[i] = square(gf, 1 + (i % n) * 2, 1 + (i / n) * 2, 1);
+            }
+            geom = gf.createPolygon(square(gf, 0, 0, n * 2 + 1), holes);
+        }
+        else{
+            Polygon[] polygons = new Polygon[numRings/2];
+            for (int i=0; i<polygons.length; i++){
+                double x = (i % n) * 4;
+                double y = (i / n) * 4;
+                polygons[i] = gf.createPolygon(square(gf, x, y, 3),
+                    new LinearRing[]{ square(gf, x + 1, y + 1, 1) });
+            }
+            geom = gf.createMultiPolygon(polygons);
+        }
+
+        dir = java.nio.file.Files.createTempDirectory("rings").toFile();
+        ShapeFile out = new ShapeFile();
+        out.addRecord("test", geom);
+        out.saveAs("rings", dir);
+        shapeFile = new ShapeFile(new java.io.File(dir, "rings.shp"));
+    }
+
+
+    @TearDown(Level.Trial)
+    public void tearDown(){
+        shapeFile.delete();
+        dir.delete();
+    }
+
+
+    @Benchmark
+    public void readPolygons(Blackhole bh) throws Exception {
+        Iterator<Geometry> it = shapeFile.getGeometries();
+        while (it.hasNext()){
+            Geometry geom = it.next();
+            bh.consume(geom.getNumGeometries());
+        }
+    }
+
+
+    private static LinearRing square(GeometryFactory gf, double x, double y, double size){
+        return gf.createLinearRing(new Coordinate[]{
+            new Coordinate(x, y),
+            new Coordinate(x + size, y),
+            new Coordinate(x + size, y + size),
+            new Coordinate(x, y + size),
+            new Coordinate(x, y)
+        });
+    }
+}
@@ -0,0 +1,55 @@
+package openmap.benchmark;
+import openmap.ShapeFile;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+//******************************************************************************
+//**  WriteBenchmark
+//******************************************************************************
+/**
+ *   Measures how long it takes to save records to a new shapefile (shp, shx
+ *   and dbf files).
+ *
+ ******************************************************************************/
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class WriteBenchmark {
+
+    @Param({"point", "polyline", "polygon"})
+    public String shapeType;
+
+    @Param({"1000", "10000"})
+    public int numRecords;
+
+    @Param({"10", "100"})
+    public int numVertices;
+
+    private java.io.File dir;
+    private ShapeFile shapeFile;
+
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        dir = java.nio.file.Files.createTempDirectory("openmap").toFile();
+        shapeFile = BenchmarkData.createShapeFile(shapeType, numRecords, numVertices, "mixed");
+    }
+
+
+    @TearDown(Level.Trial)
+    public void tearDown(){
+        BenchmarkData.delete(new java.io.File(dir, "data.shp"));
+    }
+
+
+    @Benchmark
+    public void saveAs() throws Exception {
+        shapeFile.saveAs("data", dir);
+    }
+}
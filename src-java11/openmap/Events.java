@@ -0,0 +1,203 @@
+package openmap;
+import org.locationtech.jts.geom.Envelope;
+import jdk.jfr.*;
+
+//******************************************************************************
+//**  Events
+//******************************************************************************
+/**
+ *   Used to emit JDK Flight Recorder events for shapefile I/O. This version
+ *   is compiled into META-INF/versions/11 and replaces the no-op Java 8
+ *   version at runtime. Records that take longer to decode than the
+ *   "openmap.slowDecodeMillis" system property (default 10) or that have
+ *   more vertices than "openmap.slowDecodeVertices" (default 100000) are
+ *   reported as slow decode events.
+ *
+ ******************************************************************************/
+
+class Events {
+
+    private static final long slowDecodeNanos =
+    Long.getLong("openmap.slowDecodeMillis", 10)*1000000;
+
+    private static final int slowDecodeVertices =
+    Integer.getInteger("openmap.slowDecodeVertices", 100000);
+
+
+  //**************************************************************************
+  //** isEnabled
+  //**************************************************************************
+  /** Returns true if slow decode events are being recorded. Readers check
+   *  this once and skip timing calls if false.
+   */
+    public static boolean isEnabled(){
+        return new SlowDecodeEvent().isEnabled();
+    }
+
+
+  //**************************************************************************
+  //** beginFileOpen
+  //**************************************************************************
+  /** Returns an event to pass to endFileOpen() or null if the event is not
+   *  being recorded.
+   */
+    public static Object beginFileOpen(){
+        FileOpenEvent event = new FileOpenEvent();
+        if (!event.isEnabled()) return null;
+        event.begin();
+        return event;
+    }
+
+
+  //**************************************************************************
+  //** endFileOpen
+  //**************************************************************************
+    public static void endFileOpen(Object obj, java.io.File file, int numRecords){
+        if (obj==null) return;
+        FileOpenEvent event = (FileOpenEvent) obj;
+        event.end();
+        if (event.shouldCommit()){
+            event.file = getPath(file);
+            event.records = numRecords;
+            event.commit();
+        }
+    }
+
+
+  //**************************************************************************
+  //** beginShxLoad
+  //**************************************************************************
+  /** Returns an event to pass to endShxLoad() or null if the event is not
+   *  being recorded.
+   */
+    public static Object beginShxLoad(){
+        ShxLoadEvent event = new ShxLoadEvent();
+        if (!event.isEnabled()) return null;
+        event.begin();
+        return event;
+    }
+
+
+  //**************************************************************************
+  //** endShxLoad
+  //**************************************************************************
+    public static void endShxLoad(Object obj, java.io.File file, int numRecords, long bytes){
+        if (obj==null) return;
+        ShxLoadEvent event = (ShxLoadEvent) obj;
+        event.end();
+        if (event.shouldCommit()){
+            event.file = getPath(file);
+            event.records = numRecords;
+            event.bytes = bytes;
+            event.commit();
+        }
+    }
+
+
+  //**************************************************************************
+  //** beginScan
+  //**************************************************************************
+  /** Returns an event to pass to endScan() or null if the event is not
+   *  being recorded.
+   */
+    public static Object beginScan(){
+        ScanEvent event = new ScanEvent();
+        if (!event.isEnabled()) return null;
+        event.begin();
+        return event;
+    }
+
+
+  //**************************************************************************
+  //** endScan
+  //**************************************************************************
+    public static void endScan(Object obj, java.io.File file, long numRecords, long bytes, Envelope filter){
+        if (obj==null) return;
+        ScanEvent event = (ScanEvent) obj;
+        event.end();
+        if (event.shouldCommit()){
+            event.file = getPath(file);
+            event.records = numRecords;
+            event.bytes = bytes;
+            if (filter!=null){
+                event.filter = filter.getMinX() + "," + filter.getMinY() + "," +
+                filter.getMaxX() + "," + filter.getMaxY();
+            }
+            event.commit();
+        }
+    }
+
+
+  //**************************************************************************
+  //** recordDecoded
+  //**************************************************************************
+  /** Called after a record is decoded when isEnabled() is true. Emits an
+   *  event if the record exceeds the vertex or time threshold.
+   */
+    public static void recordDecoded(java.io.File file, int recordNumber, int numVertices, long bytes, long nanos){
+        if (nanos<slowDecodeNanos && numVertices<slowDecodeVertices) return;
+        SlowDecodeEvent event = new SlowDecodeEvent();
+        if (!event.shouldCommit()) return;
+        event.file = getPath(file);
+        event.recordNumber = recordNumber;
+        event.vertices = numVertices;
+        event.bytes = bytes;
+        event.decodeTime = nanos;
+        event.commit();
+    }
+
+
+  //**************************************************************************
+  //** getPath
+  //**************************************************************************
+    private static String getPath(java.io.File file){
+        return file==null ? null : file.getPath();
+    }
+
+
+  //**************************************************************************
+  //** Event classes
+  //**************************************************************************
+
+    @Name("openmap.FileOpen")
+    @Label("Shapefile Open")
+    @Category("OpenMap")
+    @Description("Shapefile opened and record count read from the shx header")
+    static class FileOpenEvent extends Event {
+        @Label("File") String file;
+        @Label("Records") int records;
+    }
+
+    @Name("openmap.ShxLoad")
+    @Label("SHX Load")
+    @Category("OpenMap")
+    @Description("Index (shx file) read")
+    static class ShxLoadEvent extends Event {
+        @Label("File") String file;
+        @Label("Records") int records;
+        @Label("Bytes") @DataAmount long bytes;
+    }
+
+    @Name("openmap.Scan")
+    @Label("Shapefile Scan")
+    @Category("OpenMap")
+    @Description("Records read from a shp file, from the first record to the end of the scan")
+    static class ScanEvent extends Event {
+        @Label("File") String file;
+        @Label("Records") long records;
+        @Label("Bytes") @DataAmount long bytes;
+        @Label("Filter") String filter;
+    }
+
+    @Name("openmap.SlowDecode")
+    @Label("Slow Record Decode")
+    @Category("OpenMap")
+    @Description("Record that exceeded the vertex or time threshold while decoding")
+    static class SlowDecodeEvent extends Event {
+        @Label("File") String file;
+        @Label("Record Number") int recordNumber;
+        @Label("Vertices") int vertices;
+        @Label("Bytes") @DataAmount long bytes;
+        @Label("Decode Time") @Timespan long decodeTime;
+    }
+}
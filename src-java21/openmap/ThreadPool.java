@@ -0,0 +1,39 @@
+package openmap;
+import java.util.concurrent.*;
+
+//******************************************************************************
+//**  ThreadPool
+//******************************************************************************
+/**
+ *   Used to create executors for I/O bound tasks. This version is loaded on
+ *   Java 21 and above, from the META-INF/versions/21 folder in the jar, and
+ *   returns a bounded pool of virtual threads.
+ *
+ ******************************************************************************/
+
+class ThreadPool {
+
+
+  //**************************************************************************
+  //** newExecutor
+  //**************************************************************************
+  /** Returns an executor with the given number of virtual threads. Tasks
+   *  are queued when all the threads are busy, as with the Java 8 version.
+   *  @param name Prefix used to name the threads.
+   */
+    public static ExecutorService newExecutor(String name, int numThreads){
+        return Executors.newFixedThreadPool(numThreads,
+            Thread.ofVirtual().name(name + "-", 1).factory()
+        );
+    }
+
+
+  //**************************************************************************
+  //** isVirtual
+  //**************************************************************************
+  /** Returns true if the executors use virtual threads.
+   */
+    public static boolean isVirtual(){
+        return true;
+    }
+}
@@ -31,8 +31,11 @@ import java.io.InputStream;
 import java.net.URL;
 import java.text.DecimalFormat;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -185,6 +188,15 @@ public class DbfTableModel //extends AbstractTableModel
     /** An array of bytes that contain the names for each column */
     protected String[] _names = null;
 
+    /**
+     * Case-insensitive lookup table for the column names, created on demand
+     * by getColumnIndexForName and rebuilt whenever the names change.
+     */
+    protected Map<String, Integer> _nameIndex = null;
+
+    /** The array of names used to create the _nameIndex */
+    protected String[] _nameIndexSource = null;
+
     /** Class scope reference to a list of data formatted by row */
     protected List<List<Object>> _records = null;
 
@@ -379,14 +391,24 @@ public class DbfTableModel //extends AbstractTableModel
      *         Otherwise, -1 for non-valid names.
      */
     public int getColumnIndexForName(String columnName) {
-        if (_names != null) {
+        if (_names == null || columnName == null) {
+            return -1;
+        }
+        if (_nameIndex == null || _nameIndexSource != _names) {
+            Map<String, Integer> nameIndex = new HashMap<String, Integer>(_names.length * 2);
             for (int i = 0; i < _names.length; i++) {
-                if (_names[i].equalsIgnoreCase(columnName)) {
-                    return i;
+                if (_names[i] != null) {
+                    String key = _names[i].toLowerCase(Locale.ROOT);
+                    if (!nameIndex.containsKey(key)) {
+                        nameIndex.put(key, i);
+                    }
                 }
             }
+            _nameIndex = nameIndex;
+            _nameIndexSource = _names;
         }
-        return -1;
+        Integer index = _nameIndex.get(columnName.toLowerCase(Locale.ROOT));
+        return index == null ? -1 : index.intValue();
     }
 
     /**
@@ -441,6 +463,7 @@ public class DbfTableModel //extends AbstractTableModel
      */
     public void setColumnName(int column, String name) {
         _names[column] = name;
+        _nameIndex = null;
     }
 
     /**
@@ -75,7 +75,7 @@ public class DbfInputStream {
    private short _headerLength = -1;
 
    /** The record length */
-   // private short _recordLength = -1; // Unused
+   private int _recordLength = -1;
    /**
     * An ArrayList with each element representing a record, which itself is an
     * ArrayList
@@ -161,6 +161,25 @@ public class DbfInputStream {
 
    }
 
+   /**
+    * Returns the length of a row in bytes, including the deletion flag
+    *
+    * @return The record length
+    */
+   public int getRecordLength() {
+      return _recordLength;
+   }
+
+   /**
+    * Returns the length of the header in bytes. The first row starts at this
+    * offset.
+    *
+    * @return The header length
+    */
+   public int getHeaderLength() {
+      return _headerLength & 0xffff;
+   }
+
    /**
     * Reads the header
     */
@@ -172,7 +191,7 @@ public class DbfInputStream {
       /* byte day = */_leis.readByte();
       _rowCount = _leis.readLEInt();
       _headerLength = _leis.readLEShort();
-      /* _recordLength = */_leis.readLEShort();
+      _recordLength = _leis.readLEUnsignedShort();
       _columnCount = (_headerLength - 32 - 1) / 32;
       _leis.skipBytes(20);
    }
@@ -253,7 +272,53 @@ public class DbfInputStream {
     }
 
 
-    public Iterator<ArrayList<Object>> getRecords() throws IOException {
+    /**
+     * Parses the cells of a row read by CustomIterator.readRow(). Doesn't
+     * touch the input stream so rows can be parsed on a different thread
+     * than the one reading the file, as long as each thread uses its own
+     * DecimalFormat.
+     *
+     * @param row Buffer with the raw bytes of the row
+     * @param offset Position in the buffer of the first byte of the row
+     * @param df DecimalFormat created with createDecimalFormat()
+     * @return An ArrayList with one value per column
+     */
+    public ArrayList<Object> parseRow(byte[] row, int offset, DecimalFormat df) {
+        ArrayList<Object> record = new ArrayList<Object>(_columnCount);
+        for (int c = 0; c <= _columnCount - 1; c++) {
+            int length = _lengths[c];
+            if (length == -1) length = 255;
+            int type = _types[c];
+            int numDecSpaces = _decimalCounts[c];
+            df.setMaximumFractionDigits(numDecSpaces);
+            String cell = new String(row, offset, length).trim();
+            offset += length;
+            try {
+               record.add(c, DbfTableModel.getObjectForType(cell, type, df, length));
+            }
+            catch (ParseException pe) {
+//                if (Debug.debugging("shape")) {
+//                   Debug.error("DbfInputStream:  error parsing column " + c + ", expected number and got " + cell);
+//                }
+                record.add(c, DbfTableModel.appendWhitespaceOrTrim(null, length));
+            }
+        }
+        return record;
+    }
+
+    /**
+     * Returns a DecimalFormat used to parse numbers in a dbf file. DBF files
+     * always use '.' as the decimal marker, regardless of the locale.
+     */
+    public static DecimalFormat createDecimalFormat() {
+        DecimalFormat df = new DecimalFormat();
+        DecimalFormatSymbols dfs = new DecimalFormatSymbols(Locale.ENGLISH);
+        df.setDecimalFormatSymbols(dfs);
+        return df;
+    }
+
+
+    public CustomIterator getRecords() throws IOException {
         return new CustomIterator();
     }
 
@@ -261,14 +326,19 @@ public class DbfInputStream {
 
         private int r = 0;
         private DecimalFormat df;
+        private byte[] row;
+
+        /** Deletion flag of the next row and of the last row read */
+        private byte nextFlag;
+        private boolean deleted;
 
         // constructor
         private CustomIterator() throws IOException {
-            df = new DecimalFormat();
-            DecimalFormatSymbols dfs = new DecimalFormatSymbols(Locale.ENGLISH);
-            df.setDecimalFormatSymbols(dfs);
+            df = createDecimalFormat();
+            row = new byte[Math.max(_recordLength, 1)];
 
-            _leis.skipBytes(2);
+            _leis.skipBytes(1);
+            if (hasNext()) nextFlag = _leis.readByte();
         }
 
         // Checks if the next element exists
@@ -280,30 +350,8 @@ public class DbfInputStream {
         public ArrayList<Object> next() {
             if (!hasNext()) throw new NoSuchElementException();
 
-            ArrayList<Object> record = new ArrayList<Object>(_columnCount);
             try{
-                for (int c = 0; c <= _columnCount - 1; c++) {
-                    int length = _lengths[c];
-                    if (length == -1) length = 255;
-                    int type = _types[c];
-                    int numDecSpaces = _decimalCounts[c];
-                    df.setMaximumFractionDigits(numDecSpaces);
-                    String cell = _leis.readString(length);
-                    try {
-                       record.add(c, DbfTableModel.getObjectForType(cell, type, df, length));
-                    }
-                    catch (ParseException pe) {
-//                        if (Debug.debugging("shape")) {
-//                           Debug.error("DbfInputStream:  error parsing column " + c + ", row " + r + ", expected number and got " + cell);
-//                        }
-                        record.add(c, DbfTableModel.appendWhitespaceOrTrim(null, length));
-                    }
-                }
-
-                _leis.skipBytes(1);
-                r++;
-
-                if (!hasNext()) _leis.close();
+                readRow(row);
             }
             catch(IOException e){
                 try{close();}catch(Exception ex){}
@@ -311,7 +359,67 @@ public class DbfInputStream {
             }
 
 
-            return record;
+            return parseRow(row, 0, df);
+        }
+
+
+        /**
+         * Skips over the given number of rows without parsing them. Used to
+         * keep the dbf in step with a filtered shp scan.
+         *
+         * @param numRows The number of rows to skip
+         */
+        public void skip(int numRows) throws IOException {
+            if (numRows<=0) return;
+            numRows = Math.min(numRows, _rowCount - r);
+            long numBytes = (long) numRows * _recordLength - 1;
+            while (numBytes>0) {
+                int n = _leis.skipBytes((int) Math.min(numBytes, Integer.MAX_VALUE));
+                if (n<=0) break;
+                numBytes -= n;
+            }
+            r += numRows;
+            if (hasNext()) nextFlag = _leis.readByte();
+            else _leis.close();
+        }
+
+
+        /**
+         * Returns true if the last row returned by next() or readRow() is
+         * marked as deleted ('*' in the first byte of the row).
+         */
+        public boolean isDeleted() {
+            return deleted;
+        }
+
+
+        /**
+         * Reads the raw bytes of the next row into the given buffer without
+         * parsing them. The cells are stored back to back, in column order,
+         * starting at index 0. Used by callers that parse the cells on
+         * demand and want to reuse the same buffer for every row.
+         *
+         * @param row Buffer with at least getRecordLength() bytes
+         */
+        public void readRow(byte[] row) throws IOException {
+            readRow(row, 0);
+        }
+
+
+        /**
+         * Reads the raw bytes of the next row into the given buffer, starting
+         * at the given offset. Used to read a batch of rows into one buffer.
+         *
+         * @param row Buffer with at least offset + getRecordLength() - 1 bytes
+         * @param offset Position in the buffer of the first byte of the row
+         */
+        public void readRow(byte[] row, int offset) throws IOException {
+            if (!hasNext()) throw new NoSuchElementException();
+            _leis.readFully(row, offset, _recordLength - 1);
+            deleted = nextFlag == '*';
+            r++;
+            if (hasNext()) nextFlag = _leis.readByte();
+            else _leis.close();
         }
 
     }
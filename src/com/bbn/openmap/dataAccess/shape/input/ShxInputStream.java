@@ -25,6 +25,7 @@ package com.bbn.openmap.dataAccess.shape.input;
 import java.io.BufferedInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.UncheckedIOException;
 
 /**
  * Reads index data from a .shx file
@@ -52,15 +53,20 @@ public class ShxInputStream {
     * 
     * @return an array of offsets, which will be passed into the open method of
     *         classes which extend AbstractSupport.
+    * @throws UncheckedIOException if the index is truncated or can't be
+    *         read. Use ShapeFile.createIndex() to rebuild the index from the
+    *         shp file.
     */
    public int[][] getIndex() {
-      int[][] indexData = null;
       try {
          /* int fileCode = */_leis.readInt();
          _leis.skipBytes(20);
          int fileLength = _leis.readInt();
          int numShapes = (fileLength - 50) / 4;
-         indexData = new int[2][numShapes];
+         if (numShapes < 0) {
+            throw new IOException("Invalid file length: " + fileLength);
+         }
+         int[][] indexData = new int[2][numShapes];
          _leis.skipBytes(4);
          /* _type = */_leis.readLEInt();
          _leis.skip(64);
@@ -68,11 +74,26 @@ public class ShxInputStream {
             indexData[0][i] = _leis.readInt();
             indexData[1][i] = _leis.readInt();
          }
+         return indexData;
       } catch (IOException e) {
-         e.printStackTrace();
-         return null;
+         throw new UncheckedIOException(e);
       }
-      return indexData;
+   }
+
+   /**
+    * Returns the number of records in the index, as found in the file
+    * length field of the header. Only the header is read, so this is much
+    * cheaper than getIndex() for large files. Use either this method or
+    * getIndex(), not both.
+    *
+    * @return The number of records
+    */
+   public int getRecordCount()
+         throws IOException {
+      /* int fileCode = */_leis.readInt();
+      _leis.skipBytes(20);
+      int fileLength = _leis.readInt();
+      return Math.max(0, (fileLength - 50) / 4);
    }
 
    public void close()
@@ -97,10 +97,10 @@ public class ShxOutputStream {
                 // extents.
 
             } else {
-                _leos.writeLEDouble((float) extents[1]);
-                _leos.writeLEDouble((float) extents[0]);
-                _leos.writeLEDouble((float) extents[3]);
-                _leos.writeLEDouble((float) extents[2]);
+                _leos.writeLEDouble(extents[1]);
+                _leos.writeLEDouble(extents[0]);
+                _leos.writeLEDouble(extents[3]);
+                _leos.writeLEDouble(extents[2]);
             }
 
             _leos.writeLEDouble(0.0);
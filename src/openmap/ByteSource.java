@@ -0,0 +1,344 @@
+package openmap;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+//******************************************************************************
+//**  ByteSource
+//******************************************************************************
+/**
+ *   Used to read one of the files in a shapefile (shp, shx or dbf) from
+ *   a file, memory, or custom storage. Sources support positional reads
+ *   and sequential streams. Sources that are backed by memory (byte arrays,
+ *   ByteBuffers and memory-mapped files) also return their contents as a
+ *   ByteBuffer so records can be decoded without copying. Example:
+ <pre>
+    ShapeFile shp = new ShapeFile(
+        ByteSource.of(shpBytes), ByteSource.of(shxBytes), ByteSource.of(dbfBytes)
+    );
+ </pre>
+ *   To read from other storage, extend this class and implement size() and
+ *   read().
+ *
+ ******************************************************************************/
+
+public abstract class ByteSource implements Closeable {
+
+
+  //**************************************************************************
+  //** size
+  //**************************************************************************
+  /** Returns the number of bytes in the source.
+   */
+    public abstract long size() throws IOException;
+
+
+  //**************************************************************************
+  //** read
+  //**************************************************************************
+  /** Used to read bytes at a given position. Implementations must be safe to
+   *  call from multiple threads.
+   *  @return Number of bytes read or -1 if the position is at or past the
+   *  end of the source
+   */
+    public abstract int read(long position, byte[] b, int off, int len) throws IOException;
+
+
+  //**************************************************************************
+  //** readFully
+  //**************************************************************************
+  /** Used to read an exact number of bytes at a given position. Throws an
+   *  EOFException if the source ends before all the bytes are read.
+   */
+    public void readFully(long position, byte[] b, int off, int len) throws IOException {
+        while (len>0){
+            int n = read(position, b, off, len);
+            if (n<0) throw new EOFException();
+            position += n;
+            off += n;
+            len -= n;
+        }
+    }
+
+
+  //**************************************************************************
+  //** prefetch
+  //**************************************************************************
+  /** Used to tell the source which ranges are about to be read. Remote
+   *  sources use this to fetch the ranges with as few requests as possible.
+   *  The default implementation does nothing.
+   *  @param positions Start of each range
+   *  @param lengths Length of each range
+   */
+    public void prefetch(long[] positions, int[] lengths) throws IOException {}
+
+
+  //**************************************************************************
+  //** prefetch
+  //**************************************************************************
+  /** Used to tell the source which ranges are about to be read, with the
+   *  largest gap between two ranges that should be fetched together. Used
+   *  for small reads that are spread across the source (e.g. record headers)
+   *  where fetching the gaps would read most of the source. The default
+   *  implementation calls prefetch(positions, lengths).
+   */
+    public void prefetch(long[] positions, int[] lengths, int maxGap) throws IOException {
+        prefetch(positions, lengths);
+    }
+
+
+  //**************************************************************************
+  //** isRemote
+  //**************************************************************************
+  /** Returns true if reads are expensive (e.g. network requests) and the
+   *  source should be read with a few positional reads instead of a
+   *  sequential stream. When the shp source is remote, bbox queries only
+   *  read the records and rows that are needed. Returns false by default.
+   */
+    public boolean isRemote(){
+        return false;
+    }
+
+
+  //**************************************************************************
+  //** getBuffer
+  //**************************************************************************
+  /** Returns a read-only view of the source if it is backed by memory.
+   *  Returns null otherwise. The position of the buffer is 0 and the limit
+   *  is the size of the source.
+   */
+    public ByteBuffer getBuffer() throws IOException {
+        return null;
+    }
+
+
+  //**************************************************************************
+  //** getInputStream
+  //**************************************************************************
+  /** Returns a new input stream, starting at the beginning of the source.
+   *  Skips are done by moving the position of the stream.
+   */
+    public InputStream getInputStream() throws IOException {
+        ByteBuffer buffer = getBuffer();
+        if (buffer!=null) return new ByteBufferInputStream(buffer);
+        return new PositionalInputStream(this);
+    }
+
+
+  //**************************************************************************
+  //** close
+  //**************************************************************************
+  /** Releases any resources held by the source. The default implementation
+   *  does nothing.
+   */
+    public void close() throws IOException {}
+
+
+  //**************************************************************************
+  //** of
+  //**************************************************************************
+  /** Returns a source for a file. Streams are read with a FileInputStream.
+   *  The file is opened for positional reads on the first call to read()
+   *  and stays open until close() is called.
+   */
+    public static ByteSource of(java.io.File file){
+        return new FileSource(file);
+    }
+
+
+  //**************************************************************************
+  //** of
+  //**************************************************************************
+  /** Returns a source for a byte array. The array is not copied.
+   */
+    public static ByteSource of(byte[] b){
+        return of(ByteBuffer.wrap(b));
+    }
+
+
+  //**************************************************************************
+  //** of
+  //**************************************************************************
+  /** Returns a source for the remaining bytes in a ByteBuffer. The buffer is
+   *  not copied and its position is not changed.
+   */
+    public static ByteSource of(ByteBuffer buffer){
+        return new BufferSource(buffer.slice());
+    }
+
+
+  //**************************************************************************
+  //** of
+  //**************************************************************************
+  /** Returns a source for a URL that supports HTTP range requests. See
+   *  HttpSource for options.
+   */
+    public static ByteSource of(java.net.URL url){
+        return new HttpSource(url);
+    }
+
+
+  //**************************************************************************
+  //** map
+  //**************************************************************************
+  /** Returns a source for a memory-mapped file. Files larger than 2GB
+   *  can't be mapped. Use of(file) instead.
+   */
+    public static ByteSource map(java.io.File file) throws IOException {
+        FileInputStream fis = new FileInputStream(file);
+        try{
+            FileChannel channel = fis.getChannel();
+            if (channel.size()>Integer.MAX_VALUE) throw new IOException("File is too large to map: " + file);
+            return new BufferSource(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        }
+        finally{
+            fis.close();
+        }
+    }
+
+
+  //**************************************************************************
+  //** FileSource
+  //**************************************************************************
+    private static class FileSource extends ByteSource {
+        private final java.io.File file;
+        private RandomAccessFile raf;
+
+        public FileSource(java.io.File file){
+            this.file = file;
+        }
+
+        public long size(){
+            return file.length();
+        }
+
+        public int read(long position, byte[] b, int off, int len) throws IOException {
+            FileChannel channel;
+            synchronized(this){
+                if (raf==null) raf = new RandomAccessFile(file, "r");
+                channel = raf.getChannel();
+            }
+            return channel.read(ByteBuffer.wrap(b, off, len), position);
+        }
+
+        public InputStream getInputStream() throws IOException {
+            return new FileInputStream(file);
+        }
+
+        public synchronized void close() throws IOException {
+            if (raf!=null) raf.close();
+            raf = null;
+        }
+
+        public String toString(){
+            return file.toString();
+        }
+    }
+
+
+  //**************************************************************************
+  //** BufferSource
+  //**************************************************************************
+    private static class BufferSource extends ByteSource {
+        private final ByteBuffer buffer;
+
+        public BufferSource(ByteBuffer buffer){
+            this.buffer = buffer.asReadOnlyBuffer();
+        }
+
+        public long size(){
+            return buffer.capacity();
+        }
+
+        public int read(long position, byte[] b, int off, int len){
+            if (position>=buffer.capacity()) return -1;
+            ByteBuffer buf = buffer.duplicate();
+            buf.position((int) position);
+            len = Math.min(len, buf.remaining());
+            buf.get(b, off, len);
+            return len;
+        }
+
+        public ByteBuffer getBuffer(){
+            return buffer.duplicate();
+        }
+    }
+
+
+  //**************************************************************************
+  //** PositionalInputStream
+  //**************************************************************************
+  /** Input stream that reads from a source with positional reads.
+   */
+    private static class PositionalInputStream extends InputStream {
+        private final ByteSource source;
+        private final long size;
+        private long position;
+
+        public PositionalInputStream(ByteSource source) throws IOException {
+            this.source = source;
+            this.size = source.size();
+        }
+
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1)<0 ? -1 : b[0] & 0xff;
+        }
+
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len==0) return 0;
+            int n = source.read(position, b, off, len);
+            if (n>0) position += n;
+            return n;
+        }
+
+        public long skip(long n){
+            if (n<=0) return 0;
+            long k = Math.min(n, Math.max(0, size-position));
+            position += k;
+            return k;
+        }
+
+        public int available(){
+            return (int) Math.min(Integer.MAX_VALUE, Math.max(0, size-position));
+        }
+    }
+
+
+  //**************************************************************************
+  //** ByteBufferInputStream
+  //**************************************************************************
+  /** Input stream backed by a ByteBuffer. Skips are done by moving the
+   *  position of the buffer so nothing is copied.
+   */
+    static class ByteBufferInputStream extends InputStream {
+        private final ByteBuffer buf;
+
+        public ByteBufferInputStream(ByteBuffer buf){
+            this.buf = buf;
+        }
+
+        public int read(){
+            return buf.hasRemaining() ? buf.get() & 0xff : -1;
+        }
+
+        public int read(byte[] b, int off, int len){
+            if (len==0) return 0;
+            if (!buf.hasRemaining()) return -1;
+            len = Math.min(len, buf.remaining());
+            buf.get(b, off, len);
+            return len;
+        }
+
+        public long skip(long n){
+            if (n<=0) return 0;
+            int k = (int) Math.min(n, buf.remaining());
+            buf.position(buf.position()+k);
+            return k;
+        }
+
+        public int available(){
+            return buf.remaining();
+        }
+    }
+}
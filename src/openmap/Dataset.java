@@ -0,0 +1,227 @@
+package openmap;
+import java.util.*;
+import java.util.concurrent.*;
+
+//******************************************************************************
+//**  Dataset
+//******************************************************************************
+/**
+ *   Used to process a directory of shapefiles concurrently. Shapefiles are
+ *   discovered by looking for shp files with matching dbf files. Each
+ *   shapefile is opened and processed in its own task. Errors are captured
+ *   per file so one bad shapefile doesn't stop the others. Example:
+ <pre>
+    Dataset dataset = new Dataset(new java.io.File("/data/counties"));
+    for (Dataset.Result&lt;Integer&gt; result : dataset.process(shp -&gt; shp.getRecordCount())){
+        if (result.isSuccess()) System.out.println(result.getFile() + "\t" + result.getValue());
+        else System.out.println(result.getFile() + "\t" + result.getError());
+    }
+ </pre>
+ *   On Java 21 and above, tasks run in virtual threads. On older versions of
+ *   Java, tasks run in a bounded pool of platform threads.
+ *
+ ******************************************************************************/
+
+public class Dataset {
+
+    private java.io.File dir;
+    private boolean recursive = true;
+    private int maxConcurrency;
+
+
+  //**************************************************************************
+  //** Constructor
+  //**************************************************************************
+  /** @param dir Directory with shapefiles.
+   */
+    public Dataset(java.io.File dir){
+        if (!dir.isDirectory()) throw new IllegalArgumentException("Invalid directory");
+        this.dir = dir;
+        int numProcessors = Runtime.getRuntime().availableProcessors();
+        maxConcurrency = ThreadPool.isVirtual() ? 256 : Math.max(4, numProcessors*2);
+    }
+
+
+  //**************************************************************************
+  //** setRecursive
+  //**************************************************************************
+  /** Used to specify whether to look for shapefiles in subdirectories.
+   *  Default is true.
+   */
+    public void setRecursive(boolean recursive){
+        this.recursive = recursive;
+    }
+
+
+  //**************************************************************************
+  //** setMaxConcurrency
+  //**************************************************************************
+  /** Used to set the maximum number of shapefiles that are processed at the
+   *  same time. This also limits the number of open files. The default is
+   *  twice the number of processors (at least 4) or 256 with virtual threads.
+   */
+    public void setMaxConcurrency(int maxConcurrency){
+        if (maxConcurrency<1) throw new IllegalArgumentException();
+        this.maxConcurrency = maxConcurrency;
+    }
+
+
+  //**************************************************************************
+  //** getShapeFiles
+  //**************************************************************************
+  /** Returns a sorted list of shp files that have matching dbf files. The
+   *  shx file is optional. If it's missing, an index is created in memory
+   *  when the shapefile is opened. File extensions are matched without
+   *  regard to case.
+   */
+    public List<java.io.File> getShapeFiles(){
+        ArrayList<java.io.File> files = new ArrayList<>();
+        ArrayList<java.io.File> dirs = new ArrayList<>();
+        dirs.add(dir);
+        while (!dirs.isEmpty()){
+            java.io.File dir = dirs.remove(dirs.size()-1);
+            java.io.File[] arr = dir.listFiles();
+            if (arr==null) continue;
+
+
+          //Group files by name, without the extension
+            HashMap<String, java.io.File> shp = new HashMap<>();
+            HashSet<String> names = new HashSet<>();
+            for (java.io.File file : arr){
+                if (file.isDirectory()){
+                    if (recursive) dirs.add(file);
+                    continue;
+                }
+                String name = file.getName().toLowerCase(Locale.ROOT);
+                names.add(name);
+                if (name.endsWith(".shp")) shp.put(name.substring(0, name.length()-4), file);
+            }
+
+
+          //Find complete shapefiles
+            for (Map.Entry<String, java.io.File> entry : shp.entrySet()){
+                String name = entry.getKey();
+                if (names.contains(name + ".dbf")){
+                    files.add(entry.getValue());
+                }
+            }
+        }
+        Collections.sort(files);
+        return files;
+    }
+
+
+  //**************************************************************************
+  //** process
+  //**************************************************************************
+  /** Used to open and process each shapefile in the dataset. Tasks run
+   *  concurrently and this method returns once all the tasks are complete.
+   *  If the calling thread is interrupted, the remaining tasks are
+   *  cancelled.
+   *  @return A list of results, in the same order as getShapeFiles(). Each
+   *  result has either the value returned by the task or the error thrown
+   *  while opening or processing the shapefile.
+   */
+    public <T> List<Result<T>> process(final Task<T> task) throws InterruptedException {
+        List<java.io.File> files = getShapeFiles();
+        ArrayList<Result<T>> results = new ArrayList<>(files.size());
+        if (files.isEmpty()) return results;
+
+        final Semaphore semaphore = new Semaphore(maxConcurrency);
+        ExecutorService executor = ThreadPool.newExecutor("Dataset", Math.min(maxConcurrency, files.size()));
+        try{
+
+
+          //Submit tasks
+            ArrayList<Future<Result<T>>> futures = new ArrayList<>(files.size());
+            for (final java.io.File file : files){
+                futures.add(executor.submit(new Callable<Result<T>>(){
+                    public Result<T> call() throws Exception {
+                        semaphore.acquire();
+                        try{
+                            ShapeFile shp = new ShapeFile(file);
+                            try{
+                                return new Result<>(file, task.process(shp), null);
+                            }
+                            finally{
+                                shp.close();
+                            }
+                        }
+                        catch(Exception e){
+                            return new Result<>(file, null, e);
+                        }
+                        finally{
+                            semaphore.release();
+                        }
+                    }
+                }));
+            }
+
+
+          //Wait for tasks to complete
+            for (Future<Result<T>> future : futures){
+                try{
+                    results.add(future.get());
+                }
+                catch(ExecutionException e){
+                    Throwable t = e.getCause();
+                    if (t instanceof Error) throw (Error) t;
+                    throw new RuntimeException(t);
+                }
+            }
+        }
+        catch(InterruptedException e){
+            executor.shutdownNow();
+            throw e;
+        }
+        finally{
+            executor.shutdown();
+        }
+        return results;
+    }
+
+
+  //**************************************************************************
+  //** Task
+  //**************************************************************************
+  /** Implemented by callers to process a shapefile. The shapefile is closed
+   *  when the task returns.
+   */
+    public static interface Task<T> {
+        public T process(ShapeFile shp) throws Exception;
+    }
+
+
+  //**************************************************************************
+  //** Result
+  //**************************************************************************
+  /** The outcome of a Task for a given shapefile.
+   */
+    public static class Result<T> {
+        private java.io.File file;
+        private T value;
+        private Exception error;
+
+        private Result(java.io.File file, T value, Exception error){
+            this.file = file;
+            this.value = value;
+            this.error = error;
+        }
+
+        public java.io.File getFile(){
+            return file;
+        }
+
+        public T getValue(){
+            return value;
+        }
+
+        public Exception getError(){
+            return error;
+        }
+
+        public boolean isSuccess(){
+            return error==null;
+        }
+    }
+}
@@ -0,0 +1,90 @@
+package openmap;
+import org.locationtech.jts.geom.Envelope;
+
+//******************************************************************************
+//**  Events
+//******************************************************************************
+/**
+ *   Used to emit JDK Flight Recorder events for shapefile I/O. This version
+ *   targets Java 8 and does nothing. The jar also contains a Java 11 version
+ *   of this class (see src-java11) that emits the events.
+ *
+ ******************************************************************************/
+
+class Events {
+
+
+  //**************************************************************************
+  //** isEnabled
+  //**************************************************************************
+  /** Returns true if slow decode events are being recorded. Readers check
+   *  this once and skip timing calls if false.
+   */
+    public static boolean isEnabled(){
+        return false;
+    }
+
+
+  //**************************************************************************
+  //** beginFileOpen
+  //**************************************************************************
+  /** Returns an event to pass to endFileOpen() or null if the event is not
+   *  being recorded.
+   */
+    public static Object beginFileOpen(){
+        return null;
+    }
+
+
+  //**************************************************************************
+  //** endFileOpen
+  //**************************************************************************
+    public static void endFileOpen(Object event, java.io.File file, int numRecords){
+    }
+
+
+  //**************************************************************************
+  //** beginShxLoad
+  //**************************************************************************
+  /** Returns an event to pass to endShxLoad() or null if the event is not
+   *  being recorded.
+   */
+    public static Object beginShxLoad(){
+        return null;
+    }
+
+
+  //**************************************************************************
+  //** endShxLoad
+  //**************************************************************************
+    public static void endShxLoad(Object event, java.io.File file, int numRecords, long bytes){
+    }
+
+
+  //**************************************************************************
+  //** beginScan
+  //**************************************************************************
+  /** Returns an event to pass to endScan() or null if the event is not
+   *  being recorded.
+   */
+    public static Object beginScan(){
+        return null;
+    }
+
+
+  //**************************************************************************
+  //** endScan
+  //**************************************************************************
+    public static void endScan(Object event, java.io.File file, long numRecords, long bytes, Envelope filter){
+    }
+
+
+  //**************************************************************************
+  //** recordDecoded
+  //**************************************************************************
+  /** Called after a record is decoded when isEnabled() is true. Emits an
+   *  event if the record exceeds the vertex or time threshold.
+   */
+    public static void recordDecoded(java.io.File file, int recordNumber, int numVertices, long bytes, long nanos){
+    }
+}
@@ -0,0 +1,1621 @@
+package openmap;
+import static com.bbn.openmap.dataAccess.shape.ShapeConstants.*;
+import com.bbn.openmap.dataAccess.shape.input.DbfInputStream;
+
+import org.locationtech.jts.geom.*;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.*;
+import java.util.concurrent.*;
+
+//******************************************************************************
+//**  FlatGeobuf
+//******************************************************************************
+/**
+ *   Used to read and write FlatGeobuf files (https://flatgeobuf.org). Files
+ *   are written from a shapefile with the features sorted along a Hilbert
+ *   curve and a packed Hilbert R-tree index, so bbox queries only read the
+ *   index nodes and features they need. Example:
+ <pre>
+    FlatGeobuf.write(new ShapeFile(new java.io.File("counties.shp")), new java.io.File("counties.fgb"));
+
+    FlatGeobuf fgb = new FlatGeobuf(new java.io.File("counties.fgb"));
+    Iterator&lt;Record&gt; it = fgb.getRecords(new Envelope(-84, -75, 36, 40));
+ </pre>
+ *   The FlatBuffers tables are encoded and decoded directly so there are no
+ *   dependencies on the FlatBuffers library. Files can be read from any
+ *   ByteSource, including remote files (see HttpSource).
+ *
+ ******************************************************************************/
+
+public class FlatGeobuf implements Closeable {
+
+    private static final byte[] MAGIC = new byte[]{0x66, 0x67, 0x62, 0x03, 0x66, 0x67, 0x62, 0x00};
+    private static final int NODE_ITEM_LENGTH = 40;
+    private static final int BATCH_SIZE = 1024;
+
+  //Geometry types
+    private static final int GEOM_UNKNOWN = 0;
+    private static final int GEOM_POINT = 1;
+    private static final int GEOM_LINESTRING = 2;
+    private static final int GEOM_POLYGON = 3;
+    private static final int GEOM_MULTIPOINT = 4;
+    private static final int GEOM_MULTILINESTRING = 5;
+    private static final int GEOM_MULTIPOLYGON = 6;
+    private static final int GEOM_COLLECTION = 7;
+
+  //Column types
+    private static final int COL_BYTE = 0;
+    private static final int COL_UBYTE = 1;
+    private static final int COL_BOOL = 2;
+    private static final int COL_SHORT = 3;
+    private static final int COL_USHORT = 4;
+    private static final int COL_INT = 5;
+    private static final int COL_UINT = 6;
+    private static final int COL_LONG = 7;
+    private static final int COL_ULONG = 8;
+    private static final int COL_FLOAT = 9;
+    private static final int COL_DOUBLE = 10;
+    private static final int COL_STRING = 11;
+    private static final int COL_JSON = 12;
+    private static final int COL_DATETIME = 13;
+    private static final int COL_BINARY = 14;
+
+    private static GeometryFactory geometryFactory = new GeometryFactory(new PrecisionModel(), 4326);
+
+    private final ByteSource source;
+    private final boolean closeSource;
+    private String name;
+    private int geometryType;
+    private boolean hasZ;
+    private boolean hasM;
+    private long numFeatures;
+    private int nodeSize;
+    private Envelope extent;
+    private int[] columnTypes;
+    private Schema schema;
+    private long[][] levelBounds;
+    private long indexOffset;
+    private long featuresOffset;
+
+
+  //**************************************************************************
+  //** Constructor
+  //**************************************************************************
+  /** Used to open a FlatGeobuf file. Only the header is read.
+   */
+    public FlatGeobuf(java.io.File file) throws IOException {
+        this(ByteSource.of(file), true);
+    }
+
+
+  //**************************************************************************
+  //** Constructor
+  //**************************************************************************
+  /** Used to open a FlatGeobuf file from memory or custom storage. The source
+   *  is not closed by this class.
+   */
+    public FlatGeobuf(ByteSource source) throws IOException {
+        this(source, false);
+    }
+
+
+    private FlatGeobuf(ByteSource source, boolean closeSource) throws IOException {
+        this.source = source;
+        this.closeSource = closeSource;
+        try{
+            readHeader();
+        }
+        catch(IOException | RuntimeException e){
+            if (closeSource) source.close();
+            throw e;
+        }
+    }
+
+
+  //**************************************************************************
+  //** readHeader
+  //**************************************************************************
+    private void readHeader() throws IOException {
+        byte[] b = new byte[12];
+        source.readFully(0, b, 0, b.length);
+        if (b[0]!=MAGIC[0] || b[1]!=MAGIC[1] || b[2]!=MAGIC[2] || b[3]!=MAGIC[3]){
+            throw new IOException("Not a FlatGeobuf file: " + source);
+        }
+        int headerLength = ByteBuffer.wrap(b).order(ByteOrder.LITTLE_ENDIAN).getInt(8);
+        if (headerLength<4 || 12L+headerLength>source.size()) throw new IOException("Invalid header: " + source);
+        byte[] header = new byte[headerLength];
+        source.readFully(12, header, 0, headerLength);
+        ByteBuffer bb = ByteBuffer.wrap(header).order(ByteOrder.LITTLE_ENDIAN);
+        int root = bb.getInt(0);
+
+
+      //Parse header fields
+        name = getString(bb, field(bb, root, 0));
+        int pos = field(bb, root, 1);
+        if (pos>0){
+            int v = deref(bb, pos);
+            if (bb.getInt(v)>=4){
+                extent = new Envelope(
+                    bb.getDouble(v+4), bb.getDouble(v+20),
+                    bb.getDouble(v+12), bb.getDouble(v+28)
+                );
+            }
+        }
+        pos = field(bb, root, 2);
+        geometryType = pos==0 ? GEOM_UNKNOWN : bb.get(pos) & 0xff;
+        pos = field(bb, root, 3);
+        hasZ = pos>0 && bb.get(pos)!=0;
+        pos = field(bb, root, 4);
+        hasM = pos>0 && bb.get(pos)!=0;
+        pos = field(bb, root, 8);
+        numFeatures = pos==0 ? 0 : bb.getLong(pos);
+        pos = field(bb, root, 9);
+        nodeSize = pos==0 ? 16 : bb.getShort(pos) & 0xffff;
+
+
+      //Parse columns
+        String[] names = new String[2];
+        columnTypes = new int[0];
+        pos = field(bb, root, 7);
+        if (pos>0){
+            int v = deref(bb, pos);
+            int numColumns = bb.getInt(v);
+            names = new String[numColumns+2];
+            columnTypes = new int[numColumns];
+            for (int i=0; i<numColumns; i++){
+                int column = deref(bb, v+4+i*4);
+                names[i+1] = getString(bb, field(bb, column, 0));
+                int type = field(bb, column, 1);
+                columnTypes[i] = type==0 ? COL_BYTE : bb.get(type) & 0xff;
+            }
+        }
+        names[0] = "id*";
+        names[names.length-1] = "geom*";
+        byte[] types = new byte[names.length];
+        for (int i=0; i<columnTypes.length; i++) types[i+1] = getDbfType(columnTypes[i]);
+        schema = new Schema(names, types);
+
+
+      //Find the index and the features
+        indexOffset = 12L + headerLength;
+        long indexLength = 0;
+        if (nodeSize>0 && numFeatures>0){
+            if (nodeSize<2) throw new IOException("Invalid index node size: " + nodeSize);
+            levelBounds = getLevelBounds(numFeatures, nodeSize);
+            indexLength = levelBounds[0][1]*NODE_ITEM_LENGTH;
+        }
+        featuresOffset = indexOffset + indexLength;
+    }
+
+
+  //**************************************************************************
+  //** getName
+  //**************************************************************************
+  /** Returns the dataset name found in the header, if any.
+   */
+    public String getName(){
+        return name;
+    }
+
+
+  //**************************************************************************
+  //** getFeatureCount
+  //**************************************************************************
+    public long getFeatureCount(){
+        return numFeatures;
+    }
+
+
+  //**************************************************************************
+  //** getExtent
+  //**************************************************************************
+  /** Returns the extent found in the header or null if there isn't one.
+   */
+    public Envelope getExtent(){
+        return extent;
+    }
+
+
+  //**************************************************************************
+  //** getSchema
+  //**************************************************************************
+  /** Returns the fields in the records. Column 0 is the feature id, followed
+   *  by the properties and the geometry. Property types are mapped to dbf
+   *  types ('N', 'C', 'L' or 'D').
+   */
+    public Schema getSchema(){
+        return schema;
+    }
+
+
+  //**************************************************************************
+  //** hasZ
+  //**************************************************************************
+  /** Returns true if the header says that the geometries have Z values.
+   */
+    public boolean hasZ(){
+        return hasZ;
+    }
+
+
+  //**************************************************************************
+  //** hasM
+  //**************************************************************************
+  /** Returns true if the header says that the geometries have M values.
+   */
+    public boolean hasM(){
+        return hasM;
+    }
+
+
+  //**************************************************************************
+  //** hasIndex
+  //**************************************************************************
+  /** Returns true if the file has a spatial index.
+   */
+    public boolean hasIndex(){
+        return levelBounds!=null;
+    }
+
+
+  //**************************************************************************
+  //** getRecords
+  //**************************************************************************
+  /** Used to iterate through all the features in the file, in file order.
+   *  The id of each record is the position of the feature in the file,
+   *  starting at 1.
+   */
+    public Iterator<Record> getRecords() throws IOException {
+        return getRecords(null);
+    }
+
+
+  //**************************************************************************
+  //** getRecords
+  //**************************************************************************
+  /** Used to iterate through features that intersect a given extent. If the
+   *  file has an index, the index is searched one level at a time and only
+   *  the features found in the index are read. Otherwise, every feature is
+   *  read and checked against the extent.
+   */
+    public Iterator<Record> getRecords(Envelope extent) throws IOException {
+        if (extent!=null && levelBounds!=null) return new IndexIterator(search(extent));
+        return new ScanIterator(extent);
+    }
+
+
+  //**************************************************************************
+  //** close
+  //**************************************************************************
+  /** Closes the file, if it was opened by this class.
+   */
+    public void close() throws IOException {
+        if (closeSource) source.close();
+    }
+
+
+  //**************************************************************************
+  //** search
+  //**************************************************************************
+  /** Returns the positions and byte offsets of the features that intersect
+   *  an extent.
+   *  @return Array with three values per feature: the position of the
+   *  feature in the file, the offset of the feature, relative to the first
+   *  feature, and the offset of the next feature (or -1). The array is sorted
+   *  by position.
+   */
+    private long[] search(Envelope env) throws IOException {
+        return search(source, indexOffset, levelBounds, nodeSize, env);
+    }
+
+
+  //**************************************************************************
+  //** search
+  //**************************************************************************
+  /** Used to search a packed Hilbert R-tree. The nodes needed at each level
+   *  of the tree are read with one call to prefetch() so remote sources can
+   *  coalesce the requests. Also used to search the spatial index of a
+   *  shapefile (see ShapeFile.createSpatialIndex()).
+   *  @param indexOffset Position of the root node in the source
+   *  @param levelBounds Nodes in each level of the tree (see getLevelBounds)
+   *  @return Array with three values per leaf that intersects the extent:
+   *  the position of the leaf, the offset stored in the leaf and the offset
+   *  stored in the next leaf (or -1). The array is sorted by position.
+   */
+    static long[] search(ByteSource source, long indexOffset, long[][] levelBounds,
+        int nodeSize, Envelope env) throws IOException {
+
+        long numNodes = levelBounds[0][1];
+        long leafStart = levelBounds[0][0];
+        long[] nodes = new long[]{0};
+        int numQueued = 1;
+        long[] results = new long[64];
+        int numResults = 0;
+
+        for (int level=levelBounds.length-1; level>=0; level--){
+            long levelEnd = levelBounds[level][1];
+            boolean isLeaf = level==0;
+
+
+          //Read the child nodes. Leaf reads include the next item so that
+          //the length of the last feature in each range is known.
+            long[] positions = new long[numQueued];
+            int[] lengths = new int[numQueued];
+            for (int i=0; i<numQueued; i++){
+                long end = Math.min(nodes[i]+nodeSize, levelEnd);
+                if (isLeaf && end<numNodes) end++;
+                positions[i] = indexOffset + nodes[i]*NODE_ITEM_LENGTH;
+                lengths[i] = (int) (end-nodes[i])*NODE_ITEM_LENGTH;
+            }
+            source.prefetch(positions, lengths);
+
+
+          //Find nodes that intersect the extent
+            long[] next = new long[Math.max(16, numQueued*nodeSize)];
+            int numNext = 0;
+            byte[] b = new byte[(nodeSize+1)*NODE_ITEM_LENGTH];
+            ByteBuffer bb = ByteBuffer.wrap(b).order(ByteOrder.LITTLE_ENDIAN);
+            for (int i=0; i<numQueued; i++){
+                source.readFully(positions[i], b, 0, lengths[i]);
+                long end = Math.min(nodes[i]+nodeSize, levelEnd);
+                for (long n=nodes[i]; n<end; n++){
+                    int p = (int) (n-nodes[i])*NODE_ITEM_LENGTH;
+                    if (bb.getDouble(p+16)<env.getMinX() || bb.getDouble(p+24)<env.getMinY() ||
+                        bb.getDouble(p)>env.getMaxX() || bb.getDouble(p+8)>env.getMaxY()) continue;
+                    long offset = bb.getLong(p+32);
+                    if (isLeaf){
+                        if (numResults+3>results.length) results = Arrays.copyOf(results, results.length*2);
+                        long nextOffset = n+1<numNodes ? bb.getLong(p+NODE_ITEM_LENGTH+32) : -1;
+                        results[numResults++] = n-leafStart;
+                        results[numResults++] = offset;
+                        results[numResults++] = nextOffset;
+                    }
+                    else{
+                        if (numNext==next.length) next = Arrays.copyOf(next, next.length*2);
+                        next[numNext++] = offset;
+                    }
+                }
+            }
+            nodes = next;
+            numQueued = numNext;
+            if (numQueued==0) break;
+        }
+        return Arrays.copyOf(results, numResults);
+    }
+
+
+  //**************************************************************************
+  //** IndexIterator
+  //**************************************************************************
+  /** Used to read the features found in the index. Features are read in
+   *  batches. The ranges in each batch are passed to prefetch() first.
+   */
+    private class IndexIterator implements Iterator<Record> {
+        private final long[] results;
+        private int numRead;
+        private ArrayList<Record> batch = new ArrayList<>();
+        private int pos;
+
+        public IndexIterator(long[] results){
+            this.results = results;
+        }
+
+        public boolean hasNext(){
+            while (pos==batch.size()){
+                if (numRead*3>=results.length) return false;
+                try{
+                    nextBatch();
+                }
+                catch(IOException e){
+                    throw new RuntimeException(e);
+                }
+            }
+            return true;
+        }
+
+        public Record next(){
+            if (!hasNext()) throw new NoSuchElementException();
+            return batch.get(pos++);
+        }
+
+        private void nextBatch() throws IOException {
+            batch.clear();
+            pos = 0;
+            int count = Math.min(BATCH_SIZE, results.length/3-numRead);
+            long end = source.size();
+            long[] positions = new long[count];
+            int[] lengths = new int[count];
+            for (int i=0; i<count; i++){
+                int r = (numRead+i)*3;
+                positions[i] = featuresOffset + results[r+1];
+                long nextOffset = results[r+2];
+                lengths[i] = (int) ((nextOffset<0 ? end : featuresOffset+nextOffset) - positions[i]);
+            }
+            source.prefetch(positions, lengths);
+
+            byte[] b = new byte[1024];
+            for (int i=0; i<count; i++){
+                if (b.length<lengths[i]) b = new byte[Math.max(lengths[i], b.length*2)];
+                source.readFully(positions[i], b, 0, lengths[i]);
+                ByteBuffer bb = ByteBuffer.wrap(b, 4, lengths[i]-4).slice().order(ByteOrder.LITTLE_ENDIAN);
+                batch.add(decode(bb, results[(numRead+i)*3]+1));
+            }
+            numRead += count;
+        }
+    }
+
+
+  //**************************************************************************
+  //** ScanIterator
+  //**************************************************************************
+  /** Used to read all the features in file order, optionally filtered by
+   *  the envelope of each geometry.
+   */
+    private class ScanIterator implements Iterator<Record> {
+        private final Envelope filter;
+        private DataInputStream is;
+        private long id;
+        private byte[] buf = new byte[1024];
+        private Record next;
+
+        public ScanIterator(Envelope filter) throws IOException {
+            this.filter = filter;
+            is = new DataInputStream(new BufferedInputStream(source.getInputStream(), 64*1024));
+            long n = featuresOffset;
+            while (n>0){
+                int skipped = is.skipBytes((int) Math.min(n, Integer.MAX_VALUE));
+                if (skipped<=0) throw new EOFException();
+                n -= skipped;
+            }
+        }
+
+        public boolean hasNext(){
+            if (next!=null) return true;
+            try{
+                while (id<numFeatures){
+                    int length = Integer.reverseBytes(is.readInt());
+                    if (buf.length<length) buf = new byte[Math.max(length, buf.length*2)];
+                    is.readFully(buf, 0, length);
+                    id++;
+                    Record record = decode(ByteBuffer.wrap(buf, 0, length).slice().order(ByteOrder.LITTLE_ENDIAN), id);
+                    if (filter!=null){
+                        Geometry geom = record.getValue(columnTypes.length+1).toGeometry();
+                        if (geom==null || !filter.intersects(geom.getEnvelopeInternal())) continue;
+                    }
+                    next = record;
+                    return true;
+                }
+                is.close();
+                return false;
+            }
+            catch(IOException e){
+                try{ is.close(); }catch(Exception ex){}
+                throw new RuntimeException(e);
+            }
+        }
+
+        public Record next(){
+            if (!hasNext()) throw new NoSuchElementException();
+            Record record = next;
+            next = null;
+            return record;
+        }
+    }
+
+
+  //**************************************************************************
+  //** decode
+  //**************************************************************************
+  /** Returns a record for a Feature table.
+   *  @param bb Buffer with the feature, without the size prefix
+   *  @param id Position of the feature in the file, starting at 1
+   */
+    private Record decode(ByteBuffer bb, long id){
+        int root = bb.getInt(0);
+        Value[] values = new Value[columnTypes.length+2];
+        values[0] = new Value((int) id);
+
+
+      //Parse properties
+        Object[] properties = new Object[columnTypes.length];
+        int pos = field(bb, root, 1);
+        if (pos>0){
+            int v = deref(bb, pos);
+            int p = v+4;
+            int end = p+bb.getInt(v);
+            while (p+2<=end){
+                int col = bb.getShort(p) & 0xffff;
+                p += 2;
+                if (col>=columnTypes.length) break;
+                Object value;
+                switch (columnTypes[col]){
+                    case COL_BYTE: value = (int) bb.get(p); p += 1; break;
+                    case COL_UBYTE: value = bb.get(p) & 0xff; p += 1; break;
+                    case COL_BOOL: value = bb.get(p)!=0; p += 1; break;
+                    case COL_SHORT: value = (int) bb.getShort(p); p += 2; break;
+                    case COL_USHORT: value = bb.getShort(p) & 0xffff; p += 2; break;
+                    case COL_INT: value = bb.getInt(p); p += 4; break;
+                    case COL_UINT: value = bb.getInt(p) & 0xffffffffL; p += 4; break;
+                    case COL_LONG: value = bb.getLong(p); p += 8; break;
+                    case COL_ULONG: value = bb.getLong(p); p += 8; break;
+                    case COL_FLOAT: value = (double) bb.getFloat(p); p += 4; break;
+                    case COL_DOUBLE: value = bb.getDouble(p); p += 8; break;
+                    case COL_BINARY:{
+                        int length = bb.getInt(p);
+                        byte[] b = new byte[length];
+                        ByteBuffer dup = bb.duplicate();
+                        dup.position(p+4);
+                        dup.get(b);
+                        value = b;
+                        p += 4+length;
+                        break;
+                    }
+                    default:{
+                        int length = bb.getInt(p);
+                        value = getString(bb, p+4, length);
+                        p += 4+length;
+                    }
+                }
+                properties[col] = value;
+            }
+        }
+        for (int i=0; i<properties.length; i++) values[i+1] = new Value(properties[i]);
+
+
+      //Parse geometry
+        pos = field(bb, root, 0);
+        Geometry geom = pos==0 ? null : getGeometry(bb, deref(bb, pos), geometryType);
+        values[values.length-1] = new Value(geom);
+        return new Record(schema, values);
+    }
+
+
+  //**************************************************************************
+  //** getGeometry
+  //**************************************************************************
+  /** Returns a JTS geometry for a Geometry table.
+   */
+    private Geometry getGeometry(ByteBuffer bb, int table, int type){
+        int pos = field(bb, table, 6);
+        if (type==GEOM_UNKNOWN && pos>0) type = bb.get(pos) & 0xff;
+
+
+      //Geometries with parts
+        if (type==GEOM_MULTIPOLYGON || type==GEOM_COLLECTION){
+            pos = field(bb, table, 7);
+            int numParts = pos==0 ? 0 : bb.getInt(deref(bb, pos));
+            if (type==GEOM_MULTIPOLYGON){
+                Polygon[] polygons = new Polygon[numParts];
+                for (int i=0; i<numParts; i++){
+                    int part = deref(bb, deref(bb, pos)+4+i*4);
+                    polygons[i] = (Polygon) getGeometry(bb, part, GEOM_POLYGON);
+                }
+                return geometryFactory.createMultiPolygon(polygons);
+            }
+            Geometry[] geometries = new Geometry[numParts];
+            for (int i=0; i<numParts; i++){
+                int part = deref(bb, deref(bb, pos)+4+i*4);
+                geometries[i] = getGeometry(bb, part, GEOM_UNKNOWN);
+            }
+            return geometryFactory.createGeometryCollection(geometries);
+        }
+
+
+      //Get coordinates
+        pos = field(bb, table, 1);
+        int xy = pos==0 ? 0 : deref(bb, pos);
+        int numPoints = xy==0 ? 0 : bb.getInt(xy)/2;
+        pos = field(bb, table, 2);
+        int z = pos==0 ? 0 : deref(bb, pos);
+        pos = field(bb, table, 3);
+        int m = pos==0 ? 0 : deref(bb, pos);
+        Coordinate[] coords = new Coordinate[numPoints];
+        for (int i=0; i<numPoints; i++){
+            double x = bb.getDouble(xy+4+i*16);
+            double y = bb.getDouble(xy+12+i*16);
+            if (z==0 && m==0) coords[i] = new Coordinate(x, y);
+            else if (m==0) coords[i] = new Coordinate(x, y, bb.getDouble(z+4+i*8));
+            else if (z==0) coords[i] = new CoordinateXYM(x, y, bb.getDouble(m+4+i*8));
+            else coords[i] = new CoordinateXYZM(x, y, bb.getDouble(z+4+i*8), bb.getDouble(m+4+i*8));
+        }
+
+
+      //Get parts
+        pos = field(bb, table, 0);
+        int[] ends;
+        if (pos==0){
+            ends = new int[]{numPoints};
+        }
+        else{
+            int v = deref(bb, pos);
+            ends = new int[bb.getInt(v)];
+            for (int i=0; i<ends.length; i++) ends[i] = bb.getInt(v+4+i*4);
+        }
+
+
+        switch (type){
+            case GEOM_POINT:
+                return numPoints==0 ? geometryFactory.createPoint() : geometryFactory.createPoint(coords[0]);
+            case GEOM_MULTIPOINT:
+                return geometryFactory.createMultiPointFromCoords(coords);
+            case GEOM_LINESTRING:
+                return geometryFactory.createLineString(coords);
+            case GEOM_MULTILINESTRING:{
+                LineString[] lines = new LineString[ends.length];
+                for (int i=0; i<ends.length; i++){
+                    lines[i] = geometryFactory.createLineString(
+                        Arrays.copyOfRange(coords, i==0 ? 0 : ends[i-1], ends[i]));
+                }
+                return geometryFactory.createMultiLineString(lines);
+            }
+            case GEOM_POLYGON:{
+                if (numPoints==0) return geometryFactory.createPolygon();
+                LinearRing shell = null;
+                LinearRing[] holes = new LinearRing[ends.length-1];
+                for (int i=0; i<ends.length; i++){
+                    LinearRing ring = geometryFactory.createLinearRing(
+                        Arrays.copyOfRange(coords, i==0 ? 0 : ends[i-1], ends[i]));
+                    if (i==0) shell = ring;
+                    else holes[i-1] = ring;
+                }
+                return geometryFactory.createPolygon(shell, holes);
+            }
+            default:
+                throw new IllegalArgumentException("Unsupported geometry type: " + type);
+        }
+    }
+
+
+  //**************************************************************************
+  //** write
+  //**************************************************************************
+  /** Used to write the records in a shapefile to a FlatGeobuf file with a
+   *  spatial index. Features are encoded in parallel using all available
+   *  processors.
+   */
+    public static void write(ShapeFile shp, java.io.File file) throws Exception {
+        write(shp, file, 16, Runtime.getRuntime().availableProcessors());
+    }
+
+
+  //**************************************************************************
+  //** write
+  //**************************************************************************
+  /** Used to write the records in a shapefile to a FlatGeobuf file. Records
+   *  are read in file order and encoded in batches by a pool of threads.
+   *  The encoded features are written to a temp file along with their
+   *  bounding boxes. The features are then sorted by the Hilbert value of
+   *  the center of their bounding box and copied to the output file, after
+   *  the header and the packed R-tree. Dbf columns are mapped to typed
+   *  properties using the dbf field types, lengths and decimal counts:
+   *  numeric fields without decimals are written as ints or longs, other
+   *  numeric fields as doubles, logical fields as booleans and dates as
+   *  ISO 8601 strings. Records that are marked as deleted are skipped.
+   *  @param nodeSize Number of children per index node. Use 0 to write the
+   *  file without an index (features are written in file order).
+   *  @param numThreads Number of threads used to encode features
+   */
+    public static void write(ShapeFile shp, java.io.File file, int nodeSize, int numThreads) throws Exception {
+        if (nodeSize==1 || nodeSize<0 || nodeSize>0xffff) throw new IllegalArgumentException("Invalid node size");
+        Metrics.Listener listener = Metrics.getListener();
+        long startTime = listener==Metrics.NONE ? 0 : System.nanoTime();
+
+
+      //Get geometry type
+        int shapeType = shp.getShapeType();
+        final int geometryType;
+        switch (ShapeFile.getBaseType(shapeType)){
+            case SHAPE_TYPE_POINT: geometryType = GEOM_POINT; break;
+            case SHAPE_TYPE_MULTIPOINT: geometryType = GEOM_MULTIPOINT; break;
+            case SHAPE_TYPE_POLYLINE: geometryType = GEOM_MULTILINESTRING; break;
+            case SHAPE_TYPE_POLYGON: geometryType = GEOM_MULTIPOLYGON; break;
+            default: throw new IllegalArgumentException("Unsupported shape type: " + shapeType);
+        }
+        final boolean hasZ = ShapeFile.hasZ(shapeType);
+        final boolean hasM = shp.hasM();
+
+
+      //Map dbf columns to properties
+        DbfInputStream dbf = shp.getDbfInputStream();
+        String[] names = dbf.getColumnNames();
+        byte[] dbfTypes = dbf.getTypes();
+        int[] lengths = dbf.getLengths();
+        byte[] decimals = dbf.getDecimalCounts();
+        dbf.close();
+        final int[] types = new int[names.length];
+        Table[] columns = new Table[names.length];
+        for (int i=0; i<names.length; i++){
+            types[i] = getColumnType(dbfTypes[i], lengths[i], decimals[i]);
+            columns[i] = new Table(8)
+                .set(0, names[i])
+                .set(1, new Scalar(types[i], 1))
+                .set(4, new Scalar(lengths[i], 4));
+            if (types[i]==COL_DOUBLE){
+                columns[i].set(5, new Scalar(lengths[i], 4));
+                columns[i].set(6, new Scalar(decimals[i], 4));
+            }
+        }
+
+
+      //Encode features and write them to a temp file in file order
+        java.io.File dir = file.getAbsoluteFile().getParentFile();
+        if (!dir.exists()) dir.mkdirs();
+        java.io.File tmp = java.io.File.createTempFile(file.getName() + ".", ".tmp", dir);
+        ExecutorService executor = ThreadPool.newExecutor("FlatGeobuf", Math.max(1, numThreads));
+        try{
+            int numFeatures = 0;
+            int[] sizes = new int[1024];
+            double[] bounds = new double[4096];
+            OutputStream out = new BufferedOutputStream(new FileOutputStream(tmp), 1024*1024);
+            try{
+                ArrayDeque<Future<Batch>> queue = new ArrayDeque<>();
+                final int numColumns = names.length;
+                Iterator<Record> it = shp.getRecords();
+                while (it.hasNext() || !queue.isEmpty()){
+                    if (it.hasNext()){
+                        final ArrayList<Record> records = new ArrayList<>(BATCH_SIZE);
+                        while (it.hasNext() && records.size()<BATCH_SIZE) records.add(it.next());
+                        queue.add(executor.submit(new Callable<Batch>(){
+                            public Batch call() throws Exception {
+                                return encode(records, numColumns, types, geometryType, hasZ, hasM);
+                            }
+                        }));
+                        if (queue.size()<=numThreads*2 && it.hasNext()) continue;
+                    }
+
+
+                  //Write the oldest batch
+                    Batch batch = get(queue.poll());
+                    out.write(batch.data, 0, batch.length);
+                    if (numFeatures+batch.count>sizes.length){
+                        int n = Math.max(numFeatures+batch.count, sizes.length*2);
+                        sizes = Arrays.copyOf(sizes, n);
+                        bounds = Arrays.copyOf(bounds, n*4);
+                    }
+                    System.arraycopy(batch.sizes, 0, sizes, numFeatures, batch.count);
+                    System.arraycopy(batch.bounds, 0, bounds, numFeatures*4, batch.count*4);
+                    numFeatures += batch.count;
+                }
+            }
+            finally{
+                out.close();
+            }
+
+
+          //Find the extent
+            double[] ext = new double[]{
+                Double.POSITIVE_INFINITY, Double.POSITIVE_INFINITY,
+                Double.NEGATIVE_INFINITY, Double.NEGATIVE_INFINITY
+            };
+            for (int i=0; i<numFeatures; i++){
+                ext[0] = Math.min(ext[0], bounds[i*4]);
+                ext[1] = Math.min(ext[1], bounds[i*4+1]);
+                ext[2] = Math.max(ext[2], bounds[i*4+2]);
+                ext[3] = Math.max(ext[3], bounds[i*4+3]);
+            }
+            boolean hasExtent = ext[0]<=ext[2] && ext[1]<=ext[3];
+
+
+          //Sort features by the Hilbert value of the center of the bbox
+            int[] order;
+            if (nodeSize>0 && hasExtent){
+                order = sort(bounds, numFeatures, ext);
+            }
+            else{
+                order = new int[numFeatures];
+                for (int i=0; i<numFeatures; i++) order[i] = i;
+            }
+
+
+          //Create header
+            Table header = new Table(14)
+                .set(0, shp.getName())
+                .set(2, new Scalar(geometryType, 1))
+                .set(7, columns)
+                .set(8, new Scalar(numFeatures, 8))
+                .set(9, new Scalar(numFeatures>0 ? nodeSize : 0, 2));
+            if (hasExtent) header.set(1, ext);
+            if (hasZ) header.set(3, new Scalar(1, 1));
+            if (hasM) header.set(4, new Scalar(1, 1));
+            String wkt = getProjection(shp);
+            if (wkt!=null) header.set(10, new Table(6).set(4, wkt));
+            byte[] headerBytes = new Builder().finish(header);
+
+
+          //Find the offset of each feature in the temp file and in the output
+            long[] offsets = new long[numFeatures+1];
+            for (int i=0; i<numFeatures; i++) offsets[i+1] = offsets[i]+sizes[i];
+            long[] sortedOffsets = new long[numFeatures];
+            long offset = 0;
+            for (int i : order){
+                sortedOffsets[i] = offset;
+                offset += sizes[i];
+            }
+
+
+          //Write output
+            CountingOutputStream os = new CountingOutputStream(
+                new BufferedOutputStream(new FileOutputStream(file), 1024*1024));
+            FileInputStream tmpIn = new FileInputStream(tmp);
+            try{
+                os.write(MAGIC);
+                os.write(headerBytes, 0, headerBytes.length);
+                if (nodeSize>0 && numFeatures>0) writeIndex(os, order, sortedOffsets, bounds, nodeSize);
+
+                FileChannel channel = tmpIn.getChannel();
+                ByteBuffer buf = ByteBuffer.allocate(64*1024);
+                for (int i : order){
+                    if (buf.capacity()<sizes[i]) buf = ByteBuffer.allocate(Math.max(sizes[i], buf.capacity()*2));
+                    buf.clear();
+                    buf.limit(sizes[i]);
+                    while (buf.hasRemaining()){
+                        if (channel.read(buf, offsets[i]+buf.position())<0) throw new EOFException();
+                    }
+                    os.write(buf.array(), 0, sizes[i]);
+                }
+            }
+            finally{
+                tmpIn.close();
+                os.close();
+            }
+            if (listener!=Metrics.NONE) listener.recordsWritten(numFeatures, os.getCount(), System.nanoTime()-startTime);
+        }
+        finally{
+            executor.shutdownNow();
+            tmp.delete();
+        }
+    }
+
+
+  //**************************************************************************
+  //** writeIndex
+  //**************************************************************************
+  /** Used to write a packed Hilbert R-tree. The leaves are the item
+   *  bounding boxes in sorted order, with the offset of each item. Each
+   *  parent node covers up to nodeSize consecutive nodes in the level below
+   *  and stores the position of its first child. The root is written first.
+   *  @param order Items in sorted order (see sort)
+   *  @param offsets Value stored in the leaf of each item (e.g. the offset
+   *  of a feature)
+   *  @param bounds Bounding box of each item (minX, minY, maxX, maxY)
+   */
+    static void writeIndex(OutputStream os, int[] order, long[] offsets, double[] bounds, int nodeSize) throws IOException {
+        long[][] levelBounds = getLevelBounds(order.length, nodeSize);
+        int numNodes = (int) levelBounds[0][1];
+        double[] boxes = new double[numNodes*4];
+        long[] values = new long[numNodes];
+
+
+      //Add leaves
+        int leaf = (int) levelBounds[0][0];
+        for (int i=0; i<order.length; i++){
+            int f = order[i];
+            System.arraycopy(bounds, f*4, boxes, (leaf+i)*4, 4);
+            values[leaf+i] = offsets[f];
+        }
+
+
+      //Add parents
+        for (int level=0; level<levelBounds.length-1; level++){
+            int pos = (int) levelBounds[level][0];
+            int end = (int) levelBounds[level][1];
+            int parent = (int) levelBounds[level+1][0];
+            while (pos<end){
+                values[parent] = pos;
+                double minX = Double.POSITIVE_INFINITY;
+                double minY = Double.POSITIVE_INFINITY;
+                double maxX = Double.NEGATIVE_INFINITY;
+                double maxY = Double.NEGATIVE_INFINITY;
+                for (int j=0; j<nodeSize && pos<end; j++, pos++){
+                    minX = Math.min(minX, boxes[pos*4]);
+                    minY = Math.min(minY, boxes[pos*4+1]);
+                    maxX = Math.max(maxX, boxes[pos*4+2]);
+                    maxY = Math.max(maxY, boxes[pos*4+3]);
+                }
+                boxes[parent*4] = minX;
+                boxes[parent*4+1] = minY;
+                boxes[parent*4+2] = maxX;
+                boxes[parent*4+3] = maxY;
+                parent++;
+            }
+        }
+
+
+      //Write nodes
+        ByteBuffer bb = ByteBuffer.allocate(NODE_ITEM_LENGTH*1024).order(ByteOrder.LITTLE_ENDIAN);
+        for (int i=0; i<numNodes; i++){
+            bb.putDouble(boxes[i*4]);
+            bb.putDouble(boxes[i*4+1]);
+            bb.putDouble(boxes[i*4+2]);
+            bb.putDouble(boxes[i*4+3]);
+            bb.putLong(values[i]);
+            if (!bb.hasRemaining()){
+                os.write(bb.array(), 0, bb.position());
+                bb.clear();
+            }
+        }
+        os.write(bb.array(), 0, bb.position());
+    }
+
+
+  //**************************************************************************
+  //** encode
+  //**************************************************************************
+  /** Used to encode a batch of records as size-prefixed Feature tables.
+   *  Called by the encoder threads.
+   */
+    private static Batch encode(List<Record> records, int numColumns, int[] types,
+        int geometryType, boolean hasZ, boolean hasM) throws Exception {
+
+        Batch batch = new Batch(records.size());
+        Builder builder = new Builder();
+        Properties properties = new Properties();
+        for (int i=0; i<records.size(); i++){
+            Record record = records.get(i);
+
+
+          //Encode properties
+            properties.clear();
+            for (int c=0; c<numColumns; c++){
+                Object value = record.getValue(c+1).toObject();
+                properties.add(c, types[c], value);
+            }
+
+
+          //Encode geometry
+            Geometry geom = record.getValue(numColumns+1).toGeometry();
+            Table feature = new Table(2);
+            if (geom!=null && !geom.isEmpty()){
+                feature.set(0, getGeometry(geom, geometryType, hasZ, hasM));
+                Envelope env = geom.getEnvelopeInternal();
+                batch.bounds[i*4] = env.getMinX();
+                batch.bounds[i*4+1] = env.getMinY();
+                batch.bounds[i*4+2] = env.getMaxX();
+                batch.bounds[i*4+3] = env.getMaxY();
+            }
+            else{
+                batch.bounds[i*4] = batch.bounds[i*4+1] = Double.POSITIVE_INFINITY;
+                batch.bounds[i*4+2] = batch.bounds[i*4+3] = Double.NEGATIVE_INFINITY;
+            }
+            if (properties.length>0) feature.set(1, properties.toByteArray());
+
+            byte[] b = builder.finish(feature);
+            batch.add(i, b);
+        }
+        return batch;
+    }
+
+
+  //**************************************************************************
+  //** getGeometry
+  //**************************************************************************
+  /** Returns a Geometry table for a JTS geometry. Single lines and polygons
+   *  are written as multi-part geometries to match the header.
+   */
+    private static Table getGeometry(Geometry geom, int geometryType, boolean hasZ, boolean hasM){
+        if (geometryType==GEOM_MULTIPOLYGON){
+            Table[] parts = new Table[geom.getNumGeometries()];
+            for (int i=0; i<parts.length; i++){
+                Polygon polygon = (Polygon) geom.getGeometryN(i);
+                LineString[] rings = new LineString[polygon.getNumInteriorRing()+1];
+                rings[0] = polygon.getExteriorRing();
+                for (int j=1; j<rings.length; j++) rings[j] = polygon.getInteriorRingN(j-1);
+                parts[i] = getCoordinates(rings, hasZ, hasM);
+            }
+            return new Table(8).set(7, parts);
+        }
+        if (geometryType==GEOM_MULTILINESTRING){
+            LineString[] lines = new LineString[geom.getNumGeometries()];
+            for (int i=0; i<lines.length; i++) lines[i] = (LineString) geom.getGeometryN(i);
+            return getCoordinates(lines, hasZ, hasM);
+        }
+        return getCoordinates(new Geometry[]{geom}, hasZ, hasM);
+    }
+
+
+  //**************************************************************************
+  //** getCoordinates
+  //**************************************************************************
+  /** Returns a Geometry table with the coordinates of one or more parts.
+   *  The end of each part is stored in the "ends" vector if there is more
+   *  than one part.
+   */
+    private static Table getCoordinates(Geometry[] parts, boolean hasZ, boolean hasM){
+        int numPoints = 0;
+        for (Geometry part : parts) numPoints += part.getNumPoints();
+        double[] xy = new double[numPoints*2];
+        double[] z = hasZ ? new double[numPoints] : null;
+        double[] m = hasM ? new double[numPoints] : null;
+        int[] ends = new int[parts.length];
+        int n = 0;
+        for (int i=0; i<parts.length; i++){
+            for (Coordinate c : parts[i].getCoordinates()){
+                xy[n*2] = c.x;
+                xy[n*2+1] = c.y;
+                if (z!=null) z[n] = c.getZ();
+                if (m!=null) m[n] = c.getM();
+                n++;
+            }
+            ends[i] = n;
+        }
+        Table table = new Table(4).set(1, xy);
+        if (parts.length>1) table.set(0, ends);
+        if (z!=null) table.set(2, z);
+        if (m!=null) table.set(3, m);
+        return table;
+    }
+
+
+  //**************************************************************************
+  //** getColumnType
+  //**************************************************************************
+  /** Returns a column type for a dbf field.
+   */
+    private static int getColumnType(byte type, int length, int decimals){
+        switch (type){
+            case 'N':
+            case 'F':
+                if (decimals>0 || type=='F') return COL_DOUBLE;
+                if (length<10) return COL_INT;
+                if (length<19) return COL_LONG;
+                return COL_DOUBLE;
+            case 'L': return COL_BOOL;
+            case 'D': return COL_DATETIME;
+            default: return COL_STRING;
+        }
+    }
+
+
+  //**************************************************************************
+  //** getDbfType
+  //**************************************************************************
+  /** Returns a dbf field type for a column type.
+   */
+    private static byte getDbfType(int type){
+        switch (type){
+            case COL_STRING:
+            case COL_JSON:
+            case COL_BINARY: return 'C';
+            case COL_BOOL: return 'L';
+            case COL_DATETIME: return 'D';
+            default: return 'N';
+        }
+    }
+
+
+  //**************************************************************************
+  //** getProjection
+  //**************************************************************************
+  /** Returns the WKT in the prj file or null if there isn't one.
+   */
+    private static String getProjection(ShapeFile shp){
+        for (java.io.File f : shp.getFiles()){
+            if (!f.getName().toLowerCase().endsWith(".prj")) continue;
+            try{
+                String wkt = new String(java.nio.file.Files.readAllBytes(f.toPath()), "UTF-8").trim();
+                return wkt.isEmpty() ? null : wkt;
+            }
+            catch(IOException e){
+                return null;
+            }
+        }
+        return null;
+    }
+
+
+  //**************************************************************************
+  //** sort
+  //**************************************************************************
+  /** Returns the order of items sorted by the Hilbert value of the center
+   *  of their bounding boxes. Items with an empty bounding box are sorted
+   *  first.
+   *  @param bounds Bounding box of each item (minX, minY, maxX, maxY)
+   *  @param ext Extent of all the items (minX, minY, maxX, maxY)
+   */
+    static int[] sort(double[] bounds, int numItems, double[] ext){
+        double width = ext[2]-ext[0];
+        double height = ext[3]-ext[1];
+        long[] keys = new long[numItems];
+        for (int i=0; i<numItems; i++){
+            long x = 0;
+            long y = 0;
+            if (bounds[i*4]<=bounds[i*4+2]){
+                if (width>0) x = (long) Math.floor(0xffff*((bounds[i*4]+bounds[i*4+2])/2-ext[0])/width);
+                if (height>0) y = (long) Math.floor(0xffff*((bounds[i*4+1]+bounds[i*4+3])/2-ext[1])/height);
+            }
+            keys[i] = (hilbert((int) x, (int) y) << 31) | i;
+        }
+        Arrays.sort(keys);
+        int[] order = new int[numItems];
+        for (int i=0; i<numItems; i++) order[i] = (int) (keys[i] & 0x7fffffff);
+        return order;
+    }
+
+
+  //**************************************************************************
+  //** getLevelBounds
+  //**************************************************************************
+  /** Returns the first and last (exclusive) node of each level in a packed
+   *  R-tree, starting with the leaves. The root is node 0.
+   */
+    static long[][] getLevelBounds(long numItems, int nodeSize){
+        ArrayList<Long> levelNumNodes = new ArrayList<>();
+        long n = numItems;
+        long numNodes = n;
+        levelNumNodes.add(n);
+        do{
+            n = (n+nodeSize-1)/nodeSize;
+            numNodes += n;
+            levelNumNodes.add(n);
+        }
+        while (n!=1);
+
+        long[][] levelBounds = new long[levelNumNodes.size()][];
+        n = numNodes;
+        for (int i=0; i<levelBounds.length; i++){
+            long size = levelNumNodes.get(i);
+            levelBounds[i] = new long[]{n-size, n};
+            n -= size;
+        }
+        return levelBounds;
+    }
+
+
+  //**************************************************************************
+  //** hilbert
+  //**************************************************************************
+  /** Returns the position of a point along a Hilbert curve. The x and y
+   *  values are between 0 and 65535.
+   */
+    static long hilbert(int x, int y){
+        int a = x ^ y;
+        int b = 0xFFFF ^ a;
+        int c = 0xFFFF ^ (x | y);
+        int d = x & (y ^ 0xFFFF);
+
+        int A = a | (b >>> 1);
+        int B = (a >>> 1) ^ a;
+        int C = ((c >>> 1) ^ (b & (d >>> 1))) ^ c;
+        int D = ((a & (c >>> 1)) ^ (d >>> 1)) ^ d;
+
+        a = A; b = B; c = C; d = D;
+        A = ((a & (a >>> 2)) ^ (b & (b >>> 2)));
+        B = ((a & (b >>> 2)) ^ (b & ((a ^ b) >>> 2)));
+        C ^= ((a & (c >>> 2)) ^ (b & (d >>> 2)));
+        D ^= ((b & (c >>> 2)) ^ ((a ^ b) & (d >>> 2)));
+
+        a = A; b = B; c = C; d = D;
+        A = ((a & (a >>> 4)) ^ (b & (b >>> 4)));
+        B = ((a & (b >>> 4)) ^ (b & ((a ^ b) >>> 4)));
+        C ^= ((a & (c >>> 4)) ^ (b & (d >>> 4)));
+        D ^= ((b & (c >>> 4)) ^ ((a ^ b) & (d >>> 4)));
+
+        a = A; b = B; c = C; d = D;
+        C ^= ((a & (c >>> 8)) ^ (b & (d >>> 8)));
+        D ^= ((b & (c >>> 8)) ^ ((a ^ b) & (d >>> 8)));
+
+        a = C ^ (C >>> 1);
+        b = D ^ (D >>> 1);
+
+        int i0 = x ^ y;
+        int i1 = b | (0xFFFF ^ (i0 | a));
+
+        i0 = (i0 | (i0 << 8)) & 0x00FF00FF;
+        i0 = (i0 | (i0 << 4)) & 0x0F0F0F0F;
+        i0 = (i0 | (i0 << 2)) & 0x33333333;
+        i0 = (i0 | (i0 << 1)) & 0x55555555;
+
+        i1 = (i1 | (i1 << 8)) & 0x00FF00FF;
+        i1 = (i1 | (i1 << 4)) & 0x0F0F0F0F;
+        i1 = (i1 | (i1 << 2)) & 0x33333333;
+        i1 = (i1 | (i1 << 1)) & 0x55555555;
+
+        return ((i1 << 1) | i0) & 0xffffffffL;
+    }
+
+
+  //**************************************************************************
+  //** get
+  //**************************************************************************
+  /** Returns the result of a batch, unwrapping encoder errors.
+   */
+    private static Batch get(Future<Batch> future) throws Exception {
+        try{
+            return future.get();
+        }
+        catch(ExecutionException e){
+            Throwable t = e.getCause();
+            if (t instanceof Exception) throw (Exception) t;
+            throw new Exception(t);
+        }
+    }
+
+
+  //**************************************************************************
+  //** FlatBuffers helpers
+  //**************************************************************************
+  /** Returns the position of a field in a table or 0 if the field is not
+   *  set.
+   */
+    private static int field(ByteBuffer bb, int table, int field){
+        int vtable = table - bb.getInt(table);
+        int vtableLength = bb.getShort(vtable) & 0xffff;
+        int o = 4 + field*2;
+        if (o>=vtableLength) return 0;
+        int offset = bb.getShort(vtable+o) & 0xffff;
+        return offset==0 ? 0 : table+offset;
+    }
+
+    private static int deref(ByteBuffer bb, int pos){
+        return pos + bb.getInt(pos);
+    }
+
+    private static String getString(ByteBuffer bb, int pos){
+        if (pos==0) return null;
+        int s = deref(bb, pos);
+        return getString(bb, s+4, bb.getInt(s));
+    }
+
+    private static String getString(ByteBuffer bb, int pos, int length){
+        byte[] b = new byte[length];
+        ByteBuffer dup = bb.duplicate();
+        dup.position(pos);
+        dup.get(b);
+        return new String(b, java.nio.charset.StandardCharsets.UTF_8);
+    }
+
+
+  //**************************************************************************
+  //** Scalar
+  //**************************************************************************
+  /** Scalar field value with its size in bytes.
+   */
+    private static class Scalar {
+        private final long value;
+        private final int size;
+
+        public Scalar(long value, int size){
+            this.value = value;
+            this.size = size;
+        }
+    }
+
+
+  //**************************************************************************
+  //** Table
+  //**************************************************************************
+  /** Fields in a FlatBuffers table. Values are Scalars, Strings, vectors
+   *  (double[], int[] for uint vectors and byte[] for ubyte vectors),
+   *  Tables or Table[] vectors. Unset fields are left out.
+   */
+    private static class Table {
+        private final Object[] fields;
+
+        public Table(int numFields){
+            fields = new Object[numFields];
+        }
+
+        public Table set(int field, Object value){
+            fields[field] = value;
+            return this;
+        }
+    }
+
+
+  //**************************************************************************
+  //** Builder
+  //**************************************************************************
+  /** Used to encode a size-prefixed FlatBuffer. Unlike the FlatBuffers
+   *  builder, objects are written front to back: each table is written
+   *  after its vtable and before the objects it references so every
+   *  offset points forward. Values are aligned relative to the start of
+   *  the buffer, including the size prefix.
+   */
+    private static class Builder {
+        private byte[] buf = new byte[1024];
+        private int pos;
+
+        public byte[] finish(Table root){
+            pos = 0;
+            putInt(0);
+            putInt(0);
+            int table = write(root);
+            setInt(4, table-4);
+            setInt(0, pos-4);
+            return Arrays.copyOf(buf, pos);
+        }
+
+        private int write(Table t){
+            int n = t.fields.length;
+            while (n>0 && t.fields[n-1]==null) n--;
+
+
+          //Layout the inline fields, largest first
+            int[] offsets = new int[n];
+            int offset = 4;
+            int alignment = 4;
+            for (int size=8; size>0; size/=2){
+                for (int i=0; i<n; i++){
+                    if (getSize(t.fields[i])!=size) continue;
+                    offset = (offset+size-1)/size*size;
+                    offsets[i] = offset;
+                    offset += size;
+                    alignment = Math.max(alignment, size);
+                }
+            }
+
+
+          //Write vtable
+            align(2);
+            int vtable = pos;
+            putShort(4+n*2);
+            putShort(offset);
+            for (int i=0; i<n; i++) putShort(offsets[i]);
+
+
+          //Write table
+            align(alignment);
+            int table = pos;
+            ensure(offset);
+            Arrays.fill(buf, pos, pos+offset, (byte) 0);
+            pos += offset;
+            setInt(table, table-vtable);
+            for (int i=0; i<n; i++){
+                Object value = t.fields[i];
+                if (value instanceof Scalar){
+                    Scalar s = (Scalar) value;
+                    for (int j=0; j<s.size; j++) buf[table+offsets[i]+j] = (byte) (s.value >>> (j*8));
+                }
+            }
+
+
+          //Write referenced objects
+            for (int i=0; i<n; i++){
+                Object value = t.fields[i];
+                if (value==null || value instanceof Scalar) continue;
+                int ref = writeObject(value);
+                setInt(table+offsets[i], ref-(table+offsets[i]));
+            }
+            return table;
+        }
+
+        private int writeObject(Object value){
+            if (value instanceof Table) return write((Table) value);
+            if (value instanceof String){
+                byte[] b = ((String) value).getBytes(java.nio.charset.StandardCharsets.UTF_8);
+                align(4);
+                int start = pos;
+                putInt(b.length);
+                put(b, b.length);
+                ensure(1);
+                buf[pos++] = 0;
+                return start;
+            }
+            if (value instanceof double[]){
+                double[] d = (double[]) value;
+                while ((pos+4)%8!=0) putByte(0);
+                int start = pos;
+                putInt(d.length);
+                ensure(d.length*8);
+                for (double v : d){
+                    long bits = Double.doubleToRawLongBits(v);
+                    for (int j=0; j<8; j++) buf[pos++] = (byte) (bits >>> (j*8));
+                }
+                return start;
+            }
+            if (value instanceof int[]){
+                int[] arr = (int[]) value;
+                align(4);
+                int start = pos;
+                putInt(arr.length);
+                for (int v : arr) putInt(v);
+                return start;
+            }
+            if (value instanceof byte[]){
+                byte[] b = (byte[]) value;
+                align(4);
+                int start = pos;
+                putInt(b.length);
+                put(b, b.length);
+                return start;
+            }
+            Table[] tables = (Table[]) value;
+            align(4);
+            int start = pos;
+            putInt(tables.length);
+            int refs = pos;
+            for (int i=0; i<tables.length; i++) putInt(0);
+            for (int i=0; i<tables.length; i++){
+                int table = write(tables[i]);
+                setInt(refs+i*4, table-(refs+i*4));
+            }
+            return start;
+        }
+
+        private static int getSize(Object value){
+            if (value==null) return 0;
+            if (value instanceof Scalar) return ((Scalar) value).size;
+            return 4;
+        }
+
+        private void align(int n){
+            while (pos%n!=0) putByte(0);
+        }
+
+        private void ensure(int n){
+            if (pos+n>buf.length) buf = Arrays.copyOf(buf, Math.max(pos+n, buf.length*2));
+        }
+
+        private void putByte(int v){
+            ensure(1);
+            buf[pos++] = (byte) v;
+        }
+
+        private void putShort(int v){
+            ensure(2);
+            buf[pos++] = (byte) v;
+            buf[pos++] = (byte) (v >>> 8);
+        }
+
+        private void putInt(int v){
+            ensure(4);
+            setInt(pos, v);
+            pos += 4;
+        }
+
+        private void setInt(int p, int v){
+            buf[p] = (byte) v;
+            buf[p+1] = (byte) (v >>> 8);
+            buf[p+2] = (byte) (v >>> 16);
+            buf[p+3] = (byte) (v >>> 24);
+        }
+
+        private void put(byte[] b, int len){
+            ensure(len);
+            System.arraycopy(b, 0, buf, pos, len);
+            pos += len;
+        }
+    }
+
+
+  //**************************************************************************
+  //** Properties
+  //**************************************************************************
+  /** Used to encode the properties of a feature: a column index (ushort)
+   *  followed by the value, for each column that has a value.
+   */
+    private static class Properties {
+        private ByteBuffer bb = ByteBuffer.allocate(256).order(ByteOrder.LITTLE_ENDIAN);
+        private int length;
+
+        public void clear(){
+            bb.clear();
+            length = 0;
+        }
+
+        public void add(int col, int type, Object value){
+            if (value==null) return;
+            String str = null;
+            if (value instanceof String){
+                str = ((String) value).trim();
+                if (type!=COL_STRING && str.isEmpty()) return; //null number, date or boolean
+            }
+
+            switch (type){
+                case COL_BOOL:{
+                    char c = Character.toUpperCase(str==null ? value.toString().charAt(0) : str.charAt(0));
+                    if (c!='T' && c!='Y' && c!='F' && c!='N') return;
+                    ensure(3);
+                    bb.putShort((short) col);
+                    bb.put((byte) (c=='T' || c=='Y' ? 1 : 0));
+                    break;
+                }
+                case COL_INT:
+                case COL_LONG:
+                case COL_DOUBLE:{
+                    double d;
+                    if (value instanceof Number) d = ((Number) value).doubleValue();
+                    else{
+                        try{ d = Double.parseDouble(str); }
+                        catch(NumberFormatException e){ return; }
+                    }
+                    ensure(10);
+                    bb.putShort((short) col);
+                    if (type==COL_INT) bb.putInt((int) d);
+                    else if (type==COL_LONG) bb.putLong((long) d);
+                    else bb.putDouble(d);
+                    break;
+                }
+                case COL_DATETIME:{
+                    if (str==null) str = value.toString();
+                    if (str.length()==8) str = str.substring(0, 4) + "-" + str.substring(4, 6) + "-" + str.substring(6);
+                    putString(col, str);
+                    break;
+                }
+                default:
+                    putString(col, str==null ? value.toString() : str);
+            }
+            length = bb.position();
+        }
+
+        private void putString(int col, String str){
+            byte[] b = str.getBytes(java.nio.charset.StandardCharsets.UTF_8);
+            ensure(6+b.length);
+            bb.putShort((short) col);
+            bb.putInt(b.length);
+            bb.put(b);
+        }
+
+        private void ensure(int n){
+            if (bb.remaining()<n){
+                ByteBuffer b = ByteBuffer.allocate(Math.max(bb.capacity()*2, bb.position()+n)).order(ByteOrder.LITTLE_ENDIAN);
+                bb.flip();
+                b.put(bb);
+                bb = b;
+            }
+        }
+
+        public byte[] toByteArray(){
+            return Arrays.copyOf(bb.array(), length);
+        }
+    }
+
+
+  //**************************************************************************
+  //** Batch
+  //**************************************************************************
+  /** Encoded features, back to back, with their sizes and bounding boxes.
+   */
+    private static class Batch {
+        private final int count;
+        private final int[] sizes;
+        private final double[] bounds;
+        private byte[] data = new byte[64*1024];
+        private int length;
+
+        public Batch(int count){
+            this.count = count;
+            sizes = new int[count];
+            bounds = new double[count*4];
+        }
+
+        public void add(int i, byte[] feature){
+            if (length+feature.length>data.length){
+                data = Arrays.copyOf(data, Math.max(length+feature.length, data.length*2));
+            }
+            System.arraycopy(feature, 0, data, length, feature.length);
+            length += feature.length;
+            sizes[i] = feature.length;
+        }
+    }
+
+
+  //**************************************************************************
+  //** CountingOutputStream
+  //**************************************************************************
+    private static class CountingOutputStream extends FilterOutputStream {
+        private long count;
+
+        public CountingOutputStream(OutputStream out){
+            super(out);
+        }
+
+        public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+
+        public long getCount(){
+            return count;
+        }
+    }
+}
@@ -0,0 +1,418 @@
+package openmap;
+import org.locationtech.jts.geom.*;
+import java.util.*;
+
+//******************************************************************************
+//**  Generator
+//******************************************************************************
+/**
+ *   Used to create synthetic shapefiles for benchmarks and load tests. The
+ *   shapes and attributes are generated from a seed so the same settings
+ *   always produce the same files. Records are written with the ShapeFile
+ *   class. Example:
+ <pre>
+    Generator generator = new Generator(42);
+    generator.setShapeType("polygon");
+    generator.setVertexCount(10, 1000);
+    generator.setVertexSkew(3);
+    generator.setHoleCount(0, 2);
+    generator.addColumn("name", 'C', 0);
+    generator.addColumn("state", 'C', 50);
+    generator.addColumn("pop", 'N', 0);
+    generator.addColumn("active", 'L', 2);
+    generator.addColumn("updated", 'D', 365);
+    java.io.File shp = generator.save("counties", dir, 100000);
+ </pre>
+ *   The skew settings are used to mimic real data where most features are
+ *   small and a few are very large, and where a few attribute values are
+ *   far more common than the others.
+ *
+ ******************************************************************************/
+
+public class Generator {
+
+    private long seed;
+    private String shapeType = "point";
+    private int minVertices = 10;
+    private int maxVertices = 10;
+    private double vertexSkew = 1;
+    private int minParts = 1;
+    private int maxParts = 1;
+    private int minHoles = 0;
+    private int maxHoles = 0;
+    private double valueSkew = 1;
+    private double size = 0.1;
+    private Envelope extent = new Envelope(-180, 180, -90, 90);
+    private ArrayList<Column> columns = new ArrayList<>();
+
+    private static final String[] SYLLABLES = {
+        "an", "ber", "ca", "del", "en", "fa", "gor", "ha", "is", "jo", "ka",
+        "lin", "mo", "nor", "o", "pe", "qua", "ri", "son", "ta", "u", "ver",
+        "wa", "xi", "yo", "zen"
+    };
+
+    private static GeometryFactory geometryFactory =
+    new GeometryFactory(new PrecisionModel(), 4326);
+
+
+  //**************************************************************************
+  //** Constructor
+  //**************************************************************************
+  /** @param seed Seed for the random number generator.
+   */
+    public Generator(long seed){
+        this.seed = seed;
+    }
+
+
+  //**************************************************************************
+  //** setShapeType
+  //**************************************************************************
+  /** Used to set the type of shape to generate: "point", "multipoint",
+   *  "polyline" or "polygon". Default is "point".
+   */
+    public void setShapeType(String shapeType){
+        shapeType = shapeType.toLowerCase(Locale.ROOT);
+        if (!(shapeType.equals("point") || shapeType.equals("multipoint") ||
+            shapeType.equals("polyline") || shapeType.equals("polygon"))){
+            throw new IllegalArgumentException("Unsupported shape type: " + shapeType);
+        }
+        this.shapeType = shapeType;
+    }
+
+
+  //**************************************************************************
+  //** setVertexCount
+  //**************************************************************************
+  /** Used to set the range of vertices per part. For polygons, this is the
+   *  number of vertices in the outer ring, not counting the closing vertex.
+   *  Lines have at least 2 vertices and polygons have at least 3. Ignored
+   *  for points. Default is 10.
+   */
+    public void setVertexCount(int min, int max){
+        if (min<1 || max<min) throw new IllegalArgumentException("Invalid range");
+        minVertices = min;
+        maxVertices = max;
+    }
+
+
+  //**************************************************************************
+  //** setVertexSkew
+  //**************************************************************************
+  /** Used to set how vertex counts are distributed between the min and max.
+   *  A value of 1 gives a uniform distribution. Larger values produce many
+   *  small shapes and a few large ones. Default is 1.
+   */
+    public void setVertexSkew(double skew){
+        if (!(skew>0)) throw new IllegalArgumentException("Invalid skew");
+        vertexSkew = skew;
+    }
+
+
+  //**************************************************************************
+  //** setPartCount
+  //**************************************************************************
+  /** Used to set the range of parts per record (e.g. the number of points in
+   *  a multipoint, lines in a polyline or polygons in a multipolygon).
+   *  Default is 1.
+   */
+    public void setPartCount(int min, int max){
+        if (min<1 || max<min) throw new IllegalArgumentException("Invalid range");
+        minParts = min;
+        maxParts = max;
+    }
+
+
+  //**************************************************************************
+  //** setHoleCount
+  //**************************************************************************
+  /** Used to set the range of holes (inner rings) per polygon. Default is 0.
+   */
+    public void setHoleCount(int min, int max){
+        if (min<0 || max<min) throw new IllegalArgumentException("Invalid range");
+        minHoles = min;
+        maxHoles = max;
+    }
+
+
+  //**************************************************************************
+  //** setValueSkew
+  //**************************************************************************
+  /** Used to set how often each attribute value is used in columns with a
+   *  fixed cardinality. A value of 1 gives a uniform distribution. Larger
+   *  values make the first few values much more common. Default is 1.
+   */
+    public void setValueSkew(double skew){
+        if (!(skew>0)) throw new IllegalArgumentException("Invalid skew");
+        valueSkew = skew;
+    }
+
+
+  //**************************************************************************
+  //** setExtent
+  //**************************************************************************
+  /** Used to set the area in which the shapes are created. Default is the
+   *  whole world (-180,-90,180,90).
+   */
+    public void setExtent(Envelope extent){
+        if (extent==null || extent.isNull()) throw new IllegalArgumentException("Invalid extent");
+        this.extent = new Envelope(extent);
+    }
+
+
+  //**************************************************************************
+  //** setSize
+  //**************************************************************************
+  /** Used to set the approximate width of each part, in map units. Default
+   *  is 0.1.
+   */
+    public void setSize(double size){
+        if (!(size>0)) throw new IllegalArgumentException("Invalid size");
+        this.size = size;
+    }
+
+
+  //**************************************************************************
+  //** addColumn
+  //**************************************************************************
+  /** Used to add an attribute column.
+   *  @param name Column name. Names are limited to 10 characters in the dbf.
+   *  @param type Column type: 'N' (integers), 'F' (decimal numbers), 'C'
+   *  (character), 'L' (logical) or 'D' (date).
+   *  @param cardinality Number of distinct values in the column. Use 0 to
+   *  generate a new value for every record.
+   */
+    public void addColumn(String name, char type, int cardinality){
+        type = Character.toUpperCase(type);
+        if ("NFCLD".indexOf(type)<0) throw new IllegalArgumentException("Unsupported type: " + type);
+        if (cardinality<0) throw new IllegalArgumentException("Invalid cardinality");
+        columns.add(new Column(name, type, cardinality));
+    }
+
+
+  //**************************************************************************
+  //** create
+  //**************************************************************************
+  /** Returns a new shapefile with the given number of records in memory.
+   */
+    public ShapeFile create(int numRecords) throws Exception {
+        Random random = new Random(seed);
+
+
+      //Create schema and lookup tables for columns with a fixed cardinality
+        int numColumns = columns.size();
+        String[] names = new String[numColumns+1];
+        Object[][] pools = new Object[numColumns][];
+        for (int i=0; i<numColumns; i++){
+            Column column = columns.get(i);
+            names[i] = column.name;
+            if (column.cardinality>0){
+                pools[i] = new Object[column.cardinality];
+                for (int j=0; j<column.cardinality; j++){
+                    pools[i][j] = getValue(column.type, j, random);
+                }
+            }
+        }
+        names[numColumns] = "geom";
+        Schema schema = new Schema(names, null);
+
+
+      //Create records
+        ShapeFile shp = new ShapeFile();
+        for (int i=0; i<numRecords; i++){
+            Value[] values = new Value[numColumns+1];
+            for (int j=0; j<numColumns; j++){
+                Object value;
+                if (pools[j]==null){
+                    value = getValue(columns.get(j).type, i, random);
+                }
+                else{
+                    int idx = (int) (pools[j].length * Math.pow(random.nextDouble(), valueSkew));
+                    value = pools[j][Math.min(idx, pools[j].length-1)];
+                }
+                values[j] = new Value(value);
+            }
+            values[numColumns] = new Value(getGeometry(random));
+            shp.addRecord(new Record(schema, values));
+        }
+        return shp;
+    }
+
+
+  //**************************************************************************
+  //** save
+  //**************************************************************************
+  /** Used to generate records and save them to a new shapefile.
+   *  @return The shp file
+   */
+    public java.io.File save(String name, java.io.File dir, int numRecords) throws Exception {
+        ShapeFile shp = create(numRecords);
+        shp.saveAs(name, dir);
+        return new java.io.File(dir, name + ".shp");
+    }
+
+
+  //**************************************************************************
+  //** getValue
+  //**************************************************************************
+  /** Returns a random value for a given column type.
+   *  @param i Used to make character values unique
+   */
+    private static Object getValue(char type, int i, Random random){
+        switch (type){
+            case 'N':
+                return (long) (random.nextDouble()*1000000);
+            case 'F':
+                return Math.round(random.nextGaussian()*100000)/100.0;
+            case 'L':
+                return (i%2==0);
+            case 'D':
+                Calendar cal = new GregorianCalendar(2000, Calendar.JANUARY, 1, 12, 0);
+                cal.add(Calendar.DAY_OF_YEAR, random.nextInt(365*25));
+                return cal;
+            default:
+                StringBuilder str = new StringBuilder();
+                int numSyllables = 2 + random.nextInt(4);
+                for (int j=0; j<numSyllables; j++){
+                    str.append(SYLLABLES[random.nextInt(SYLLABLES.length)]);
+                }
+                str.setCharAt(0, Character.toUpperCase(str.charAt(0)));
+                str.append(" ");
+                str.append(i);
+                return str.toString();
+        }
+    }
+
+
+  //**************************************************************************
+  //** getGeometry
+  //**************************************************************************
+  /** Returns a random geometry using the current settings.
+   */
+    private Geometry getGeometry(Random random){
+        int numParts = getCount(minParts, maxParts, 1, random);
+        double r = size/2;
+        double x = extent.getMinX() + random.nextDouble()*extent.getWidth();
+        double y = extent.getMinY() + random.nextDouble()*extent.getHeight();
+
+        if (shapeType.equals("point")){
+            return geometryFactory.createPoint(new Coordinate(x, y));
+        }
+        else if (shapeType.equals("multipoint")){
+            Coordinate[] coords = new Coordinate[numParts];
+            for (int i=0; i<numParts; i++){
+                coords[i] = new Coordinate(x + (random.nextDouble()-0.5)*size, y + (random.nextDouble()-0.5)*size);
+            }
+            return geometryFactory.createMultiPointFromCoords(coords);
+        }
+        else if (shapeType.equals("polyline")){
+            LineString[] lines = new LineString[numParts];
+            for (int i=0; i<numParts; i++){
+                int numVertices = getVertexCount(2, random);
+                double step = size/numVertices;
+                double px = x + (random.nextDouble()-0.5)*size;
+                double py = y + (random.nextDouble()-0.5)*size;
+                Coordinate[] coords = new Coordinate[numVertices];
+                for (int j=0; j<numVertices; j++){
+                    px += (random.nextDouble()-0.5)*step*2;
+                    py += (random.nextDouble()-0.5)*step*2;
+                    coords[j] = new Coordinate(px, py);
+                }
+                lines[i] = geometryFactory.createLineString(coords);
+            }
+            if (numParts==1) return lines[0];
+            return geometryFactory.createMultiLineString(lines);
+        }
+        else{
+
+          //Place polygons side by side so they don't overlap
+            Polygon[] polygons = new Polygon[numParts];
+            for (int i=0; i<numParts; i++){
+                double cx = x + i*size*1.1;
+                int numVertices = getVertexCount(3, random);
+                LinearRing shell = createRing(cx, y, r*0.6, r, numVertices, random);
+
+
+              //Place holes in a circle around the center of the polygon. The
+              //holes must fit inside the edges of the shell, which can be
+              //much closer to the center than the vertices when the shell
+              //has only a few vertices.
+                int numHoles = getCount(minHoles, maxHoles, 0, random);
+                LinearRing[] holes = new LinearRing[numHoles];
+                double inner = r*0.6*Math.cos(Math.PI/numVertices);
+                double d = numHoles==1 ? 0 : inner*0.5;
+                double hr = numHoles==1 ? inner*0.5 : Math.min(inner*0.4, d*Math.sin(Math.PI/numHoles)*0.8);
+                for (int j=0; j<numHoles; j++){
+                    double angle = 2*Math.PI*j/numHoles;
+                    int n = Math.max(3, numVertices/4);
+                    holes[j] = createRing(cx + d*Math.cos(angle), y + d*Math.sin(angle), hr*0.5, hr, n, random);
+                }
+
+                polygons[i] = geometryFactory.createPolygon(shell, holes);
+            }
+            if (numParts==1) return polygons[0];
+            return geometryFactory.createMultiPolygon(polygons);
+        }
+    }
+
+
+  //**************************************************************************
+  //** createRing
+  //**************************************************************************
+  /** Returns a star-shaped ring around a center point. Vertices are spaced
+   *  at equal angles with a random distance from the center so the ring
+   *  never crosses itself.
+   */
+    private static LinearRing createRing(double cx, double cy, double minRadius,
+        double maxRadius, int numVertices, Random random){
+        Coordinate[] coords = new Coordinate[numVertices+1];
+        for (int i=0; i<numVertices; i++){
+            double angle = -2*Math.PI*i/numVertices;
+            double d = minRadius + random.nextDouble()*(maxRadius-minRadius);
+            coords[i] = new Coordinate(cx + d*Math.cos(angle), cy + d*Math.sin(angle));
+        }
+        coords[numVertices] = new Coordinate(coords[0]);
+        return geometryFactory.createLinearRing(coords);
+    }
+
+
+  //**************************************************************************
+  //** getVertexCount
+  //**************************************************************************
+  /** Returns a random vertex count using the vertex range and skew.
+   */
+    private int getVertexCount(int minCount, Random random){
+        int min = Math.max(minCount, minVertices);
+        int max = Math.max(min, maxVertices);
+        double f = Math.pow(random.nextDouble(), vertexSkew);
+        return Math.min(max, min + (int) (f*(max-min+1)));
+    }
+
+
+  //**************************************************************************
+  //** getCount
+  //**************************************************************************
+  /** Returns a random number between min and max (inclusive).
+   */
+    private static int getCount(int min, int max, int minCount, Random random){
+        min = Math.max(minCount, min);
+        max = Math.max(min, max);
+        return min + random.nextInt(max-min+1);
+    }
+
+
+  //**************************************************************************
+  //** Column
+  //**************************************************************************
+    private static class Column {
+        private String name;
+        private char type;
+        private int cardinality;
+
+        private Column(String name, char type, int cardinality){
+            this.name = name;
+            this.type = type;
+            this.cardinality = cardinality;
+        }
+    }
+}
@@ -0,0 +1,301 @@
+package openmap;
+import org.locationtech.jts.geom.Envelope;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+
+//******************************************************************************
+//**  GeoJsonWriter
+//******************************************************************************
+/**
+ *   Used to write the records in a shapefile as a GeoJSON FeatureCollection
+ *   or as newline-delimited GeoJSON features (GeoJSON-seq). Geometries are
+ *   formatted straight from the shp records and properties straight from
+ *   the dbf rows, without creating JTS geometries or Records. Output is
+ *   built in a large reusable buffer and can be gzip-compressed. Example:
+ <pre>
+    GeoJsonWriter writer = new GeoJsonWriter(shp);
+    writer.setPrecision(6);
+    writer.setCompressed(true);
+    writer.write(response.getOutputStream(), new Envelope(-84, -75, 36, 40));
+ </pre>
+ *
+ ******************************************************************************/
+
+public class GeoJsonWriter {
+
+    private final ShapeFile shp;
+    private int precision = -1;
+    private boolean sequence;
+    private boolean compressed;
+    private int compressionLevel = Deflater.BEST_SPEED;
+    private int bufferSize = 1024*1024;
+
+    private static final byte[] HEX = "0123456789abcdef".getBytes(StandardCharsets.US_ASCII);
+
+
+  //**************************************************************************
+  //** Constructor
+  //**************************************************************************
+    public GeoJsonWriter(ShapeFile shp){
+        this.shp = shp;
+    }
+
+
+  //**************************************************************************
+  //** setPrecision
+  //**************************************************************************
+  /** Used to set the maximum number of digits after the decimal point in
+   *  coordinates, from 0 to 15. Coordinates are rounded and trailing zeros
+   *  are removed. Use -1 to write coordinates with full precision (default).
+   *  A precision of 6 is about 10cm for lat/lon coordinates.
+   */
+    public void setPrecision(int precision){
+        if (precision<-1 || precision>15) throw new IllegalArgumentException("Invalid precision");
+        this.precision = precision;
+    }
+
+
+  //**************************************************************************
+  //** setSequence
+  //**************************************************************************
+  /** Used to write one feature per line (GeoJSON-seq) instead of a
+   *  FeatureCollection. Default is false.
+   */
+    public void setSequence(boolean sequence){
+        this.sequence = sequence;
+    }
+
+
+  //**************************************************************************
+  //** setCompressed
+  //**************************************************************************
+  /** Used to gzip the output. Default is false.
+   */
+    public void setCompressed(boolean compressed){
+        this.compressed = compressed;
+    }
+
+
+  //**************************************************************************
+  //** setCompressionLevel
+  //**************************************************************************
+  /** Used to set the gzip compression level, from 1 (fastest) to 9 (smallest).
+   *  Default is 1. Higher levels are several times slower for GeoJSON and
+   *  only make the output slightly smaller.
+   */
+    public void setCompressionLevel(int compressionLevel){
+        if (compressionLevel<1 || compressionLevel>9) throw new IllegalArgumentException("Invalid compression level");
+        this.compressionLevel = compressionLevel;
+    }
+
+
+  //**************************************************************************
+  //** setBufferSize
+  //**************************************************************************
+  /** Used to set the number of bytes that are buffered before writing to the
+   *  output stream. Default is 1MB.
+   */
+    public void setBufferSize(int bufferSize){
+        if (bufferSize<=0) throw new IllegalArgumentException("Invalid buffer size");
+        this.bufferSize = bufferSize;
+    }
+
+
+  //**************************************************************************
+  //** write
+  //**************************************************************************
+  /** Used to write all the records in the shapefile to a file.
+   *  @return Number of features written
+   */
+    public long write(java.io.File file) throws Exception {
+        FileOutputStream out = new FileOutputStream(file);
+        try{
+            return write(out, null);
+        }
+        finally{
+            out.close();
+        }
+    }
+
+
+  //**************************************************************************
+  //** write
+  //**************************************************************************
+  /** Used to write all the records in the shapefile to a stream. The stream
+   *  is not closed.
+   *  @return Number of features written
+   */
+    public long write(OutputStream out) throws Exception {
+        return write(out, null);
+    }
+
+
+  //**************************************************************************
+  //** write
+  //**************************************************************************
+  /** Used to write records that intersect an extent to a stream. Records are
+   *  filtered using the bounding box in the shp record header. Records that
+   *  are marked as deleted are skipped. The id of each feature is the record
+   *  id. Numeric properties are written as numbers (or null if empty) and
+   *  other properties as trimmed strings. The stream is not closed.
+   *  @param extent Optional bounding box. If null, all the records are
+   *  written.
+   *  @return Number of features written
+   */
+    public long write(OutputStream out, Envelope extent) throws Exception {
+        Metrics.Listener listener = Metrics.getListener();
+        long startTime = listener==Metrics.NONE ? 0 : System.nanoTime();
+
+
+      //Create property keys
+        Schema schema = shp.getSchema();
+        int numColumns = schema.size()-2;
+        byte[][] keys = new byte[numColumns][];
+        boolean[] isNumber = new boolean[numColumns];
+        for (int i=0; i<numColumns; i++){
+            OutputBuffer key = new OutputBuffer(64);
+            if (i>0) key.put((byte) ',');
+            appendString(schema.getName(i+1), key);
+            key.put((byte) ':');
+            keys[i] = java.util.Arrays.copyOf(key.buf, key.length);
+            byte type = schema.getType(i+1);
+            isNumber[i] = type=='N' || type=='F';
+        }
+
+
+        OutputStream os = out;
+        if (compressed){
+            final int level = compressionLevel;
+            os = new GZIPOutputStream(out, 64*1024){{ def.setLevel(level); }};
+        }
+        OutputBuffer buf = new OutputBuffer(bufferSize + 64*1024);
+        long numFeatures = 0;
+        long numBytes = 0;
+        if (!sequence) buf.append("{\"type\":\"FeatureCollection\",\"features\":[\n");
+
+
+      //Write features
+        int shapeType = shp.getShapeType();
+        GeometryEncoder encoder = new GeometryEncoder(shapeType, !shp.isXYOnly() && ShapeFile.hasZ(shapeType), false);
+        ShapeFile.Cursor cursor = shp.getCursor();
+        try{
+            while (cursor.advance()){
+                if (extent!=null && !cursor.intersects(extent)) continue;
+                if (!sequence && numFeatures>0) buf.append(",\n");
+
+                buf.append("{\"type\":\"Feature\",\"id\":");
+                buf.appendLong(cursor.getId());
+                buf.append(",\"properties\":{");
+                byte[] row = cursor.getRow();
+                for (int i=0; i<numColumns; i++){
+                    buf.put(keys[i], 0, keys[i].length);
+                    int col = i+1;
+                    if (isNumber[i]){
+                        double d = cursor.getDouble(col);
+                        if (Double.isNaN(d) || Double.isInfinite(d)) buf.append("null");
+                        else buf.appendDouble(d, -1);
+                    }
+                    else{
+                        appendString(row, cursor.getOffset(col), cursor.getLength(col), buf);
+                    }
+                }
+                buf.append("},\"geometry\":");
+                if (!encoder.writeGeoJson(buf, cursor.getShape(), cursor.getShapeLength(), precision)) buf.append("null");
+                buf.put((byte) '}');
+                if (sequence) buf.put((byte) '\n');
+                numFeatures++;
+
+                if (buf.length>=bufferSize){
+                    numBytes += buf.length;
+                    buf.writeTo(os);
+                }
+            }
+        }
+        finally{
+            cursor.close();
+        }
+
+
+      //Write footer
+        if (!sequence) buf.append("\n]}\n");
+        numBytes += buf.length;
+        buf.writeTo(os);
+        if (compressed) ((GZIPOutputStream) os).finish(); //don't close the caller's stream
+        out.flush();
+        if (listener!=Metrics.NONE) listener.recordsWritten((int) numFeatures, numBytes, System.nanoTime()-startTime);
+        return numFeatures;
+    }
+
+
+  //**************************************************************************
+  //** appendString
+  //**************************************************************************
+  /** Appends a dbf value as a JSON string. Leading and trailing whitespace
+   *  is removed. ASCII values that don't need to be escaped are copied
+   *  directly from the row.
+   */
+    private static void appendString(byte[] row, int start, int length, OutputBuffer buf){
+        int end = start + length;
+        while (start<end && (row[start] & 0xff) <= ' ') start++;
+        while (end>start && (row[end-1] & 0xff) <= ' ') end--;
+
+        boolean copy = true;
+        for (int i=start; i<end; i++){
+            byte b = row[i];
+            if (b<0x20 || b=='"' || b=='\\'){ //negative bytes are non-ASCII
+                copy = false;
+                break;
+            }
+        }
+        if (copy){
+            buf.ensure(end-start+2);
+            buf.buf[buf.length++] = '"';
+            System.arraycopy(row, start, buf.buf, buf.length, end-start);
+            buf.length += end-start;
+            buf.buf[buf.length++] = '"';
+        }
+        else{
+            appendString(new String(row, start, end-start), buf);
+        }
+    }
+
+
+  //**************************************************************************
+  //** appendString
+  //**************************************************************************
+  /** Appends a quoted and escaped JSON string.
+   */
+    private static void appendString(String s, OutputBuffer buf){
+        buf.put((byte) '"');
+        int start = 0;
+        for (int i=0; i<s.length(); i++){
+            char c = s.charAt(i);
+            if (c>=0x20 && c!='"' && c!='\\') continue;
+            appendUTF8(s, start, i, buf);
+            start = i+1;
+            switch (c){
+                case '"': buf.append("\\\""); break;
+                case '\\': buf.append("\\\\"); break;
+                case '\n': buf.append("\\n"); break;
+                case '\r': buf.append("\\r"); break;
+                case '\t': buf.append("\\t"); break;
+                default:
+                    buf.append("\\u00");
+                    buf.put(HEX[c >>> 4]);
+                    buf.put(HEX[c & 0xf]);
+            }
+        }
+        appendUTF8(s, start, s.length(), buf);
+        buf.put((byte) '"');
+    }
+
+
+    private static void appendUTF8(String s, int start, int end, OutputBuffer buf){
+        if (end<=start) return;
+        byte[] b = s.substring(start, end).getBytes(StandardCharsets.UTF_8);
+        buf.put(b, 0, b.length);
+    }
+}
@@ -0,0 +1,442 @@
+package openmap;
+import static com.bbn.openmap.dataAccess.shape.ShapeConstants.*;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+//******************************************************************************
+//**  GeometryEncoder
+//******************************************************************************
+/**
+ *   Used to encode shp records as WKB or GeoJSON without creating JTS
+ *   geometries. Records are encoded straight from the record buffer returned
+ *   by ShapeFile.Cursor.getShape(), as the same geometry types returned by
+ *   the shapefile reader. Polygon rings are assembled into shells and holes
+ *   with the RingAssembler used by the reader. Scratch buffers are reused
+ *   across records so an instance should only be used by one thread.
+ *
+ ******************************************************************************/
+
+class GeometryEncoder {
+
+  //WKB geometry types
+    static final int POINT = 1;
+    static final int LINESTRING = 2;
+    static final int POLYGON = 3;
+    static final int MULTIPOINT = 4;
+    static final int MULTILINESTRING = 5;
+    static final int MULTIPOLYGON = 6;
+
+    private final int shapeType;
+    private final int baseType;
+    private final boolean hasZ;
+    private final boolean hasM;
+
+  //Current record
+    private ByteBuffer bb;
+    private int contentLength;
+
+  //Position of the Z and M arrays in the current record (-1 if none)
+    private int zPos;
+    private int mPos;
+
+  //Scratch buffers reused across records
+    private int[] offsets = new int[16];
+    private double[] xy = new double[512];
+    private ShapeFile.RingAssembler rings = new ShapeFile.RingAssembler();
+
+    private final Metrics.Listener listener = Metrics.getListener();
+
+
+  //**************************************************************************
+  //** Constructor
+  //**************************************************************************
+  /** @param shapeType Shape type in the shp file header
+   *  @param hasZ If true, Z values are written. Missing Z values are written
+   *  as NaN.
+   *  @param hasM If true, M values are written. Missing M values, and M
+   *  values less than -10^38 ("no data"), are written as NaN.
+   */
+    public GeometryEncoder(int shapeType, boolean hasZ, boolean hasM){
+        this.shapeType = shapeType;
+        this.baseType = ShapeFile.getBaseType(shapeType);
+        this.hasZ = hasZ;
+        this.hasM = hasM;
+    }
+
+
+  //**************************************************************************
+  //** writeWkb
+  //**************************************************************************
+  /** Used to encode a shp record as WKB. Shp and WKB coordinates are both
+   *  little-endian doubles so XY coordinates are copied in blocks, one block
+   *  per part. Z and M values are interleaved with the XY values.
+   *  @param record Record content, starting with the shape type, in
+   *  little-endian order
+   *  @param contentLength Length of the record content, in bytes
+   *  @param srid If greater than 0, the record is encoded as EWKB with the
+   *  SRID. Otherwise, the record is encoded as ISO WKB.
+   *  @return False if the record is a null shape.
+   */
+    public boolean writeWkb(OutputBuffer out, ByteBuffer record, int contentLength, int srid) throws IOException {
+        if (!init(record, contentLength)) return false;
+        long startTime = listener==Metrics.NONE ? 0 : System.nanoTime();
+        boolean ewkb = srid>0;
+        int numVertices;
+
+        if (baseType==SHAPE_TYPE_POINT){
+            initPoint();
+            putType(out, POINT, srid, ewkb);
+            putCoordinates(out, 4, 0, 1);
+            numVertices = 1;
+        }
+        else if (baseType==SHAPE_TYPE_MULTIPOINT){
+            numVertices = initMultiPoint();
+            putType(out, MULTIPOINT, srid, ewkb);
+            out.putInt(numVertices);
+            for (int n=0; n<numVertices; n++){
+                putType(out, POINT, 0, ewkb);
+                putCoordinates(out, 40 + n*16, n, 1);
+            }
+        }
+        else{
+            int numParts = bb.getInt(36);
+            if (numParts==0) return false;
+            numVertices = initParts(numParts);
+            int xyStart = 44 + numParts*4;
+
+            if (baseType==SHAPE_TYPE_POLYGON){
+                int numPolygons = assembleRings(numParts, xyStart);
+
+
+              //Write polygons
+                if (numPolygons>1){
+                    putType(out, MULTIPOLYGON, srid, ewkb);
+                    out.putInt(numPolygons);
+                }
+                for (int j=0; j<numParts; j++){
+                    if (rings.shell[j]>=0) continue;
+                    putType(out, POLYGON, numPolygons>1 ? 0 : srid, ewkb);
+                    int numRings = 1;
+                    for (int k=rings.head[j]; k>=0; k=rings.next[k]) numRings++;
+                    out.putInt(numRings);
+                    putPart(out, xyStart, j);
+                    for (int k=rings.head[j]; k>=0; k=rings.next[k]) putPart(out, xyStart, k);
+                }
+            }
+            else{
+
+
+              //Write lines
+                if (numParts>1){
+                    putType(out, MULTILINESTRING, srid, ewkb);
+                    out.putInt(numParts);
+                }
+                for (int j=0; j<numParts; j++){
+                    putType(out, LINESTRING, numParts>1 ? 0 : srid, ewkb);
+                    putPart(out, xyStart, j);
+                }
+            }
+        }
+        if (listener!=Metrics.NONE) listener.geometryDecoded(contentLength+8, numVertices, System.nanoTime()-startTime);
+        return true;
+    }
+
+
+  //**************************************************************************
+  //** putType
+  //**************************************************************************
+  /** Writes the byte order and geometry type of a WKB geometry.
+   *  @param srid SRID of the geometry. Only written for the outermost
+   *  geometry in EWKB.
+   *  @param ewkb If true, Z and M are encoded as EWKB flags. Otherwise, ISO
+   *  type codes are used.
+   */
+    private void putType(OutputBuffer out, int type, int srid, boolean ewkb){
+        out.put((byte) 1);
+        if (ewkb){
+            if (hasZ) type |= 0x80000000;
+            if (hasM) type |= 0x40000000;
+            if (srid>0) type |= 0x20000000;
+            out.putInt(type);
+            if (srid>0) out.putInt(srid);
+        }
+        else{
+            if (hasZ) type += 1000;
+            if (hasM) type += 2000;
+            out.putInt(type);
+        }
+    }
+
+
+  //**************************************************************************
+  //** putPart
+  //**************************************************************************
+  /** Writes the number of points in a part, followed by the coordinates.
+   */
+    private void putPart(OutputBuffer out, int xyStart, int part){
+        int numPoints = offsets[part+1] - offsets[part];
+        out.putInt(numPoints);
+        putCoordinates(out, xyStart + offsets[part]*16, offsets[part], numPoints);
+    }
+
+
+  //**************************************************************************
+  //** putCoordinates
+  //**************************************************************************
+  /** Writes the coordinates of consecutive points in the record. XY values
+   *  are copied from the record in one block if there are no Z or M values.
+   *  @param pos Offset to the first XY coordinate in the record
+   *  @param idx Index of the first point in the record
+   */
+    private void putCoordinates(OutputBuffer out, int pos, int idx, int numPoints){
+        if (!hasZ && !hasM){
+            out.put(bb, pos, numPoints*16);
+            return;
+        }
+        for (int n=0; n<numPoints; n++){
+            out.put(bb, pos + n*16, 16);
+            if (hasZ) out.putDouble(zPos<0 ? Double.NaN : bb.getDouble(zPos + (idx+n)*8));
+            if (hasM){
+                double m = mPos<0 ? Double.NaN : bb.getDouble(mPos + (idx+n)*8);
+                out.putDouble(m < -1e38 ? Double.NaN : m);
+            }
+        }
+    }
+
+
+  //**************************************************************************
+  //** writeGeoJson
+  //**************************************************************************
+  /** Used to write a shp record as a GeoJSON geometry. Coordinates are
+   *  formatted straight from the record. Z values are included if the
+   *  encoder writes Z values and the record has them. M values are skipped.
+   *  @param record Record content, starting with the shape type, in
+   *  little-endian order
+   *  @param contentLength Length of the record content, in bytes
+   *  @param precision Maximum number of digits after the decimal point. Use
+   *  -1 for full precision.
+   *  @return False if the record is a null shape.
+   */
+    public boolean writeGeoJson(OutputBuffer out, ByteBuffer record, int contentLength, int precision) throws IOException {
+        if (!init(record, contentLength)) return false;
+        long startTime = listener==Metrics.NONE ? 0 : System.nanoTime();
+        int numVertices;
+
+        if (baseType==SHAPE_TYPE_POINT){
+            initPoint();
+            numVertices = 1;
+            out.append("{\"type\":\"Point\",\"coordinates\":");
+            appendCoordinate(out, 4, 0, precision);
+        }
+        else if (baseType==SHAPE_TYPE_MULTIPOINT){
+            numVertices = initMultiPoint();
+            out.append("{\"type\":\"MultiPoint\",\"coordinates\":");
+            appendCoordinates(out, 40, 0, numVertices, precision);
+        }
+        else{
+            int numParts = bb.getInt(36);
+            if (numParts==0) return false;
+            numVertices = initParts(numParts);
+            int xyStart = 44 + numParts*4;
+
+            if (baseType==SHAPE_TYPE_POLYGON){
+                int numPolygons = assembleRings(numParts, xyStart);
+
+
+              //Write polygons
+                out.append(numPolygons>1 ?
+                    "{\"type\":\"MultiPolygon\",\"coordinates\":[" :
+                    "{\"type\":\"Polygon\",\"coordinates\":");
+                boolean first = true;
+                for (int j=0; j<numParts; j++){
+                    if (rings.shell[j]>=0) continue;
+                    if (!first) out.put((byte) ',');
+                    first = false;
+                    out.put((byte) '[');
+                    appendPart(out, xyStart, j, precision);
+                    for (int k=rings.head[j]; k>=0; k=rings.next[k]){
+                        out.put((byte) ',');
+                        appendPart(out, xyStart, k, precision);
+                    }
+                    out.put((byte) ']');
+                }
+                if (numPolygons>1) out.put((byte) ']');
+            }
+            else{
+
+
+              //Write lines
+                out.append(numParts>1 ?
+                    "{\"type\":\"MultiLineString\",\"coordinates\":[" :
+                    "{\"type\":\"LineString\",\"coordinates\":");
+                for (int j=0; j<numParts; j++){
+                    if (j>0) out.put((byte) ',');
+                    appendPart(out, xyStart, j, precision);
+                }
+                if (numParts>1) out.put((byte) ']');
+            }
+        }
+        out.put((byte) '}');
+        if (listener!=Metrics.NONE) listener.geometryDecoded(contentLength+8, numVertices, System.nanoTime()-startTime);
+        return true;
+    }
+
+
+  //**************************************************************************
+  //** appendPart
+  //**************************************************************************
+  /** Appends the coordinates of a part as a JSON array.
+   */
+    private void appendPart(OutputBuffer out, int xyStart, int part, int precision){
+        int numPoints = offsets[part+1] - offsets[part];
+        appendCoordinates(out, xyStart + offsets[part]*16, offsets[part], numPoints, precision);
+    }
+
+
+  //**************************************************************************
+  //** appendCoordinates
+  //**************************************************************************
+  /** Appends the coordinates of consecutive points as a JSON array.
+   *  @param pos Offset to the first XY coordinate in the record
+   *  @param idx Index of the first point in the record
+   */
+    private void appendCoordinates(OutputBuffer out, int pos, int idx, int numPoints, int precision){
+        out.put((byte) '[');
+        for (int n=0; n<numPoints; n++){
+            if (n>0) out.put((byte) ',');
+            appendCoordinate(out, pos + n*16, idx + n, precision);
+        }
+        out.put((byte) ']');
+    }
+
+
+  //**************************************************************************
+  //** appendCoordinate
+  //**************************************************************************
+  /** Appends a coordinate as a JSON array. The Z value is included if it is
+   *  available and is a number.
+   */
+    private void appendCoordinate(OutputBuffer out, int pos, int idx, int precision){
+        out.put((byte) '[');
+        out.appendDouble(bb.getDouble(pos), precision);
+        out.put((byte) ',');
+        out.appendDouble(bb.getDouble(pos+8), precision);
+        if (zPos>=0){
+            double z = bb.getDouble(zPos + idx*8);
+            if (!Double.isNaN(z)){
+                out.put((byte) ',');
+                out.appendDouble(z, precision);
+            }
+        }
+        out.put((byte) ']');
+    }
+
+
+  //**************************************************************************
+  //** init
+  //**************************************************************************
+  /** Used to set the current record. Returns false if the record is a null
+   *  shape.
+   */
+    private boolean init(ByteBuffer record, int contentLength){
+        if (contentLength<4 || record.getInt(0)==SHAPE_TYPE_NULL) return false;
+        this.bb = record;
+        this.contentLength = contentLength;
+        return true;
+    }
+
+
+  //**************************************************************************
+  //** initPoint
+  //**************************************************************************
+  /** Used to find the Z and M values of a point record. PointZ has X, Y, Z
+   *  and an optional M. PointM has X, Y and M.
+   */
+    private void initPoint() throws IOException {
+        if (contentLength<20) throw new EOFException();
+        zPos = hasZ && contentLength>=28 ? 20 : -1;
+        int m = ShapeFile.hasZ(shapeType) ? 28 : 20;
+        mPos = hasM && contentLength>=m+8 ? m : -1;
+    }
+
+
+  //**************************************************************************
+  //** initMultiPoint
+  //**************************************************************************
+  /** Used to find the Z and M values of a multipoint record. Returns the
+   *  number of points.
+   */
+    private int initMultiPoint() throws IOException {
+        if (contentLength<40) throw new EOFException();
+        int numPoints = bb.getInt(36);
+        initZM(40 + (long) numPoints*16, numPoints);
+        return numPoints;
+    }
+
+
+  //**************************************************************************
+  //** initParts
+  //**************************************************************************
+  /** Used to read the offset of each part in a polyline or polygon record
+   *  and to find the Z and M values. Returns the number of points.
+   */
+    private int initParts(int numParts) throws IOException {
+        if (contentLength<44) throw new EOFException();
+        int numPoints = bb.getInt(40);
+        if (numParts<0) throw new EOFException();
+        initZM(44 + numParts*4L + numPoints*16L, numPoints);
+        if (offsets.length<numParts+1) offsets = new int[numParts+1];
+        for (int n=0; n<numParts; n++){
+            offsets[n] = bb.getInt(44 + n*4);
+        }
+        offsets[numParts] = numPoints;
+        return numPoints;
+    }
+
+
+  //**************************************************************************
+  //** initZM
+  //**************************************************************************
+  /** Used to find the Z and M arrays in a multipoint, polyline or polygon
+   *  record. The arrays are optional so the content length is used to check
+   *  whether they are there.
+   *  @param xyEnd Offset to the end of the XY coordinates
+   */
+    private void initZM(long xyEnd, int numPoints) throws IOException {
+        if (numPoints<0 || xyEnd>contentLength) throw new EOFException();
+        zPos = mPos = -1;
+        int zmLength = 16 + numPoints*8;
+        if (hasZ && contentLength>=xyEnd+zmLength){
+            zPos = (int) xyEnd + 16;
+        }
+        if (hasM){
+            long start = ShapeFile.hasZ(shapeType) ? xyEnd + zmLength : xyEnd;
+            if (contentLength>=start+zmLength) mPos = (int) start + 16;
+        }
+    }
+
+
+  //**************************************************************************
+  //** assembleRings
+  //**************************************************************************
+  /** Used to assign the holes in a polygon record to shells, after
+   *  initParts(). Returns the number of polygons in the record.
+   */
+    private int assembleRings(int numParts, int xyStart){
+        rings.init(numParts, xyStart, bb, offsets);
+        for (int j=0; j<numParts; j++){
+            int n = offsets[j+1] - offsets[j];
+            if (xy.length<n*2) xy = new double[n*2];
+            for (int k=0; k<n*2; k++) xy[k] = bb.getDouble(xyStart + offsets[j]*16 + k*8);
+            rings.add(j, xy, n);
+        }
+        rings.assemble();
+        int numPolygons = 0;
+        for (int j=0; j<numParts; j++){
+            if (rings.shell[j]<0) numPolygons++;
+        }
+        return numPolygons;
+    }
+}
@@ -0,0 +1,549 @@
+package openmap;
+import java.io.*;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAdder;
+
+//******************************************************************************
+//**  HttpSource
+//******************************************************************************
+/**
+ *   Used to read a file from a web server or object store that supports
+ *   HTTP range requests. Bytes are fetched on demand and kept in a cache so
+ *   that nothing is downloaded twice. Reads that miss the cache fetch a few
+ *   extra bytes (see setReadAhead) so small sequential reads don't turn into
+ *   many requests. Ranges passed to prefetch() are sorted and nearby ranges
+ *   are coalesced into a few large requests that are sent in parallel.
+ *   Example:
+ <pre>
+    String url = "https://example.com/data/counties";
+    ShapeFile shp = new ShapeFile(
+        new HttpSource(new URL(url + ".shp")),
+        new HttpSource(new URL(url + ".shx")),
+        new HttpSource(new URL(url + ".dbf"))
+    );
+    Iterator&lt;Record&gt; it = shp.getRecords(new Envelope(-84, -75, 36, 40));
+ </pre>
+ *   Bbox queries on a remote shapefile read the shx file and the record
+ *   headers and then only fetch the records and dbf rows that intersect the
+ *   bbox. With a spatial index (see ShapeFile.setSpatialIndex), the record
+ *   headers are skipped and only the index nodes that are needed are read.
+ *
+ ******************************************************************************/
+
+public class HttpSource extends ByteSource {
+
+    private final URL url;
+    private final LinkedHashMap<String, String> headers = new LinkedHashMap<>();
+    private volatile long size = -1;
+    private int readAhead = 64*1024;
+    private int maxGap = 16*1024;
+    private int maxRequest = 8*1024*1024;
+    private int maxConnections = 4;
+    private int timeout = 30000;
+
+  //Fetched ranges, by offset. Ranges are evicted in the order they were
+  //fetched once the cache is full. The order set has the same keys as the
+  //cache.
+    private final TreeMap<Long, byte[]> cache = new TreeMap<>();
+    private final LinkedHashSet<Long> order = new LinkedHashSet<>();
+    private long cacheSize = 64*1024*1024;
+    private long cached;
+
+    private ExecutorService executor;
+    private Semaphore connections = new Semaphore(maxConnections);
+    private final LongAdder requests = new LongAdder();
+    private final LongAdder bytesFetched = new LongAdder();
+
+
+  //**************************************************************************
+  //** Constructor
+  //**************************************************************************
+    public HttpSource(URL url){
+        this.url = url;
+    }
+
+
+  //**************************************************************************
+  //** setHeader
+  //**************************************************************************
+  /** Used to add a header to every request (e.g. Authorization).
+   */
+    public synchronized void setHeader(String name, String value){
+        headers.put(name, value);
+    }
+
+
+  //**************************************************************************
+  //** setReadAhead
+  //**************************************************************************
+  /** Used to set the minimum number of bytes fetched when a read misses the
+   *  cache. Default is 64KB.
+   */
+    public void setReadAhead(int readAhead){
+        this.readAhead = Math.max(1, readAhead);
+    }
+
+
+  //**************************************************************************
+  //** setMaxGap
+  //**************************************************************************
+  /** Used to set the largest gap between two prefetched ranges that are
+   *  fetched with a single request. The bytes in the gap are downloaded and
+   *  discarded, which is usually cheaper than another round trip. Default
+   *  is 16KB.
+   */
+    public void setMaxGap(int maxGap){
+        this.maxGap = Math.max(0, maxGap);
+    }
+
+
+  //**************************************************************************
+  //** setMaxRequest
+  //**************************************************************************
+  /** Used to set the largest number of bytes requested at once when ranges
+   *  are coalesced. Default is 8MB.
+   */
+    public void setMaxRequest(int maxRequest){
+        this.maxRequest = Math.max(1, maxRequest);
+    }
+
+
+  //**************************************************************************
+  //** setMaxConnections
+  //**************************************************************************
+  /** Used to set the number of requests sent in parallel by prefetch().
+   *  The limit is enforced with a semaphore, so it also applies when the
+   *  requests run on virtual threads (Java 21+) and when several threads
+   *  call prefetch() at once. Default is 4.
+   */
+    public synchronized void setMaxConnections(int maxConnections){
+        this.maxConnections = Math.max(1, maxConnections);
+        connections = new Semaphore(this.maxConnections);
+        if (executor!=null){
+            executor.shutdown();
+            executor = null;
+        }
+    }
+
+
+  //**************************************************************************
+  //** setTimeout
+  //**************************************************************************
+  /** Used to set the connect and read timeouts, in milliseconds. Default
+   *  is 30 seconds.
+   */
+    public void setTimeout(int timeout){
+        this.timeout = timeout;
+    }
+
+
+  //**************************************************************************
+  //** setCacheSize
+  //**************************************************************************
+  /** Used to set the maximum number of bytes kept in the cache. Default is
+   *  64MB.
+   */
+    public synchronized void setCacheSize(long cacheSize){
+        this.cacheSize = Math.max(0, cacheSize);
+        evict();
+    }
+
+
+  //**************************************************************************
+  //** getRequestCount
+  //**************************************************************************
+  /** Returns the number of range requests sent to the server.
+   */
+    public long getRequestCount(){
+        return requests.sum();
+    }
+
+
+  //**************************************************************************
+  //** getCachedBytes
+  //**************************************************************************
+  /** Returns the number of bytes in the cache.
+   */
+    public synchronized long getCachedBytes(){
+        return cached;
+    }
+
+
+  //**************************************************************************
+  //** getBytesFetched
+  //**************************************************************************
+  /** Returns the number of bytes downloaded from the server, including the
+   *  gaps between coalesced ranges.
+   */
+    public long getBytesFetched(){
+        return bytesFetched.sum();
+    }
+
+
+  //**************************************************************************
+  //** size
+  //**************************************************************************
+  /** Returns the size of the file. The size is found with the first request,
+   *  which also fetches the start of the file.
+   */
+    public long size() throws IOException {
+        if (size<0){
+            synchronized(this){
+                if (size<0){
+                    put(0, get(0, readAhead));
+                    if (size<0) throw new IOException("Unknown file size: " + url);
+                }
+            }
+        }
+        return size;
+    }
+
+
+  //**************************************************************************
+  //** read
+  //**************************************************************************
+    public int read(long position, byte[] b, int off, int len) throws IOException {
+        long size = size();
+        if (position>=size) return -1;
+        len = (int) Math.min(len, size-position);
+        if (len==0) return 0;
+
+
+      //Copy bytes from the cache, if possible
+        int n = copy(position, b, off, len);
+        if (n>0) return n;
+
+
+      //Fetch the range, and a few extra bytes, without fetching bytes
+      //that are already in the cache
+        long end = Math.min(size, position+Math.max(len, readAhead));
+        synchronized(this){
+            Long next = cache.higherKey(position);
+            if (next!=null && next<end) end = Math.max(next, position+len);
+        }
+        byte[] bytes = get(position, (int) (end-position));
+        put(position, bytes);
+        n = Math.min(len, bytes.length);
+        if (n==0) return -1;
+        System.arraycopy(bytes, 0, b, off, n);
+        return n;
+    }
+
+
+  //**************************************************************************
+  //** prefetch
+  //**************************************************************************
+  /** Used to fetch a set of ranges into the cache. Ranges that are already
+   *  cached are ignored. The other ranges are sorted and merged when the gap
+   *  between them is smaller than the max gap. The merged ranges are fetched
+   *  in parallel.
+   */
+    public void prefetch(long[] positions, int[] lengths) throws IOException {
+        prefetch(positions, lengths, maxGap);
+    }
+
+
+  //**************************************************************************
+  //** prefetch
+  //**************************************************************************
+  /** Used to fetch a set of ranges into the cache, using the given max gap
+   *  instead of the one set with setMaxGap().
+   */
+    public void prefetch(long[] positions, int[] lengths, int maxGap) throws IOException {
+        long size = size();
+
+
+      //Sort ranges by position
+        Integer[] idx = new Integer[positions.length];
+        for (int i=0; i<idx.length; i++) idx[i] = i;
+        Arrays.sort(idx, new Comparator<Integer>(){
+            public int compare(Integer a, Integer b){
+                return Long.compare(positions[a], positions[b]);
+            }
+        });
+
+
+      //Coalesce ranges that are missing from the cache
+        ArrayList<long[]> ranges = new ArrayList<>();
+        long start = -1;
+        long end = -1;
+        for (int i : idx){
+            long s = positions[i];
+            long e = Math.min(size, s+lengths[i]);
+            if (e<=s || isCached(s, (int) (e-s))) continue;
+            if (start>=0 && s-end<=maxGap && Math.max(end, e)-start<=maxRequest){
+                end = Math.max(end, e);
+                continue;
+            }
+            if (start>=0) ranges.add(new long[]{start, end});
+            start = s;
+            end = e;
+        }
+        if (start>=0) ranges.add(new long[]{start, end});
+        if (ranges.isEmpty()) return;
+
+
+      //Fetch ranges
+        final Semaphore connections;
+        synchronized(this){
+            connections = this.connections;
+        }
+        if (ranges.size()==1){
+            fetch(ranges.get(0), connections);
+            return;
+        }
+        ArrayList<Future<?>> futures = new ArrayList<>();
+        for (final long[] range : ranges){
+            futures.add(getExecutor().submit(new Callable<Object>(){
+                public Object call() throws IOException {
+                    fetch(range, connections);
+                    return null;
+                }
+            }));
+        }
+        try{
+            for (Future<?> future : futures) future.get();
+        }
+        catch(ExecutionException e){
+            for (Future<?> future : futures) future.cancel(true);
+            Throwable t = e.getCause();
+            if (t instanceof IOException) throw (IOException) t;
+            throw new IOException(t);
+        }
+        catch(InterruptedException e){
+            for (Future<?> future : futures) future.cancel(true);
+            throw new InterruptedIOException();
+        }
+    }
+
+
+  //**************************************************************************
+  //** isRemote
+  //**************************************************************************
+    public boolean isRemote(){
+        return true;
+    }
+
+
+  //**************************************************************************
+  //** close
+  //**************************************************************************
+  /** Used to clear the cache and stop the threads used by prefetch().
+   */
+    public synchronized void close(){
+        cache.clear();
+        order.clear();
+        cached = 0;
+        if (executor!=null){
+            executor.shutdownNow();
+            executor = null;
+        }
+    }
+
+
+    public String toString(){
+        return url.toString();
+    }
+
+
+  //**************************************************************************
+  //** fetch
+  //**************************************************************************
+  /** Used to fetch a range into the cache once a connection is available.
+   *  @param range Start and end of the range
+   */
+    private void fetch(long[] range, Semaphore connections) throws IOException {
+        try{
+            connections.acquire();
+        }
+        catch(InterruptedException e){
+            throw new InterruptedIOException();
+        }
+        try{
+            put(range[0], get(range[0], (int) (range[1]-range[0])));
+        }
+        finally{
+            connections.release();
+        }
+    }
+
+
+  //**************************************************************************
+  //** get
+  //**************************************************************************
+  /** Used to send a range request. Returns fewer bytes than requested at
+   *  the end of the file. Throws an IOException if the server ignores the
+   *  range header.
+   */
+    private byte[] get(long start, int length) throws IOException {
+        HttpURLConnection conn = (HttpURLConnection) url.openConnection();
+        conn.setConnectTimeout(timeout);
+        conn.setReadTimeout(timeout);
+        synchronized(this){
+            for (Map.Entry<String, String> header : headers.entrySet()){
+                conn.setRequestProperty(header.getKey(), header.getValue());
+            }
+        }
+        conn.setRequestProperty("Accept-Encoding", "identity");
+        conn.setRequestProperty("Range", "bytes=" + start + "-" + (start+length-1));
+        requests.increment();
+
+        int status = conn.getResponseCode();
+        if (status==416){
+            if (size<0) size = getTotal(conn.getHeaderField("Content-Range"));
+            conn.disconnect();
+            return new byte[0];
+        }
+        if (status!=206){
+            conn.disconnect();
+            if (status==200) throw new IOException("Range requests are not supported: " + url);
+            throw new IOException("HTTP " + status + " for " + url);
+        }
+
+        String range = conn.getHeaderField("Content-Range");
+        long first = getFirst(range);
+        long last = getLast(range);
+        if (first!=start || last<first){
+            conn.disconnect();
+            throw new IOException("Unexpected range for " + url + ": " + range);
+        }
+        if (size<0) size = getTotal(range);
+        length = (int) Math.min(length, last-first+1);
+
+        InputStream is = conn.getInputStream();
+        try{
+            byte[] b = new byte[length];
+            int n = 0;
+            while (n<length){
+                int r = is.read(b, n, length-n);
+                if (r<0) throw new EOFException("Incomplete response for " + url);
+                n += r;
+            }
+            bytesFetched.add(n);
+            return b;
+        }
+        finally{
+            is.close();
+        }
+    }
+
+
+  //**************************************************************************
+  //** copy
+  //**************************************************************************
+  /** Used to copy bytes from the cache. Returns the number of bytes copied,
+   *  which may be less than the requested length, or 0 if the position is
+   *  not cached.
+   */
+    private synchronized int copy(long position, byte[] b, int off, int len){
+        Map.Entry<Long, byte[]> entry = cache.floorEntry(position);
+        if (entry==null) return 0;
+        byte[] bytes = entry.getValue();
+        long i = position-entry.getKey();
+        if (i>=bytes.length) return 0;
+        int n = (int) Math.min(len, bytes.length-i);
+        System.arraycopy(bytes, (int) i, b, off, n);
+        return n;
+    }
+
+
+  //**************************************************************************
+  //** isCached
+  //**************************************************************************
+    private synchronized boolean isCached(long position, int len){
+        Map.Entry<Long, byte[]> entry = cache.floorEntry(position);
+        return entry!=null && entry.getKey()+entry.getValue().length>=position+len;
+    }
+
+
+  //**************************************************************************
+  //** put
+  //**************************************************************************
+  /** Adds a range to the cache. Smaller ranges that are inside the new range
+   *  (e.g. record headers) are removed so that reads find the new range.
+   */
+    private synchronized void put(long position, byte[] bytes){
+        if (bytes.length==0) return;
+        byte[] prev = cache.get(position);
+        if (prev!=null){
+            if (prev.length>=bytes.length) return;
+            cached -= prev.length;
+            order.remove(position);
+        }
+        long end = position+bytes.length;
+        Iterator<Map.Entry<Long, byte[]>> it = cache.subMap(position, false, end, false).entrySet().iterator();
+        while (it.hasNext()){
+            Map.Entry<Long, byte[]> entry = it.next();
+            if (entry.getKey()+entry.getValue().length>end) continue;
+            cached -= entry.getValue().length;
+            order.remove(entry.getKey());
+            it.remove();
+        }
+        cache.put(position, bytes);
+        order.add(position);
+        cached += bytes.length;
+        evict();
+    }
+
+
+  //**************************************************************************
+  //** evict
+  //**************************************************************************
+  /** Removes the oldest ranges until the cache is under the max size. The
+   *  last range is kept so that it can be read after it is fetched.
+   */
+    private void evict(){
+        Iterator<Long> it = order.iterator();
+        while (cached>cacheSize && order.size()>1){
+            cached -= cache.remove(it.next()).length;
+            it.remove();
+        }
+    }
+
+
+  //**************************************************************************
+  //** getExecutor
+  //**************************************************************************
+    private synchronized ExecutorService getExecutor(){
+        if (executor==null) executor = ThreadPool.newExecutor("HttpSource", maxConnections);
+        return executor;
+    }
+
+
+  //**************************************************************************
+  //** Content-Range parsers
+  //**************************************************************************
+  /** Used to parse a Content-Range header (e.g. "bytes 0-99/1234"). Returns
+   *  -1 for missing or unknown values.
+   */
+    private static long getFirst(String range){
+        try{
+            String s = range.substring(range.indexOf(' ')+1);
+            return Long.parseLong(s.substring(0, s.indexOf('-')).trim());
+        }
+        catch(Exception e){
+            return -1;
+        }
+    }
+
+    private static long getLast(String range){
+        try{
+            return Long.parseLong(range.substring(range.indexOf('-')+1, range.indexOf('/')).trim());
+        }
+        catch(Exception e){
+            return -1;
+        }
+    }
+
+    private static long getTotal(String range){
+        try{
+            return Long.parseLong(range.substring(range.indexOf('/')+1).trim());
+        }
+        catch(Exception e){
+            return -1;
+        }
+    }
+}
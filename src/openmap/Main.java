@@ -1,21 +1,937 @@
 package openmap;
+import static com.bbn.openmap.dataAccess.shape.ShapeConstants.*;
+import com.bbn.openmap.dataAccess.shape.input.DbfInputStream;
+
+import org.locationtech.jts.geom.*;
+import org.locationtech.jts.io.WKBWriter;
+import org.locationtech.jts.io.WKTWriter;
+
+import java.io.*;
 import java.util.*;
+import java.util.regex.*;
+
+//******************************************************************************
+//**  Main
+//******************************************************************************
+/**
+ *   Command line interface used to inspect, convert, filter and index
+ *   shapefiles. Each command reports the number of records and bytes
+ *   processed per second for each phase.
+ *
+ ******************************************************************************/
 
 public class Main {
 
-    public static void main(String[] args) throws Exception {
+    private static final String USAGE =
+    "Usage: java -jar openmap.jar <command> <input.shp> [output] [options]\r\n" +
+    "\r\n" +
+    "Commands:\r\n" +
+    "  info     Print the header, extent and schema without reading the records\r\n" +
+    "  convert  Convert the shapefile to GeoJSON, GeoJSON-seq, CSV, WKB,\r\n" +
+    "           FlatGeobuf or a PostgreSQL COPY stream. The format is derived\r\n" +
+    "           from the output file extension (.geojson, .json, .geojsonl,\r\n" +
+    "           .csv, .wkb, .fgb, .copy, .pgcopy) or set with -format. Text\r\n" +
+    "           formats are gzipped if the file name ends with .gz. Use \"-\"\r\n" +
+    "           to write to stdout (except for FlatGeobuf). COPY statements\r\n" +
+    "           are printed to stderr.\r\n" +
+    "  filter   Write records that match a bounding box and/or an attribute\r\n" +
+    "           filter to a new shapefile or to one of the convert formats\r\n" +
+    "  join     Join the records with the records in another shapefile (-with)\r\n" +
+    "           using a spatial predicate. Writes a new shapefile or one of\r\n" +
+    "           the text formats supported by filter\r\n" +
+    "  index    Create a new index (shx file) from the shp file. Use\r\n" +
+    "           -spatial true to create a spatial index (rtx file) instead\r\n" +
+    "  verify   Check that the shp, shx and dbf files are consistent. Prints\r\n" +
+    "           every problem found and exits with status 1 if there are any\r\n" +
+    "  generate Create a synthetic shapefile for benchmarks and load tests\r\n" +
+    "\r\n" +
+    "Options:\r\n" +
+    "  -format <geojson|geojsonseq|csv|wkb|fgb|copy|pgcopy>  Output format\r\n" +
+    "                                    for convert and filter. Use copy for\r\n" +
+    "                                    the text COPY format and pgcopy for\r\n" +
+    "                                    the binary format\r\n" +
+    "  -srid <n>                         SRID of COPY geometries (EWKB)\r\n" +
+    "  -precision <n>                    Decimal places in GeoJSON coordinates\r\n" +
+    "  -table <name>                     Table name used in COPY statements\r\n" +
+    "  -bbox <minx,miny,maxx,maxy>       Only include records in the extent\r\n" +
+    "  -where <field><op><value>         Attribute filter (=, !=, <, <=, >, >=)\r\n" +
+    "  -tolerance <distance>             Simplify geometries while reading\r\n" +
+    "  -threads <n>                      Number of decoder threads (default 0)\r\n" +
+    "  -queue <n>                        Read-ahead queue depth (default 4)\r\n" +
+    "\r\n" +
+    "Join Options:\r\n" +
+    "  -with <file.shp>                  Shapefile to join to (e.g. polygons)\r\n" +
+    "  -predicate <contains|intersects|withinDistance>  Default is intersects\r\n" +
+    "  -distance <distance>              Distance for withinDistance\r\n" +
+    "  -unmatched <true|false>           Keep records without a match\r\n" +
+    "  -threads <n>                      Number of threads (default is the\r\n" +
+    "                                    number of processors)\r\n" +
+    "\r\n" +
+    "Index Options:\r\n" +
+    "  -spatial <true|false>             Create an rtx file used to speed up\r\n" +
+    "                                    bbox queries on remote shapefiles\r\n" +
+    "\r\n" +
+    "Generate Options:\r\n" +
+    "  -records <n>                      Number of records (default 1000)\r\n" +
+    "  -type <point|multipoint|polyline|polygon>\r\n" +
+    "  -seed <n>                         Random seed (default 0)\r\n" +
+    "  -vertices <min[,max]>             Vertices per part (default 10)\r\n" +
+    "  -skew <n>                         Vertex count skew (default 1)\r\n" +
+    "  -parts <min[,max]>                Parts per record (default 1)\r\n" +
+    "  -holes <min[,max]>                Holes per polygon (default 0)\r\n" +
+    "  -columns <name:type:cardinality,...>  Attribute columns. Types are N, F,\r\n" +
+    "                                    C, L and D. Use 0 for unique values.\r\n" +
+    "  -bbox <minx,miny,maxx,maxy>       Extent of the generated shapes\r\n";
+
+
+  //**************************************************************************
+  //** main
+  //**************************************************************************
+  /** Entry point for the command line interface.
+   */
+    public static void main(String[] arr) throws Exception {
+
+
+      //Parse args
+        ArrayList<String> args = new ArrayList<>();
+        HashMap<String, String> options = new HashMap<>();
+        for (int i=0; i<arr.length; i++){
+            String arg = arr[i];
+            if (arg.startsWith("-") && arg.length()>1 && i+1<arr.length){
+                options.put(arg.substring(1).toLowerCase(), arr[++i]);
+            }
+            else{
+                args.add(arg);
+            }
+        }
+        if (args.size()<2){
+            System.out.println(USAGE);
+            return;
+        }
+
+
+      //Run command
+        String command = args.get(0).toLowerCase();
+        java.io.File file = new java.io.File(args.get(1));
+        String output = args.size()>2 ? args.get(2) : null;
+        if (command.equals("info")){
+            info(file);
+        }
+        else if (command.equals("convert")){
+            if (output==null) throw new IllegalArgumentException("Missing output");
+            convert(file, output, options);
+        }
+        else if (command.equals("filter")){
+            if (output==null) throw new IllegalArgumentException("Missing output");
+            filter(file, output, options);
+        }
+        else if (command.equals("join")){
+            if (output==null) throw new IllegalArgumentException("Missing output");
+            join(file, output, options);
+        }
+        else if (command.equals("index")){
+            index(file, options);
+        }
+        else if (command.equals("verify")){
+            if (!verify(file)) System.exit(1);
+        }
+        else if (command.equals("generate")){
+            generate(file, options);
+        }
+        else{
+            System.out.println(USAGE);
+        }
+    }
+
+
+  //**************************************************************************
+  //** info
+  //**************************************************************************
+  /** Prints the shp header, extent, record count and dbf schema. Only the
+   *  file headers are read.
+   */
+    private static void info(java.io.File file) throws Exception {
+        long startTime = System.nanoTime();
+        ShapeFile shp = new ShapeFile(file);
+
+        System.out.println("Name: " + shp.getName());
+        System.out.println("Shape Type: " + getShapeTypeName(shp.getShapeType()));
+        System.out.println("Records: " + shp.getRecordCount());
+        Envelope extent = shp.getExtent();
+        if (extent!=null){
+            System.out.println("Extent: " +
+            extent.getMinX() + ", " + extent.getMinY() + ", " +
+            extent.getMaxX() + ", " + extent.getMaxY());
+        }
+        long numBytes = 0;
+        for (java.io.File f : shp.getFiles()){
+            System.out.println("File: " + f + " (" + f.length() + " bytes)");
+            numBytes += f.length();
+        }
+
+
+      //Print schema
+        for (java.io.File f : shp.getFiles()){
+            if (!f.getName().toLowerCase().endsWith(".dbf")) continue;
+            DbfInputStream dbf = new DbfInputStream(new FileInputStream(f));
+            try{
+                String[] names = dbf.getColumnNames();
+                byte[] types = dbf.getTypes();
+                int[] lengths = dbf.getLengths();
+                byte[] decimals = dbf.getDecimalCounts();
+                System.out.println("Fields:");
+                for (int i=0; i<names.length; i++){
+                    System.out.println("  " + names[i] + "\t" + (char) types[i] +
+                    "(" + lengths[i] + (decimals[i]>0 ? "," + decimals[i] : "") + ")");
+                }
+            }
+            finally{
+                dbf.close();
+            }
+        }
+
+        report("info", 0, 0, 0, startTime);
+    }
+
+
+  //**************************************************************************
+  //** convert
+  //**************************************************************************
+  /** Converts a shapefile to GeoJSON, GeoJSON-seq, CSV, WKB, FlatGeobuf or
+   *  a COPY stream. FlatGeobuf files are written with a spatial index, using
+   *  the -threads option to encode features in parallel. COPY streams are
+   *  written with a WkbExporter and GeoJSON with a GeoJsonWriter, unless
+   *  the geometries are simplified.
+   */
+    private static void convert(java.io.File file, String output, HashMap<String, String> options) throws Exception {
+        String format = getFormat(output, options);
+        if (format==null) throw new IllegalArgumentException("Unsupported format");
+
+        long startTime = System.nanoTime();
+        ShapeFile shp = open(file, options);
+        report("open", 0, 0, 0, startTime);
+
+        if (format.equals("fgb")){
+            if (output.equals("-")) throw new IllegalArgumentException("FlatGeobuf can't be written to stdout");
+            int numThreads = Integer.parseInt(getOption("threads", "0", options));
+            if (numThreads<1) numThreads = Runtime.getRuntime().availableProcessors();
+            java.io.File f = new java.io.File(output);
+            startTime = System.nanoTime();
+            FlatGeobuf.write(shp, f, 16, numThreads);
+            report("convert", shp.getRecordCount(), getInputSize(shp), f.length(), startTime);
+            return;
+        }
+
+        if (format.equals("copy") || format.equals("pgcopy")){
+            WkbExporter exporter = new WkbExporter(shp);
+            exporter.setSrid(Integer.parseInt(getOption("srid", "0", options)));
+            exporter.setBinary(format.equals("pgcopy"));
+            String table = getOption("table", shp.getName().toLowerCase(), options);
+            System.err.println(exporter.getCreateTable(table));
+            System.err.println(exporter.getCopyStatement(table));
+
+            startTime = System.nanoTime();
+            OutputStream os = output.equals("-") ? System.out : new FileOutputStream(output);
+            CountingOutputStream out = new CountingOutputStream(new BufferedOutputStream(os, 1024*1024));
+            long numRecords;
+            try{
+                numRecords = exporter.write(out);
+            }
+            finally{
+                if (os!=System.out) out.close();
+            }
+            report("convert", numRecords, getInputSize(shp), out.getCount(), startTime);
+            return;
+        }
+
+        if (format.startsWith("geojson") && getTolerance(options)==0){
+            GeoJsonWriter writer = new GeoJsonWriter(shp);
+            writer.setPrecision(Integer.parseInt(getOption("precision", "-1", options)));
+            writer.setSequence(format.equals("geojsonseq"));
+            writer.setCompressed(isCompressed(output));
+
+            startTime = System.nanoTime();
+            OutputStream os = output.equals("-") ? System.out : new FileOutputStream(output);
+            CountingOutputStream out = new CountingOutputStream(os);
+            long numRecords;
+            try{
+                numRecords = writer.write(out);
+            }
+            finally{
+                if (os!=System.out) out.close();
+            }
+            report("convert", numRecords, getInputSize(shp), out.getCount(), startTime);
+            return;
+        }
+
+        startTime = System.nanoTime();
+        Iterator<Record> it = shp.getRecords(null, getTolerance(options));
+        long[] stats = write(it, null, shp.getSchema(), output, format);
+        report("convert", stats[0], getInputSize(shp), stats[1], startTime);
+    }
+
 
-        ShapeFile shp = new ShapeFile(new java.io.File(args[0]));
-        System.out.println("Found " + shp.getRecordCount() + " records in the shapefile");
+  //**************************************************************************
+  //** filter
+  //**************************************************************************
+  /** Writes records that intersect a bounding box and match an attribute
+   *  filter to a new shapefile or to one of the convert formats.
+   */
+    private static void filter(java.io.File file, String output, HashMap<String, String> options) throws Exception {
 
-        Iterator<Record> it = shp.getRecords();
+      //Parse filters
+        Envelope extent = null;
+        String bbox = options.get("bbox");
+        if (bbox!=null){
+            String[] arr = bbox.split(",");
+            if (arr.length!=4) throw new IllegalArgumentException("Invalid bbox");
+            extent = new Envelope(
+                Double.parseDouble(arr[0].trim()), Double.parseDouble(arr[2].trim()),
+                Double.parseDouble(arr[1].trim()), Double.parseDouble(arr[3].trim())
+            );
+        }
+        long startTime = System.nanoTime();
+        ShapeFile shp = open(file, options);
+        Schema schema = shp.getSchema();
+        Filter filter = options.containsKey("where") ? new Filter(options.get("where"), schema) : null;
+        report("open", 0, 0, 0, startTime);
+
+
+      //Write records to another format
+        String format = getFormat(output, options);
+        if ("fgb".equals(format) || "copy".equals(format) || "pgcopy".equals(format)){
+            throw new IllegalArgumentException("Format " + format + " is only supported by convert");
+        }
+        if (format!=null){
+            startTime = System.nanoTime();
+            Iterator<Record> it = shp.getRecords(extent, getTolerance(options));
+            long[] stats = write(it, filter, schema, output, format);
+            report("filter", stats[0], getInputSize(shp), stats[1], startTime);
+            return;
+        }
+
+
+      //Write records to a shapefile
+        if (!output.toLowerCase().endsWith(".shp")) throw new IllegalArgumentException("Unsupported format");
+        startTime = System.nanoTime();
+        ShapeFile out = new ShapeFile();
+        long numRecords = 0;
+        Iterator<Record> it = shp.getRecords(extent, getTolerance(options));
         while (it.hasNext()){
             Record record = it.next();
-            for (Field field : record.getFields()){
-                System.out.print(field.getValue() + "\t");
+            if (filter!=null && !filter.accept(record)) continue;
+            out.addRecord(record);
+            numRecords++;
+        }
+        report("filter", numRecords, getInputSize(shp), 0, startTime);
+        if (numRecords==0){
+            System.err.println("No records found");
+            return;
+        }
+
+        startTime = System.nanoTime();
+        java.io.File f = new java.io.File(output).getAbsoluteFile();
+        String name = f.getName().substring(0, f.getName().length()-4);
+        out.saveAs(name, f.getParentFile());
+        report("write", numRecords, 0, getInputSize(out), startTime);
+    }
+
+
+  //**************************************************************************
+  //** join
+  //**************************************************************************
+  /** Joins the records in a shapefile with the records in another shapefile
+   *  and writes the results to a new shapefile or to one of the text formats.
+   */
+    private static void join(java.io.File file, String output, HashMap<String, String> options) throws Exception {
+        String with = options.get("with");
+        if (with==null) throw new IllegalArgumentException("Missing -with shapefile");
+
+        long startTime = System.nanoTime();
+        ShapeFile shp = new ShapeFile(file);
+        ShapeFile other = new ShapeFile(new java.io.File(with));
+        SpatialJoin join = new SpatialJoin(shp, other);
+        join.setPredicate(getOption("predicate", "intersects", options));
+        join.setDistance(Double.parseDouble(getOption("distance", "0", options)));
+        join.setKeepUnmatched(Boolean.parseBoolean(getOption("unmatched", "false", options)));
+        if (options.containsKey("threads")) join.setNumThreads(Integer.parseInt(options.get("threads")));
+        Schema schema = join.getSchema();
+        report("index", other.getRecordCount(), getInputSize(other), 0, startTime);
+
+
+      //Write records to another format
+        String format = getFormat(output, options);
+        if ("fgb".equals(format) || "copy".equals(format) || "pgcopy".equals(format)){
+            throw new IllegalArgumentException("Format " + format + " is only supported by convert");
+        }
+        if (format!=null){
+            startTime = System.nanoTime();
+            long[] stats = write(join.getRecords(), null, schema, output, format);
+            report("join", stats[0], getInputSize(shp), stats[1], startTime);
+            return;
+        }
+
+
+      //Write records to a shapefile
+        if (!output.toLowerCase().endsWith(".shp")) throw new IllegalArgumentException("Unsupported format");
+        startTime = System.nanoTime();
+        java.io.File f = new java.io.File(output);
+        long numRecords = join.write(f);
+        report("join", numRecords, getInputSize(shp), getInputSize(new ShapeFile(f)), startTime);
+    }
+
+
+  //**************************************************************************
+  //** index
+  //**************************************************************************
+  /** Creates a new shx file for a shp file, or a spatial index (rtx file)
+   *  if the "spatial" option is true.
+   */
+    private static void index(java.io.File file, HashMap<String, String> options) throws Exception {
+        String name = file.getName();
+        int idx = name.lastIndexOf(".");
+        if (idx>0) name = name.substring(0, idx);
+        java.io.File shp = new java.io.File(file.getAbsoluteFile().getParentFile(), name + ".shp");
+
+        long startTime = System.nanoTime();
+        if (Boolean.parseBoolean(getOption("spatial", "false", options))){
+            java.io.File rtx = ShapeFile.createSpatialIndex(shp);
+            ShapeFile shapeFile = new ShapeFile(shp);
+            long numRecords = shapeFile.getRecordCount();
+            shapeFile.close();
+            report("index", numRecords, shp.length(), rtx.length(), startTime);
+            return;
+        }
+        java.io.File shx = ShapeFile.createIndex(shp);
+        long numRecords = (shx.length()-100)/8;
+        report("index", numRecords, shp.length(), shx.length(), startTime);
+    }
+
+
+  //**************************************************************************
+  //** verify
+  //**************************************************************************
+  /** Prints any inconsistencies between the shp, shx and dbf files. Returns
+   *  true if no problems were found.
+   */
+    private static boolean verify(java.io.File file) throws Exception {
+        long startTime = System.nanoTime();
+        ShapeFile shp = new ShapeFile(file);
+        List<ShapeFile.Problem> problems = shp.verify();
+        for (ShapeFile.Problem problem : problems){
+            System.out.println(problem);
+        }
+        System.out.println(problems.isEmpty() ? "OK" : problems.size() + " problems found");
+        report("verify", shp.getRecordCount(), 0, 0, startTime);
+        return problems.isEmpty();
+    }
+
+
+  //**************************************************************************
+  //** generate
+  //**************************************************************************
+  /** Creates a synthetic shapefile using the Generator class.
+   */
+    private static void generate(java.io.File file, HashMap<String, String> options) throws Exception {
+        Generator generator = new Generator(Long.parseLong(getOption("seed", "0", options)));
+        generator.setShapeType(getOption("type", "point", options));
+        int[] vertices = getRange(getOption("vertices", "10", options));
+        generator.setVertexCount(vertices[0], vertices[1]);
+        generator.setVertexSkew(Double.parseDouble(getOption("skew", "1", options)));
+        int[] parts = getRange(getOption("parts", "1", options));
+        generator.setPartCount(parts[0], parts[1]);
+        int[] holes = getRange(getOption("holes", "0", options));
+        generator.setHoleCount(holes[0], holes[1]);
+
+        String bbox = options.get("bbox");
+        if (bbox!=null){
+            String[] arr = bbox.split(",");
+            if (arr.length!=4) throw new IllegalArgumentException("Invalid bbox");
+            generator.setExtent(new Envelope(
+                Double.parseDouble(arr[0].trim()), Double.parseDouble(arr[2].trim()),
+                Double.parseDouble(arr[1].trim()), Double.parseDouble(arr[3].trim())
+            ));
+        }
+
+        String columns = options.get("columns");
+        if (columns!=null){
+            for (String column : columns.split(",")){
+                String[] arr = column.trim().split(":");
+                if (arr.length<2 || arr[1].length()!=1) throw new IllegalArgumentException("Invalid column: " + column);
+                int cardinality = arr.length>2 ? Integer.parseInt(arr[2]) : 0;
+                generator.addColumn(arr[0], arr[1].charAt(0), cardinality);
             }
-            System.out.println();
-            if (true) break;
+        }
+
+        String name = file.getName();
+        int idx = name.lastIndexOf(".");
+        if (idx>0) name = name.substring(0, idx);
+        java.io.File dir = file.getAbsoluteFile().getParentFile();
+
+        int numRecords = Integer.parseInt(getOption("records", "1000", options));
+        long startTime = System.nanoTime();
+        ShapeFile shp = generator.create(numRecords);
+        report("generate", numRecords, 0, 0, startTime);
+
+        startTime = System.nanoTime();
+        shp.saveAs(name, dir);
+        long size = 0;
+        for (java.io.File f : shp.getFiles()) size += f.length();
+        report("write", numRecords, 0, size, startTime);
+    }
+
+
+  //**************************************************************************
+  //** getRange
+  //**************************************************************************
+  /** Parses a range option (e.g. "10" or "10,100").
+   */
+    private static int[] getRange(String str){
+        String[] arr = str.split(",");
+        int min = Integer.parseInt(arr[0].trim());
+        int max = arr.length>1 ? Integer.parseInt(arr[1].trim()) : min;
+        return new int[]{min, max};
+    }
+
+
+  //**************************************************************************
+  //** open
+  //**************************************************************************
+  /** Opens a shapefile and configures the read pipeline.
+   */
+    private static ShapeFile open(java.io.File file, HashMap<String, String> options) throws Exception {
+        ShapeFile shp = new ShapeFile(file);
+        int numThreads = Integer.parseInt(getOption("threads", "0", options));
+        int queueDepth = Integer.parseInt(getOption("queue", "4", options));
+        shp.setPipeline(numThreads, queueDepth);
+        return shp;
+    }
+
+
+  //**************************************************************************
+  //** write
+  //**************************************************************************
+  /** Writes records to a file or stdout in the given format.
+   *  @return Number of records and bytes written
+   */
+    private static long[] write(Iterator<Record> it, Filter filter, Schema schema,
+        String output, String format) throws Exception {
+
+        OutputStream os = output.equals("-") ? System.out : new FileOutputStream(output);
+        CountingOutputStream out = new CountingOutputStream(new BufferedOutputStream(os, 1024*1024));
+        OutputStream gzip = isCompressed(output) ? new java.util.zip.GZIPOutputStream(out, 64*1024){{ def.setLevel(java.util.zip.Deflater.BEST_SPEED); }} : out;
+        Writer writer = new OutputStreamWriter(gzip, "UTF-8");
+        WKTWriter wktWriter = new WKTWriter();
+        WKBWriter wkbWriter = null;
+        StringBuilder str = new StringBuilder();
+        long numRecords = 0;
+
+
+      //Get dbf columns
+        int numColumns = schema.size()-2;
+        String[] names = new String[numColumns];
+        for (int i=0; i<numColumns; i++) names[i] = schema.getName(i+1);
+
+
+      //Write header
+        if (format.equals("geojson")){
+            writer.write("{\"type\":\"FeatureCollection\",\"features\":[\n");
+        }
+        else if (format.equals("csv")){
+            writer.write("id");
+            for (String name : names){
+                writer.write(",");
+                writer.write(getCSV(name));
+            }
+            writer.write(",geometry\r\n");
+        }
+
+
+      //Write records
+        try{
+            while (it.hasNext()){
+                Record record = it.next();
+                if (filter!=null && !filter.accept(record)) continue;
+                Geometry geom = record.getValue(numColumns+1).toGeometry();
+                str.setLength(0);
+
+                if (format.startsWith("geojson")){
+                    if (numRecords>0 && format.equals("geojson")) str.append(",\n");
+                    str.append("{\"type\":\"Feature\",\"id\":");
+                    str.append(record.getInt(0, 0));
+                    str.append(",\"properties\":{");
+                    for (int i=0; i<numColumns; i++){
+                        if (i>0) str.append(",");
+                        appendJSON(names[i], str);
+                        str.append(":");
+                        Object obj = record.getValue(i+1).toObject();
+                        byte type = schema.getType(i+1);
+                        if (obj instanceof Double){
+                            double d = (Double) obj;
+                            if (Double.isNaN(d) || Double.isInfinite(d)) str.append("null");
+                            else if (d==Math.rint(d) && Math.abs(d)<1e15) str.append((long) d);
+                            else str.append(d);
+                        }
+                        else if (obj==null || ((type=='N' || type=='F') && record.isNull(i+1))){
+                            str.append("null");
+                        }
+                        else{
+                            appendJSON(obj.toString(), str);
+                        }
+                    }
+                    str.append("},\"geometry\":");
+                    appendGeoJSON(geom, str);
+                    str.append("}");
+                    if (format.equals("geojsonseq")) str.append("\n");
+                }
+                else if (format.equals("csv")){
+                    str.append(record.getInt(0, 0));
+                    for (int i=0; i<numColumns; i++){
+                        str.append(",");
+                        Object obj = record.getValue(i+1).toObject();
+                        if (obj!=null) str.append(getCSV(obj.toString().trim()));
+                    }
+                    str.append(",");
+                    if (geom!=null) str.append(getCSV(wktWriter.write(geom)));
+                    str.append("\r\n");
+                }
+                else if (format.equals("wkb")){
+                    if (geom!=null){
+                        if (wkbWriter==null) wkbWriter = new WKBWriter(Double.isNaN(geom.getCoordinate().getZ()) ? 2 : 3);
+                        str.append(WKBWriter.toHex(wkbWriter.write(geom)));
+                    }
+                    str.append("\n");
+                }
+
+                writer.append(str);
+                numRecords++;
+            }
+
+
+          //Write footer
+            if (format.equals("geojson")) writer.write("\n]}\n");
+        }
+        finally{
+            writer.flush();
+            if (os!=System.out) writer.close();
+        }
+        return new long[]{numRecords, out.getCount()};
+    }
+
+
+  //**************************************************************************
+  //** appendGeoJSON
+  //**************************************************************************
+  /** Appends a GeoJSON representation of a geometry to a StringBuilder.
+   */
+    private static void appendGeoJSON(Geometry geom, StringBuilder str){
+        if (geom==null){
+            str.append("null");
+            return;
+        }
+        if (geom instanceof GeometryCollection && !(geom instanceof MultiPoint ||
+            geom instanceof MultiLineString || geom instanceof MultiPolygon)){
+            str.append("{\"type\":\"GeometryCollection\",\"geometries\":[");
+            for (int i=0; i<geom.getNumGeometries(); i++){
+                if (i>0) str.append(",");
+                appendGeoJSON(geom.getGeometryN(i), str);
+            }
+            str.append("]}");
+            return;
+        }
+
+        str.append("{\"type\":\"");
+        str.append(geom.getGeometryType());
+        str.append("\",\"coordinates\":");
+        appendCoordinates(geom, str);
+        str.append("}");
+    }
+
+
+  //**************************************************************************
+  //** appendCoordinates
+  //**************************************************************************
+    private static void appendCoordinates(Geometry geom, StringBuilder str){
+        if (geom instanceof Point){
+            appendCoordinate(geom.getCoordinate(), str);
+        }
+        else if (geom instanceof LineString){
+            appendCoordinates(((LineString) geom).getCoordinates(), str);
+        }
+        else if (geom instanceof Polygon){
+            Polygon polygon = (Polygon) geom;
+            str.append("[");
+            appendCoordinates(polygon.getExteriorRing().getCoordinates(), str);
+            for (int i=0; i<polygon.getNumInteriorRing(); i++){
+                str.append(",");
+                appendCoordinates(polygon.getInteriorRingN(i).getCoordinates(), str);
+            }
+            str.append("]");
+        }
+        else{
+            str.append("[");
+            for (int i=0; i<geom.getNumGeometries(); i++){
+                if (i>0) str.append(",");
+                appendCoordinates(geom.getGeometryN(i), str);
+            }
+            str.append("]");
+        }
+    }
+
+    private static void appendCoordinates(Coordinate[] coords, StringBuilder str){
+        str.append("[");
+        for (int i=0; i<coords.length; i++){
+            if (i>0) str.append(",");
+            appendCoordinate(coords[i], str);
+        }
+        str.append("]");
+    }
+
+    private static void appendCoordinate(Coordinate c, StringBuilder str){
+        str.append("[");
+        str.append(c.x);
+        str.append(",");
+        str.append(c.y);
+        if (!Double.isNaN(c.getZ())){
+            str.append(",");
+            str.append(c.getZ());
+        }
+        str.append("]");
+    }
+
+
+  //**************************************************************************
+  //** appendJSON
+  //**************************************************************************
+  /** Appends a quoted and escaped JSON string to a StringBuilder.
+   */
+    private static void appendJSON(String s, StringBuilder str){
+        str.append('"');
+        for (int i=0; i<s.length(); i++){
+            char c = s.charAt(i);
+            switch (c){
+                case '"': str.append("\\\""); break;
+                case '\\': str.append("\\\\"); break;
+                case '\n': str.append("\\n"); break;
+                case '\r': str.append("\\r"); break;
+                case '\t': str.append("\\t"); break;
+                default:
+                    if (c<0x20) str.append(String.format("\\u%04x", (int) c));
+                    else str.append(c);
+            }
+        }
+        str.append('"');
+    }
+
+
+  //**************************************************************************
+  //** getCSV
+  //**************************************************************************
+  /** Returns a CSV value, quoted if needed.
+   */
+    private static String getCSV(String s){
+        if (s.indexOf(',')>-1 || s.indexOf('"')>-1 || s.indexOf('\n')>-1 || s.indexOf('\r')>-1){
+            return "\"" + s.replace("\"", "\"\"") + "\"";
+        }
+        return s;
+    }
+
+
+  //**************************************************************************
+  //** report
+  //**************************************************************************
+  /** Prints the elapsed time and throughput of a phase to stderr.
+   */
+    private static void report(String phase, long numRecords, long bytesRead, long bytesWritten, long startTime){
+        double elapsed = (System.nanoTime()-startTime)/1e9;
+        StringBuilder str = new StringBuilder();
+        str.append(phase);
+        str.append(": ");
+        if (numRecords>0) str.append(numRecords + " records in ");
+        str.append(String.format(Locale.US, "%.3fs", elapsed));
+        if (elapsed>0 && (numRecords>0 || bytesRead>0 || bytesWritten>0)){
+            ArrayList<String> stats = new ArrayList<>();
+            if (numRecords>0) stats.add(String.format(Locale.US, "%.0f records/sec", numRecords/elapsed));
+            if (bytesRead>0) stats.add(String.format(Locale.US, "%.1f MB/sec read", bytesRead/elapsed/1024/1024));
+            if (bytesWritten>0) stats.add(String.format(Locale.US, "%.1f MB/sec written", bytesWritten/elapsed/1024/1024));
+            str.append(" (");
+            for (int i=0; i<stats.size(); i++){
+                if (i>0) str.append(", ");
+                str.append(stats.get(i));
+            }
+            str.append(")");
+        }
+        System.err.println(str);
+    }
+
+
+  //**************************************************************************
+  //** getInputSize
+  //**************************************************************************
+  /** Returns the total size of the files in a shapefile, in bytes.
+   */
+    private static long getInputSize(ShapeFile shp){
+        long size = 0;
+        for (java.io.File f : shp.getFiles()) size += f.length();
+        return size;
+    }
+
+
+  //**************************************************************************
+  //** getFormat
+  //**************************************************************************
+  /** Returns the output format from the -format option or the file
+   *  extension. Returns null if the format is not supported.
+   */
+    private static String getFormat(String output, HashMap<String, String> options){
+        String format = options.get("format");
+        if (format==null){
+            String name = output.toLowerCase();
+            if (name.endsWith(".gz")) name = name.substring(0, name.length()-3);
+            if (name.endsWith(".geojson") || name.endsWith(".json")) format = "geojson";
+            else if (name.endsWith(".geojsonl") || name.endsWith(".geojsons")) format = "geojsonseq";
+            else if (name.endsWith(".csv")) format = "csv";
+            else if (name.endsWith(".wkb")) format = "wkb";
+            else if (name.endsWith(".fgb")) format = "fgb";
+            else if (name.endsWith(".copy")) format = "copy";
+            else if (name.endsWith(".pgcopy")) format = "pgcopy";
+            else return null;
+        }
+        format = format.toLowerCase();
+        if (format.equals("json")) format = "geojson";
+        if (format.equals("geojson") || format.equals("geojsonseq") ||
+            format.equals("csv") || format.equals("wkb") ||
+            format.equals("fgb") || format.equals("copy") || format.equals("pgcopy")) return format;
+        return null;
+    }
+
+
+  //**************************************************************************
+  //** isCompressed
+  //**************************************************************************
+  /** Returns true if the output should be gzipped.
+   */
+    private static boolean isCompressed(String output){
+        return output.toLowerCase().endsWith(".gz");
+    }
+
+
+  //**************************************************************************
+  //** getTolerance
+  //**************************************************************************
+    private static double getTolerance(HashMap<String, String> options){
+        return Double.parseDouble(getOption("tolerance", "0", options));
+    }
+
+
+  //**************************************************************************
+  //** getOption
+  //**************************************************************************
+    private static String getOption(String key, String defaultValue, HashMap<String, String> options){
+        String value = options.get(key);
+        return value==null ? defaultValue : value;
+    }
+
+
+  //**************************************************************************
+  //** getShapeTypeName
+  //**************************************************************************
+    private static String getShapeTypeName(int shapeType){
+        switch (shapeType){
+            case SHAPE_TYPE_NULL: return "Null";
+            case SHAPE_TYPE_POINT: return "Point";
+            case SHAPE_TYPE_POLYLINE: return "PolyLine";
+            case SHAPE_TYPE_POLYGON: return "Polygon";
+            case SHAPE_TYPE_MULTIPOINT: return "MultiPoint";
+            case SHAPE_TYPE_POINTZ: return "PointZ";
+            case SHAPE_TYPE_POLYLINEZ: return "PolyLineZ";
+            case SHAPE_TYPE_POLYGONZ: return "PolygonZ";
+            case SHAPE_TYPE_MULTIPOINTZ: return "MultiPointZ";
+            case SHAPE_TYPE_POINTM: return "PointM";
+            case SHAPE_TYPE_POLYLINEM: return "PolyLineM";
+            case SHAPE_TYPE_POLYGONM: return "PolygonM";
+            case SHAPE_TYPE_MULTIPOINTM: return "MultiPointM";
+            case SHAPE_TYPE_MULTIPATCH: return "MultiPatch";
+            default: return "Unknown (" + shapeType + ")";
+        }
+    }
+
+
+  //**************************************************************************
+  //** Filter
+  //**************************************************************************
+  /** Used to filter records with a simple attribute expression, e.g.
+   *  "STATE=VA" or "POP>=10000". Values are compared as numbers if both
+   *  sides are numeric, otherwise as case-insensitive strings.
+   */
+    private static class Filter {
+        private int col;
+        private String op;
+        private String value;
+        private double number = Double.NaN;
+
+        public Filter(String expression, Schema schema){
+            Matcher m = Pattern.compile("^\\s*([^<>=!\\s]+)\\s*(<=|>=|!=|<>|=|<|>)\\s*(.*?)\\s*$").matcher(expression);
+            if (!m.matches()) throw new IllegalArgumentException("Invalid filter: " + expression);
+            col = schema.getIndex(m.group(1));
+            if (col<0) throw new IllegalArgumentException("Field not found: " + m.group(1));
+            op = m.group(2);
+            value = m.group(3);
+            if (value.length()>1 && (value.startsWith("'") && value.endsWith("'") ||
+                value.startsWith("\"") && value.endsWith("\""))){
+                value = value.substring(1, value.length()-1);
+            }
+            else{
+                number = new Value(value).getDouble(Double.NaN);
+            }
+        }
+
+        public boolean accept(Record record){
+            int c;
+            double d = Double.isNaN(number) ? Double.NaN : record.getDouble(col, Double.NaN);
+            if (!Double.isNaN(d)){
+                c = Double.compare(d, number);
+            }
+            else{
+                String str = record.getValue(col).toString();
+                if (str==null) return op.equals("!=") || op.equals("<>");
+                c = str.trim().compareToIgnoreCase(value);
+            }
+
+            if (op.equals("=")) return c==0;
+            if (op.equals("!=") || op.equals("<>")) return c!=0;
+            if (op.equals("<")) return c<0;
+            if (op.equals("<=")) return c<=0;
+            if (op.equals(">")) return c>0;
+            return c>=0;
+        }
+    }
+
+
+  //**************************************************************************
+  //** CountingOutputStream
+  //**************************************************************************
+  /** Used to count the number of bytes written to a stream.
+   */
+    private static class CountingOutputStream extends FilterOutputStream {
+        private long count;
+
+        public CountingOutputStream(OutputStream out){
+            super(out);
+        }
+
+        public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+
+        public long getCount(){
+            return count;
         }
     }
-}
\ No newline at end of file
+}
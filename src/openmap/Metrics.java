@@ -0,0 +1,303 @@
+package openmap;
+import java.util.concurrent.atomic.*;
+
+//******************************************************************************
+//**  Metrics
+//******************************************************************************
+/**
+ *   Used to collect read and write statistics for all the shapefiles in the
+ *   JVM. Instrumentation is disabled by default. When disabled, readers and
+ *   writers call a no-op listener and skip all timing calls. To collect
+ *   metrics and publish them through JMX (openmap:type=Metrics):
+ <pre>
+    Metrics metrics = Metrics.enable();
+    ...
+    System.out.println(metrics.getRecordsDecoded() + " records decoded");
+ </pre>
+ *   Alternatively, use setListener() to forward the events to another
+ *   metrics library.
+ *
+ ******************************************************************************/
+
+public class Metrics implements MetricsMBean {
+
+    private static final String OBJECT_NAME = "openmap:type=Metrics";
+
+  /** Listener that ignores all events. */
+    public static final Listener NONE = new Listener(){
+        public void shxParsed(long bytes, long nanos){}
+        public void geometryDecoded(long bytes, int numVertices, long nanos){}
+        public void rowDecoded(long bytes, long nanos){}
+        public void recordAssembled(long nanos){}
+        public void recordFiltered(){}
+        public void cacheHit(){}
+        public void recordsWritten(int numRecords, long bytes, long nanos){}
+    };
+
+    private static volatile Listener listener = NONE;
+    private static Metrics instance;
+
+    private final LongAdder bytesRead = new LongAdder();
+    private final LongAdder bytesWritten = new LongAdder();
+    private final LongAdder recordsDecoded = new LongAdder();
+    private final LongAdder verticesDecoded = new LongAdder();
+    private final LongAdder rowsDecoded = new LongAdder();
+    private final LongAdder recordsAssembled = new LongAdder();
+    private final LongAdder recordsFiltered = new LongAdder();
+    private final LongAdder recordsWritten = new LongAdder();
+    private final LongAdder cacheHits = new LongAdder();
+    private final Histogram shxParse = new Histogram();
+    private final Histogram geometryDecode = new Histogram();
+    private final Histogram dbfDecode = new Histogram();
+    private final Histogram recordAssembly = new Histogram();
+    private final Histogram write = new Histogram();
+    private final Histogram vertices = new Histogram();
+
+  //Listener used to update the counters and histograms
+    private final Listener recorder = new Listener(){
+        public void shxParsed(long bytes, long nanos){
+            bytesRead.add(bytes);
+            shxParse.add(nanos);
+        }
+
+        public void geometryDecoded(long bytes, int numVertices, long nanos){
+            bytesRead.add(bytes);
+            recordsDecoded.increment();
+            verticesDecoded.add(numVertices);
+            vertices.add(numVertices);
+            geometryDecode.add(nanos);
+        }
+
+        public void rowDecoded(long bytes, long nanos){
+            bytesRead.add(bytes);
+            rowsDecoded.increment();
+            dbfDecode.add(nanos);
+        }
+
+        public void recordAssembled(long nanos){
+            recordsAssembled.increment();
+            recordAssembly.add(nanos);
+        }
+
+        public void recordFiltered(){
+            recordsFiltered.increment();
+        }
+
+        public void cacheHit(){
+            cacheHits.increment();
+        }
+
+        public void recordsWritten(int numRecords, long bytes, long nanos){
+            recordsWritten.add(numRecords);
+            bytesWritten.add(bytes);
+            write.add(nanos);
+        }
+    };
+
+
+  //**************************************************************************
+  //** enable
+  //**************************************************************************
+  /** Used to start collecting metrics. Registers the MBean on the first
+   *  call. Returns the Metrics instance used to collect the metrics.
+   */
+    public static synchronized Metrics enable(){
+        if (instance==null){
+            instance = new Metrics();
+            try{
+                java.lang.management.ManagementFactory.getPlatformMBeanServer().registerMBean(
+                    instance, new javax.management.ObjectName(OBJECT_NAME));
+            }
+            catch(Exception e){
+                //JMX is unavailable or the name is taken. Metrics are still
+                //available through the returned instance.
+            }
+        }
+        listener = instance.recorder;
+        return instance;
+    }
+
+
+  //**************************************************************************
+  //** disable
+  //**************************************************************************
+  /** Used to stop collecting metrics. The MBean stays registered with the
+   *  last values.
+   */
+    public static synchronized void disable(){
+        listener = NONE;
+    }
+
+
+  //**************************************************************************
+  //** setListener
+  //**************************************************************************
+  /** Used to set a custom listener. Replaces the Metrics instance, if
+   *  enabled. Pass null to disable instrumentation. Use getRecorder() to
+   *  forward events to a Metrics instance from a custom listener.
+   */
+    public static synchronized void setListener(Listener listener){
+        Metrics.listener = listener==null ? NONE : listener;
+    }
+
+
+  //**************************************************************************
+  //** getListener
+  //**************************************************************************
+  /** Returns the current listener. Readers and writers fetch the listener
+   *  once when they are created and skip timing if it is NONE.
+   */
+    public static Listener getListener(){
+        return listener;
+    }
+
+
+  //**************************************************************************
+  //** Listener
+  //**************************************************************************
+  /** Implemented by classes that want to receive read and write events.
+   *  Methods are called from reader, decoder and writer threads so
+   *  implementations must be thread-safe and fast.
+   */
+    public static interface Listener {
+
+      /** Called after the shx header is read when a shapefile is opened. */
+        public void shxParsed(long bytes, long nanos);
+
+      /** Called after a shp record is decoded into a geometry. */
+        public void geometryDecoded(long bytes, int numVertices, long nanos);
+
+      /** Called after a dbf row is parsed. */
+        public void rowDecoded(long bytes, long nanos);
+
+      /** Called after a Record is created from a geometry and a dbf row. */
+        public void recordAssembled(long nanos);
+
+      /** Called when a record is skipped because it falls outside of the
+       *  extent used to filter the records. Null shapes are not counted. */
+        public void recordFiltered();
+
+      /** Called when geometries are returned from the geometry cache. */
+        public void cacheHit();
+
+      /** Called after a shapefile is saved. */
+        public void recordsWritten(int numRecords, long bytes, long nanos);
+    }
+
+
+  //**************************************************************************
+  //** getRecorder
+  //**************************************************************************
+  /** Returns the listener used to update the counters and histograms.
+   */
+    public Listener getRecorder(){
+        return recorder;
+    }
+
+
+  //**************************************************************************
+  //** MBean implementation
+  //**************************************************************************
+    public long getBytesRead(){ return bytesRead.sum(); }
+    public long getBytesWritten(){ return bytesWritten.sum(); }
+    public long getRecordsDecoded(){ return recordsDecoded.sum(); }
+    public long getVerticesDecoded(){ return verticesDecoded.sum(); }
+    public long getRowsDecoded(){ return rowsDecoded.sum(); }
+    public long getRecordsAssembled(){ return recordsAssembled.sum(); }
+    public long getRecordsFiltered(){ return recordsFiltered.sum(); }
+    public long getRecordsWritten(){ return recordsWritten.sum(); }
+    public long getCacheHits(){ return cacheHits.sum(); }
+    public long getShxParseTime(){ return shxParse.getTotal()/1000000; }
+    public long getGeometryDecodeTime(){ return geometryDecode.getTotal()/1000000; }
+    public long getDbfDecodeTime(){ return dbfDecode.getTotal()/1000000; }
+    public long getRecordAssemblyTime(){ return recordAssembly.getTotal()/1000000; }
+    public long getWriteTime(){ return write.getTotal()/1000000; }
+
+
+  //**************************************************************************
+  //** getPercentile
+  //**************************************************************************
+  /** Returns an approximate percentile for one of the histograms. Values
+   *  are rounded up to the next power of 2.
+   *  @param name Histogram name: "shxParse", "geometryDecode", "dbfDecode",
+   *  "recordAssembly" or "write" (times in nanoseconds) or "vertices"
+   *  (vertices per record).
+   *  @param percentile Value between 0 and 100 (e.g. 99)
+   */
+    public long getPercentile(String name, double percentile){
+        return getHistogram(name).getPercentile(percentile);
+    }
+
+
+  //**************************************************************************
+  //** reset
+  //**************************************************************************
+  /** Used to reset all the counters and histograms.
+   */
+    public void reset(){
+        for (LongAdder counter : new LongAdder[]{
+            bytesRead, bytesWritten, recordsDecoded, verticesDecoded,
+            rowsDecoded, recordsAssembled, recordsFiltered, recordsWritten,
+            cacheHits}){
+            counter.reset();
+        }
+        for (Histogram histogram : new Histogram[]{
+            shxParse, geometryDecode, dbfDecode, recordAssembly, write,
+            vertices}){
+            histogram.reset();
+        }
+    }
+
+
+  //**************************************************************************
+  //** getHistogram
+  //**************************************************************************
+    private Histogram getHistogram(String name){
+        if (name.equalsIgnoreCase("shxParse")) return shxParse;
+        if (name.equalsIgnoreCase("geometryDecode")) return geometryDecode;
+        if (name.equalsIgnoreCase("dbfDecode")) return dbfDecode;
+        if (name.equalsIgnoreCase("recordAssembly")) return recordAssembly;
+        if (name.equalsIgnoreCase("write")) return write;
+        if (name.equalsIgnoreCase("vertices")) return vertices;
+        throw new IllegalArgumentException("Unknown histogram: " + name);
+    }
+
+
+  //**************************************************************************
+  //** Histogram
+  //**************************************************************************
+  /** Lock-free histogram with one bucket per power of 2.
+   */
+    private static class Histogram {
+        private final AtomicLongArray buckets = new AtomicLongArray(64);
+        private final LongAdder total = new LongAdder();
+
+        public void add(long value){
+            if (value<0) value = 0;
+            buckets.incrementAndGet(64-Long.numberOfLeadingZeros(value));
+            total.add(value);
+        }
+
+        public long getTotal(){
+            return total.sum();
+        }
+
+        public long getPercentile(double percentile){
+            long count = 0;
+            for (int i=0; i<64; i++) count += buckets.get(i);
+            if (count==0) return 0;
+            long target = (long) Math.ceil(count*Math.min(100, Math.max(0, percentile))/100);
+            long n = 0;
+            for (int i=0; i<64; i++){
+                n += buckets.get(i);
+                if (n>=Math.max(1, target)) return i==0 ? 0 : (i==63 ? Long.MAX_VALUE : (1L<<i)-1);
+            }
+            return Long.MAX_VALUE;
+        }
+
+        public void reset(){
+            for (int i=0; i<64; i++) buckets.set(i, 0);
+            total.reset();
+        }
+    }
+}
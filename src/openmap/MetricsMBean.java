@@ -0,0 +1,28 @@
+package openmap;
+
+//******************************************************************************
+//**  MetricsMBean
+//******************************************************************************
+/**
+ *   JMX interface for the Metrics class. Times are in milliseconds.
+ *
+ ******************************************************************************/
+
+public interface MetricsMBean {
+    public long getBytesRead();
+    public long getBytesWritten();
+    public long getRecordsDecoded();
+    public long getVerticesDecoded();
+    public long getRowsDecoded();
+    public long getRecordsAssembled();
+    public long getRecordsFiltered();
+    public long getRecordsWritten();
+    public long getCacheHits();
+    public long getShxParseTime();
+    public long getGeometryDecodeTime();
+    public long getDbfDecodeTime();
+    public long getRecordAssemblyTime();
+    public long getWriteTime();
+    public long getPercentile(String name, double percentile);
+    public void reset();
+}
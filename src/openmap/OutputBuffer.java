@@ -0,0 +1,204 @@
+package openmap;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+//******************************************************************************
+//**  OutputBuffer
+//******************************************************************************
+/**
+ *   Growable byte array used by the exporters to build their output without
+ *   creating intermediate objects. The same buffer is reused across records.
+ *   The put methods write binary values in little-endian order, as in WKB.
+ *   The append methods write ASCII text.
+ *
+ ******************************************************************************/
+
+class OutputBuffer {
+
+    byte[] buf;
+    int length;
+
+    private static final long[] POWERS_OF_TEN = {
+        1L, 10L, 100L, 1000L, 10000L, 100000L, 1000000L, 10000000L, 100000000L,
+        1000000000L, 10000000000L, 100000000000L, 1000000000000L, 10000000000000L,
+        100000000000000L, 1000000000000000L
+    };
+
+    private static final byte[] NULL = new byte[]{'n', 'u', 'l', 'l'};
+
+
+    public OutputBuffer(){
+        this(1024);
+    }
+
+    public OutputBuffer(int capacity){
+        buf = new byte[Math.max(16, capacity)];
+    }
+
+
+  //**************************************************************************
+  //** ensure
+  //**************************************************************************
+  /** Used to make room for n more bytes.
+   */
+    void ensure(int n){
+        if (length+n>buf.length) buf = Arrays.copyOf(buf, Math.max(length+n, buf.length*2));
+    }
+
+
+  //**************************************************************************
+  //** writeTo
+  //**************************************************************************
+  /** Writes the contents of the buffer to a stream and clears the buffer.
+   */
+    void writeTo(OutputStream out) throws IOException {
+        out.write(buf, 0, length);
+        length = 0;
+    }
+
+
+    void put(byte b){
+        ensure(1);
+        buf[length++] = b;
+    }
+
+    void put(byte[] b, int off, int len){
+        ensure(len);
+        System.arraycopy(b, off, buf, length, len);
+        length += len;
+    }
+
+  /** Copies bytes from a buffer without changing its position. */
+    void put(ByteBuffer src, int pos, int len){
+        ensure(len);
+        if (src.hasArray()){
+            System.arraycopy(src.array(), src.arrayOffset()+pos, buf, length, len);
+        }
+        else{
+            ByteBuffer dup = src.duplicate();
+            dup.position(pos);
+            dup.get(buf, length, len);
+        }
+        length += len;
+    }
+
+    void putShort(short v){
+        ensure(2);
+        buf[length++] = (byte) v;
+        buf[length++] = (byte) (v >>> 8);
+    }
+
+    void putInt(int v){
+        ensure(4);
+        setInt(length, v);
+        length += 4;
+    }
+
+    void setInt(int pos, int v){
+        buf[pos] = (byte) v;
+        buf[pos+1] = (byte) (v >>> 8);
+        buf[pos+2] = (byte) (v >>> 16);
+        buf[pos+3] = (byte) (v >>> 24);
+    }
+
+    void putLong(long v){
+        ensure(8);
+        for (int i=0; i<8; i++) buf[length++] = (byte) (v >>> (i*8));
+    }
+
+    void putDouble(double d){
+        putLong(Double.doubleToRawLongBits(d));
+    }
+
+
+  //**************************************************************************
+  //** append
+  //**************************************************************************
+  /** Appends a string that only has ASCII characters.
+   */
+    void append(String s){
+        int n = s.length();
+        ensure(n);
+        for (int i=0; i<n; i++) buf[length++] = (byte) s.charAt(i);
+    }
+
+
+  //**************************************************************************
+  //** appendLong
+  //**************************************************************************
+  /** Appends the decimal digits of a long.
+   */
+    void appendLong(long v){
+        ensure(20);
+        if (v<0){
+            if (v==Long.MIN_VALUE){
+                append(Long.toString(v));
+                return;
+            }
+            buf[length++] = '-';
+            v = -v;
+        }
+        int start = length;
+        do{
+            buf[length++] = (byte) ('0' + (v % 10));
+            v /= 10;
+        }
+        while (v>0);
+        for (int i=start, j=length-1; i<j; i++, j--){
+            byte b = buf[i];
+            buf[i] = buf[j];
+            buf[j] = b;
+        }
+    }
+
+
+  //**************************************************************************
+  //** appendDouble
+  //**************************************************************************
+  /** Appends a number as text. Whole numbers are written without a decimal
+   *  point. NaN and infinite values are written as null.
+   *  @param precision Maximum number of digits after the decimal point, up to
+   *  15. Numbers are rounded with integer math and trailing zeros are
+   *  removed. Use -1 for the shortest text that parses back to the same
+   *  double.
+   */
+    void appendDouble(double d, int precision){
+        if (Double.isNaN(d) || Double.isInfinite(d)){
+            put(NULL, 0, NULL.length);
+            return;
+        }
+
+        if (precision>=0 && precision<POWERS_OF_TEN.length){
+            long scale = POWERS_OF_TEN[precision];
+            double s = d*scale;
+            if (Math.abs(s)<1e15){
+                long v = Math.round(s);
+                if (v<0){
+                    put((byte) '-');
+                    v = -v;
+                }
+                appendLong(v/scale);
+                long fraction = v%scale;
+                if (fraction!=0){
+                    int numDigits = precision;
+                    while (fraction%10==0){
+                        fraction /= 10;
+                        numDigits--;
+                    }
+                    ensure(numDigits+1);
+                    buf[length++] = '.';
+                    for (int i=numDigits-1; i>=0; i--){
+                        buf[length+i] = (byte) ('0' + (fraction % 10));
+                        fraction /= 10;
+                    }
+                    length += numDigits;
+                }
+                return;
+            }
+        }
+
+        if (d==Math.rint(d) && Math.abs(d)<1e15) appendLong((long) d);
+        else append(Double.toString(d));
+    }
+}
@@ -1,47 +1,101 @@
 package openmap;
 import org.locationtech.jts.geom.*;
+import java.util.Objects;
 
 public class Record {
 
-    private Field[] fields;
+    private Schema schema;
+    private Value[] values;
+
+  //Schema of the last record created from fields. Records created in a loop
+  //usually have the same fields so they share the schema.
+    private static volatile Schema lastSchema;
+
+    protected Record(Schema schema, Value[] values){
+        this.schema = schema;
+        this.values = values;
+    }
 
     protected Record(Field[] fields){
-        this.fields = fields;
+        String[] names = new String[fields.length];
+        values = new Value[fields.length];
+        for (int i=0; i<fields.length; i++){
+            names[i] = fields[i].getName();
+            values[i] = fields[i].getValue();
+        }
+        schema = lastSchema;
+        if (schema==null || !hasNames(schema, names)){
+            schema = new Schema(names, null);
+            lastSchema = schema;
+        }
+    }
+
+
+  /** Returns true if the schema has the given field names, in order.
+   */
+    private static boolean hasNames(Schema schema, String[] names){
+        if (schema.size()!=names.length) return false;
+        for (int i=0; i<names.length; i++){
+            if (!Objects.equals(schema.getName(i), names[i])) return false;
+        }
+        return true;
+    }
+
+    public Schema getSchema(){
+        return schema;
     }
 
     public Field[] getFields(){
+        Field[] fields = new Field[values.length];
+        for (int i=0; i<fields.length; i++){
+            fields[i] = get(i);
+        }
         return fields;
     }
 
     protected Field get(int index){
-        return fields[index];
+        return new Field(schema.getName(index), values[index]);
     }
 
     public Value getValue(int index){
-        return fields[index].getValue();
+        return values[index];
     }
 
     public Value getValue(String name){
-        for (Field field : fields){
-            if (field.getName().equalsIgnoreCase(name)){
-                return field.getValue();
-            }
-        }
-        for (Field field : fields){
-            if (field.getName().equalsIgnoreCase(name + "*")){
-                return field.getValue();
-            }
-        }
-        return new Value(null);
+        int index = schema.getIndex(name);
+        if (index<0) return new Value(null);
+        return values[index];
+    }
+
+    public double getDouble(int index, double defaultValue){
+        return values[index].getDouble(defaultValue);
+    }
+
+    public long getLong(int index, long defaultValue){
+        return values[index].getLong(defaultValue);
+    }
+
+    public int getInt(int index, int defaultValue){
+        return values[index].getInt(defaultValue);
+    }
+
+    public boolean isNull(int index){
+        return values[index].isBlank();
     }
 
 
     protected void add(Geometry geom){
-        Field[] arr = new Field[fields.length+1];
-        for (int i=0; i<fields.length; i++){
-            arr[i] = fields[i];
+        String[] names = new String[values.length+1];
+        byte[] types = new byte[values.length+1];
+        Value[] arr = new Value[values.length+1];
+        for (int i=0; i<values.length; i++){
+            names[i] = schema.getName(i);
+            types[i] = schema.getType(i);
+            arr[i] = values[i];
         }
-        arr[fields.length] = new Field("geom", new Value(geom));
-        fields = arr;
+        names[values.length] = "geom";
+        arr[values.length] = new Value(geom);
+        schema = new Schema(names, types);
+        values = arr;
     }
-}
\ No newline at end of file
+}
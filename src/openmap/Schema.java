@@ -0,0 +1,125 @@
+package openmap;
+import java.util.*;
+
+//******************************************************************************
+//**  Schema
+//******************************************************************************
+/**
+ *   Immutable list of field names and types shared by all the records
+ *   returned from a shapefile. Field names are resolved to column indexes
+ *   with a precomputed, case-insensitive lookup table so records don't need
+ *   to scan their fields or carry their own copy of the names.
+ *
+ ******************************************************************************/
+
+public class Schema {
+
+    private final String[] names;
+    private final byte[] types;
+    private final HashMap<String, Integer> exact;
+    private final HashMap<String, Integer> index;
+
+
+  //**************************************************************************
+  //** Constructor
+  //**************************************************************************
+  /** @param names Field names. Names may be null.
+   *  @param types DBF field types (e.g. 'C', 'N', 'L', 'D') or null if the
+   *  types are unknown. Use 0 for fields that are not in the dbf file (e.g.
+   *  the "id*" and "geom*" fields).
+   */
+    public Schema(String[] names, byte[] types){
+        this.names = new String[names.length];
+        this.types = new byte[names.length];
+        if (types!=null) System.arraycopy(types, 0, this.types, 0, names.length);
+
+        exact = new HashMap<>(names.length*2);
+        index = new HashMap<>(names.length*2);
+        for (int i=0; i<names.length; i++){
+            String name = names[i];
+            if (name==null) continue;
+            name = name.intern();
+            this.names[i] = name;
+            put(name, i);
+        }
+
+
+      //Add aliases for names that end with a "*" (e.g. "geom*" -> "geom").
+      //Real field names take precedence over the aliases so an alias is
+      //skipped if any field matches it, ignoring case (e.g. "ID").
+        for (int i=0; i<names.length; i++){
+            String name = this.names[i];
+            if (name==null || !name.endsWith("*")) continue;
+            String alias = name.substring(0, name.length()-1);
+            if (index.containsKey(alias.toLowerCase(Locale.ROOT))) continue;
+            put(alias, i);
+        }
+    }
+
+
+  //**************************************************************************
+  //** put
+  //**************************************************************************
+    private void put(String name, int i){
+        if (!exact.containsKey(name)) exact.put(name, i);
+        String key = name.toLowerCase(Locale.ROOT);
+        if (!index.containsKey(key)) index.put(key, i);
+    }
+
+
+  //**************************************************************************
+  //** getIndex
+  //**************************************************************************
+  /** Returns the index of the field with the given name or -1 if the field
+   *  is not found. The lookup is case-insensitive. Names that end with a "*"
+   *  (e.g. "id*") can be referenced with or without the "*" suffix, unless
+   *  another field has the same name without the suffix (e.g. "ID").
+   */
+    public int getIndex(String name){
+        if (name==null) return -1;
+        Integer i = exact.get(name);
+        if (i==null) i = index.get(name.toLowerCase(Locale.ROOT));
+        return i==null ? -1 : i;
+    }
+
+
+  //**************************************************************************
+  //** getName
+  //**************************************************************************
+  /** Returns the name of the field at the given index.
+   */
+    public String getName(int index){
+        return names[index];
+    }
+
+
+  //**************************************************************************
+  //** getType
+  //**************************************************************************
+  /** Returns the DBF type of the field at the given index (e.g. 'C', 'N',
+   *  'L', 'D') or 0 if the type is unknown.
+   */
+    public byte getType(int index){
+        return types[index];
+    }
+
+
+  //**************************************************************************
+  //** getNames
+  //**************************************************************************
+  /** Returns a copy of the field names.
+   */
+    public String[] getNames(){
+        return names.clone();
+    }
+
+
+  //**************************************************************************
+  //** size
+  //**************************************************************************
+  /** Returns the number of fields in the schema.
+   */
+    public int size(){
+        return names.length;
+    }
+}
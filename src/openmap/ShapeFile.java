@@ -1,12 +1,19 @@
 package openmap;
 import static com.bbn.openmap.dataAccess.shape.ShapeConstants.*;
+import com.bbn.openmap.dataAccess.shape.DbfTableModel;
 import com.bbn.openmap.dataAccess.shape.input.*;
 import com.bbn.openmap.dataAccess.shape.output.*;
 
 import org.locationtech.jts.geom.*;
+import org.locationtech.jts.algorithm.Orientation;
+import org.locationtech.jts.index.strtree.STRtree;
 
 import java.io.*;
+import java.lang.ref.SoftReference;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.util.*;
+import java.util.concurrent.*;
 
 //******************************************************************************
 //**  ShapeFile
@@ -17,18 +24,34 @@ import java.util.*;
  *
  ******************************************************************************/
 
-public class ShapeFile {
+public class ShapeFile implements Closeable {
 
     private java.io.File shp;
     private java.io.File dbf;
     private java.io.File shx;
     private java.io.File prj;
-    private String[] columns;
+    private Schema schema;
     private int numShapes;
 
     //private Iterator<ArrayList<Object>> attributes;
     //private Iterator<Geometry> geometries;
     private ArrayList<Record> records;
+    private int numWriters;
+    private boolean compacting;
+    private volatile int modCount; //Incremented when compact() replaces the files
+    private Index index;
+    private ZipArchive zip;
+    private ByteSource shpSource;
+    private ByteSource shxSource;
+    private ByteSource dbfSource;
+    private ByteSource rtxSource;
+    private boolean readOnly;
+
+    private boolean cacheGeometries = false;
+    private boolean xyOnly = false;
+    private int numThreads = 0;
+    private int queueDepth = 4;
+    private final HashMap<Double, SoftReference<Geometry[]>> cache = new HashMap<>();
 
 
     private static PrecisionModel precisionModel = new PrecisionModel();
@@ -48,13 +71,42 @@ public class ShapeFile {
   //**************************************************************************
   //** Constructor
   //**************************************************************************
-  /** Used to open an existing shapefile
+  /** Used to open an existing shapefile. If the shx file is missing or its
+   *  header doesn't match the size of the file, an index is created in
+   *  memory by walking the record headers in the shp file. The index is
+   *  written to disk before the shapefile is modified with append() or
+   *  edit(). Use createIndex() to write a new shx file.
    */
     public ShapeFile(java.io.File file) throws Exception {
+        this(file, null);
+    }
+
+
+  //**************************************************************************
+  //** Constructor
+  //**************************************************************************
+  /** Used to open a shapefile in a zip file. The shp, shx and dbf entries
+   *  are read directly from the zip file, without extracting them. Stored
+   *  (uncompressed) entries are memory-mapped and deflated entries are
+   *  inflated as they are read. Shapefiles in zip files are read-only.
+   *  @param file Zip file or, if the name is null, any one of the shapefile
+   *  files (shp, shx, dbf)
+   *  @param name Path of the shapefile in the zip file, with or without the
+   *  extension (e.g. "data/counties.shp"). If null, the first shp file in
+   *  the zip file is used.
+   */
+    public ShapeFile(java.io.File file, String name) throws Exception {
         if (!file.exists() || !file.isFile()) throw new IllegalArgumentException("Invalid file");
+        Object event = Events.beginFileOpen();
 
         String ext = getExtension(file).toLowerCase();
-        if (ext.equals("dbf")){
+        if (ext.equals("zip")){
+            openZip(file, name);
+        }
+        else if (name!=null){
+            throw new IllegalArgumentException("Name is only supported for zip files");
+        }
+        else if (ext.equals("dbf")){
             dbf = file;
             shp = getFile(file, "shp");
             shx = getFile(file, "shx");
@@ -69,19 +121,76 @@ public class ShapeFile {
             shp = getFile(file, "shp");
             dbf = getFile(file, "dbf");
         }
+        if (zip==null){
+            shpSource = ByteSource.of(shp);
+            dbfSource = ByteSource.of(dbf);
+            if (shx!=null && shx.isFile()) shxSource = ByteSource.of(shx);
+        }
+
+        open();
+        Events.endFileOpen(event, file, numShapes);
+    }
+
+
+  //**************************************************************************
+  //** Constructor
+  //**************************************************************************
+  /** Used to open a shapefile from memory or custom storage. Sources backed
+   *  by memory (see ByteSource.getBuffer()) are decoded in place, without
+   *  copying the records. Shapefiles opened this way are read-only. The
+   *  sources are closed when the shapefile is closed. Example:
+   <pre>
+    ShapeFile shp = new ShapeFile(
+        ByteSource.of(shpBytes), ByteSource.of(shxBytes), ByteSource.of(dbfBytes)
+    );
+   </pre>
+   *  @param shp Source for the shp file
+   *  @param shx Source for the shx file. If null, an index is created in
+   *  memory from the shp file.
+   *  @param dbf Source for the dbf file
+   */
+    public ShapeFile(ByteSource shp, ByteSource shx, ByteSource dbf) throws Exception {
+        if (shp==null || dbf==null) throw new IllegalArgumentException("Shp and dbf sources are required");
+        Object event = Events.beginFileOpen();
+        shpSource = shp;
+        shxSource = shx;
+        dbfSource = dbf;
+        readOnly = true;
+        open();
+        Events.endFileOpen(event, null, numShapes);
+    }
+
 
-      //Parse index
-        ShxInputStream shxInputStream = new ShxInputStream(new FileInputStream(shx));
-        int[][] index = shxInputStream.getIndex();
-        numShapes = index[1].length;
-        shxInputStream.close();
+  //**************************************************************************
+  //** open
+  //**************************************************************************
+  /** Used to get the record count from the index header. If the index is
+   *  missing or the header is invalid, an index is created in memory from
+   *  the shp file.
+   */
+    private void open() throws Exception {
+        Metrics.Listener listener = Metrics.getListener();
+        long startTime = listener==Metrics.NONE ? 0 : System.nanoTime();
+        Object shxEvent = Events.beginShxLoad();
+        long bytesRead = SHAPE_FILE_HEADER_LENGTH;
+        numShapes = getIndexCount();
+        if (numShapes<0){
+            index = new Index(shpSource.getInputStream(), shpSource.size());
+            numShapes = index.numRecords;
+            bytesRead += numShapes*8L;
+        }
+        Events.endShxLoad(shxEvent, index==null ? shx : shp, numShapes, bytesRead);
+        if (listener!=Metrics.NONE) listener.shxParsed(bytesRead, System.nanoTime()-startTime);
     }
 
 
   //**************************************************************************
   //** addRecord
   //**************************************************************************
-  /** Used to add a record to the shapefile
+  /** Used to add a record to the shapefile. If the shapefile was opened
+   *  from disk, all the existing records are loaded into memory and the
+   *  records are written to a new shapefile by saveAs(). Use append() to
+   *  add records to an existing shapefile without rewriting it.
    */
     public void addRecord(Object... args) throws Exception {
 
@@ -111,10 +220,372 @@ public class ShapeFile {
     }
 
 
+  //**************************************************************************
+  //** append
+  //**************************************************************************
+  /** Returns an appender used to add records to the end of the shapefile.
+   *  New records are written directly to the shp, shx and dbf files and the
+   *  file headers (file length, extent and record count) are updated in
+   *  place when the appender is closed. Existing records are not read or
+   *  rewritten so the cost is proportional to the number of new records.
+   *  Example:
+   <pre>
+    ShapeFile.Appender appender = shp.append();
+    try{
+        appender.addRecord("Fairfax", 1150309, point);
+    }
+    finally{
+        appender.close();
+    }
+   </pre>
+   */
+    public Appender append() throws Exception {
+        if (shpSource==null) throw new IllegalStateException("Shapefile has not been saved");
+        if (records!=null) throw new IllegalStateException("Shapefile has unsaved records");
+        if (readOnly) throw new IllegalStateException("Shapefile is read-only");
+        openWriter();
+        try{
+            saveIndex();
+            return new Appender();
+        }
+        catch(Exception e){
+            closeWriter();
+            throw e;
+        }
+    }
+
+
+  //**************************************************************************
+  //** edit
+  //**************************************************************************
+  /** Returns an editor used to update and delete records in place. Updated
+   *  values are written directly to the dbf file at the offset of the cell
+   *  and deleted records are flagged in the dbf file and replaced with null
+   *  shapes in the shp file. The rest of the files are not rewritten so
+   *  small edits to large shapefiles are cheap. Use compact() to remove
+   *  the deleted records from the files. Example:
+   <pre>
+    ShapeFile.Editor editor = shp.edit();
+    try{
+        editor.setValue(12, "POP", 1150309);
+        editor.delete(13);
+    }
+    finally{
+        editor.close();
+    }
+   </pre>
+   */
+    public Editor edit() throws Exception {
+        if (shpSource==null) throw new IllegalStateException("Shapefile has not been saved");
+        if (records!=null) throw new IllegalStateException("Shapefile has unsaved records");
+        if (readOnly) throw new IllegalStateException("Shapefile is read-only");
+        openWriter();
+        try{
+            saveIndex();
+            return new Editor();
+        }
+        catch(Exception e){
+            closeWriter();
+            throw e;
+        }
+    }
+
+
+  //**************************************************************************
+  //** compact
+  //**************************************************************************
+  /** Used to remove deleted records from the shapefile. The shp, shx and
+   *  dbf files are rewritten to temporary files, without the deleted
+   *  records, and then moved over the original files. Records are copied
+   *  as is, without decoding the shapes, and renumbered. The extent in the
+   *  file headers is recomputed from the remaining records. Throws an
+   *  IllegalStateException if an editor or appender is open.
+   *  <p>
+   *  Iterators and cursors created before the files are replaced keep
+   *  reading the original files through their open streams. This requires
+   *  a file system that allows open files to be replaced, otherwise
+   *  compact() fails. The exception is bbox queries that use a spatial
+   *  index (see setSpatialIndex). They read the files by position, so they
+   *  throw a ConcurrentModificationException once the files have been
+   *  replaced.
+   *  </p>
+   *  @return Number of records removed
+   */
+    public int compact() throws Exception {
+        if (shpSource==null) throw new IllegalStateException("Shapefile has not been saved");
+        if (records!=null) throw new IllegalStateException("Shapefile has unsaved records");
+        if (readOnly) throw new IllegalStateException("Shapefile is read-only");
+        synchronized(this){
+            if (numWriters>0) throw new IllegalStateException("Shapefile is open for writing");
+            compacting = true;
+        }
+        try{
+            return rewrite();
+        }
+        finally{
+            synchronized(this){
+                compacting = false;
+            }
+        }
+    }
+
+
+  //**************************************************************************
+  //** compactInBackground
+  //**************************************************************************
+  /** Used to call compact() in a background thread. Returns a future with
+   *  the number of records removed.
+   */
+    public Future<Integer> compactInBackground(){
+        ExecutorService executor = ThreadPool.newExecutor("ShapeFile-compact", 1);
+        try{
+            return executor.submit(new Callable<Integer>(){
+                public Integer call() throws Exception {
+                    return compact();
+                }
+            });
+        }
+        finally{
+            executor.shutdown();
+        }
+    }
+
+
+  //**************************************************************************
+  //** rewrite
+  //**************************************************************************
+  /** Copies the records that are not deleted to temporary files and moves
+   *  the temporary files over the original files. Called by compact().
+   */
+    private int rewrite() throws Exception {
+        Metrics.Listener listener = Metrics.getListener();
+        long startTime = listener==Metrics.NONE ? 0 : System.nanoTime();
+
+        java.io.File[] tmp = new java.io.File[]{
+            new java.io.File(shp.getPath() + ".tmp"),
+            new java.io.File(shx.getPath() + ".tmp"),
+            new java.io.File(dbf.getPath() + ".tmp")
+        };
+        int numRecords = 0;
+        long shpLength = SHAPE_FILE_HEADER_LENGTH;
+        DataInputStream shpIn = null, dbfIn = null;
+        DataOutputStream shpOut = null, shxOut = null, dbfOut = null;
+        try{
+            shpIn = new DataInputStream(new BufferedInputStream(shpSource.getInputStream(), 64*1024));
+            dbfIn = new DataInputStream(new BufferedInputStream(dbfSource.getInputStream(), 64*1024));
+            shpOut = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp[0]), 64*1024));
+            shxOut = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp[1]), 64*1024));
+            dbfOut = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp[2]), 64*1024));
+
+
+          //Read headers. The headers are written again once the records
+          //have been copied.
+            byte[] header = new byte[SHAPE_FILE_HEADER_LENGTH];
+            shpIn.readFully(header);
+            byte[] dbfHeader = new byte[32];
+            dbfIn.readFully(dbfHeader);
+            ByteBuffer dbb = ByteBuffer.wrap(dbfHeader).order(ByteOrder.LITTLE_ENDIAN);
+            int numRows = dbb.getInt(4);
+            int dbfHeaderLength = dbb.getShort(8) & 0xffff;
+            int dbfRecordLength = dbb.getShort(10) & 0xffff;
+            if (numRows!=numShapes) throw new IOException("Shp/Dbf Record Mismatch");
+            dbfHeader = Arrays.copyOf(dbfHeader, dbfHeaderLength);
+            dbfIn.readFully(dbfHeader, 32, dbfHeaderLength-32);
+            shpOut.write(header);
+            shxOut.write(header);
+            dbfOut.write(dbfHeader);
+
+
+          //Copy records
+            Envelope extent = new Envelope();
+            byte[] row = new byte[dbfRecordLength];
+            byte[] buf = new byte[64*1024];
+            ByteBuffer bb = ByteBuffer.wrap(buf).order(ByteOrder.LITTLE_ENDIAN);
+            for (int i=0; i<numShapes; i++){
+                dbfIn.readFully(row);
+                shpIn.readInt(); //record number
+                int contentLength = shpIn.readInt()*2;
+                if (contentLength<0) throw new IOException("Invalid content length for record " + (i+1));
+                if (buf.length<contentLength){
+                    buf = new byte[Math.max(contentLength, buf.length*2)];
+                    bb = ByteBuffer.wrap(buf).order(ByteOrder.LITTLE_ENDIAN);
+                }
+                shpIn.readFully(buf, 0, contentLength);
+                if (row[0]=='*') continue;
+
+                numRecords++;
+                shpOut.writeInt(numRecords);
+                shpOut.writeInt(contentLength/2);
+                shpOut.write(buf, 0, contentLength);
+                shxOut.writeInt((int) (shpLength/2));
+                shxOut.writeInt(contentLength/2);
+                dbfOut.write(row);
+                shpLength += 8 + contentLength;
+                if (shpLength/2>Integer.MAX_VALUE) throw new IOException("Shp file is too large");
+
+
+              //Update extent using the bounding box in the record
+                int baseType = contentLength<4 ? SHAPE_TYPE_NULL : getBaseType(bb.getInt(0));
+                if (baseType==SHAPE_TYPE_POINT && contentLength>=20){
+                    extent.expandToInclude(bb.getDouble(4), bb.getDouble(12));
+                }
+                else if (baseType!=SHAPE_TYPE_NULL && contentLength>=36){
+                    extent.expandToInclude(bb.getDouble(4), bb.getDouble(12));
+                    extent.expandToInclude(bb.getDouble(20), bb.getDouble(28));
+                }
+            }
+            dbfOut.write(26);
+            shpIn.close();
+            dbfIn.close();
+            shpOut.close();
+            shxOut.close();
+            dbfOut.close();
+
+            int numRemoved = numShapes-numRecords;
+            if (numRemoved==0){
+                for (java.io.File file : tmp) file.delete();
+                return 0;
+            }
+
+
+          //Update headers
+            ByteBuffer hb = ByteBuffer.wrap(header);
+            hb.putInt(24, (int) (shpLength/2));
+            hb.order(ByteOrder.LITTLE_ENDIAN);
+            if (extent.isNull()) extent.init(0, 0, 0, 0);
+            hb.putDouble(36, extent.getMinX());
+            hb.putDouble(44, extent.getMinY());
+            hb.putDouble(52, extent.getMaxX());
+            hb.putDouble(60, extent.getMaxY());
+            writeHeader(tmp[0], header);
+            hb.order(ByteOrder.BIG_ENDIAN).putInt(24, (SHAPE_FILE_HEADER_LENGTH + numRecords*8)/2);
+            writeHeader(tmp[1], header);
+
+            Calendar cal = Calendar.getInstance();
+            dbb = ByteBuffer.wrap(dbfHeader).order(ByteOrder.LITTLE_ENDIAN);
+            dbb.put(1, (byte) (cal.get(Calendar.YEAR)-1900));
+            dbb.put(2, (byte) (cal.get(Calendar.MONTH)+1));
+            dbb.put(3, (byte) cal.get(Calendar.DAY_OF_MONTH));
+            dbb.putInt(4, numRecords);
+            writeHeader(tmp[2], Arrays.copyOf(dbfHeader, 8));
+
+
+          //Replace files. The sources are closed first so they don't keep
+          //file handles to the old files, and are reopened on the new ones.
+            closeSources();
+            move(tmp[2], dbf);
+            move(tmp[1], shx);
+            move(tmp[0], shp);
+            numShapes = numRecords;
+            index = null;
+            modCount++;
+            shpSource = ByteSource.of(shp);
+            shxSource = ByteSource.of(shx);
+            dbfSource = ByteSource.of(dbf);
+            synchronized(cache){
+                cache.clear();
+            }
+            if (listener!=Metrics.NONE) listener.recordsWritten(numRecords, shpLength+dbf.length()+shx.length(), System.nanoTime()-startTime);
+            return numRemoved;
+        }
+        catch(Exception e){
+            for (Closeable c : new Closeable[]{shpIn, dbfIn, shpOut, shxOut, dbfOut}){
+                try{ if (c!=null) c.close(); }catch(Exception ex){}
+            }
+            for (java.io.File file : tmp) file.delete();
+            throw e;
+        }
+    }
+
+
+  //**************************************************************************
+  //** closeSources
+  //**************************************************************************
+  /** Used to close the shp, shx, dbf and spatial index sources. Errors are
+   *  ignored.
+   */
+    private void closeSources(){
+        for (ByteSource source : new ByteSource[]{shpSource, shxSource, dbfSource, rtxSource}){
+            try{ if (source!=null) source.close(); }catch(Exception e){}
+        }
+    }
+
+
+  //**************************************************************************
+  //** writeHeader
+  //**************************************************************************
+  /** Overwrites the first bytes in a file.
+   */
+    private static void writeHeader(java.io.File file, byte[] header) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try{
+            raf.write(header);
+        }
+        finally{
+            raf.close();
+        }
+    }
+
+
+  //**************************************************************************
+  //** move
+  //**************************************************************************
+  /** Used to replace a file. Uses an atomic move if the file system
+   *  supports it.
+   */
+    private static void move(java.io.File src, java.io.File dst) throws IOException {
+        try{
+            java.nio.file.Files.move(src.toPath(), dst.toPath(),
+                java.nio.file.StandardCopyOption.REPLACE_EXISTING,
+                java.nio.file.StandardCopyOption.ATOMIC_MOVE);
+        }
+        catch(java.nio.file.AtomicMoveNotSupportedException e){
+            java.nio.file.Files.move(src.toPath(), dst.toPath(),
+                java.nio.file.StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+
+  //**************************************************************************
+  //** openWriter
+  //**************************************************************************
+  /** Called when an appender or editor is created. Throws an exception if
+   *  the shapefile is being compacted.
+   */
+    private synchronized void openWriter(){
+        if (compacting) throw new IllegalStateException("Shapefile is being compacted");
+        numWriters++;
+    }
+
+
+  //**************************************************************************
+  //** closeWriter
+  //**************************************************************************
+    private synchronized void closeWriter(){
+        numWriters--;
+    }
+
+
+
+  //**************************************************************************
+  //** getName
+  //**************************************************************************
+  /** Returns the name of the shapefile, without the file extension. Returns
+   *  null if the shapefile has not been saved to disk.
+   */
+    public String getName(){
+        if (shp==null) return null;
+        String name = shp.getName();
+        int idx = name.lastIndexOf(".");
+        return idx>0 ? name.substring(0, idx) : name;
+    }
+
+
   //**************************************************************************
   //** getRecordCount
   //**************************************************************************
-  /** Returns the total number of records in the shapefile.
+  /** Returns the total number of records in the shapefile. Includes records
+   *  that have been deleted with an Editor until the shapefile is compacted.
    */
     public int getRecordCount(){
         return numShapes;
@@ -126,56 +597,330 @@ public class ShapeFile {
   //**************************************************************************
   /** Used to iterate through the records in the shapefile. Records are parsed
    *  on demand. Nothing is stored in memory. Be sure to iterate through all
-   *  the records so that the input streams close correctly.
+   *  the records so that the input streams close correctly. Records that
+   *  are marked as deleted in the dbf file are skipped.
    */
     public Iterator<Record> getRecords() throws Exception {
+        return getRecords(null);
+    }
+
+
+  //**************************************************************************
+  //** getRecords
+  //**************************************************************************
+  /** Used to iterate through records that intersect a given extent. The
+   *  bounding box of each shape is read from the record header and records
+   *  outside the extent are skipped without decoding the geometry or the
+   *  attributes. Null shapes are skipped as well.
+   *  @param extent Bounding box in the coordinate system of the shapefile.
+   *  If null, all the records are returned.
+   */
+    public Iterator<Record> getRecords(Envelope extent) throws Exception {
+        return getRecords(extent, 0);
+    }
+
+
+  //**************************************************************************
+  //** getRecords
+  //**************************************************************************
+  /** Used to iterate through records that intersect a given extent, with
+   *  geometries simplified as they are read from the shp file. Vertices
+   *  within the tolerance are dropped before any JTS objects are created,
+   *  which makes low resolution reads much cheaper than simplifying the
+   *  geometries afterwards. See getTolerance() to find a tolerance for a
+   *  given zoom level.
+   *  @param extent Bounding box in the coordinate system of the shapefile.
+   *  If null, all the records are returned.
+   *  @param tolerance Distance tolerance, in the units of the shapefile. Use
+   *  zero to read geometries at full resolution.
+   *  @return Record iterator. With a pipeline (see setPipeline) the iterator
+   *  implements Closeable. Close it if you stop before the last record.
+   */
+    public Iterator<Record> getRecords(Envelope extent, double tolerance) throws Exception {
+
+      //Only read the records that are needed from remote sources or with
+      //the spatial index
+        if (extent!=null && (shpSource.isRemote() || rtxSource!=null)){
+            return new RangeIterator(extent, tolerance);
+        }
+
+
+      //Use a pipeline if needed. Cached geometries don't need decoding.
+        if (numThreads>0 && getCache(tolerance)==null){
+            return new PipelinedIterator(extent, tolerance);
+        }
 
 
       //Parse dbf
-        DbfInputStream dbfInputStream = new DbfInputStream(new FileInputStream(dbf));
-        columns = dbfInputStream.getColumnNames();
-        Iterator<ArrayList<Object>> attributes = dbfInputStream.getRecords();
+        DbfInputStream dbfInputStream = new DbfInputStream(dbfSource.getInputStream());
+        final Schema schema = getSchema(dbfInputStream);
+        DbfInputStream.CustomIterator attributes = dbfInputStream.getRecords();
 
 
       //Parse shp
-        Iterator<Geometry> geometries = new ShapeIterator(new FileInputStream(shp));
+        Iterator<Geometry> geometries = getGeometryIterator(extent, tolerance);
 
 
       //Return iterator
+        final Metrics.Listener listener = Metrics.getListener();
+        final int rowLength = dbfInputStream.getRecordLength();
+        final byte[] row = new byte[Math.max(rowLength, 1)];
+        final java.text.DecimalFormat df = DbfInputStream.createDecimalFormat();
         return new Iterator<Record>(){
             private int id = 1;
+            private Record next;
             public Record next(){
                 if (!hasNext()) throw new NoSuchElementException();
+                Record record = next;
+                next = null;
+                return record;
+            }
+            public boolean hasNext(){
+                if (next==null) next = fetch();
+                return next!=null;
+            }
 
-                Geometry geom = geometries.next();
-                ArrayList<Object> attr = attributes.next();
-                Field[] fields = new Field[attr.size()+2];
-                for (int i=0; i<attr.size(); i++){
-                    Value value = new Value(attr.get(i));
-                    String name = columns[i];
-                    Field field = new Field(name, value);
-                    fields[i+1] = field;
-                }
-                fields[0] = new Field("id*", id);
-                fields[fields.length-1] = new Field("geom*", geom);
+          /** Returns the next record that is not deleted or null if there
+           *  are no more records. */
+            private Record fetch(){
+                while (geometries.hasNext()){
+                    Geometry geom = geometries.next();
+                    try{
+                        if (extent!=null){
+                            int idx = (Integer) geom.getUserData();
+                            attributes.skip(idx-(id-1));
+                            id = idx+1;
+                        }
+                        attributes.readRow(row);
+                    }
+                    catch(IOException e){
+                        throw new RuntimeException(e);
+                    }
+                    if (attributes.isDeleted()){
+                        id++;
+                        continue;
+                    }
+                    long startTime = listener==Metrics.NONE ? 0 : System.nanoTime();
+                    ArrayList<Object> attr = dbfInputStream.parseRow(row, 0, df);
+                    if (listener!=Metrics.NONE){
+                        long t = System.nanoTime();
+                        listener.rowDecoded(rowLength, t-startTime);
+                        startTime = t;
+                    }
+                    Value[] values = new Value[attr.size()+2];
+                    for (int i=0; i<attr.size(); i++){
+                        values[i+1] = new Value(attr.get(i));
+                    }
+                    values[0] = new Value(id);
+                    values[values.length-1] = new Value(geom);
 
 
-                if (geom!=null){
-                    if (id-1!=(Integer) geom.getUserData()){
-                        //Reparse dbf?
-                        throw new RuntimeException("Shp/Dbf Record Mismatch");
+                    if (geom!=null){
+                        if (id-1!=(Integer) geom.getUserData()){
+                            //Reparse dbf?
+                            throw new RuntimeException("Shp/Dbf Record Mismatch");
+                        }
                     }
+                    id++;
+                    Record record = new Record(schema, values);
+                    if (listener!=Metrics.NONE) listener.recordAssembled(System.nanoTime()-startTime);
+                    return record;
                 }
-                id++;
-                return new Record(fields);
-            }
-            public boolean hasNext(){
-                return geometries.hasNext();
+                if (attributes.hasNext()){
+                    try{ dbfInputStream.close(); }catch(Exception e){}
+                }
+                return null;
             }
         };
     }
 
 
+  //**************************************************************************
+  //** getCursor
+  //**************************************************************************
+  /** Returns a cursor used to scan all the records in the shapefile without
+   *  creating Record objects. Unlike getRecords(), the cursor reuses the same
+   *  buffers for every row. Attributes are parsed only when they are
+   *  requested and geometries are decoded only when getGeometry() is
+   *  called. Example:
+   <pre>
+    ShapeFile.Cursor cursor = shp.getCursor();
+    int col = shp.getSchema().getIndex("POP");
+    double total = 0;
+    while (cursor.advance()){
+        double pop = cursor.getDouble(col);
+        if (!Double.isNaN(pop)) total += pop;
+    }
+   </pre>
+   */
+    public Cursor getCursor() throws Exception {
+        return new Cursor();
+    }
+
+
+  //**************************************************************************
+  //** getSchema
+  //**************************************************************************
+  /** Returns the schema shared by all the records returned by getRecords().
+   *  The first field is the record id ("id*"), followed by the dbf columns
+   *  and the geometry ("geom*"). Use Schema.getIndex() to resolve a field
+   *  name once and then call Record.getValue(int) in tight loops. Returns
+   *  null if the shapefile has not been saved to disk.
+   */
+    public Schema getSchema() throws Exception {
+        if (schema==null && dbf!=null){
+            DbfInputStream dbfInputStream = new DbfInputStream(dbfSource.getInputStream());
+            try{
+                getSchema(dbfInputStream);
+            }
+            finally{
+                dbfInputStream.close();
+            }
+        }
+        return schema;
+    }
+
+
+  //**************************************************************************
+  //** getSchema
+  //**************************************************************************
+  /** Returns the schema for the given dbf file. The schema is created once
+   *  and cached.
+   */
+    private Schema getSchema(DbfInputStream dbfInputStream){
+        if (schema==null){
+            String[] columns = dbfInputStream.getColumnNames();
+            byte[] columnTypes = dbfInputStream.getTypes();
+            String[] names = new String[columns.length+2];
+            byte[] types = new byte[columns.length+2];
+            for (int i=0; i<columns.length; i++){
+                names[i+1] = columns[i];
+                types[i+1] = columnTypes[i];
+            }
+            names[0] = "id*";
+            names[names.length-1] = "geom*";
+            schema = new Schema(names, types);
+        }
+        return schema;
+    }
+
+
+  //**************************************************************************
+  //** getDbfInputStream
+  //**************************************************************************
+  /** Returns a new stream for the dbf file, positioned after the header.
+   *  Used by classes in this package that need the column lengths and
+   *  decimal counts. The caller is responsible for closing the stream.
+   */
+    DbfInputStream getDbfInputStream() throws Exception {
+        if (dbfSource==null) throw new IllegalStateException("Shapefile has not been saved");
+        return new DbfInputStream(dbfSource.getInputStream());
+    }
+
+
+  //**************************************************************************
+  //** getHeader
+  //**************************************************************************
+  /** Returns the first 100 bytes of the shp file (file code, file length,
+   *  shape type, extent and Z/M ranges). Used by classes in this package
+   *  that write new shapefiles from raw records.
+   */
+    byte[] getHeader() throws IOException {
+        if (shpSource==null) throw new IllegalStateException("Shapefile has not been saved");
+        byte[] header = new byte[SHAPE_FILE_HEADER_LENGTH];
+        shpSource.readFully(0, header, 0, header.length);
+        return header;
+    }
+
+
+  //**************************************************************************
+  //** decode
+  //**************************************************************************
+  /** Used to decode shp records that were copied with Cursor.copyRecord().
+   *  Safe to call from multiple threads at once. Returns one geometry per
+   *  record, or null for null shapes.
+   *  @param records Records, including their headers, stored back to back
+   *  @param shapeType Shape type in the shp file header
+   */
+    Geometry[] decode(byte[] records, int numRecords, int shapeType) throws Exception {
+        ShapeIterator it = new ShapeIterator(records, numRecords, shapeType, null, 0);
+        Geometry[] geoms = new Geometry[numRecords];
+        for (int i=0; i<numRecords; i++){
+            geoms[i] = it.readNext();
+        }
+        return geoms;
+    }
+
+
+  //**************************************************************************
+  //** getShapeType
+  //**************************************************************************
+  /** Returns the shape type found in the shp file header (e.g. 5 for
+   *  polygons). See ShapeConstants for a list of shape types. Returns -1 if
+   *  the shapefile has not been saved to disk.
+   */
+    public int getShapeType() throws Exception {
+        if (shpSource==null) return -1;
+        LittleEndianInputStream leis = new LittleEndianInputStream(
+            new BufferedInputStream(shpSource.getInputStream(), SHAPE_FILE_HEADER_LENGTH));
+        try{
+            leis.skipBytes(32);
+            return leis.readLEInt();
+        }
+        finally{
+            leis.close();
+        }
+    }
+
+
+  //**************************************************************************
+  //** getFiles
+  //**************************************************************************
+  /** Returns the files that make up the shapefile (shp, shx, dbf and prj).
+   *  Files that don't exist are excluded. Returns the zip file for
+   *  shapefiles in zip files. Returns an empty array if the shapefile has
+   *  not been saved to disk.
+   */
+    public java.io.File[] getFiles(){
+        ArrayList<java.io.File> files = new ArrayList<>();
+        if (zip!=null){
+            files.add(zip.getFile());
+        }
+        else if (shp!=null){
+            if (prj==null) prj = getFile(shp, "prj");
+            for (java.io.File file : new java.io.File[]{shp, shx, dbf, prj}){
+                if (file!=null && file.exists()) files.add(file);
+            }
+        }
+        return files.toArray(new java.io.File[files.size()]);
+    }
+
+
+  //**************************************************************************
+  //** getExtent
+  //**************************************************************************
+  /** Returns the bounding box of all the shapes in the shapefile, as found in
+   *  the shp file header. Returns null if the header has no valid extent.
+   */
+    public Envelope getExtent() throws Exception {
+        if (shpSource==null) return null;
+        LittleEndianInputStream leis = new LittleEndianInputStream(
+            new BufferedInputStream(shpSource.getInputStream(), SHAPE_FILE_HEADER_LENGTH));
+        try{
+            leis.skipBytes(36);
+            double xMin = leis.readLEDouble();
+            double yMin = leis.readLEDouble();
+            double xMax = leis.readLEDouble();
+            double yMax = leis.readLEDouble();
+            if (xMin>xMax || yMin>yMax) return null;
+            return new Envelope(xMin, xMax, yMin, yMax);
+        }
+        finally{
+            leis.close();
+        }
+    }
+
+
   //**************************************************************************
   //** updateRecords
   //**************************************************************************
@@ -187,11 +932,10 @@ public class ShapeFile {
     private void updateRecords() throws Exception {
         if (records==null){
             records = new ArrayList<>();
-            if (shp!=null){
+            if (shpSource!=null){
                 Iterator<Record> it = getRecords();
                 while (it.hasNext()){
                     records.add(it.next());
-                    numShapes++;
                 }
             }
         }
@@ -199,24 +943,39 @@ public class ShapeFile {
 
 
   //**************************************************************************
-  //** getExtents
+  //** getGeometries
   //**************************************************************************
-  /** Returns lat/lon coordinates for the lower left and upper right
+  /** Used to iterate through the geometries (aka shapes) in the shapefile. Be
+   *  sure to iterate through all the records so that the input streams close
+   *  correctly.
    */
-    private double[] getExtents(){
-        return new double[] { -90, -180, 90, 180 };
+    public Iterator<Geometry> getGeometries() throws Exception {
+        return new ShapeIterator(shpSource, null);
     }
 
 
   //**************************************************************************
   //** getGeometries
   //**************************************************************************
-  /** Used to iterate through the geometries (aka shapes) in the shapefile. Be
-   *  sure to iterate through all the records so that the input streams close
-   *  correctly.
+  /** Used to iterate through the geometries in the shapefile, simplified
+   *  using the given tolerance. See getRecords(Envelope, double) for details.
    */
-    public Iterator<Geometry> getGeometries() throws Exception {
-        return new ShapeIterator(new FileInputStream(shp));
+    public Iterator<Geometry> getGeometries(double tolerance) throws Exception {
+        return getGeometryIterator(null, tolerance);
+    }
+
+
+  //**************************************************************************
+  //** close
+  //**************************************************************************
+  /** Used to release the file handles, streams and threads held by the shp,
+   *  shx, dbf and spatial index sources, including sources passed to the
+   *  constructor.
+   *  Iterators, cursors, appenders and editors should be closed first.
+   *  File, zip and HTTP sources are reopened if the shapefile is read again.
+   */
+    public void close() throws IOException {
+        closeSources();
     }
 
 
@@ -237,7 +996,15 @@ public class ShapeFile {
   //**************************************************************************
   //** saveAs
   //**************************************************************************
+  /** Used to save the records to a new shapefile. The shape type is derived
+   *  from the geometries. If any of the coordinates have a Z value, a Z type
+   *  is written (e.g. PolylineZ). If the coordinates only have M values, an M
+   *  type is written (e.g. PolylineM). The dbf schema is derived from the
+   *  attribute values.
+   */
     public void saveAs(String name, java.io.File dir) throws Exception{
+        Metrics.Listener listener = Metrics.getListener();
+        long startTime = listener==Metrics.NONE ? 0 : System.nanoTime();
 
       //Initialize records array
         updateRecords();
@@ -247,506 +1014,3847 @@ public class ShapeFile {
 
 
       //Iterate through the records and find the first geometry field. This
-      //will be used to itentify the geometry column and type.
+      //will be used to itentify the geometry column.
         int geomIndex = -1;
-        Integer shapeType = null;
         for (Record record : records){
-            Field[] fields = record.getFields();
-            for (int j=0; j<fields.length; j++){
-                Field field = fields[j];
-                Object value = field.getValue().toObject();
-                if (value instanceof Point || value instanceof MultiPoint){
-                    shapeType = SHAPE_TYPE_POINT;
-                }
-                else if (value instanceof LineString || value instanceof MultiLineString){
-                    shapeType = SHAPE_TYPE_POLYLINE;
-                }
-                else if (value instanceof Polygon || value instanceof MultiPolygon){
-                    shapeType = SHAPE_TYPE_POLYGON;
-                }
-                if (shapeType!=null){
+            int numFields = record.getSchema().size();
+            for (int j=0; j<numFields; j++){
+                if (record.getValue(j).toObject() instanceof Geometry){
                     geomIndex = j;
                     break;
                 }
             }
+            if (geomIndex>-1) break;
+        }
+        if (geomIndex==-1) throw new Exception("Records missing geometry");
+
 
-            if (shapeType!=null) break;
+      //Get geometries, shape type and bounds
+        Geometry[] geometries = new Geometry[records.size()];
+        for (int i=0; i<geometries.length; i++){
+            geometries[i] = records.get(i).getValue(geomIndex).toGeometry();
         }
-        if (shapeType==null) throw new Exception("Records missing geometry");
+        int shapeType = getShapeType(geometries);
+        Bounds bounds = new Bounds();
+        for (Geometry geom : geometries) bounds.add(geom);
 
 
       //Create index
         int[][] index = new int[2][records.size()];
         int pos = 50;
-
-        if (shapeType==SHAPE_TYPE_POINT){
-            for (int i=0; i<records.size(); i++){
-                int contentLength = 0;
-                contentLength += 2; // Shape Type
-
-                Object geom = records.get(i).get(geomIndex);
-                if (geom instanceof MultiPoint){
-                    MultiPoint mp = (MultiPoint) geom;
-                    contentLength += (4 * 4); // bounding box, 4 doubles
-                    contentLength += 2; // number of points, 1 int
-                    contentLength += (mp.getNumGeometries() * (2 + 4)); // points, 2 doubles each
-                }
-                else{
-                    contentLength += 4; // X
-                    contentLength += 4; // Y
-                }
-                index[1][i] = contentLength;
-                index[0][i] = pos;
-                pos += contentLength + 4;
-            }
+        for (int i=0; i<geometries.length; i++){
+            int contentLength = ShpOutputStream.getContentLength(shapeType, geometries[i]);
+            index[1][i] = contentLength;
+            index[0][i] = pos;
+            pos += contentLength + ShpOutputStream.ESRI_RECORD_HEADER_LENGTH;
         }
-        else if (shapeType == SHAPE_TYPE_POLYLINE || shapeType == SHAPE_TYPE_POLYGON) {
-            for (int i=0; i<records.size(); i++){
-                int contentLength = 0;
-                contentLength += 2; // Shape Type
-                contentLength += 16; // Box
-                contentLength += 2; // NumParts
-                contentLength += 2; // NumPoints
 
 
-                int numShapes;
-                int numCoordinates = 0;
-                Object geom = records.get(i).get(geomIndex);
-                if (geom instanceof MultiLineString || geom instanceof MultiPolygon){
+        if (!dir.exists()) dir.mkdirs();
 
-                    if (geom instanceof MultiPolygon){
-                        MultiPolygon mp = (MultiPolygon) geom;
-                        numShapes = mp.getNumGeometries();
-                        for (int j=0; j<numShapes; j++){
-                            numCoordinates += mp.getGeometryN(j).getCoordinates().length;
+
+      //Save index (shx file)
+        shx = new java.io.File(dir, name + ".shx");
+        ShxOutputStream shxOutputStream = new ShxOutputStream(new FileOutputStream(shx));
+        if (!shxOutputStream.writeIndex(index, shapeType, bounds.getExtents())){
+            throw new IOException("Failed to write " + shx);
+        }
+        this.index = null;
+
+
+      //Save geometries (shp)
+        shp = new java.io.File(dir, name + ".shp");
+        ShpOutputStream shpOutputStream = new ShpOutputStream(new FileOutputStream(shp), shapeType);
+        try{
+            shpOutputStream.writeHeader(pos, bounds);
+            for (int i=0; i<geometries.length; i++){
+                shpOutputStream.writeRecord(i+1, geometries[i]);
+            }
+        }
+        finally{
+            shpOutputStream.close();
+        }
+
+
+      //Save attributes
+        dbf = new java.io.File(dir, name + ".dbf");
+        DbfOutputStream dbfOutputStream = new DbfOutputStream(new FileOutputStream(dbf));
+        dbfOutputStream.writeModel(getTableModel(geomIndex));
+
+
+      //Read from the new files
+        closeSources();
+        shpSource = ByteSource.of(shp);
+        shxSource = ByteSource.of(shx);
+        dbfSource = ByteSource.of(dbf);
+        rtxSource = null;
+        prj = null;
+        zip = null;
+        readOnly = false;
+
+        if (listener!=Metrics.NONE){
+            long numBytes = shx.length() + shp.length() + dbf.length();
+            listener.recordsWritten(records.size(), numBytes, System.nanoTime()-startTime);
+        }
+    }
+
+
+  //**************************************************************************
+  //** getTableModel
+  //**************************************************************************
+  /** Returns a DbfTableModel with the attributes in the records array. The
+   *  column types are derived from the values. Fields with names that end
+   *  with a "*" (e.g. "id*") and the geometry field are excluded.
+   */
+    private DbfTableModel getTableModel(int geomIndex){
+
+
+      //Find columns
+        Schema firstRow = records.get(0).getSchema();
+        ArrayList<Integer> cols = new ArrayList<>();
+        for (int i=0; i<firstRow.size(); i++){
+            String fieldName = firstRow.getName(i);
+            if (i==geomIndex || (fieldName!=null && fieldName.endsWith("*"))) continue;
+            cols.add(i);
+        }
+
+
+      //Set column names and types
+        DbfTableModel model = new DbfTableModel(cols.size());
+        HashSet<String> names = new HashSet<>();
+        for (int c=0; c<cols.size(); c++){
+            int idx = cols.get(c);
+
+
+          //Set column name. Names are limited to 10 characters.
+            String colName = firstRow.getName(idx);
+            if (colName==null || colName.trim().isEmpty()) colName = "FIELD" + (c+1);
+            colName = colName.trim();
+            if (colName.length()>10) colName = colName.substring(0, 10);
+            String baseName = colName;
+            int suffix = 1;
+            while (!names.add(colName.toUpperCase())){
+                String str = "_" + (suffix++);
+                colName = baseName.substring(0, Math.min(baseName.length(), 10-str.length())) + str;
+            }
+            model.setColumnName(c, colName);
+
+
+          //Set column type and length
+            boolean isNumber = true, isBoolean = true, isDate = true, isInteger = true;
+            int length = 1;
+            for (Record record : records){
+                Object obj = record.getValue(idx).toObject();
+                if (obj==null) continue;
+                if (obj instanceof String){
+                    String str = (String) obj;
+                    if (str.trim().isEmpty()) continue;
+                    length = Math.max(length, str.length());
+                    isNumber = isBoolean = isDate = false;
+                    continue;
+                }
+                length = Math.max(length, obj.toString().length());
+                if (!(obj instanceof Number)) isNumber = false;
+                else{
+                    double d = ((Number) obj).doubleValue();
+                    if (d!=Math.rint(d) || Double.isInfinite(d)) isInteger = false;
+                }
+                if (!(obj instanceof Boolean)) isBoolean = false;
+                if (!(obj instanceof java.util.Date || obj instanceof java.util.Calendar)) isDate = false;
+            }
+
+            if (isNumber){
+                model.setType(c, DbfTableModel.TYPE_NUMERIC);
+                if (isInteger){
+                    model.setLength(c, 18);
+                    model.setDecimalCount(c, (byte) 0);
+                }
+                else{
+                    model.setLength(c, 19);
+                    model.setDecimalCount(c, (byte) 8);
+                }
+            }
+            else if (isBoolean){
+                model.setType(c, DbfTableModel.TYPE_LOGICAL);
+                model.setLength(c, 1);
+            }
+            else if (isDate){
+                model.setType(c, DbfTableModel.TYPE_DATE);
+                model.setLength(c, 8);
+            }
+            else{
+                model.setType(c, DbfTableModel.TYPE_CHARACTER);
+                model.setLength(c, Math.min(254, length));
+            }
+        }
+
+
+      //Add rows
+        java.text.SimpleDateFormat df = new java.text.SimpleDateFormat("yyyyMMdd");
+        for (Record record : records){
+            ArrayList<Object> row = new ArrayList<>(cols.size());
+            for (int c=0; c<cols.size(); c++){
+                Object obj = record.getValue(cols.get(c)).toObject();
+                row.add(getDbfValue(obj, model.getType(c), df));
+            }
+            model.addRecord(row);
+        }
+
+        return model;
+    }
+
+
+  //**************************************************************************
+  //** getDbfValue
+  //**************************************************************************
+  /** Returns a value that can be written to a dbf column using
+   *  DbfTableModel.getStringForType(). Numbers are converted to doubles,
+   *  booleans to "T" or "F" and dates to "yyyyMMdd" strings. Blank strings
+   *  in columns other than character columns are converted to null.
+   */
+    private static Object getDbfValue(Object obj, byte type, java.text.SimpleDateFormat df){
+        if (obj instanceof Number){
+            return ((Number) obj).doubleValue();
+        }
+        else if (obj instanceof Boolean){
+            return ((Boolean) obj) ? "T" : "F";
+        }
+        else if (obj instanceof java.util.Calendar){
+            return df.format(((java.util.Calendar) obj).getTime());
+        }
+        else if (obj instanceof java.util.Date){
+            return df.format((java.util.Date) obj);
+        }
+        else if (obj!=null){
+            String str = obj.toString();
+            if (type==DbfTableModel.TYPE_CHARACTER) return str;
+            if (str.trim().isEmpty()) return null;
+            if (DbfTableModel.isNumericalType(type)){
+                try{ return Double.valueOf(str.trim()); }
+                catch(NumberFormatException e){ return null; }
+            }
+            return str;
+        }
+        return null;
+    }
+
+
+  //**************************************************************************
+  //** getShapeType
+  //**************************************************************************
+  /** Returns the shape type for an array of geometries. Throws an exception
+   *  if the geometries cannot be stored in the same shapefile.
+   */
+    private static int getShapeType(Geometry[] geometries) throws Exception {
+        int baseType = SHAPE_TYPE_NULL;
+        boolean hasZ = false;
+        boolean hasM = false;
+        for (Geometry geom : geometries){
+            if (geom==null || geom.isEmpty()) continue;
+
+            int type;
+            if (geom instanceof Point) type = SHAPE_TYPE_POINT;
+            else if (geom instanceof MultiPoint) type = SHAPE_TYPE_MULTIPOINT;
+            else if (geom instanceof LineString || geom instanceof MultiLineString) type = SHAPE_TYPE_POLYLINE;
+            else if (geom instanceof Polygon || geom instanceof MultiPolygon) type = SHAPE_TYPE_POLYGON;
+            else throw new Exception("Unsupported geometry: " + geom.getGeometryType());
+
+            if (baseType==SHAPE_TYPE_NULL) baseType = type;
+            else if (baseType!=type){
+                boolean isPoint = (baseType==SHAPE_TYPE_POINT || baseType==SHAPE_TYPE_MULTIPOINT);
+                if (isPoint && (type==SHAPE_TYPE_POINT || type==SHAPE_TYPE_MULTIPOINT)){
+                    baseType = SHAPE_TYPE_MULTIPOINT;
+                }
+                else{
+                    throw new Exception("Mixed geometry types");
+                }
+            }
+
+            if (!hasZ || !hasM){
+                for (Coordinate c : geom.getCoordinates()){
+                    if (!Double.isNaN(c.getZ())) hasZ = true;
+                    if (!Double.isNaN(c.getM())) hasM = true;
+                }
+            }
+        }
+        if (baseType==SHAPE_TYPE_NULL) throw new Exception("Records missing geometry");
+        if (hasZ) return baseType + 10;
+        if (hasM) return baseType + 20;
+        return baseType;
+    }
+
+
+  //**************************************************************************
+  //** getBaseType
+  //**************************************************************************
+  /** Returns the 2D shape type for a given shape type. For example, returns
+   *  SHAPE_TYPE_POLYLINE for SHAPE_TYPE_POLYLINEZ or SHAPE_TYPE_POLYLINEM.
+   *  Returns SHAPE_TYPE_NULL for unknown types.
+   */
+    protected static int getBaseType(int shapeType){
+        switch (shapeType){
+            case SHAPE_TYPE_POINT:
+            case SHAPE_TYPE_POINTZ:
+            case SHAPE_TYPE_POINTM:
+                return SHAPE_TYPE_POINT;
+            case SHAPE_TYPE_POLYLINE:
+            case SHAPE_TYPE_POLYLINEZ:
+            case SHAPE_TYPE_POLYLINEM:
+                return SHAPE_TYPE_POLYLINE;
+            case SHAPE_TYPE_POLYGON:
+            case SHAPE_TYPE_POLYGONZ:
+            case SHAPE_TYPE_POLYGONM:
+            case SHAPE_TYPE_MULTIPATCH:
+                return SHAPE_TYPE_POLYGON;
+            case SHAPE_TYPE_MULTIPOINT:
+            case SHAPE_TYPE_MULTIPOINTZ:
+            case SHAPE_TYPE_MULTIPOINTM:
+                return SHAPE_TYPE_MULTIPOINT;
+            default:
+                return SHAPE_TYPE_NULL;
+        }
+    }
+
+
+  //**************************************************************************
+  //** hasZ
+  //**************************************************************************
+  /** Returns true if the given shape type has Z values.
+   */
+    protected static boolean hasZ(int shapeType){
+        return shapeType==SHAPE_TYPE_POINTZ || shapeType==SHAPE_TYPE_POLYLINEZ ||
+        shapeType==SHAPE_TYPE_POLYGONZ || shapeType==SHAPE_TYPE_MULTIPOINTZ ||
+        shapeType==SHAPE_TYPE_MULTIPATCH;
+    }
+
+
+  //**************************************************************************
+  //** mayHaveM
+  //**************************************************************************
+  /** Returns true if the given shape type may have M values. M values are
+   *  required for M types and optional for Z types. Use hasM() to find out
+   *  whether a shapefile actually has M values.
+   */
+    protected static boolean mayHaveM(int shapeType){
+        return hasZ(shapeType) || shapeType==SHAPE_TYPE_POINTM ||
+        shapeType==SHAPE_TYPE_POLYLINEM || shapeType==SHAPE_TYPE_POLYGONM ||
+        shapeType==SHAPE_TYPE_MULTIPOINTM;
+    }
+
+
+  //**************************************************************************
+  //** hasM
+  //**************************************************************************
+  /** Returns true if a record has M values. The M range and array are
+   *  optional for Z types so the content length of the record is used to
+   *  check whether they are there.
+   *  @param bb Record content, starting with the shape type, in
+   *  little-endian order. Only the header of the record (up to the start of
+   *  the coordinates) is used.
+   *  @param contentLength Length of the record content, in bytes
+   */
+    protected static boolean hasM(int shapeType, ByteBuffer bb, int contentLength){
+        if (!mayHaveM(shapeType)) return false;
+        int baseType = getBaseType(shapeType);
+        if (baseType==SHAPE_TYPE_POINT){
+            return contentLength>=(hasZ(shapeType) ? 36 : 28);
+        }
+
+        long numPoints, xyEnd;
+        if (baseType==SHAPE_TYPE_MULTIPOINT){
+            numPoints = bb.getInt(36);
+            xyEnd = 40 + numPoints*16;
+        }
+        else{
+            int numParts = bb.getInt(36);
+            numPoints = bb.getInt(40);
+            int partLength = shapeType==SHAPE_TYPE_MULTIPATCH ? 8 : 4;
+            xyEnd = 44 + (long) numParts*partLength + numPoints*16;
+        }
+        long zmLength = 16 + numPoints*8;
+        return contentLength>=xyEnd + (hasZ(shapeType) ? zmLength : 0) + zmLength;
+    }
+
+
+  //**************************************************************************
+  //** hasM
+  //**************************************************************************
+  /** Returns true if the records in the shapefile have M values. M values
+   *  are required for M types (e.g. PolygonM) and optional for Z types (e.g.
+   *  PolygonZ). For Z types, the content length of the first record that
+   *  isn't a null shape is used to check whether the records include the M
+   *  values. Returns false if the shapefile has not been saved to disk.
+   */
+    public boolean hasM() throws Exception {
+        if (shpSource==null) return false;
+        int shapeType = getShapeType();
+        if (!mayHaveM(shapeType)) return false;
+        if (!hasZ(shapeType)) return true;
+
+        byte[] buf = new byte[52];
+        ByteBuffer bb = ByteBuffer.wrap(buf);
+        long size = shpSource.size();
+        long pos = SHAPE_FILE_HEADER_LENGTH;
+        while (pos+12<=size){
+            int len = (int) Math.min(buf.length, size-pos);
+            shpSource.readFully(pos, buf, 0, len);
+            int contentLength = bb.order(ByteOrder.BIG_ENDIAN).getInt(4)*2;
+            if (contentLength<4) return false;
+
+            ByteBuffer content = ByteBuffer.wrap(buf, 8, len-8).slice().order(ByteOrder.LITTLE_ENDIAN);
+            if (content.getInt(0)!=SHAPE_TYPE_NULL){
+                if (len<52 && getBaseType(shapeType)!=SHAPE_TYPE_POINT) return false;
+                return hasM(shapeType, content, contentLength);
+            }
+            pos += 8 + contentLength;
+        }
+        return false;
+    }
+
+
+  //**************************************************************************
+  //** setPipeline
+  //**************************************************************************
+  /** Used to read records with a pipeline. When numThreads is greater than
+   *  zero, getRecords() reads the shp and dbf files on two background
+   *  threads, in large batches, while a pool of numThreads threads decodes
+   *  the geometries and attributes. Decoded batches are merged back into
+   *  Records in file order. This hides most of the I/O latency on slow or
+   *  network-attached storage. Default is 0 (records are read and decoded
+   *  on the caller's thread).
+   *  <p>
+   *  The threads and file handles are released after the last record is
+   *  returned or when the iterator is closed. Pipelined iterators implement
+   *  Closeable. If you stop iterating early, close the iterator (e.g. in a
+   *  finally block). Otherwise the readers stay blocked on a full queue
+   *  and the files stay open.
+   *  </p>
+   *  @param numThreads Number of decoder threads.
+   *  @param queueDepth Maximum number of batches (of 256 records) read
+   *  ahead of the caller, per file. Readers block when the queue is full.
+   */
+    public void setPipeline(int numThreads, int queueDepth){
+        if (numThreads<0 || queueDepth<1) throw new IllegalArgumentException();
+        this.numThreads = numThreads;
+        this.queueDepth = queueDepth;
+    }
+
+
+  //**************************************************************************
+  //** setXYOnly
+  //**************************************************************************
+  /** Used to skip Z and M values when reading shapes. When true, Z and M
+   *  shape types are read as 2D geometries and the Z and M arrays in each
+   *  record are skipped in a single seek, so decoding is as fast as for 2D
+   *  files. Default is false.
+   */
+    public void setXYOnly(boolean xyOnly){
+        this.xyOnly = xyOnly;
+    }
+
+
+  //**************************************************************************
+  //** isXYOnly
+  //**************************************************************************
+  /** Returns true if Z and M values are skipped when reading shapes.
+   */
+    public boolean isXYOnly(){
+        return xyOnly;
+    }
+
+
+  //**************************************************************************
+  //** PipelinedIterator
+  //**************************************************************************
+  /** Used to read records with a pipeline. Reader threads copy batches of
+   *  raw records from the shp and dbf files into byte arrays. Each batch is
+   *  decoded by a task in a thread pool and the resulting futures are added
+   *  to a bounded queue, one queue per file, in file order. The iterator
+   *  takes one future from each queue and pairs the geometries with the
+   *  attributes by position.
+   */
+    private class PipelinedIterator implements Iterator<Record>, Closeable {
+
+        private static final int BATCH_SIZE = 256;
+
+        private final Envelope extent;
+        private final double tolerance;
+        private final int numRecords = numShapes;
+        private final Schema schema;
+        private final ExecutorService executor;
+        private final Metrics.Listener listener = Metrics.getListener();
+        private final Object scan = Events.beginScan();
+        private volatile long bytesRead;
+        private final ArrayBlockingQueue<Future<Geometry[]>> geometries;
+        private final ArrayBlockingQueue<Future<List<ArrayList<Object>>>> attributes;
+        private final Thread shpReader;
+        private final Thread dbfReader;
+        private volatile boolean closed;
+
+        private Geometry[] geoms;
+        private List<ArrayList<Object>> rows;
+        private int pos;
+        private int id;
+        private int numRead;
+        private Record next;
+
+
+        public PipelinedIterator(Envelope extent, double tolerance) throws Exception {
+            this.extent = extent;
+            this.tolerance = tolerance;
+
+
+          //Open files
+            final DbfInputStream dbfInputStream = new DbfInputStream(dbfSource.getInputStream());
+            schema = getSchema(dbfInputStream);
+            final DbfInputStream.CustomIterator it = dbfInputStream.getRecords();
+            final InputStream shpInputStream;
+            try{
+                shpInputStream = shpSource.getInputStream();
+            }
+            catch(Exception e){
+                dbfInputStream.close();
+                throw e;
+            }
+
+
+          //Create decoders
+            executor = Executors.newFixedThreadPool(numThreads, new ThreadFactory(){
+                public Thread newThread(Runnable r){
+                    Thread t = new Thread(r, "ShapeFile-decoder");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+            geometries = new ArrayBlockingQueue<>(queueDepth);
+            attributes = new ArrayBlockingQueue<>(queueDepth);
+
+
+          //Start readers
+            shpReader = new Thread("ShapeFile-shp-reader"){
+                public void run(){
+                    readShp(shpInputStream);
+                }
+            };
+            dbfReader = new Thread("ShapeFile-dbf-reader"){
+                public void run(){
+                    readDbf(dbfInputStream, it);
+                }
+            };
+            shpReader.setDaemon(true);
+            dbfReader.setDaemon(true);
+            shpReader.start();
+            dbfReader.start();
+        }
+
+
+      /** Reads batches of shp records and submits them to the decoders.
+       */
+        private void readShp(InputStream is){
+            DataInputStream in = new DataInputStream(new BufferedInputStream(is, 1024*1024));
+            try{
+                byte[] header = new byte[100];
+                in.readFully(header);
+                final int shapeType = ByteBuffer.wrap(header).order(ByteOrder.LITTLE_ENDIAN).getInt(32);
+
+                int n = 0;
+                byte[] buf = new byte[64*1024];
+                while (n<numRecords && !closed){
+                    final int count = Math.min(BATCH_SIZE, numRecords-n);
+
+
+                  //Copy records, including the record headers, into a new array
+                    int len = 0;
+                    for (int i=0; i<count; i++){
+                        int recordNumber = in.readInt();
+                        int contentLength = in.readInt()*2;
+                        if (buf.length<len+8+contentLength){
+                            buf = Arrays.copyOf(buf, Math.max(len+8+contentLength, buf.length*2));
+                        }
+                        ByteBuffer.wrap(buf, len, 8).putInt(recordNumber).putInt(contentLength/2);
+                        in.readFully(buf, len+8, contentLength);
+                        len += 8+contentLength;
+                    }
+                    bytesRead += len;
+                    final byte[] records = Arrays.copyOf(buf, len);
+
+
+                  //Decode records
+                    put(geometries, executor.submit(new Callable<Geometry[]>(){
+                        public Geometry[] call() throws Exception {
+                            ShapeIterator it = new ShapeIterator(records, count, shapeType, extent, tolerance);
+                            Geometry[] arr = new Geometry[count];
+                            for (int i=0; i<count; i++){
+                                arr[i] = it.readNext();
+                            }
+                            return arr;
+                        }
+                    }));
+                    n += count;
+                }
+            }
+            catch(Throwable e){
+                put(geometries, this.<Geometry[]>getError(e));
+            }
+            finally{
+                try{ in.close(); }catch(Exception e){}
+            }
+        }
+
+
+      /** Reads batches of dbf rows and submits them to the decoders.
+       */
+        private void readDbf(final DbfInputStream dbfInputStream, DbfInputStream.CustomIterator it){
+            try{
+                final int rowLength = dbfInputStream.getRecordLength()-1;
+                int n = 0;
+                while (n<numRecords && !closed){
+                    final int count = Math.min(BATCH_SIZE, numRecords-n);
+                    final byte[] batch = new byte[count*rowLength];
+                    final boolean[] deleted = new boolean[count];
+                    for (int i=0; i<count; i++){
+                        if (!it.hasNext()) throw new IOException("Shp/Dbf Record Mismatch");
+                        it.readRow(batch, i*rowLength);
+                        deleted[i] = it.isDeleted();
+                    }
+
+                    put(attributes, executor.submit(new Callable<List<ArrayList<Object>>>(){
+                        public List<ArrayList<Object>> call() throws Exception {
+                            java.text.DecimalFormat df = DbfInputStream.createDecimalFormat();
+                            ArrayList<ArrayList<Object>> rows = new ArrayList<>(count);
+                            for (int i=0; i<count; i++){
+                                if (deleted[i]){
+                                    rows.add(null);
+                                    continue;
+                                }
+                                long startTime = listener==Metrics.NONE ? 0 : System.nanoTime();
+                                rows.add(dbfInputStream.parseRow(batch, i*rowLength, df));
+                                if (listener!=Metrics.NONE) listener.rowDecoded(rowLength+1, System.nanoTime()-startTime);
+                            }
+                            return rows;
                         }
+                    }));
+                    n += count;
+                }
+            }
+            catch(Throwable e){
+                put(attributes, this.<List<ArrayList<Object>>>getError(e));
+            }
+            finally{
+                try{ dbfInputStream.close(); }catch(Exception e){}
+            }
+        }
+
+
+      /** Adds a future to a queue. Blocks while the queue is full, until the
+       *  iterator is closed.
+       */
+        private <T> void put(ArrayBlockingQueue<Future<T>> queue, Future<T> future){
+            try{
+                while (!closed){
+                    if (queue.offer(future, 100, TimeUnit.MILLISECONDS)) return;
+                }
+            }
+            catch(InterruptedException e){
+            }
+        }
+
+
+      /** Returns a future that fails with the given error.
+       */
+        private <T> Future<T> getError(final Throwable e){
+            FutureTask<T> future = new FutureTask<>(new Callable<T>(){
+                public T call() throws Exception {
+                    if (e instanceof Exception) throw (Exception) e;
+                    throw new Exception(e);
+                }
+            });
+            future.run();
+            return future;
+        }
+
+
+        public boolean hasNext(){
+            if (next==null) next = fetch();
+            return next!=null;
+        }
+
+
+        public Record next(){
+            if (!hasNext()) throw new NoSuchElementException();
+            Record record = next;
+            next = null;
+            return record;
+        }
+
+
+      /** Returns the next record or null if there are no more records.
+       */
+        private Record fetch(){
+            while (true){
+
+
+              //Get the next batch
+                if (geoms==null || pos==geoms.length){
+                    if (numRead>=numRecords || closed){
+                        close();
+                        return null;
+                    }
+                    try{
+                        geoms = geometries.take().get();
+                        rows = attributes.take().get();
+                    }
+                    catch(Exception e){
+                        close();
+                        Throwable t = e instanceof ExecutionException ? e.getCause() : e;
+                        if (t instanceof RuntimeException) throw (RuntimeException) t;
+                        throw new RuntimeException(t);
+                    }
+                    pos = 0;
+                    numRead += geoms.length;
+                }
+
+
+              //Create record
+                Geometry geom = geoms[pos];
+                ArrayList<Object> attr = rows.get(pos);
+                pos++;
+                id++;
+                if (attr==null || (geom==null && extent!=null)) continue;
+                if (geom!=null && id-1!=(Integer) geom.getUserData()){
+                    close();
+                    throw new RuntimeException("Shp/Dbf Record Mismatch");
+                }
+
+                long startTime = listener==Metrics.NONE ? 0 : System.nanoTime();
+                Value[] values = new Value[attr.size()+2];
+                for (int i=0; i<attr.size(); i++){
+                    values[i+1] = new Value(attr.get(i));
+                }
+                values[0] = new Value(id);
+                values[values.length-1] = new Value(geom);
+                Record record = new Record(schema, values);
+                if (listener!=Metrics.NONE) listener.recordAssembled(System.nanoTime()-startTime);
+                return record;
+            }
+        }
+
+
+      /** Stops the readers and decoders. Called automatically after the last
+       *  record.
+       */
+        public void close(){
+            if (closed) return;
+            closed = true;
+            executor.shutdownNow();
+            shpReader.interrupt();
+            dbfReader.interrupt();
+            Events.endScan(scan, shp, numRead, SHAPE_FILE_HEADER_LENGTH+bytesRead, extent);
+        }
+    }
+
+
+  //**************************************************************************
+  //** RangeIterator
+  //**************************************************************************
+  /** Used to read records that intersect an extent from a remote source.
+   *  The record offsets are read from the shx file (or the in-memory index)
+   *  and the bounding box of each record is read from the record header.
+   *  Only the records and dbf rows that intersect the extent are read after
+   *  that. The ranges are passed to ByteSource.prefetch() in batches so the
+   *  source can coalesce them into a few large requests.
+   */
+    private class RangeIterator implements Iterator<Record> {
+
+        private static final int BATCH_SIZE = 1024;
+        private static final int PROBE_GAP = 512;
+
+        private final Envelope extent;
+        private final double tolerance;
+        private final Schema schema;
+        private final DbfInputStream dbfInputStream;
+        private final java.text.DecimalFormat df = DbfInputStream.createDecimalFormat();
+        private final int headerLength;
+        private final int recordLength;
+        private final int shapeType;
+        private final int[] candidates;
+        private final int numItems;
+        private final long[] offsets;
+        private final int[] lengths;
+        private final Metrics.Listener listener = Metrics.getListener();
+        private final int expectedModCount = modCount;
+        private Object scan = Events.beginScan();
+        private long bytesRead;
+
+        private int numScanned;
+        private ArrayList<Record> batch = new ArrayList<>();
+        private int pos;
+
+
+        public RangeIterator(Envelope extent, double tolerance) throws Exception {
+            this.extent = extent;
+            this.tolerance = tolerance;
+
+
+          //Parse dbf header
+            dbfInputStream = new DbfInputStream(dbfSource.getInputStream());
+            schema = getSchema(dbfInputStream);
+            headerLength = dbfInputStream.getHeaderLength();
+            recordLength = dbfInputStream.getRecordLength();
+            dbfInputStream.close();
+            shapeType = getShapeType();
+
+
+          //Find the records that intersect the extent with the spatial
+          //index. Without an index, every record is probed by nextBatch().
+            candidates = rtxSource==null ? null :
+                SpatialIndex.search(rtxSource, numShapes, shpSource.size(), extent);
+            numItems = candidates==null ? numShapes : candidates.length;
+
+
+          //Get record offsets and content lengths, in bytes. Only the shx
+          //entries of the records found with the spatial index are read.
+            offsets = new long[numItems];
+            lengths = new int[numItems];
+            if (index!=null){
+                for (int i=0; i<numItems; i++){
+                    int id = candidates==null ? i : candidates[i];
+                    offsets[i] = index.offsets[id]*2L;
+                    lengths[i] = index.lengths[id]*2;
+                }
+            }
+            else if (candidates!=null){
+                long[] positions = new long[numItems];
+                int[] sizes = new int[numItems];
+                for (int i=0; i<numItems; i++){
+                    positions[i] = SHAPE_FILE_HEADER_LENGTH + candidates[i]*8L;
+                    sizes[i] = 8;
+                }
+                shxSource.prefetch(positions, sizes);
+                byte[] b = new byte[8];
+                ByteBuffer bb = ByteBuffer.wrap(b);
+                for (int i=0; i<numItems; i++){
+                    shxSource.readFully(positions[i], b, 0, 8);
+                    offsets[i] = bb.getInt(0)*2L;
+                    lengths[i] = bb.getInt(4)*2;
+                }
+            }
+            else if (numShapes>0){
+                byte[] b = new byte[numShapes*8];
+                shxSource.prefetch(new long[]{SHAPE_FILE_HEADER_LENGTH}, new int[]{b.length});
+                shxSource.readFully(SHAPE_FILE_HEADER_LENGTH, b, 0, b.length);
+                ByteBuffer bb = ByteBuffer.wrap(b);
+                for (int i=0; i<numShapes; i++){
+                    offsets[i] = bb.getInt(i*8)*2L;
+                    lengths[i] = bb.getInt(i*8+4)*2;
+                }
+            }
+        }
+
+
+        public boolean hasNext(){
+            while (pos==batch.size()){
+                if (numScanned>=numItems){
+                    close();
+                    return false;
+                }
+                if (modCount!=expectedModCount){
+                    close();
+                    throw new ConcurrentModificationException("Shapefile was compacted");
+                }
+                try{
+                    nextBatch();
+                }
+                catch(Exception e){
+                    close();
+                    if (e instanceof RuntimeException) throw (RuntimeException) e;
+                    throw new RuntimeException(e);
+                }
+            }
+            return true;
+        }
+
+
+        public Record next(){
+            if (!hasNext()) throw new NoSuchElementException();
+            return batch.get(pos++);
+        }
+
+
+      /** Reads the headers of the next batch of records and then reads the
+       *  records and rows that intersect the extent. Records found with the
+       *  spatial index are read without reading the headers first.
+       */
+        private void nextBatch() throws Exception {
+            batch.clear();
+            pos = 0;
+            int start = numScanned;
+            int count = Math.min(BATCH_SIZE, numItems-start);
+            numScanned += count;
+
+            int[] ids = new int[count];
+            int numIds = 0;
+            if (candidates!=null){
+                for (int i=0; i<count; i++) ids[numIds++] = start+i;
+            }
+            else{
+                numIds = probe(start, count, ids);
+            }
+            if (numIds==0) return;
+
+
+          //Fetch the records and rows. Item ids are replaced with record
+          //ids (starting with 0).
+            long[] positions = new long[numIds];
+            int[] sizes = new int[numIds];
+            long[] rowPositions = new long[numIds];
+            int[] rowSizes = new int[numIds];
+            int len = 0;
+            for (int i=0; i<numIds; i++){
+                int item = ids[i];
+                positions[i] = offsets[item];
+                sizes[i] = 8+lengths[item];
+                if (candidates!=null) ids[i] = candidates[item];
+                rowPositions[i] = headerLength + (long) ids[i]*recordLength;
+                rowSizes[i] = recordLength;
+                len += sizes[i];
+            }
+            shpSource.prefetch(positions, sizes);
+            dbfSource.prefetch(rowPositions, rowSizes);
+
+
+          //Decode the records
+            byte[] records = new byte[len];
+            len = 0;
+            for (int i=0; i<numIds; i++){
+                shpSource.readFully(positions[i], records, len, sizes[i]);
+                len += sizes[i];
+            }
+            bytesRead += len;
+            ShapeIterator it = new ShapeIterator(records, numIds, shapeType, extent, tolerance);
+            byte[] row = new byte[recordLength];
+            for (int i=0; i<numIds; i++){
+                Geometry geom = it.readNext();
+                if (geom==null) continue;
+                dbfSource.readFully(rowPositions[i], row, 0, recordLength);
+                if (row[0]=='*') continue;
+
+                long startTime = listener==Metrics.NONE ? 0 : System.nanoTime();
+                ArrayList<Object> attr = dbfInputStream.parseRow(row, 1, df);
+                if (listener!=Metrics.NONE){
+                    long t = System.nanoTime();
+                    listener.rowDecoded(recordLength, t-startTime);
+                    startTime = t;
+                }
+                Value[] values = new Value[attr.size()+2];
+                for (int j=0; j<attr.size(); j++){
+                    values[j+1] = new Value(attr.get(j));
+                }
+                values[0] = new Value(ids[i]+1);
+                values[values.length-1] = new Value(geom);
+                batch.add(new Record(schema, values));
+                if (listener!=Metrics.NONE) listener.recordAssembled(System.nanoTime()-startTime);
+            }
+        }
+
+
+      /** Reads the shape type and bounding box of a range of records and
+       *  returns the ones that intersect the extent. Points don't have a
+       *  bounding box so the coordinates are read instead. The headers are
+       *  prefetched with a small max gap so the records in between aren't
+       *  downloaded from remote sources.
+       *  @param ids Used to return the ids of the records
+       *  @return Number of records that intersect the extent
+       */
+        private int probe(int start, int count, int[] ids) throws IOException {
+            int headerSize = 8 + (getBaseType(shapeType)==SHAPE_TYPE_POINT ? 20 : 36);
+            long[] positions = new long[count];
+            int[] sizes = new int[count];
+            for (int i=0; i<count; i++){
+                positions[i] = offsets[start+i];
+                sizes[i] = Math.max(0, Math.min(headerSize, 8+lengths[start+i]));
+            }
+            shpSource.prefetch(positions, sizes, PROBE_GAP);
+
+            int numIds = 0;
+            byte[] header = new byte[headerSize];
+            ByteBuffer bb = ByteBuffer.wrap(header).order(ByteOrder.LITTLE_ENDIAN);
+            for (int i=0; i<count; i++){
+                if (sizes[i]<12) continue;
+                shpSource.readFully(positions[i], header, 0, sizes[i]);
+                bytesRead += sizes[i];
+                if (bb.getInt(8)==SHAPE_TYPE_NULL) continue;
+                boolean intersects = false;
+                if (sizes[i]==28){
+                    intersects = extent.intersects(bb.getDouble(12), bb.getDouble(20));
+                }
+                else if (sizes[i]==44){
+                    intersects = extent.intersects(new Envelope(
+                        bb.getDouble(12), bb.getDouble(28), bb.getDouble(20), bb.getDouble(36)));
+                }
+                if (intersects) ids[numIds++] = start+i;
+                else listener.recordFiltered();
+            }
+            return numIds;
+        }
+
+
+      /** Stops the iterator and reports the number of records scanned,
+       *  which are the candidates found with the spatial index or the
+       *  records probed so far.
+       */
+        private void close(){
+            if (scan!=null){
+                Events.endScan(scan, shp, numScanned, SHAPE_FILE_HEADER_LENGTH+bytesRead, extent);
+                scan = null;
+            }
+            numScanned = numItems;
+        }
+    }
+
+
+  //**************************************************************************
+  //** Cursor
+  //**************************************************************************
+  /** Used to scan the records in a shapefile one row at a time. Each call to
+   *  advance() reads the next dbf row and shp record into scratch buffers
+   *  that are reused across rows. Column indexes match the Schema returned
+   *  by getSchema(): 0 is the record id, followed by the dbf columns and the
+   *  geometry. Values returned by the cursor are only valid until the next
+   *  call to advance(). Records that are marked as deleted in the dbf file
+   *  are skipped. The cursor is closed automatically after the last record.
+   */
+    public class Cursor implements Closeable {
+
+        private final DbfInputStream dbfInputStream;
+        private final DbfInputStream.CustomIterator rows;
+        private final ShapeIterator shapes;
+        private final Schema schema;
+        private final int[] offsets;
+        private final int[] lengths;
+        private final byte[] row;
+        private final int geomIndex;
+        private java.text.DecimalFormat df;
+        private int id;
+        private Geometry geom;
+        private boolean decoded;
+        private boolean closed;
+        private final Metrics.Listener listener = Metrics.getListener();
+
+
+        private Cursor() throws Exception {
+            dbfInputStream = new DbfInputStream(dbfSource.getInputStream());
+            schema = ShapeFile.this.getSchema(dbfInputStream);
+            geomIndex = schema.size()-1;
+
+
+          //Compute the offset of each column in the dbf row
+            int[] len = dbfInputStream.getLengths();
+            offsets = new int[len.length];
+            lengths = new int[len.length];
+            int offset = 0;
+            for (int c=0; c<len.length; c++){
+                offsets[c] = offset;
+                lengths[c] = len[c];
+                offset += len[c];
+            }
+            row = new byte[Math.max(offset+1, dbfInputStream.getRecordLength())];
+            rows = dbfInputStream.getRecords();
+
+
+            try{
+                shapes = new ShapeIterator(shpSource, null);
+            }
+            catch(Exception e){
+                dbfInputStream.close();
+                throw e;
+            }
+        }
+
+
+      /** Moves the cursor to the next record. Returns false if there are no
+       *  more records.
+       */
+        public boolean advance() throws IOException {
+            if (closed) return false;
+            try{
+                do{
+                    if (!shapes.load()){
+                        close();
+                        return false;
+                    }
+                    if (!rows.hasNext()) throw new IOException("Shp/Dbf Record Mismatch");
+                    rows.readRow(row);
+                    id++;
+                }
+                while (rows.isDeleted());
+            }
+            catch(IOException e){
+                close();
+                throw e;
+            }
+            geom = null;
+            decoded = false;
+            return true;
+        }
+
+
+      /** Returns the schema used to resolve column names to indexes.
+       */
+        public Schema getSchema(){
+            return schema;
+        }
+
+
+      /** Returns the id of the current record. Ids start with 1.
+       */
+        public int getId(){
+            return id;
+        }
+
+
+      /** Returns the geometry for the current record or null if the record
+       *  has a null shape. The geometry is decoded on the first call.
+       */
+        public Geometry getGeometry(){
+            if (!decoded){
+                try{
+                    geom = shapes.decode();
+                }
+                catch(Exception e){
+                    throw new RuntimeException(e);
+                }
+                decoded = true;
+            }
+            return geom;
+        }
+
+
+      /** Returns the content of the current shp record, starting with the
+       *  shape type, in little-endian order. Used to encode the record
+       *  without creating a JTS geometry (see GeometryEncoder). The buffer is
+       *  reused across rows and may be larger than the record. Use
+       *  getShapeLength() to get the length of the content.
+       */
+        ByteBuffer getShape(){
+            return shapes.bb;
+        }
+
+
+      /** Returns the length of the content of the current shp record, in
+       *  bytes.
+       */
+        int getShapeLength(){
+            return shapes.loadedLength;
+        }
+
+
+      /** Returns true if the bounding box of the current record intersects an
+       *  extent. Null shapes never intersect.
+       */
+        boolean intersects(Envelope extent){
+            return shapes.intersects(extent);
+        }
+
+
+      /** Used to copy the shp record of the current row, including the record
+       *  header, to a buffer. Copied records can be decoded on another thread
+       *  with ShapeFile.decode().
+       */
+        void copyRecord(OutputBuffer out){
+            shapes.copyRecord(out);
+        }
+
+
+      /** Returns the dbf row of the current record, without the deletion flag.
+       *  Use getOffset() and getLength() to find the bytes of a column.
+       */
+        byte[] getRow(){
+            return row;
+        }
+
+
+      /** Returns the offset of a dbf column in the row returned by getRow().
+       */
+        int getOffset(int col){
+            return offsets[col-1];
+        }
+
+
+      /** Returns the length of a dbf column in the row returned by getRow().
+       */
+        int getLength(int col){
+            return lengths[col-1];
+        }
+
+
+      /** Returns true if the given column is empty in the current record or,
+       *  for the geometry column, if the record has a null shape.
+       */
+        public boolean isNull(int col){
+            if (col==0) return false;
+            if (col==geomIndex) return getGeometry()==null;
+            int c = col-1;
+            int start = offsets[c];
+            int end = start + lengths[c];
+            for (int i=start; i<end; i++){
+                if ((row[i] & 0xff) > ' ') return false;
+            }
+            return true;
+        }
+
+
+      /** Returns the value of the given column as a double. Numbers are
+       *  parsed directly from the row buffer. Returns NaN if the column is
+       *  empty or if the value is not a number.
+       */
+        public double getDouble(int col){
+            if (col==0) return id;
+            if (col==geomIndex) return Double.NaN;
+            int c = col-1;
+            return parseDouble(row, offsets[c], offsets[c]+lengths[c]);
+        }
+
+
+      /** Returns the value of the given column as a trimmed string. Returns
+       *  null for the geometry column if the record has a null shape.
+       */
+        public String getString(int col){
+            if (col==0) return Integer.toString(id);
+            if (col==geomIndex){
+                Geometry geom = getGeometry();
+                return geom==null ? null : geom.toText();
+            }
+            int c = col-1;
+            int start = offsets[c];
+            int end = start + lengths[c];
+            while (start<end && (row[start] & 0xff) <= ' ') start++;
+            while (end>start && (row[end-1] & 0xff) <= ' ') end--;
+            return new String(row, start, end-start);
+        }
+
+
+      /** Returns a Record with the values in the current row. Use this method
+       *  to materialize the few rows that pass a filter.
+       */
+        public Record getRecord(){
+            if (df==null) df = DbfInputStream.createDecimalFormat();
+            Geometry geom = getGeometry();
+            long startTime = listener==Metrics.NONE ? 0 : System.nanoTime();
+            ArrayList<Object> attr = dbfInputStream.parseRow(row, 0, df);
+            if (listener!=Metrics.NONE){
+                long t = System.nanoTime();
+                listener.rowDecoded(dbfInputStream.getRecordLength(), t-startTime);
+                startTime = t;
+            }
+            Value[] values = new Value[schema.size()];
+            values[0] = new Value(id);
+            for (int c=0; c<attr.size(); c++){
+                values[c+1] = new Value(attr.get(c));
+            }
+            values[geomIndex] = new Value(geom);
+            Record record = new Record(schema, values);
+            if (listener!=Metrics.NONE) listener.recordAssembled(System.nanoTime()-startTime);
+            return record;
+        }
+
+
+        public void close() throws IOException {
+            if (closed) return;
+            closed = true;
+            try{ shapes.close(); }
+            finally{ dbfInputStream.close(); }
+        }
+    }
+
+
+  //**************************************************************************
+  //** Appender
+  //**************************************************************************
+  /** Used to add records to the end of an existing shapefile. See append().
+   */
+    public class Appender implements Closeable {
+
+        private final RandomAccessFile shpFile;
+        private final RandomAccessFile shxFile;
+        private final RandomAccessFile dbfFile;
+        private final ShpOutputStream shpOutputStream;
+        private final LittleEndianOutputStream shxOutputStream;
+        private final LittleEndianOutputStream dbfOutputStream;
+        private final int shapeType;
+        private final Bounds bounds = new Bounds();
+        private final String[] names;
+        private final byte[] types;
+        private final int[] lengths;
+        private final byte[] decimals;
+        private final int dbfHeaderLength;
+        private final int dbfRecordLength;
+        private final java.text.DecimalFormat df;
+        private final java.text.SimpleDateFormat sdf;
+        private final Metrics.Listener listener = Metrics.getListener();
+        private final long startTime;
+        private long shpLength;
+        private long bytesWritten;
+        private int numRecords;
+        private int numAdded;
+        private boolean closed;
+
+
+        private Appender() throws Exception {
+            startTime = listener==Metrics.NONE ? 0 : System.nanoTime();
+
+
+          //Get column names and types
+            DbfInputStream dbfInputStream = new DbfInputStream(dbfSource.getInputStream());
+            try{
+                names = dbfInputStream.getColumnNames();
+                types = dbfInputStream.getTypes();
+                lengths = dbfInputStream.getLengths();
+                decimals = dbfInputStream.getDecimalCounts();
+            }
+            finally{
+                dbfInputStream.close();
+            }
+            df = DbfInputStream.createDecimalFormat();
+            df.setGroupingUsed(false);
+            sdf = new java.text.SimpleDateFormat("yyyyMMdd");
+
+
+          //Open files
+            shpFile = new RandomAccessFile(shp, "rw");
+            shxFile = new RandomAccessFile(shx, "rw");
+            dbfFile = new RandomAccessFile(dbf, "rw");
+            try{
+
+
+              //Read shp header
+                byte[] header = new byte[SHAPE_FILE_HEADER_LENGTH];
+                shpFile.readFully(header);
+                ByteBuffer bb = ByteBuffer.wrap(header);
+                shpLength = bb.getInt(24)*2L;
+                bb.order(ByteOrder.LITTLE_ENDIAN);
+                shapeType = bb.getInt(32);
+                if (shpLength<SHAPE_FILE_HEADER_LENGTH || shpLength>shpFile.length()){
+                    throw new IOException("Invalid shp file length");
+                }
+
+
+              //Read record counts from the shx and dbf headers
+                numRecords = (int) ((shxFile.length()-SHAPE_FILE_HEADER_LENGTH)/8);
+                byte[] dbfHeader = new byte[12];
+                dbfFile.readFully(dbfHeader);
+                ByteBuffer dbb = ByteBuffer.wrap(dbfHeader).order(ByteOrder.LITTLE_ENDIAN);
+                int numRows = dbb.getInt(4);
+                dbfHeaderLength = dbb.getShort(8) & 0xffff;
+                dbfRecordLength = dbb.getShort(10) & 0xffff;
+                if (numRows!=numRecords) throw new IOException("Shx/Dbf Record Mismatch");
+
+
+              //Initialize bounds with the extents in the shp header
+                if (numRecords>0){
+                    double xMin = bb.getDouble(36);
+                    double yMin = bb.getDouble(44);
+                    double xMax = bb.getDouble(52);
+                    double yMax = bb.getDouble(60);
+                    if (xMin<=xMax && yMin<=yMax) bounds.extent.init(xMin, xMax, yMin, yMax);
+                    if (hasZ(shapeType)){
+                        bounds.zMin = bb.getDouble(68);
+                        bounds.zMax = bb.getDouble(76);
+                    }
+                    if (mayHaveM(shapeType) && bb.getDouble(84)>ShpOutputStream.NO_DATA/10){
+                        bounds.mMin = bb.getDouble(84);
+                        bounds.mMax = bb.getDouble(92);
+                    }
+                }
+
+
+              //Move to the end of each file. The streams share the file
+              //pointer with the RandomAccessFiles.
+                shpFile.seek(shpLength);
+                shxFile.seek(SHAPE_FILE_HEADER_LENGTH + numRecords*8L);
+                dbfFile.seek(dbfHeaderLength + (long) numRecords*dbfRecordLength);
+                shpOutputStream = new ShpOutputStream(new FileOutputStream(shpFile.getFD()), shapeType);
+                shxOutputStream = new LittleEndianOutputStream(new BufferedOutputStream(new FileOutputStream(shxFile.getFD())));
+                dbfOutputStream = new LittleEndianOutputStream(new BufferedOutputStream(new FileOutputStream(dbfFile.getFD())));
+            }
+            catch(Exception e){
+                shpFile.close();
+                shxFile.close();
+                dbfFile.close();
+                throw e;
+            }
+        }
+
+
+      /** Used to add a record. Accepts the same arguments as
+       *  ShapeFile.addRecord(). The first geometry is used as the shape and
+       *  the other values are written to the dbf columns, in order. If a
+       *  Record is given, values are matched to the dbf columns by name.
+       *  The dbf columns can't be resized so values that are wider than a
+       *  column are truncated.
+       */
+        public void addRecord(Object... args) throws Exception {
+            if (closed) throw new IllegalStateException("Appender is closed");
+
+
+          //Get geometry and attributes
+            Geometry geom = null;
+            Object[] values = new Object[names.length];
+            if (args.length==1 && args[0] instanceof Record){
+                Record record = (Record) args[0];
+                Schema schema = record.getSchema();
+                for (int i=0; i<schema.size(); i++){
+                    Object obj = record.getValue(i).toObject();
+                    if (obj instanceof Geometry){
+                        geom = (Geometry) obj;
+                        break;
+                    }
+                }
+                for (int c=0; c<names.length; c++){
+                    int idx = schema.getIndex(names[c]);
+                    if (idx>-1) values[c] = record.getValue(idx).toObject();
+                }
+            }
+            else{
+                int c = 0;
+                for (Object arg : args){
+                    if (arg instanceof Value) arg = ((Value) arg).toObject();
+                    if (arg instanceof Geometry && geom==null){
+                        geom = (Geometry) arg;
+                        continue;
+                    }
+                    if (c==names.length) throw new IllegalArgumentException("Too many values");
+                    values[c++] = arg;
+                }
+                if (c!=names.length) throw new IllegalArgumentException(
+                "Expected " + names.length + " values, found " + c);
+            }
+            if (!isCompatible(geom)) throw new IllegalArgumentException(
+            "Unsupported geometry: " + geom.getGeometryType());
+
+
+          //Write shape and index
+            int contentLength = ShpOutputStream.getContentLength(shapeType, geom);
+            long offset = shpLength/2;
+            if (offset+4+contentLength>Integer.MAX_VALUE) throw new IOException("Shp file is too large");
+            shpOutputStream.writeRecord(numRecords+1, geom);
+            shxOutputStream.writeInt((int) offset);
+            shxOutputStream.writeInt(contentLength);
+            shpLength += 8 + contentLength*2L;
+            bounds.add(geom);
+
+
+          //Write attributes
+            dbfOutputStream.writeByte(32);
+            for (int c=0; c<names.length; c++){
+                df.setMaximumFractionDigits(decimals[c]);
+                Object obj = getDbfValue(values[c], types[c], sdf);
+                String value = DbfTableModel.getStringForType(obj, types[c], df, lengths[c]);
+                dbfOutputStream.writeString(value, lengths[c]);
+            }
+
+            bytesWritten += 16 + contentLength*2L + dbfRecordLength;
+            numRecords++;
+            numAdded++;
+        }
+
+
+      /** Returns true if a geometry can be written to the shp file.
+       */
+        private boolean isCompatible(Geometry geom){
+            if (geom==null || geom.isEmpty()) return true;
+            int baseType = getBaseType(shapeType);
+            if (baseType==SHAPE_TYPE_POINT) return geom instanceof Point;
+            if (baseType==SHAPE_TYPE_MULTIPOINT) return geom instanceof Point || geom instanceof MultiPoint;
+            if (baseType==SHAPE_TYPE_POLYLINE) return geom instanceof LineString || geom instanceof MultiLineString;
+            if (baseType==SHAPE_TYPE_POLYGON) return geom instanceof Polygon || geom instanceof MultiPolygon;
+            return false;
+        }
+
+
+      /** Returns the number of records added with this appender.
+       */
+        public int getRecordCount(){
+            return numAdded;
+        }
+
+
+      /** Flushes the new records and updates the file headers.
+       */
+        public void close() throws IOException {
+            if (closed) return;
+            closed = true;
+            try{
+                shpOutputStream.flush();
+                shxOutputStream.flush();
+                dbfOutputStream.writeByte(26);
+                dbfOutputStream.flush();
+
+
+              //Update shp header
+                ByteArrayOutputStream out = new ByteArrayOutputStream(SHAPE_FILE_HEADER_LENGTH);
+                ShpOutputStream headerStream = new ShpOutputStream(out, shapeType);
+                headerStream.writeHeader((int) (shpLength/2), bounds);
+                headerStream.close();
+                byte[] header = out.toByteArray();
+                shpFile.seek(0);
+                shpFile.write(header);
+                shpFile.setLength(shpLength);
+
+
+              //Update shx header. The header is the same as the shp header
+              //except for the file length.
+                long shxLength = SHAPE_FILE_HEADER_LENGTH + numRecords*8L;
+                ByteBuffer.wrap(header).putInt(24, (int) (shxLength/2));
+                shxFile.seek(0);
+                shxFile.write(header);
+                shxFile.setLength(shxLength);
+
+
+              //Update dbf header (last update and number of records)
+                Calendar cal = Calendar.getInstance();
+                byte[] dbfHeader = new byte[7];
+                ByteBuffer dbb = ByteBuffer.wrap(dbfHeader).order(ByteOrder.LITTLE_ENDIAN);
+                dbb.put((byte) (cal.get(Calendar.YEAR)-1900));
+                dbb.put((byte) (cal.get(Calendar.MONTH)+1));
+                dbb.put((byte) cal.get(Calendar.DAY_OF_MONTH));
+                dbb.putInt(numRecords);
+                dbfFile.seek(1);
+                dbfFile.write(dbfHeader);
+                dbfFile.setLength(dbfHeaderLength + (long) numRecords*dbfRecordLength + 1);
+            }
+            finally{
+                try{ shpFile.close(); }catch(Exception e){}
+                try{ shxFile.close(); }catch(Exception e){}
+                try{ dbfFile.close(); }catch(Exception e){}
+                numShapes = numRecords;
+                closeWriter();
+                synchronized(cache){
+                    cache.clear();
+                }
+            }
+            if (listener!=Metrics.NONE) listener.recordsWritten(numAdded, bytesWritten, System.nanoTime()-startTime);
+        }
+    }
+
+
+  //**************************************************************************
+  //** Editor
+  //**************************************************************************
+  /** Used to update and delete records in an existing shapefile. See edit().
+   */
+    public class Editor implements Closeable {
+
+        private final RandomAccessFile shpFile;
+        private final RandomAccessFile shxFile;
+        private final RandomAccessFile dbfFile;
+        private final Schema schema;
+        private final byte[] types;
+        private final int[] offsets;
+        private final int[] lengths;
+        private final byte[] decimals;
+        private final int dbfHeaderLength;
+        private final int dbfRecordLength;
+        private final java.text.DecimalFormat df;
+        private final java.text.SimpleDateFormat sdf;
+        private final Metrics.Listener listener = Metrics.getListener();
+        private final long startTime;
+        private long bytesWritten;
+        private int numUpdated;
+        private int numDeleted;
+        private boolean closed;
+
+
+        private Editor() throws Exception {
+            startTime = listener==Metrics.NONE ? 0 : System.nanoTime();
+
+
+          //Get column types and compute the offset of each column in a row
+            DbfInputStream dbfInputStream = new DbfInputStream(dbfSource.getInputStream());
+            try{
+                schema = ShapeFile.this.getSchema(dbfInputStream);
+                types = dbfInputStream.getTypes();
+                lengths = dbfInputStream.getLengths();
+                decimals = dbfInputStream.getDecimalCounts();
+                dbfHeaderLength = dbfInputStream.getHeaderLength();
+                dbfRecordLength = dbfInputStream.getRecordLength();
+                if (dbfInputStream.getRowCount()!=numShapes) throw new IOException("Shx/Dbf Record Mismatch");
+            }
+            finally{
+                dbfInputStream.close();
+            }
+            offsets = new int[lengths.length];
+            int offset = 1; //deletion flag
+            for (int c=0; c<lengths.length; c++){
+                offsets[c] = offset;
+                offset += lengths[c];
+            }
+            df = DbfInputStream.createDecimalFormat();
+            df.setGroupingUsed(false);
+            sdf = new java.text.SimpleDateFormat("yyyyMMdd");
+
+
+          //Open files
+            shpFile = new RandomAccessFile(shp, "rw");
+            shxFile = new RandomAccessFile(shx, "r");
+            try{
+                dbfFile = new RandomAccessFile(dbf, "rw");
+            }
+            catch(Exception e){
+                shpFile.close();
+                shxFile.close();
+                throw e;
+            }
+        }
+
+
+      /** Used to update a dbf value. The value is written in place so the
+       *  rest of the file is not rewritten. The dbf columns can't be resized
+       *  so values that are wider than a column are truncated.
+       *  @param id Record id, as returned in the first column of a Record or by
+       *  Cursor.getId(). Ids start with 1.
+       *  @param column Column name
+       */
+        public void setValue(int id, String column, Object value) throws IOException {
+            int col = schema.getIndex(column);
+            if (col<1 || col>=schema.size()-1) throw new IllegalArgumentException(
+            "Invalid column: " + column);
+            setValue(id, col, value);
+        }
+
+
+      /** Used to update a dbf value. Column indexes match the Schema
+       *  returned by getSchema(): 0 is the record id, followed by the dbf
+       *  columns and the geometry. Only dbf columns can be updated.
+       */
+        public void setValue(int id, int col, Object value) throws IOException {
+            if (closed) throw new IllegalStateException("Editor is closed");
+            if (col<1 || col>=schema.size()-1) throw new IllegalArgumentException(
+            "Invalid column: " + col);
+            int c = col-1;
+
+
+          //Format value and pad or truncate it to the width of the column
+            df.setMaximumFractionDigits(decimals[c]);
+            Object obj = getDbfValue(value, types[c], sdf);
+            String str = DbfTableModel.getStringForType(obj, types[c], df, lengths[c]);
+            byte[] b = str.getBytes();
+            byte[] cell = new byte[lengths[c]];
+            Arrays.fill(cell, (byte) ' ');
+            System.arraycopy(b, 0, cell, 0, Math.min(b.length, cell.length));
+
+
+          //Write value
+            dbfFile.seek(getRowOffset(id) + offsets[c]);
+            dbfFile.write(cell);
+            bytesWritten += cell.length;
+            numUpdated++;
+        }
+
+
+      /** Used to delete a record. The record is marked as deleted in the dbf
+       *  file and the shape is replaced with a null shape in the shp file.
+       *  The record ids don't change. Deleted records are skipped by
+       *  getRecords() and getCursor() and are removed from the files by
+       *  compact(). Returns false if the record was already deleted.
+       */
+        public boolean delete(int id) throws IOException {
+            if (closed) throw new IllegalStateException("Editor is closed");
+            if (isDeleted(id)) return false;
+
+
+          //Find the shp record using the index. The record keeps its content
+          //length so the offsets of the other records don't change.
+            shxFile.seek(SHAPE_FILE_HEADER_LENGTH + (id-1)*8L);
+            long offset = shxFile.readInt()*2L;
+            int contentLength = shxFile.readInt()*2;
+            if (contentLength<4 || offset+8+contentLength>shpFile.length()){
+                throw new IOException("Invalid index entry for record " + id);
+            }
+            shpFile.seek(offset);
+            if (shpFile.readInt()!=id) throw new IOException("Shp/Shx Record Mismatch");
+
+
+          //Write null shape type (little endian zero) and deletion flag
+            shpFile.seek(offset+8);
+            shpFile.writeInt(SHAPE_TYPE_NULL);
+            dbfFile.seek(getRowOffset(id));
+            dbfFile.write('*');
+
+            bytesWritten += 5;
+            numDeleted++;
+            return true;
+        }
+
+
+      /** Returns true if the given record is marked as deleted.
+       */
+        public boolean isDeleted(int id) throws IOException {
+            dbfFile.seek(getRowOffset(id));
+            return dbfFile.read()=='*';
+        }
+
+
+      /** Returns the schema used to resolve column names to indexes.
+       */
+        public Schema getSchema(){
+            return schema;
+        }
+
+
+      /** Returns the number of values updated and records deleted with this
+       *  editor.
+       */
+        public int getEditCount(){
+            return numUpdated + numDeleted;
+        }
+
+
+        private long getRowOffset(int id){
+            if (id<1 || id>numShapes) throw new IllegalArgumentException("Invalid record id: " + id);
+            return dbfHeaderLength + (long) (id-1)*dbfRecordLength;
+        }
+
+
+      /** Updates the last update date in the dbf header and closes the
+       *  files.
+       */
+        public void close() throws IOException {
+            if (closed) return;
+            closed = true;
+            try{
+                if (numUpdated+numDeleted>0){
+                    Calendar cal = Calendar.getInstance();
+                    dbfFile.seek(1);
+                    dbfFile.write(new byte[]{
+                        (byte) (cal.get(Calendar.YEAR)-1900),
+                        (byte) (cal.get(Calendar.MONTH)+1),
+                        (byte) cal.get(Calendar.DAY_OF_MONTH)
+                    });
+                }
+            }
+            finally{
+                try{ shpFile.close(); }catch(Exception e){}
+                try{ shxFile.close(); }catch(Exception e){}
+                try{ dbfFile.close(); }catch(Exception e){}
+                closeWriter();
+                synchronized(cache){
+                    cache.clear();
+                }
+            }
+            if (listener!=Metrics.NONE) listener.recordsWritten(numUpdated+numDeleted, bytesWritten, System.nanoTime()-startTime);
+        }
+    }
+
+
+  //**************************************************************************
+  //** parseDouble
+  //**************************************************************************
+  /** Parses a number from an array of ASCII characters. Numbers with up to
+   *  15 significant digits and a small exponent are computed directly from
+   *  the digits, which is exact. Anything else is delegated to
+   *  Double.parseDouble(). Returns NaN if the text is empty or invalid.
+   */
+    private static double parseDouble(byte[] b, int start, int end){
+        while (start<end && (b[start] & 0xff) <= ' ') start++;
+        while (end>start && (b[end-1] & 0xff) <= ' ') end--;
+        if (start==end) return Double.NaN;
+
+        int i = start;
+        boolean negative = false;
+        if (b[i]=='-' || b[i]=='+'){
+            negative = b[i]=='-';
+            i++;
+        }
+
+        long mantissa = 0;
+        int numDigits = 0;
+        int exponent = 0;
+        boolean hasDigits = false;
+        boolean hasDot = false;
+        for (; i<end; i++){
+            int c = b[i];
+            if (c>='0' && c<='9'){
+                hasDigits = true;
+                if (mantissa>0 || c!='0') numDigits++;
+                mantissa = mantissa*10 + (c-'0');
+                if (hasDot) exponent--;
+                if (numDigits>15) break;
+            }
+            else if (c=='.' && !hasDot){
+                hasDot = true;
+            }
+            else break;
+        }
+
+        if (i<end && hasDigits && numDigits<=15 && (b[i]=='e' || b[i]=='E')){
+            int j = i+1;
+            boolean negativeExp = false;
+            if (j<end && (b[j]=='-' || b[j]=='+')){
+                negativeExp = b[j]=='-';
+                j++;
+            }
+            int exp = 0;
+            int k = j;
+            while (k<end && b[k]>='0' && b[k]<='9' && exp<1000){
+                exp = exp*10 + (b[k]-'0');
+                k++;
+            }
+            if (k>j){
+                exponent += negativeExp ? -exp : exp;
+                i = k;
+            }
+        }
+
+        if (i==end && hasDigits && numDigits<=15 && exponent>=-22 && exponent<=22){
+            double d = exponent<0 ?
+                mantissa / POWERS_OF_TEN[-exponent] :
+                mantissa * POWERS_OF_TEN[exponent];
+            return negative ? -d : d;
+        }
+
+        try{
+            return Double.parseDouble(new String(b, start, end-start));
+        }
+        catch(NumberFormatException e){
+            return Double.NaN;
+        }
+    }
+
+    private static final double[] POWERS_OF_TEN = {
+        1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+        1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+    };
+
+
+  //**************************************************************************
+  //** ShapeIterator
+  //**************************************************************************
+  /** Used to read a shapefile from an input stream. Each record is read into
+   *  a buffer and coordinates are decoded into an array of doubles before any
+   *  JTS objects are created. If a tolerance is given, each part is simplified
+   *  using the Douglas-Peucker algorithm as it is decoded. Z and M values are
+   *  stored in the coordinates unless the xyOnly flag is set, in which case
+   *  they are skipped without being read.
+   */
+    private class ShapeIterator implements Iterator<Geometry> {
+        private LittleEndianInputStream _leis = null;
+
+        private int shapeType;
+        private int baseType;
+        private boolean hasZ;
+        private boolean hasM;
+        private Envelope filter;
+        private boolean filtered; //True if the last record was skipped by the filter
+        private double tolerance;
+        private Geometry nextGeom;
+        private boolean fetched;
+        private Geometry[] cache;
+        private int recordNumber;
+        private int numRecords;
+
+      //Scratch buffers reused across records
+        private final byte[] header = new byte[8];
+        private byte[] buf = new byte[1024];
+        private ByteBuffer bb = ByteBuffer.wrap(buf).order(ByteOrder.LITTLE_ENDIAN);
+        private int[] offsets = new int[16];
+        private double[] xy = new double[512];
+        private Coordinate[][] parts = new Coordinate[16][];
+        private RingAssembler rings = new RingAssembler();
+        private Simplifier simplifier;
+
+      //Position of the Z and M arrays in the current record (-1 if none)
+        private int zPos;
+        private int mPos;
+
+      //Contents of the shp file, if the source is backed by memory. Records
+      //are decoded in place instead of being copied into the buffer.
+        private ByteBuffer data;
+
+      //Set when the whole record was read into the buffer by load()
+        private boolean loaded;
+        private int loadedLength;
+
+      //Length of the current record content, in bytes
+        private int contentLength;
+
+        private final Metrics.Listener listener = Metrics.getListener();
+        private final boolean events = Events.isEnabled();
+        private Object scan;
+        private long bytesRead;
+
+        public ShapeIterator(ByteSource source, Envelope filter) throws Exception {
+            this(source, filter, 0);
+        }
+
+        public ShapeIterator(ByteSource source, Envelope filter, double tolerance) throws Exception {
+            this.filter = filter;
+            this.tolerance = tolerance;
+            this.numRecords = numShapes;
+            if (tolerance>0){
+                simplifier = new Simplifier();
+                if (cacheGeometries && filter==null) cache = new Geometry[numShapes];
+            }
+
+
+          //Read the header from the buffer, if there is one, so that the
+          //position of the buffer is at the first record
+            data = source.getBuffer();
+            if (data!=null){
+                data.order(ByteOrder.BIG_ENDIAN);
+                _leis = new LittleEndianInputStream(new ByteSource.ByteBufferInputStream(data));
+            }
+            else{
+                _leis = new LittleEndianInputStream(new BufferedInputStream(source.getInputStream(), 64*1024));
+            }
+            scan = Events.beginScan();
+            bytesRead = SHAPE_FILE_HEADER_LENGTH;
+
+
+            /* int fileCode = */_leis.readInt();
+            _leis.skipBytes(20);
+            /* int fileLength = */_leis.readInt();
+            /* int version = */_leis.readLEInt();
+            shapeType = _leis.readLEInt();
+            /* double xMin = */_leis.readLEDouble();
+            /* double yMin = */_leis.readLEDouble();
+            /* double xMax = */_leis.readLEDouble();
+            /* double yMax = */_leis.readLEDouble();
+            /* double zMin = */_leis.readLEDouble();
+            /* double zMax = */_leis.readLEDouble();
+            /* double mMin = */_leis.readLEDouble();
+            /* double mMax = */_leis.readLEDouble();
+
+            setShapeType(shapeType);
+        }
+
+
+      /** Used to decode a batch of records that were read from the shp file
+       *  by another thread. The records, including their headers, are stored
+       *  back to back in the given array.
+       */
+        public ShapeIterator(byte[] records, int numRecords, int shapeType, Envelope filter, double tolerance) throws Exception {
+            this.filter = filter;
+            this.tolerance = tolerance;
+            this.numRecords = numRecords;
+            if (tolerance>0) simplifier = new Simplifier();
+            _leis = new LittleEndianInputStream(new ByteArrayInputStream(records));
+            setShapeType(shapeType);
+        }
+
+
+        private void setShapeType(int shapeType) throws Exception {
+            this.shapeType = shapeType;
+            baseType = getBaseType(shapeType);
+            if (baseType==SHAPE_TYPE_NULL || shapeType==SHAPE_TYPE_MULTIPATCH){
+                _leis.close();
+                throw new Exception("Unsupported shape: " + shapeType);
+            }
+            if (!xyOnly){
+                hasZ = hasZ(shapeType);
+                hasM = mayHaveM(shapeType);
+            }
+        }
+
+        private int i = 0;
+
+        public boolean hasNext() {
+            if (filter==null) return i < numRecords;
+
+
+          //Find the next shape that intersects the filter
+            if (!fetched){
+                nextGeom = null;
+                try{
+                    while (i < numRecords && nextGeom==null){
+                        nextGeom = readNext();
+                    }
+                    if (nextGeom==null) close();
+                }
+                catch(Exception e){
+                    try{close();}catch(Exception ex){}
+                    throw new RuntimeException(e);
+                }
+                fetched = true;
+            }
+            return nextGeom!=null;
+        }
+
+        public Geometry next() {
+            if (!hasNext()) throw new NoSuchElementException();
+            if (filter!=null){
+                fetched = false;
+                return nextGeom;
+            }
+
+            Geometry geom = null;
+            try{
+                geom = readNext();
+                if (!hasNext()) close();
+            }
+            catch(Exception e){
+                try{close();}catch(Exception ex){}
+                throw new RuntimeException(e);
+            }
+
+            return geom;
+        }
+
+
+      /** Reads the next record in the file. Returns null if the record is a
+       *  null shape or if the shape falls outside the filter.
+       */
+        private Geometry readNext() throws Exception {
+            long startTime = (listener==Metrics.NONE && !events) ? 0 : System.nanoTime();
+            Geometry geom = null;
+            filtered = false;
+            if (baseType==SHAPE_TYPE_POINT){
+                geom = getPoint();
+            }
+            else if (baseType==SHAPE_TYPE_MULTIPOINT){
+                geom = getMultiPoint();
+            }
+            else {
+                geom = getPoly();
+            }
+            if (listener!=Metrics.NONE || events) decoded(geom, contentLength, System.nanoTime()-startTime);
+            if (cache!=null){
+                cache[i] = geom;
+                if (i==numRecords-1) putCache(tolerance, cache);
+            }
+            i++;
+            return geom;
+        }
+
+
+      /** Reads the record header and the first few bytes of the record into
+       *  the buffer. Returns the length of the record content, in bytes.
+       */
+        private int readHeader(int numBytes) throws IOException {
+            if (loaded) return loadedLength;
+            if (data!=null) return sliceRecord();
+            _leis.readFully(header, 0, 8); //one read instead of 8 single-byte reads
+            recordNumber = ByteBuffer.wrap(header).getInt(0);
+            contentLength = ByteBuffer.wrap(header).getInt(4)*2;
+            bytesRead += contentLength+8;
+            if (buf.length<contentLength){
+                buf = new byte[Math.max(contentLength, buf.length*2)];
+                bb = ByteBuffer.wrap(buf).order(ByteOrder.LITTLE_ENDIAN);
+            }
+            _leis.readFully(buf, 0, Math.min(numBytes, contentLength));
+            return contentLength;
+        }
+
+
+      /** Used to point the buffer at the next record in the data buffer,
+       *  without copying. Returns the length of the record content, in bytes.
+       */
+        private int sliceRecord() throws IOException {
+            int pos = data.position();
+            if (data.remaining()<8) throw new EOFException();
+            recordNumber = data.getInt(pos);
+            contentLength = data.getInt(pos+4)*2;
+            if (contentLength<0 || contentLength>data.remaining()-8) throw new EOFException();
+            ByteBuffer record = data.duplicate();
+            record.position(pos+8);
+            record.limit(pos+8+contentLength);
+            bb = record.slice().order(ByteOrder.LITTLE_ENDIAN);
+            data.position(pos+8+contentLength);
+            bytesRead += contentLength+8;
+            return contentLength;
+        }
+
+
+      /** Reads the next record, header and content, into the buffer without
+       *  decoding it. Use decode() to create a geometry from the buffer.
+       *  Returns false if there are no more records.
+       */
+        private boolean load() throws IOException {
+            loaded = false;
+            if (i>=numRecords) return false;
+            loadedLength = readHeader(Integer.MAX_VALUE);
+            loaded = true;
+            i++;
+            return true;
+        }
+
+
+      /** Returns a geometry for the record that was last read by load().
+       *  Returns null if the record is a null shape.
+       */
+        private Geometry decode() throws Exception {
+            if (!loaded) return null;
+            if (loadedLength<4 || bb.getInt(0)==SHAPE_TYPE_NULL) return null;
+            long startTime = (listener==Metrics.NONE && !events) ? 0 : System.nanoTime();
+            Geometry geom;
+            if (baseType==SHAPE_TYPE_POINT) geom = getPoint();
+            else if (baseType==SHAPE_TYPE_MULTIPOINT) geom = getMultiPoint();
+            else geom = getPoly();
+            if ((listener!=Metrics.NONE || events) && geom!=null) decoded(geom, loadedLength, System.nanoTime()-startTime);
+            return geom;
+        }
+
+
+      /** Used to copy the record that was last read by load() to a buffer,
+       *  with a big-endian record header (record number and content length in
+       *  16-bit words) followed by the content, as in the shp file.
+       */
+        private void copyRecord(OutputBuffer out){
+            out.ensure(8+loadedLength);
+            ByteBuffer.wrap(out.buf, out.length, 8).putInt(recordNumber).putInt(loadedLength/2);
+            out.length += 8;
+            out.put(bb, 0, loadedLength);
+        }
+
+
+      /** Returns true if the bounding box of the record that was last read by
+       *  load() intersects an extent. Null shapes never intersect.
+       */
+        private boolean intersects(Envelope extent){
+            if (!loaded || loadedLength<4 || bb.getInt(0)==SHAPE_TYPE_NULL) return false;
+            if (baseType==SHAPE_TYPE_POINT){
+                return loadedLength>=20 && extent.intersects(bb.getDouble(4), bb.getDouble(12));
+            }
+            if (loadedLength<36) return false;
+            return !(bb.getDouble(4)>extent.getMaxX() || bb.getDouble(20)<extent.getMinX() ||
+                bb.getDouble(12)>extent.getMaxY() || bb.getDouble(28)<extent.getMinY());
+        }
+
+
+      /** Reports a decoded record to the metrics listener and the flight
+       *  recorder. A null geometry is only reported as a filtered record if
+       *  the record was skipped by the filter. Null shapes and geometries
+       *  that collapse when they are simplified are not reported.
+       */
+        private void decoded(Geometry geom, int contentLength, long nanos){
+            if (geom==null){
+                if (filtered) listener.recordFiltered();
+                return;
+            }
+            int numVertices = geom.getNumPoints();
+            listener.geometryDecoded(contentLength+8, numVertices, nanos);
+            if (events) Events.recordDecoded(shp, recordNumber, numVertices, contentLength+8, nanos);
+        }
+
+
+      /** Reads bytes from the stream into the buffer, unless the whole
+       *  record has already been loaded or is decoded in place.
+       */
+        private void read(int start, int end) throws IOException {
+            if (!loaded && data==null && end>start) _leis.readFully(buf, start, end-start);
+        }
+
+
+      /** Skips bytes in the stream, unless the whole record has already been
+       *  loaded or is decoded in place.
+       */
+        private void skipBytes(int n) throws IOException {
+            if (!loaded && data==null) _leis.skipBytes(n);
+        }
+
+
+      /** Reads the rest of the record into the buffer. If the record has Z
+       *  or M values that are not needed, they are skipped in one go.
+       *  @param start Number of bytes already in the buffer
+       *  @param xyEnd Offset to the end of the XY coordinates
+       *  @param numPoints Number of points in the record
+       */
+        private void readBody(int start, int xyEnd, int numPoints, int contentLength) throws IOException {
+            zPos = mPos = -1;
+            int end = xyEnd;
+            int zmLength = 16 + numPoints*8;
+            if (hasZ && contentLength>=xyEnd+zmLength){
+                zPos = xyEnd + 16;
+                end += zmLength;
+            }
+            if (hasM){
+                int start2 = hasZ(shapeType) ? xyEnd + zmLength : xyEnd;
+                if (contentLength>=start2+zmLength){
+                    mPos = start2 + 16;
+                    end = start2 + zmLength;
+                }
+            }
+            end = Math.min(end, contentLength);
+            read(start, end);
+            if (contentLength>end) skipBytes(contentLength-end);
+        }
+
+
+        private Geometry getPoint() throws Exception {
+            Geometry geom = null;
+
+            int contentLength = readHeader(20);
+            int shpType = bb.getInt(0);
+            if (shpType != SHAPE_TYPE_NULL) {
+
+                double lon = bb.getDouble(4);
+                double lat = bb.getDouble(12);
+                if (filter!=null && !filter.intersects(lon, lat)){
+                    skipBytes(contentLength-20);
+                    filtered = true;
+                    return null;
+                }
+
+
+              //PointZ has X, Y, Z and an optional M. PointM has X, Y and M.
+                zPos = mPos = -1;
+                int end = 20;
+                if (hasZ && contentLength>=28){
+                    zPos = 20;
+                    end = 28;
+                }
+                if (hasM){
+                    int pos = hasZ(shapeType) ? 28 : 20;
+                    if (contentLength>=pos+8){
+                        mPos = pos;
+                        end = pos + 8;
                     }
-                    else{
-                        MultiLineString mp = (MultiLineString) geom;
-                        numShapes = mp.getNumGeometries();
-                        for (int j=0; j<numShapes; j++){
-                            numCoordinates += mp.getGeometryN(j).getCoordinates().length;
+                }
+                read(20, end);
+                if (contentLength>end) skipBytes(contentLength-end);
+
+                geom = geometryFactory.createPoint(getCoordinate(lon, lat, 0));
+                geom.setUserData(recordNumber - 1);
+            }
+            else{
+                if (contentLength>20) skipBytes(contentLength-20);
+            }
+
+            return geom;
+        }
+
+
+        private Geometry getMultiPoint() throws Exception {
+
+            int contentLength = readHeader(40);
+            int shpType = bb.getInt(0);
+            if (shpType == SHAPE_TYPE_NULL) {
+                if (contentLength>40) skipBytes(contentLength-40);
+                return null;
+            }
+            if (skip(contentLength, 40)) return null;
+
+
+            int numPoints = bb.getInt(36);
+            readBody(40, 40 + numPoints*16, numPoints, contentLength);
+
+            Coordinate[] coordinates = new Coordinate[numPoints];
+            for (int n = 0; n < numPoints; n++) {
+                int pos = 40 + n*16;
+                coordinates[n] = getCoordinate(bb.getDouble(pos), bb.getDouble(pos+8), n);
+            }
+
+            Geometry geom = geometryFactory.createMultiPointFromCoords(coordinates);
+            geom.setUserData(recordNumber - 1);
+            return geom;
+        }
+
+
+      /** Returns true if the bounding box of the current record falls outside
+       *  the filter, in which case the rest of the record is skipped.
+       */
+        private boolean skip(int contentLength, int numBytesRead) throws IOException {
+            if (filter==null) return false;
+            double xLeft = bb.getDouble(4);
+            double xBottom = bb.getDouble(12);
+            double xRight = bb.getDouble(20);
+            double xTop = bb.getDouble(28);
+            if (xLeft>filter.getMaxX() || xRight<filter.getMinX() ||
+                xBottom>filter.getMaxY() || xTop<filter.getMinY()){
+                skipBytes(contentLength-numBytesRead);
+                filtered = true;
+                return true;
+            }
+            return false;
+        }
+
+
+        private Geometry getPoly() throws Exception {
+            Geometry geom = null;
+
+            int contentLength = readHeader(44);
+            int shpType = bb.getInt(0);
+            if (shpType == SHAPE_TYPE_NULL) {
+                if (contentLength>44) skipBytes(contentLength-44);
+                return null;
+            }
+            if (skip(contentLength, 44)) return null;
+
+
+          //Read the rest of the record
+            int numParts = bb.getInt(36);
+            int numPoints = bb.getInt(40);
+            int pos = 44 + numParts*4;
+            readBody(44, pos + numPoints*16, numPoints, contentLength);
+            if (offsets.length<numParts+1) offsets = new int[numParts+1];
+            for (int n = 0; n < numParts; n++) {
+                offsets[n] = bb.getInt(44 + n*4);
+            }
+            offsets[numParts] = numPoints;
+
+
+            boolean isPolygon = baseType == SHAPE_TYPE_POLYGON;
+            if (parts.length<numParts) parts = new Coordinate[numParts][];
+            if (isPolygon) rings.init(numParts, pos, bb, offsets);
+            int numValid = 0;
+            Coordinate[] largest = null;
+            int largestSize = 0;
+            for (int j=0; j<numParts; j++) {
+
+                int numVertices = offsets[j + 1] - offsets[j];
+                if (xy.length<numVertices*2) xy = new double[numVertices*2];
+                for (int n = 0; n < numVertices*2; n++) {
+                    xy[n] = bb.getDouble(pos);
+                    pos += 8;
+                }
+                if (isPolygon) rings.add(j, xy, numVertices);
+
+
+                Coordinate[] coordinates;
+                if (simplifier!=null){
+                    int minPoints = isPolygon ? 4 : 2;
+                    int count = simplifier.simplify(xy, numVertices, tolerance, minPoints, false);
+                    if (count==0){
+
+                      //Part collapsed. Keep a minimal version of the largest
+                      //part in case all the parts collapse.
+                        boolean isHole = isPolygon && rings.area[j]>0;
+                        if (numValid==0 && numVertices>largestSize && !isHole){
+                            count = simplifier.simplify(xy, numVertices, tolerance, minPoints, true);
+                            if (count>0){
+                                largest = getCoordinates(xy, numVertices, offsets[j], simplifier.keep, count);
+                                largestSize = numVertices;
+                            }
                         }
+                        parts[j] = null;
+                        continue;
                     }
-
+                    coordinates = getCoordinates(xy, numVertices, offsets[j], simplifier.keep, count);
                 }
                 else{
-                    numShapes = 1;
-                    numCoordinates = ((Geometry) geom).getCoordinates().length;
+                    coordinates = getCoordinates(xy, numVertices, offsets[j], null, numVertices);
                 }
+                parts[j] = coordinates;
+                numValid++;
+            }
 
-                contentLength += (numShapes * 2); // offsets?
-                contentLength += (numCoordinates * (2 + 4)); // points, 2 doubles each
 
-                index[1][i] = contentLength;
-                index[0][i] = pos;
-                pos += contentLength + 4;
+          //Create geometry
+            if (isPolygon) {
+                geom = rings.getGeometry(parts, numParts);
+                if (geom==null && largest!=null){
+                    geom = geometryFactory.createPolygon(largest);
+                }
+            }
+            else {
+                ArrayList<LineString> list = new ArrayList<>(numParts);
+                for (int j=0; j<numParts; j++){
+                    if (parts[j]!=null) list.add(geometryFactory.createLineString(parts[j]));
+                }
+                if (list.isEmpty() && largest!=null){
+                    list.add(geometryFactory.createLineString(largest));
+                }
+                if (list.size()>1){
+                    geom = geometryFactory.createMultiLineString(list.toArray(new LineString[list.size()]));
+                }
+                else if (!list.isEmpty()){
+                    geom = list.get(0);
+                }
             }
+            Arrays.fill(parts, 0, numParts, null);
+
+            if (geom!=null) geom.setUserData(recordNumber - 1);
+            return geom;
         }
 
 
-        if (!dir.exists()) dir.mkdirs();
+      /** Returns coordinates for a part.
+       *  @param offset Index of the first point of the part in the record.
+       *  Used to find Z and M values.
+       *  @param keep Flags used to identify which points to keep. If null,
+       *  all the points are returned.
+       */
+        private Coordinate[] getCoordinates(double[] xy, int numVertices, int offset, boolean[] keep, int count){
+            Coordinate[] coordinates = new Coordinate[count];
+            int i = 0;
+            for (int n = 0; n < numVertices; n++) {
+                if (keep==null || keep[n]){
+                    coordinates[i++] = getCoordinate(xy[n*2], xy[n*2+1], offset+n);
+                }
+            }
+            return coordinates;
+        }
 
 
-      //Save index (shx file)
-        shx = new java.io.File(dir, name + ".shx");
-        ShxOutputStream shxOutputStream = new ShxOutputStream(new FileOutputStream(shx));
-        shxOutputStream.writeIndex(index, shapeType, getExtents());
+      /** Returns a coordinate for a point in the current record, with Z and M
+       *  values if available. M values less than -10^38 are treated as "no
+       *  data" and returned as NaN.
+       */
+        private Coordinate getCoordinate(double x, double y, int idx){
+            if (zPos<0 && mPos<0) return new Coordinate(x, y);
+            double z = zPos<0 ? Coordinate.NULL_ORDINATE : bb.getDouble(zPos + idx*8);
+            if (mPos<0) return new Coordinate(x, y, z);
+            double m = bb.getDouble(mPos + idx*8);
+            if (m < -1e38) m = Double.NaN;
+            if (zPos<0) return new CoordinateXYM(x, y, m);
+            return new CoordinateXYZM(x, y, z, m);
+        }
 
 
-      //Save geometries (shp)
-        shp = new java.io.File(dir, name + ".shp");
-        ShpOutputStream shpOutputStream = new ShpOutputStream(new FileOutputStream(shp));
-        shpOutputStream.write(shapeType, index, geomIndex);
+        public void close() throws IOException {
+           _leis.close();
+           if (scan!=null){
+               Events.endScan(scan, shp, i, bytesRead, filter);
+               scan = null;
+           }
+        }
+    }
 
 
-      //Save attributes
-        dbf = new java.io.File(dir, name + ".dbf");
-        DbfOutputStream dbfOutputStream = new DbfOutputStream(new FileOutputStream(shp));
-        //dbfOutputStream.writeModel(model);
+  //**************************************************************************
+  //** CachedIterator
+  //**************************************************************************
+  /** Used to iterate through geometries stored in the cache.
+   */
+    private class CachedIterator implements Iterator<Geometry> {
+        private Geometry[] geometries;
+        private Envelope filter;
+        private int i = 0;
+
+        public CachedIterator(Geometry[] geometries, Envelope filter){
+            this.geometries = geometries;
+            this.filter = filter;
+        }
+
+        public boolean hasNext(){
+            if (filter!=null){
+                while (i<geometries.length){
+                    Geometry geom = geometries[i];
+                    if (geom!=null && geom.getEnvelopeInternal().intersects(filter)) break;
+                    i++;
+                }
+            }
+            return i<geometries.length;
+        }
+
+        public Geometry next(){
+            if (!hasNext()) throw new NoSuchElementException();
+            return geometries[i++];
+        }
     }
 
 
   //**************************************************************************
-  //** ShapeIterator
+  //** RingAssembler
   //**************************************************************************
-  /** Used to read a shapefile from an input stream
+  /** Used to assemble the rings in a polygon record into polygons. Rings
+   *  are classified using their orientation: clockwise rings are shells
+   *  and counter-clockwise rings are holes. The signed area and bounding
+   *  box of each ring is computed as the ring is decoded. Holes are then
+   *  assigned to the smallest shell that contains them. Shells are
+   *  prefiltered by bounding box, using an STRtree for records with many
+   *  rings, and the containment test reads the shell vertices directly
+   *  from the record buffer.
    */
-    private class ShapeIterator implements Iterator<Geometry> {
-        private LittleEndianInputStream _leis = null;
+    static class RingAssembler {
+        double[] area = new double[16];
+        private double[] bounds = new double[64]; //minX, minY, maxX, maxY
+        private int[] shells = new int[16];
+        private int xyStart;
+        private int numRings;
+        private int numShells;
+        private ByteBuffer bb;
+        private int[] offsets;
+
+      //Index of the shell of each ring (-1 for shells) and the holes of each
+      //shell, linked with the head and next arrays
+        int[] shell = new int[16];
+        int[] head = new int[16];
+        int[] next = new int[16];
+
+      /** Used to reset the assembler for a new record
+       *  @param xyStart Offset to the first XY coordinate in the buffer
+       *  @param bb Record buffer, used to test whether holes are inside shells
+       *  @param offsets Index of the first point of each ring in the record
+       */
+        public void init(int numRings, int xyStart, ByteBuffer bb, int[] offsets){
+            this.numRings = numRings;
+            this.xyStart = xyStart;
+            this.bb = bb;
+            this.offsets = offsets;
+            if (area.length<numRings){
+                area = new double[numRings];
+                bounds = new double[numRings*4];
+                shell = new int[numRings];
+                head = new int[numRings];
+                next = new int[numRings];
+                shells = new int[numRings];
+            }
+        }
 
-        private int shapeType;
+      /** Used to compute the signed area and bounding box of a ring */
+        public void add(int idx, double[] xy, int numVertices){
+            double minX = Double.MAX_VALUE, minY = Double.MAX_VALUE;
+            double maxX = -Double.MAX_VALUE, maxY = -Double.MAX_VALUE;
+            double sum = 0;
+            if (numVertices>0){
+                double x0 = xy[0], y0 = xy[1];
+                for (int n=0; n<numVertices; n++){
+                    double x = xy[n*2], y = xy[n*2+1];
+                    if (x<minX) minX = x;
+                    if (x>maxX) maxX = x;
+                    if (y<minY) minY = y;
+                    if (y>maxY) maxY = y;
+                    if (n<numVertices-1){
+                        sum += (x-x0)*(xy[n*2+3]-y0) - (xy[n*2+2]-x0)*(y-y0);
+                    }
+                }
+            }
+            area[idx] = sum/2;
+            bounds[idx*4] = minX;
+            bounds[idx*4+1] = minY;
+            bounds[idx*4+2] = maxX;
+            bounds[idx*4+3] = maxY;
+        }
 
-        public ShapeIterator(InputStream is) throws Exception {
 
+      /** Returns a Polygon or MultiPolygon for the current record. Parts
+       *  that are null (e.g. collapsed during simplification) are skipped,
+       *  along with the holes of collapsed shells.
+       */
+        public Geometry getGeometry(Coordinate[][] parts, int numParts){
+            assemble();
 
-            BufferedInputStream bis = new BufferedInputStream(is);
-            _leis = new LittleEndianInputStream(bis);
 
+          //Create polygons. Holes that are not inside a shell are
+          //treated as shells.
+            ArrayList<Polygon> polygons = new ArrayList<>();
+            ArrayList<LinearRing> holes = new ArrayList<>();
+            for (int j=0; j<numRings; j++){
+                if (shell[j]>=0 || parts[j]==null) continue;
+
+                holes.clear();
+                for (int k=head[j]; k>=0; k=next[k]){
+                    if (parts[k]!=null) holes.add(geometryFactory.createLinearRing(parts[k]));
+                }
+                LinearRing ring = geometryFactory.createLinearRing(parts[j]);
+                polygons.add(geometryFactory.createPolygon(ring,
+                    holes.isEmpty() ? null : holes.toArray(new LinearRing[holes.size()])));
+            }
+
+            if (polygons.isEmpty()) return null;
+            if (polygons.size()==1) return polygons.get(0);
+            return geometryFactory.createMultiPolygon(polygons.toArray(new Polygon[polygons.size()]));
+        }
 
-            /* int fileCode = */_leis.readInt();
-            _leis.skipBytes(20);
-            /* int fileLength = */_leis.readInt();
-            /* int version = */_leis.readLEInt();
-            shapeType = _leis.readLEInt();
-            /* double xMin = */_leis.readLEDouble();
-            /* double yMin = */_leis.readLEDouble();
-            /* double xMax = */_leis.readLEDouble();
-            /* double yMax = */_leis.readLEDouble();
-            /* double zMin = */_leis.readLEDouble();
-            /* double zMax = */_leis.readLEDouble();
-            /* double mMin = */_leis.readLEDouble();
-            /* double mMax = */_leis.readLEDouble();
 
-            if (shapeType==SHAPE_TYPE_POINT){
-                //getPoints();
+      /** Used to assign holes to shells. Rings with a shell index of -1 are
+       *  shells (or holes that are not inside a shell). The holes of each
+       *  shell are linked with the head and next arrays.
+       */
+        void assemble(){
+
+
+          //Classify rings. If there are no clockwise rings, the record
+          //was written with the wrong orientation so treat every ring
+          //as a shell.
+            numShells = 0;
+            for (int j=0; j<numRings; j++){
+                if (area[j]<=0) shells[numShells++] = j;
             }
-            else if (shapeType == SHAPE_TYPE_POLYLINE ||
-                shapeType == SHAPE_TYPE_POLYGON) {
-                //getPolys(shapeType);
+            boolean allShells = numShells==0;
+            if (allShells) numShells = numRings;
+
+
+          //Assign holes to shells
+            int numHoles = numRings - numShells;
+            STRtree tree = null;
+            if (numHoles>0 && numShells>1 && (long) numHoles*numShells>256){
+                tree = new STRtree();
+                for (int k=0; k<numShells; k++){
+                    int j = shells[k];
+                    tree.insert(getEnvelope(j), j);
+                }
             }
-            else {
-                throw new Exception("Unsupported shape: " + shapeType);
+            for (int j=0; j<numRings; j++){
+                if (allShells || area[j]<=0){
+                    shell[j] = -1;
+                    continue;
+                }
+                shell[j] = findShell(j, tree);
+            }
+
+
+          //Link holes to their shells
+            Arrays.fill(head, 0, numRings, -1);
+            for (int j=numRings-1; j>=0; j--){
+                int k = shell[j];
+                if (k>=0){
+                    next[j] = head[k];
+                    head[k] = j;
+                }
+            }
+        }
+
+
+      /** Returns the index of the smallest shell that contains a hole, or
+       *  -2 if no shell contains the hole.
+       */
+        private int findShell(int hole, STRtree tree){
+            double minX = bounds[hole*4], minY = bounds[hole*4+1];
+            double maxX = bounds[hole*4+2], maxY = bounds[hole*4+3];
+
+            int candidate = -2;
+            int match = -2;
+            double candidateArea = Double.MAX_VALUE;
+            double matchArea = Double.MAX_VALUE;
+
+            List<?> items = null;
+            int numItems = numShells;
+            if (tree!=null){
+                items = tree.query(getEnvelope(hole));
+                numItems = items.size();
+            }
+
+            for (int k=0; k<numItems; k++){
+                int j = items==null ? shells[k] : (Integer) items.get(k);
+                if (bounds[j*4]>minX || bounds[j*4+1]>minY ||
+                    bounds[j*4+2]<maxX || bounds[j*4+3]<maxY) continue;
+
+                double a = -area[j];
+                if (a<candidateArea){
+                    candidate = j;
+                    candidateArea = a;
+                }
+                if (a<matchArea && contains(j, hole)){
+                    match = j;
+                    matchArea = a;
+                }
+            }
+
+          //If the containment test failed (e.g. the hole touches the
+          //shell) fall back to the smallest shell that covers the hole
+            return match>-2 ? match : candidate;
+        }
+
+
+      /** Returns true if the first vertex of a hole is inside a shell,
+       *  using the even-odd rule on the shell vertices in the buffer.
+       */
+        private boolean contains(int shell, int hole){
+            int holePos = xyStart + offsets[hole]*16;
+            double px = bb.getDouble(holePos);
+            double py = bb.getDouble(holePos+8);
+
+            int start = xyStart + offsets[shell]*16;
+            int numVertices = offsets[shell+1] - offsets[shell];
+            boolean inside = false;
+            double x1 = bb.getDouble(start);
+            double y1 = bb.getDouble(start+8);
+            for (int n=1; n<numVertices; n++){
+                int pos = start + n*16;
+                double x2 = bb.getDouble(pos);
+                double y2 = bb.getDouble(pos+8);
+                if ((y1>py) != (y2>py) &&
+                    px < (x2-x1) * (py-y1) / (y2-y1) + x1){
+                    inside = !inside;
+                }
+                x1 = x2;
+                y1 = y2;
+            }
+            return inside;
+        }
+
+        private Envelope getEnvelope(int idx){
+            return new Envelope(bounds[idx*4], bounds[idx*4+2], bounds[idx*4+1], bounds[idx*4+3]);
+        }
+    }
+
+
+  //**************************************************************************
+  //** Simplifier
+  //**************************************************************************
+  /** Used to simplify a line or ring stored in an array of doubles using the
+   *  Douglas-Peucker algorithm. Uses an explicit stack instead of recursion
+   *  and reuses the scratch buffers across calls.
+   */
+    static class Simplifier {
+        public boolean[] keep = new boolean[256];
+        private int[] stack = new int[64];
+
+      /** Returns the number of points to keep, or zero if the line or ring
+       *  collapses to fewer than minPoints. Points to keep are flagged in the
+       *  keep array. If force is true, points are added back to collapsed
+       *  rings so that they keep a minimal shape.
+       */
+        public int simplify(double[] xy, int numPoints, double tolerance, int minPoints, boolean force){
+            if (keep.length<numPoints) keep = new boolean[numPoints];
+            if (numPoints<=minPoints){
+                if (numPoints<minPoints) return 0;
+                Arrays.fill(keep, 0, numPoints, true);
+                return numPoints;
+            }
+
+            Arrays.fill(keep, 0, numPoints, false);
+            keep[0] = true;
+            keep[numPoints-1] = true;
+            double sqTolerance = tolerance*tolerance;
+
+            int last = numPoints-1;
+            if (xy[0]==xy[last*2] && xy[1]==xy[last*2+1]){
+
+              //Closed ring. Split the ring at the point furthest from the
+              //start so that the first pass has a valid baseline.
+                int far = 0;
+                double max = -1;
+                for (int n=1; n<last; n++){
+                    double dx = xy[n*2]-xy[0], dy = xy[n*2+1]-xy[1];
+                    double d = dx*dx + dy*dy;
+                    if (d>max){
+                        max = d;
+                        far = n;
+                    }
+                }
+                if (far==0) return 0;
+                keep[far] = true;
+                simplify(xy, 0, far, sqTolerance);
+                simplify(xy, far, last, sqTolerance);
+
+                if (force){
+                    simplify(xy, 0, far, -1, 1);
+                    simplify(xy, far, last, -1, 1);
+                }
+            }
+            else{
+                simplify(xy, 0, last, sqTolerance);
+            }
+
+            int count = 0;
+            for (int n=0; n<numPoints; n++){
+                if (keep[n]) count++;
+            }
+            return count<minPoints ? 0 : count;
+        }
+
+        private void simplify(double[] xy, int first, int last, double sqTolerance){
+            simplify(xy, first, last, sqTolerance, Integer.MAX_VALUE);
+        }
+
+      /** Keeps points between the first and last index that are further than
+       *  the tolerance from the baseline, up to a maximum number of splits.
+       */
+        private void simplify(double[] xy, int first, int last, double sqTolerance, int maxSplits){
+            int top = 0;
+            stack[top++] = first;
+            stack[top++] = last;
+            while (top>0){
+                last = stack[--top];
+                first = stack[--top];
+
+                double ax = xy[first*2], ay = xy[first*2+1];
+                double bx = xy[last*2], by = xy[last*2+1];
+                double dx = bx-ax, dy = by-ay;
+                double len = dx*dx + dy*dy;
+
+                double max = 0;
+                int idx = -1;
+                for (int n=first+1; n<last; n++){
+                    double px = xy[n*2]-ax, py = xy[n*2+1]-ay;
+                    double d;
+                    if (len==0){
+                        d = px*px + py*py;
+                    }
+                    else{
+                        double cross = px*dy - py*dx;
+                        d = cross*cross/len;
+                    }
+                    if (d>max){
+                        max = d;
+                        idx = n;
+                    }
+                }
+
+                if (idx>-1 && max>sqTolerance && maxSplits-->0){
+                    keep[idx] = true;
+                    if (stack.length<top+4) stack = Arrays.copyOf(stack, stack.length*2);
+                    stack[top++] = first;
+                    stack[top++] = idx;
+                    stack[top++] = idx;
+                    stack[top++] = last;
+                }
+            }
+        }
+    }
+
+
+  //**************************************************************************
+  //** getTolerance
+  //**************************************************************************
+  /** Returns a simplification tolerance, in degrees, that matches the size of
+   *  a pixel at a given zoom level, assuming 256x256 pixel web map tiles.
+   */
+    public static double getTolerance(int zoom){
+        return 360.0 / (256.0 * (1L << zoom));
+    }
+
+
+  //**************************************************************************
+  //** setCacheGeometries
+  //**************************************************************************
+  /** Used to keep simplified geometries in memory. When enabled, a complete
+   *  scan with a given tolerance stores the simplified geometries and later
+   *  scans with the same tolerance are served from memory. Cached levels are
+   *  held by soft references so they can be reclaimed by the garbage
+   *  collector. Disabled by default.
+   */
+    public void setCacheGeometries(boolean cacheGeometries){
+        this.cacheGeometries = cacheGeometries;
+        if (!cacheGeometries){
+            synchronized(cache){
+                cache.clear();
+            }
+        }
+    }
+
+    private Geometry[] getCache(double tolerance){
+        if (!cacheGeometries || tolerance<=0) return null;
+        synchronized(cache){
+            SoftReference<Geometry[]> ref = cache.get(tolerance);
+            return ref==null ? null : ref.get();
+        }
+    }
+
+    private void putCache(double tolerance, Geometry[] geometries){
+        synchronized(cache){
+            cache.put(tolerance, new SoftReference<>(geometries));
+        }
+    }
+
+
+  //**************************************************************************
+  //** getGeometryIterator
+  //**************************************************************************
+    private Iterator<Geometry> getGeometryIterator(Envelope extent, double tolerance) throws Exception {
+        Geometry[] geometries = getCache(tolerance);
+        if (geometries!=null){
+            Metrics.getListener().cacheHit();
+            return new CachedIterator(geometries, extent);
+        }
+        return new ShapeIterator(shpSource, extent, tolerance);
+    }
+
+
+  //**************************************************************************
+  //** Bounds
+  //**************************************************************************
+  /** Used to compute the extent and the Z and M ranges of a set of shapes.
+   */
+    private static class Bounds {
+        private Envelope extent = new Envelope();
+        private double zMin = Double.NaN;
+        private double zMax = Double.NaN;
+        private double mMin = Double.NaN;
+        private double mMax = Double.NaN;
+
+        public void add(Geometry geom){
+            if (geom==null || geom.isEmpty()) return;
+            extent.expandToInclude(geom.getEnvelopeInternal());
+            for (Coordinate c : geom.getCoordinates()){
+                double z = c.getZ();
+                if (!Double.isNaN(z)){
+                    if (Double.isNaN(zMin) || z<zMin) zMin = z;
+                    if (Double.isNaN(zMax) || z>zMax) zMax = z;
+                }
+                double m = c.getM();
+                if (!Double.isNaN(m)){
+                    if (Double.isNaN(mMin) || m<mMin) mMin = m;
+                    if (Double.isNaN(mMax) || m>mMax) mMax = m;
+                }
             }
         }
 
-        private int i = 0;
+      /** Returns the extents in the order used by the ShxOutputStream (miny,
+       *  minx, maxy, maxx)
+       */
+        public double[] getExtents(){
+            if (extent.isNull()) return new double[] { 0, 0, 0, 0 };
+            return new double[] {
+                extent.getMinY(), extent.getMinX(), extent.getMaxY(), extent.getMaxX()
+            };
+        }
+    }
 
-        public boolean hasNext() {
-            return i < numShapes;
+
+  //**************************************************************************
+  //** ShpOutputStream
+  //**************************************************************************
+  /** Used to write a shapefile to an output stream. Polygon shells are
+   *  written clockwise and holes counter-clockwise, as required by the
+   *  shapefile spec. Z values that are NaN are written as 0 and M values
+   *  that are NaN are written as "no data". The M values are left out of Z
+   *  records that don't have any.
+   */
+    private static class ShpOutputStream {
+        private LittleEndianOutputStream _leos = null;
+        private int shapeType;
+        private int baseType;
+        private boolean hasZ;
+        private boolean hasM;
+        public final static int ESRI_RECORD_HEADER_LENGTH = 4; // length in 16-bit words
+        public final static double NO_DATA = -1e39;
+
+        public ShpOutputStream(OutputStream os, int shapeType) {
+            BufferedOutputStream bos = new BufferedOutputStream(os, 64*1024);
+            _leos = new LittleEndianOutputStream(bos);
+            this.shapeType = shapeType;
+            this.baseType = getBaseType(shapeType);
+            this.hasZ = hasZ(shapeType);
+            this.hasM = mayHaveM(shapeType);
         }
 
-        public Geometry next() {
-            if (!hasNext()) throw new NoSuchElementException();
-            Geometry geom = null;
-            try{
-                if (shapeType==SHAPE_TYPE_POINT){
-                    geom = getPoint();
-                }
-                else if (shapeType == SHAPE_TYPE_POLYLINE ||
-                    shapeType == SHAPE_TYPE_POLYGON) {
-                    geom = getPoly();
-                }
 
-                i++;
+      /** Writes the file header.
+       *  @param fileLength Length of the file in 16-bit words, including the
+       *  header.
+       */
+        public void writeHeader(int fileLength, Bounds bounds) throws IOException {
+            _leos.writeInt(9994); // Byte 0 File Code
+            _leos.writeInt(0); // Byte 4 Unused
+            _leos.writeInt(0); // Byte 8 Unused
+            _leos.writeInt(0); // Byte 12 Unused
+            _leos.writeInt(0); // Byte 16 Unused
+            _leos.writeInt(0); // Byte 20 Unused
+            _leos.writeInt(fileLength); // Byte 24 File Length
+            _leos.writeLEInt(1000); // Byte 28 Version
+            _leos.writeLEInt(shapeType); // Byte 32 Shape Type
+
+            // Writes bounding box.
+            if (bounds.extent.isNull()) writeExtents(new Envelope(0, 0, 0, 0));
+            else writeExtents(bounds.extent);
 
-                if (!hasNext()) close();
-            }
-            catch(Exception e){
-                try{close();}catch(Exception ex){}
-                throw new RuntimeException(e);
+            _leos.writeLEDouble(Double.isNaN(bounds.zMin) ? 0 : bounds.zMin); // Byte 68
+            _leos.writeLEDouble(Double.isNaN(bounds.zMax) ? 0 : bounds.zMax); // Byte 76
+            _leos.writeLEDouble(Double.isNaN(bounds.mMin) ? 0 : bounds.mMin); // Byte 84
+            _leos.writeLEDouble(Double.isNaN(bounds.mMax) ? 0 : bounds.mMax); // Byte 92
+        }
+
+
+      /** Returns the length of a record, in 16-bit words, excluding the
+       *  record header.
+       */
+        public static int getContentLength(int shapeType, Geometry geom){
+            if (geom==null || geom.isEmpty()) return 2;
+            int baseType = getBaseType(shapeType);
+            boolean hasZ = hasZ(shapeType);
+            boolean hasM = mayHaveM(shapeType);
+
+            int contentLength = 2; // Shape Type
+            if (baseType==SHAPE_TYPE_POINT){
+                contentLength += 8; // X, Y
+                if (hasZ) contentLength += 4;
+                if (hasM && (!hasZ || hasMeasures(geom))) contentLength += 4;
+                return contentLength;
             }
 
-            return geom;
+            int numPoints = geom.getNumPoints();
+            contentLength += 16; // Box
+            if (baseType!=SHAPE_TYPE_MULTIPOINT){
+                contentLength += 2; // NumParts
+                contentLength += getNumParts(geom) * 2; // Parts
+            }
+            contentLength += 2; // NumPoints
+            contentLength += numPoints * 8; // Points
+            if (hasZ) contentLength += 8 + numPoints * 4;
+            if (hasM && (!hasZ || hasMeasures(geom))) contentLength += 8 + numPoints * 4;
+            return contentLength;
         }
 
 
-        private Geometry getPoint() throws Exception {
-            Geometry geom = null;
+      /** Writes a record
+       *  @param recordNumber Record number. Record numbers start with 1.
+       */
+        public void writeRecord(int recordNumber, Geometry geom) throws IOException {
 
-            int shpRecord = _leis.readInt();
-            /* int shpContentLength = */_leis.readInt();
-            int shpType = _leis.readLEInt();
-            if (shpType != SHAPE_TYPE_NULL) {
+            // Record header...
+            _leos.writeInt(recordNumber);
+            _leos.writeInt(getContentLength(shapeType, geom));
+
+            if (geom==null || geom.isEmpty()){
+                _leos.writeLEInt(SHAPE_TYPE_NULL);
+                return;
+            }
 
-                double lon = _leis.readLEDouble();
-                double lat = _leis.readLEDouble();
-                int idx = new Integer(shpRecord - 1);
+            // Beginning of Geometry data
+            _leos.writeLEInt(shapeType);
 
-                geom = geometryFactory.createPoint(new Coordinate(lon, lat));
-                geom.setUserData(idx);
+            if (baseType==SHAPE_TYPE_POINT){
+                Coordinate c = geom.getCoordinate();
+                _leos.writeLEDouble(c.x);
+                _leos.writeLEDouble(c.y);
+                if (hasZ) _leos.writeLEDouble(getZ(c));
+                if (hasM && (!hasZ || !Double.isNaN(c.getM()))) _leos.writeLEDouble(getM(c));
+                return;
             }
 
-            return geom;
-        }
 
+            // Get parts
+            ArrayList<Coordinate[]> parts = getParts(geom);
+            int numPoints = 0;
+            for (Coordinate[] coordinates : parts) numPoints += coordinates.length;
 
-        private Geometry getPoly() throws Exception {
-            Geometry geom = null;
+            // Write extents
+            writeExtents(geom.getEnvelopeInternal());
 
-            Integer idx = new Integer(_leis.readInt() - 1);
-            /* int shpContentLength = */_leis.readInt();
-            int shpType = _leis.readLEInt();
+            if (baseType!=SHAPE_TYPE_MULTIPOINT){
 
-            if (shpType != SHAPE_TYPE_NULL) {
+                // Writes number of parts
+                _leos.writeLEInt(parts.size());
 
-                /* double xLeft = */_leis.readLEDouble();
-                /* double xBottom = */_leis.readLEDouble();
-                /* double xRight = */_leis.readLEDouble();
-                /* double xTop = */_leis.readLEDouble();
-                int numParts = _leis.readLEInt();
-                int numPoints = _leis.readLEInt();
+                // Write total number of points
+                _leos.writeLEInt(numPoints);
 
-                int[] offsets = new int[numParts];
-                for (int n = 0; n < numParts; n++) {
-                    offsets[n] = _leis.readLEInt();
+                // Write the offsets to each part for a given shape
+                int pos = 0;
+                for (Coordinate[] coordinates : parts) {
+                    _leos.writeLEInt(pos);
+                    pos += coordinates.length;
                 }
+            }
+            else{
+                _leos.writeLEInt(numPoints);
+            }
 
 
-                ArrayList<Geometry> list = new ArrayList<Geometry>(numParts);
-                for (int j=0; j<numParts; j++) {
+            // Write coordinates
+            for (Coordinate[] coordinates : parts) {
+                for (Coordinate coordinate : coordinates){
+                    _leos.writeLEDouble(coordinate.x);
+                    _leos.writeLEDouble(coordinate.y);
+                }
+            }
 
-                    int numVertices;
-                    if (j != numParts - 1) {
-                       numVertices = (offsets[j + 1]) - offsets[j];
+            // Write Z values
+            if (hasZ){
+                double min = Double.MAX_VALUE, max = -Double.MAX_VALUE;
+                for (Coordinate[] coordinates : parts) {
+                    for (Coordinate coordinate : coordinates){
+                        double z = getZ(coordinate);
+                        min = Math.min(min, z);
+                        max = Math.max(max, z);
                     }
-                    else {
-                       numVertices = (numPoints - offsets[j]);
+                }
+                _leos.writeLEDouble(min);
+                _leos.writeLEDouble(max);
+                for (Coordinate[] coordinates : parts) {
+                    for (Coordinate coordinate : coordinates){
+                        _leos.writeLEDouble(getZ(coordinate));
                     }
+                }
+            }
 
-
-                    Coordinate[] coordinates = new Coordinate[numVertices];
-                    for (int n = 0; n < numVertices; n++) {
-                       double lon = _leis.readLEDouble();
-                       double lat = _leis.readLEDouble();
-                       coordinates[n] = new Coordinate(lon, lat);
+            // Write M values
+            if (hasM && (!hasZ || hasMeasures(geom))){
+                double min = Double.NaN, max = Double.NaN;
+                for (Coordinate[] coordinates : parts) {
+                    for (Coordinate coordinate : coordinates){
+                        double m = coordinate.getM();
+                        if (Double.isNaN(m)) continue;
+                        if (Double.isNaN(min) || m<min) min = m;
+                        if (Double.isNaN(max) || m>max) max = m;
                     }
+                }
+                _leos.writeLEDouble(Double.isNaN(min) ? NO_DATA : min);
+                _leos.writeLEDouble(Double.isNaN(max) ? NO_DATA : max);
+                for (Coordinate[] coordinates : parts) {
+                    for (Coordinate coordinate : coordinates){
+                        _leos.writeLEDouble(getM(coordinate));
+                    }
+                }
+            }
+        }
 
 
-                    if (shapeType == SHAPE_TYPE_POLYLINE) {
-                        list.add(geometryFactory.createLineString(coordinates));
-                    }
-                    else if (shapeType == SHAPE_TYPE_POLYGON) {
-                       list.add(geometryFactory.createPolygon(coordinates));
+      /** Returns the parts (points, lines or rings) in a geometry */
+        private static ArrayList<Coordinate[]> getParts(Geometry geom){
+            ArrayList<Coordinate[]> parts = new ArrayList<>();
+            if (geom instanceof Point || geom instanceof MultiPoint){
+                parts.add(geom.getCoordinates());
+                return parts;
+            }
+            for (int i=0; i<geom.getNumGeometries(); i++){
+                Geometry g = geom.getGeometryN(i);
+                if (g instanceof Polygon){
+                    Polygon polygon = (Polygon) g;
+                    parts.add(orient(polygon.getExteriorRing().getCoordinates(), false));
+                    for (int j=0; j<polygon.getNumInteriorRing(); j++){
+                        parts.add(orient(polygon.getInteriorRingN(j).getCoordinates(), true));
                     }
                 }
+                else{
+                    parts.add(g.getCoordinates());
+                }
+            }
+            return parts;
+        }
 
 
-                if (numParts>1){
-                    if (shapeType == SHAPE_TYPE_POLYLINE) {
-                        LineString[] arr = new LineString[list.size()];
-                        for (int j=0; j<arr.length; j++){
-                            arr[j] = (LineString) list.get(j);
-                        }
-                        geom = geometryFactory.createMultiLineString(arr);
-                    }
-                    else if (shapeType == SHAPE_TYPE_POLYGON) {
-                        Polygon[] arr = new Polygon[list.size()];
-                        for (int j=0; j<arr.length; j++){
-                            arr[j] = (Polygon) list.get(j);
-                        }
-                        geom = geometryFactory.createMultiPolygon(arr);
-                    }
+      /** Returns the number of parts (lines or rings) in a geometry */
+        private static int getNumParts(Geometry geom){
+            int numParts = 0;
+            for (int i=0; i<geom.getNumGeometries(); i++){
+                Geometry g = geom.getGeometryN(i);
+                if (g instanceof Polygon){
+                    numParts += 1 + ((Polygon) g).getNumInteriorRing();
                 }
                 else{
-                    geom = list.get(0);
+                    numParts++;
                 }
             }
+            return numParts;
+        }
 
-            if (geom!=null) geom.setUserData(idx);
-            return geom;
+
+      /** Returns a ring with the requested orientation */
+        private static Coordinate[] orient(Coordinate[] ring, boolean ccw){
+            if (ring.length<4) return ring;
+            if (Orientation.isCCW(ring)!=ccw){
+                ring = ring.clone();
+                CoordinateArrays.reverse(ring);
+            }
+            return ring;
         }
 
+        private static boolean hasMeasures(Geometry geom){
+            for (Coordinate c : geom.getCoordinates()){
+                if (!Double.isNaN(c.getM())) return true;
+            }
+            return false;
+        }
+
+        private static double getZ(Coordinate c){
+            double z = c.getZ();
+            return Double.isNaN(z) ? 0 : z;
+        }
+
+        private static double getM(Coordinate c){
+            double m = c.getM();
+            return Double.isNaN(m) ? NO_DATA : m;
+        }
+
+        private void writeExtents(Envelope envelope) throws IOException {
+            _leos.writeLEDouble(envelope.getMinX()); //-180.0
+            _leos.writeLEDouble(envelope.getMinY()); //-90.0
+            _leos.writeLEDouble(envelope.getMaxX()); //180.0
+            _leos.writeLEDouble(envelope.getMaxY()); //90.0
+        }
 
+        public void flush() throws IOException {
+            _leos.flush();
+        }
 
         public void close() throws IOException {
-           _leis.close();
+            _leos.flush();
+            _leos.close();
         }
     }
 
 
   //**************************************************************************
-  //** ShpOutputStream
+  //** verify
   //**************************************************************************
-  /** Used to write a shapefile to an output stream
+  /** Used to check whether the shp, shx and dbf files are consistent. The
+   *  file headers are checked first: file codes, file lengths, shape types,
+   *  the dbf row count and the dbf record length. The shx entries are then
+   *  checked in parallel against the shp records (record numbers, content
+   *  lengths, shape types and offsets) and the dbf rows (deletion flags).
+   *  Shapes are not decoded so verification is much faster than a scan.
+   *  Example:
+   <pre>
+    for (ShapeFile.Problem problem : shp.verify()){
+        System.out.println(problem);
+    }
+   </pre>
+   *  @return List of problems, ordered by record id. Problems with the file
+   *  headers come first and have a record id of 0. Returns an empty list if
+   *  the files are consistent.
    */
-    private class ShpOutputStream {
-        private LittleEndianOutputStream _leos = null;
-        public final static int ESRI_RECORD_HEADER_LENGTH = 4; // length in 16-bit words
-
-        public ShpOutputStream(OutputStream os) {
-            BufferedOutputStream bos = new BufferedOutputStream(os);
-            _leos = new LittleEndianOutputStream(bos);
+    public List<Problem> verify() throws Exception {
+        if (shpSource==null) throw new IllegalStateException("Shapefile has not been saved");
+        final ArrayList<Problem> problems = new ArrayList<>();
+        if (index!=null){
+            problems.add(new Problem(0, "Shx file is missing or invalid"));
+            return problems;
         }
 
-        public void write(int shapeType, int[][] indexData, int geomIndex) throws Exception {
 
-            _leos.writeInt(9994); // Byte 0 File Code
-            _leos.writeInt(0); // Byte 4 Unused
-            _leos.writeInt(0); // Byte 8 Unused
-            _leos.writeInt(0); // Byte 12 Unused
-            _leos.writeInt(0); // Byte 16 Unused
-            _leos.writeInt(0); // Byte 20 Unused
+      //Use new sources for files on disk so the file handles are closed
+      //when done. Other sources are shared with the readers.
+        boolean isFile = zip==null && shp!=null;
+        final ByteSource shpFile = isFile ? ByteSource.of(shp) : shpSource;
+        final ByteSource shxFile = isFile ? ByteSource.of(shx) : shxSource;
+        final ByteSource dbfFile = isFile ? ByteSource.of(dbf) : dbfSource;
+        try{
+            final long shpSize = shpFile.size();
+            final long shxSize = shxFile.size();
+            final long dbfSize = dbfFile.size();
 
 
-            int contentLength = 50;
-
-            if (!records.isEmpty()) {
-               contentLength = indexData[0][indexData[0].length - 1] + indexData[1][indexData[0].length - 1] + ESRI_RECORD_HEADER_LENGTH;
+          //Check shp and shx headers
+            if (shpSize<SHAPE_FILE_HEADER_LENGTH){
+                problems.add(new Problem(0, "Shp file is too small (" + shpSize + " bytes)"));
+                return problems;
             }
+            if (shxSize<SHAPE_FILE_HEADER_LENGTH){
+                problems.add(new Problem(0, "Shx file is too small (" + shxSize + " bytes)"));
+                return problems;
+            }
+            byte[] header = new byte[SHAPE_FILE_HEADER_LENGTH];
+            shpFile.readFully(0, header, 0, header.length);
+            ByteBuffer bb = ByteBuffer.wrap(header);
+            int shpCode = bb.getInt(0);
+            long shpLength = bb.getInt(24)*2L;
+            final int shapeType = bb.order(ByteOrder.LITTLE_ENDIAN).getInt(32);
+            shxFile.readFully(0, header, 0, header.length);
+            bb = ByteBuffer.wrap(header);
+            int shxCode = bb.getInt(0);
+            long shxLength = bb.getInt(24)*2L;
+            int shxType = bb.order(ByteOrder.LITTLE_ENDIAN).getInt(32);
+
+            if (shpCode!=9994) problems.add(new Problem(0, "Invalid shp file code (" + shpCode + ")"));
+            if (shxCode!=9994) problems.add(new Problem(0, "Invalid shx file code (" + shxCode + ")"));
+            if (shpLength!=shpSize) problems.add(new Problem(0,
+                "Shp header file length (" + shpLength + ") does not match the file size (" + shpSize + ")"));
+            if (shxLength!=shxSize) problems.add(new Problem(0,
+                "Shx header file length (" + shxLength + ") does not match the file size (" + shxSize + ")"));
+            if ((shxSize-SHAPE_FILE_HEADER_LENGTH)%8!=0) problems.add(new Problem(0,
+                "Shx file has a partial entry (" + shxSize + " bytes)"));
+            if (shapeType!=SHAPE_TYPE_MULTIPATCH && getBaseType(shapeType)==SHAPE_TYPE_NULL){
+                problems.add(new Problem(0, "Invalid shape type (" + shapeType + ")"));
+            }
+            if (shxType!=shapeType) problems.add(new Problem(0,
+                "Shx shape type (" + shxType + ") does not match the shp (" + shapeType + ")"));
+            final int numRecords = (int) ((shxSize-SHAPE_FILE_HEADER_LENGTH)/8);
+
+
+          //Check dbf header
+            int numRows = 0;
+            int dbfHeaderLength = 0;
+            int dbfRecordLength = 0;
+            boolean checkRows = false;
+            if (dbfSize<32){
+                problems.add(new Problem(0, "Dbf file is too small (" + dbfSize + " bytes)"));
+            }
+            else{
+                byte[] dbfHeader = new byte[32];
+                dbfFile.readFully(0, dbfHeader, 0, dbfHeader.length);
+                ByteBuffer dbb = ByteBuffer.wrap(dbfHeader).order(ByteOrder.LITTLE_ENDIAN);
+                numRows = dbb.getInt(4);
+                dbfHeaderLength = dbb.getShort(8) & 0xffff;
+                dbfRecordLength = dbb.getShort(10) & 0xffff;
+
+
+              //Sum the column lengths. Column descriptors are 32 bytes and
+              //end with a 0x0D terminator.
+                int rowLength = 1;
+                boolean terminated = false;
+                if (dbfHeaderLength>32 && dbfHeaderLength<=dbfSize){
+                    byte[] columns = new byte[dbfHeaderLength-32];
+                    dbfFile.readFully(32, columns, 0, columns.length);
+                    for (int i=0; i<columns.length; i+=32){
+                        if (columns[i]==0x0D){
+                            terminated = true;
+                            break;
+                        }
+                        if (i+32>columns.length) break;
+                        rowLength += columns[i+16] & 0xff;
+                    }
+                }
+                if (!terminated) problems.add(new Problem(0,
+                    "Dbf header is missing the field terminator (header length " + dbfHeaderLength + ")"));
+                else if (rowLength!=dbfRecordLength) problems.add(new Problem(0,
+                    "Dbf record length (" + dbfRecordLength + ") does not match the fields (" + rowLength + ")"));
 
-            _leos.writeInt(contentLength); // Byte 24 File Length
-            _leos.writeLEInt(1000); // Byte 28 Version
-            _leos.writeLEInt(shapeType); // Byte 32 Shape Type
-
-            // Writes bounding box.
-            double[] extents = getExtents();
-            writeExtents(extents);
-
-            _leos.writeDouble(0.0); // Byte 68
-            _leos.writeDouble(0.0); // Byte 76
-            _leos.writeDouble(0.0); // Byte 84
-            _leos.writeDouble(0.0); // Byte 92
+                if (numRows!=numRecords) problems.add(new Problem(0,
+                    "Dbf row count (" + numRows + ") does not match the number of records in the shx (" + numRecords + ")"));
 
-            for (int i=0; i<records.size(); i++){
-                // Record header...
-                _leos.writeInt(i + 1); // Record numbers start with 1
-                _leos.writeInt(indexData[1][i]);
+                long dbfLength = dbfHeaderLength + (long) numRows*dbfRecordLength;
+                if (dbfSize!=dbfLength && dbfSize!=dbfLength+1) problems.add(new Problem(0,
+                    "Dbf file size (" + dbfSize + ") does not match the header (" + dbfLength + " bytes + EOF)"));
 
-                // Beginning of Geometry data
-                _leos.writeLEInt(shapeType);
+                checkRows = terminated && rowLength==dbfRecordLength && numRows>0;
+            }
 
 
-                Object geom = records.get(i).get(geomIndex);
-                if (shapeType==SHAPE_TYPE_POINT){
-                    writePoints(geom);
+          //Check records in parallel. Each task checks a range of shx
+          //entries using positional reads so the files can be shared.
+          //Entries in zip files that have to be inflated are read in order,
+          //by a single thread.
+            final int rowCount = checkRows ? (int) Math.min(numRows,
+                (dbfSize-dbfHeaderLength)/Math.max(dbfRecordLength, 1)) : 0;
+            final int headerLength = dbfHeaderLength;
+            final int recordLength = dbfRecordLength;
+            final int batchSize = 16*1024;
+            int numThreads = Math.max(1, Math.min(Runtime.getRuntime().availableProcessors(),
+                (numRecords+batchSize-1)/batchSize));
+            if (zip!=null && (shpFile.getBuffer()==null || shxFile.getBuffer()==null)) numThreads = 1;
+            ExecutorService executor = ThreadPool.newExecutor("ShapeFile-verify", numThreads);
+            try{
+                ArrayList<Future<List<Problem>>> futures = new ArrayList<>();
+                for (int n=0; n<numRecords; n+=batchSize){
+                    final int start = n;
+                    final int count = Math.min(batchSize, numRecords-n);
+                    futures.add(executor.submit(new Callable<List<Problem>>(){
+                        public List<Problem> call() throws Exception {
+                            ArrayList<Problem> problems = new ArrayList<>();
+                            verifyRecords(start, count, shapeType, shpFile, shxFile, shpSize, problems);
+                            if (start<rowCount){
+                                verifyRows(start, Math.min(count, rowCount-start),
+                                headerLength, recordLength, dbfFile, problems);
+                            }
+                            Collections.sort(problems);
+                            return problems;
+                        }
+                    }));
                 }
-                else if (shapeType == SHAPE_TYPE_POLYLINE ||
-                    shapeType == SHAPE_TYPE_POLYGON) {
-                    writePolys(geom);
+                for (Future<List<Problem>> future : futures){
+                    try{
+                        problems.addAll(future.get());
+                    }
+                    catch(ExecutionException e){
+                        Throwable t = e.getCause();
+                        if (t instanceof Exception) throw (Exception) t;
+                        throw new Exception(t);
+                    }
                 }
+            }
+            finally{
+                executor.shutdownNow();
+            }
 
 
+          //Check for bytes after the last record
+            if (numRecords>0 && shpLength==shpSize){
+                byte[] b = new byte[8];
+                shxFile.readFully(SHAPE_FILE_HEADER_LENGTH + (numRecords-1)*8L, b, 0, 8);
+                ByteBuffer entry = ByteBuffer.wrap(b);
+                long end = entry.getInt(0)*2L + 8 + entry.getInt(4)*2L;
+                if (end<shpSize) problems.add(new Problem(numRecords,
+                    "Shp file has " + (shpSize-end) + " bytes after the last record"));
             }
-
-            _leos.flush();
-            _leos.close();
         }
+        finally{
+            if (isFile){
+                try{ shpFile.close(); }catch(Exception e){}
+                try{ shxFile.close(); }catch(Exception e){}
+                try{ dbfFile.close(); }catch(Exception e){}
+            }
+        }
+        return problems;
+    }
 
-        private void writePoints(Object geom) throws Exception{
-            if (geom instanceof MultiPoint){
-                MultiPoint mp = (MultiPoint) geom;
-
-                // Writes bounding box.
-                writeExtents(mp.getEnvelopeInternal());
 
+  //**************************************************************************
+  //** verifyRecords
+  //**************************************************************************
+  /** Used to check a range of shx entries against the shp records. Called
+   *  by verify().
+   */
+    private static void verifyRecords(int start, int count, int shapeType,
+        ByteSource shp, ByteSource shx, long shpSize,
+        List<Problem> problems) throws IOException {
+
+
+      //Read the index entries, including the entry before the first record
+      //so that overlaps with the previous range are found
+        int first = Math.max(start-1, 0);
+        byte[] b = new byte[(start+count-first)*8];
+        shx.readFully(SHAPE_FILE_HEADER_LENGTH + first*8L, b, 0, b.length);
+        ByteBuffer index = ByteBuffer.wrap(b);
+        long prevEnd = SHAPE_FILE_HEADER_LENGTH;
+        if (start>0){
+            prevEnd = index.getInt(0)*2L + 8 + index.getInt(4)*2L;
+        }
 
-                // Write number of points per shape
-                int numShapes = mp.getNumGeometries();
-                _leos.writeLEInt(numShapes);
 
-                // Write the geometry for each part
-                for (int i = 0; i < numShapes; i++) {
-                    writeCoordinates(mp.getGeometryN(i).getCoordinates());
-                }
+      //Check records
+        byte[] header = new byte[12];
+        ByteBuffer record = ByteBuffer.wrap(header);
+        for (int i=0; i<count; i++){
+            int id = start+i+1;
+            int idx = (start+i-first)*8;
+            long offset = index.getInt(idx)*2L;
+            long contentLength = index.getInt(idx+4)*2L;
+            if (contentLength<0 || offset<SHAPE_FILE_HEADER_LENGTH || offset+8+contentLength>shpSize){
+                problems.add(new Problem(id, "Offset (" + offset + ") and content length (" +
+                contentLength + ") are outside of the shp file (" + shpSize + " bytes)"));
+                continue;
+            }
+            if (offset<prevEnd && id>1){
+                problems.add(new Problem(id, "Record overlaps the previous record"));
+            }
+            prevEnd = offset+8+contentLength;
+
+
+            shp.readFully(offset, header, 0, contentLength<4 ? 8 : 12);
+            int recordNumber = record.getInt(0);
+            long length = record.getInt(4)*2L;
+            if (recordNumber!=id) problems.add(new Problem(id,
+                "Record number in the shp (" + recordNumber + ") does not match the record id"));
+            if (length!=contentLength) problems.add(new Problem(id,
+                "Content length in the shp (" + length + ") does not match the shx (" + contentLength + ")"));
+            if (contentLength<4){
+                problems.add(new Problem(id, "Record is too short to have a shape type"));
             }
             else{
-                Point point = (Point) geom;
-                writeCoordinates(point.getCoordinates());
+                int type = record.order(ByteOrder.LITTLE_ENDIAN).getInt(8);
+                record.order(ByteOrder.BIG_ENDIAN);
+                if (type!=SHAPE_TYPE_NULL && type!=shapeType) problems.add(new Problem(id,
+                    "Shape type (" + type + ") does not match the file (" + shapeType + ")"));
+            }
+        }
+    }
+
+
+  //**************************************************************************
+  //** verifyRows
+  //**************************************************************************
+  /** Used to check the deletion flag of a range of dbf rows. Any other
+   *  value means that the rows are not aligned with the record length.
+   *  Called by verify().
+   */
+    private static void verifyRows(int start, int count, int headerLength, int recordLength,
+        ByteSource dbf, List<Problem> problems) throws IOException {
+
+        int rowsPerRead = Math.max(1, 1024*1024/recordLength);
+        byte[] buf = new byte[Math.min(count, rowsPerRead)*recordLength];
+        for (int r=0; r<count; r+=rowsPerRead){
+            int n = Math.min(rowsPerRead, count-r);
+            long pos = headerLength + (long) (start+r)*recordLength;
+            dbf.readFully(pos, buf, 0, n*recordLength);
+            for (int i=0; i<n; i++){
+                byte flag = buf[i*recordLength];
+                if (flag!=' ' && flag!='*') problems.add(new Problem(start+r+i+1,
+                    "Invalid deletion flag in the dbf (0x" + Integer.toHexString(flag & 0xff) + ")"));
             }
         }
+    }
 
 
+  //**************************************************************************
+  //** Problem
+  //**************************************************************************
+  /** Used to describe a problem found by verify().
+   */
+    public static class Problem implements Comparable<Problem> {
+        private final int id;
+        private final String message;
 
+        private Problem(int id, String message){
+            this.id = id;
+            this.message = message;
+        }
 
-        private void writePolys(Object geom) throws Exception{
+      /** Returns the id of the record with the problem or 0 if the problem
+       *  is with one of the file headers.
+       */
+        public int getId(){
+            return id;
+        }
 
+        public String getMessage(){
+            return message;
+        }
 
-            Envelope extents;
-            int numShapes;
-            int numPoints = 0;
-            ArrayList<Coordinate[]> shapes = new ArrayList<Coordinate[]>();
-            if (geom instanceof MultiPolygon){
-                MultiPolygon mp = (MultiPolygon) geom;
-                extents = mp.getEnvelopeInternal();
-                numShapes = mp.getNumGeometries();
-                for (int i=0; i<numShapes; i++) {
-                    Coordinate[] coordinates = mp.getGeometryN(i).getCoordinates();
-                    numPoints += coordinates.length;
-                    shapes.add(coordinates);
-                }
-            }
-            else if (geom instanceof MultiLineString){
-                MultiLineString mp = (MultiLineString) geom;
-                extents = mp.getEnvelopeInternal();
-                numShapes = mp.getNumGeometries();
-                for (int i=0; i<numShapes; i++) {
-                    Coordinate[] coordinates = mp.getGeometryN(i).getCoordinates();
-                    numPoints += coordinates.length;
-                    shapes.add(coordinates);
-                }
-            }
-            else{ //Simple LineString or Polygon
-                Geometry g = (Geometry) geom;
-                extents = g.getEnvelopeInternal();
-                Coordinate[] coordinates = g.getCoordinates();
-                numPoints = coordinates.length;
-                numShapes = 1;
-                shapes.add(coordinates);
-            }
+        public int compareTo(Problem problem){
+            return Integer.compare(id, problem.id);
+        }
+
+        public String toString(){
+            return id==0 ? message : "Record " + id + ": " + message;
+        }
+    }
 
-            // Write extents
-            writeExtents(extents);
 
+  //**************************************************************************
+  //** createIndex
+  //**************************************************************************
+  /** Used to create an index (shx file) for a shp file. The offset and
+   *  length of each record is found by walking the record headers in the
+   *  shp file, without decoding any of the shapes. Any existing shx file
+   *  is overwritten.
+   *  @return The shx file
+   */
+    public static java.io.File createIndex(java.io.File shp) throws Exception {
+        Metrics.Listener listener = Metrics.getListener();
+        long startTime = listener==Metrics.NONE ? 0 : System.nanoTime();
+        Index index = new Index(new FileInputStream(shp), shp.length());
+        java.io.File shx = new java.io.File(shp.getParentFile(), getBaseName(shp) + ".shx");
+        index.write(shx);
+        if (listener!=Metrics.NONE) listener.recordsWritten(index.numRecords, shx.length(), System.nanoTime()-startTime);
+        return shx;
+    }
 
-            // Writes number of parts
-            _leos.writeLEInt(numShapes);
 
+  //**************************************************************************
+  //** createSpatialIndex
+  //**************************************************************************
+  /** Used to create a spatial index (rtx file) for a shp file. The index is
+   *  a packed Hilbert R-tree of the record bounding boxes, in the same
+   *  format as the FlatGeobuf index, with the record number in each leaf.
+   *  The bounding boxes are read from the record headers in the shp file.
+   *  Null shapes are not indexed. Any existing rtx file is overwritten. See
+   *  setSpatialIndex() to use the index.
+   *  @return The rtx file
+   */
+    public static java.io.File createSpatialIndex(java.io.File shp) throws Exception {
+        Metrics.Listener listener = Metrics.getListener();
+        long startTime = listener==Metrics.NONE ? 0 : System.nanoTime();
+        java.io.File rtx = new java.io.File(shp.getParentFile(), getBaseName(shp) + ".rtx");
+        int numItems = SpatialIndex.write(shp, rtx);
+        if (listener!=Metrics.NONE) listener.recordsWritten(numItems, rtx.length(), System.nanoTime()-startTime);
+        return rtx;
+    }
 
-            // Write total number of points
-            _leos.writeLEInt(numPoints);
 
+  //**************************************************************************
+  //** setSpatialIndex
+  //**************************************************************************
+  /** Used to set the spatial index (rtx file) used by bbox queries. When an
+   *  index is set, getRecords(extent) searches the index and then only reads
+   *  the records and dbf rows that intersect the extent. This is most useful
+   *  for remote shapefiles, where the record headers would otherwise be
+   *  fetched to find the records. The index is ignored if it doesn't match
+   *  the shp file (e.g. records were added after it was created). The source
+   *  is closed when the shapefile is closed. Example:
+   <pre>
+    shp.setSpatialIndex(new HttpSource(new URL(url + ".rtx")));
+   </pre>
+   *  @param source Source for the rtx file (see createSpatialIndex) or null
+   *  to stop using the index
+   */
+    public void setSpatialIndex(ByteSource source){
+        rtxSource = source;
+    }
 
-            // Write the offsets to each part for a given shape
-            int pos = 0;
-            for (Coordinate[] coordinates : shapes) {
-                _leos.writeLEInt(pos);
-                pos += coordinates.length*2;
-            }
 
+  //**************************************************************************
+  //** saveIndex
+  //**************************************************************************
+  /** Used to write the index to disk if the shapefile was opened without a
+   *  valid shx file. Called before the files are modified.
+   */
+    private void saveIndex() throws IOException {
+        if (index==null) return;
+        index.write(shx);
+        index = null;
+        if (shxSource!=null) shxSource.close();
+        shxSource = ByteSource.of(shx);
+    }
 
-            for (Coordinate[] coordinates : shapes) {
-                writeCoordinates(coordinates);
-            }
 
+  //**************************************************************************
+  //** getIndexCount
+  //**************************************************************************
+  /** Returns the number of records in the shx file using the file length in
+   *  the header. Returns -1 if the file is missing or if the header doesn't
+   *  match the size of the file.
+   */
+    private int getIndexCount() throws IOException {
+        if (shxSource==null) return -1;
+        long size = shxSource.size();
+        if (size<SHAPE_FILE_HEADER_LENGTH || (size-SHAPE_FILE_HEADER_LENGTH)%8!=0) return -1;
+        DataInputStream is = new DataInputStream(shxSource.getInputStream());
+        try{
+            int fileCode = is.readInt();
+            is.skipBytes(20);
+            long fileLength = is.readInt()*2L;
+            if (fileCode!=9994 || fileLength!=size) return -1;
+        }
+        finally{
+            is.close();
         }
+        return (int) ((size-SHAPE_FILE_HEADER_LENGTH)/8);
+    }
 
 
+  //**************************************************************************
+  //** SpatialIndex
+  //**************************************************************************
+  /** Used to write and search spatial indexes (rtx files). The file starts
+   *  with a 32 byte header: a magic number, the number of records and the
+   *  size of the shp file used to create the index, the number of indexed
+   *  records and the node size. The header is followed by the nodes of a
+   *  packed Hilbert R-tree (see FlatGeobuf), starting with the root.
+   */
+    private static class SpatialIndex {
+
+        private static final byte[] MAGIC = new byte[]{'r', 't', 'x', 0x01, 0, 0, 0, 0};
+        private static final int HEADER_LENGTH = 32;
+        private static final int NODE_SIZE = 16;
+
+
+      /** Reads the bounding box of each record in a shp file and writes the
+       *  index. The record contents are skipped.
+       *  @return Number of records in the index
+       */
+        public static int write(java.io.File shp, java.io.File rtx) throws IOException {
+            long size = shp.length();
+            int numRecords = 0;
+            int numItems = 0;
+            long[] ids = new long[1024];
+            double[] bounds = new double[4096];
+            double[] ext = new double[]{
+                Double.POSITIVE_INFINITY, Double.POSITIVE_INFINITY,
+                Double.NEGATIVE_INFINITY, Double.NEGATIVE_INFINITY
+            };
+
+
+          //Walk the record headers
+            DataInputStream is = new DataInputStream(new BufferedInputStream(new FileInputStream(shp), 64*1024));
+            try{
+                byte[] header = new byte[SHAPE_FILE_HEADER_LENGTH];
+                is.readFully(header);
+                ByteBuffer hb = ByteBuffer.wrap(header);
+                if (hb.getInt(0)!=9994) throw new IOException("Invalid shp file");
+                long fileLength = Math.min(hb.getInt(24)*2L, size);
+
+                byte[] b = new byte[36];
+                ByteBuffer bb = ByteBuffer.wrap(b).order(ByteOrder.LITTLE_ENDIAN);
+                long pos = SHAPE_FILE_HEADER_LENGTH;
+                while (pos+8<=fileLength){
+                    is.readInt(); //record number
+                    long contentLength = is.readInt()*2L;
+                    if (contentLength<0 || pos+8+contentLength>fileLength) break;
+                    int n = (int) Math.min(b.length, contentLength);
+                    is.readFully(b, 0, n);
+                    long numBytes = contentLength-n;
+                    while (numBytes>0){
+                        int skipped = is.skipBytes((int) Math.min(numBytes, Integer.MAX_VALUE));
+                        if (skipped<=0) throw new EOFException();
+                        numBytes -= skipped;
+                    }
 
 
-//      int pos = 0;
-//      int[] offsets = new int[sublist.size()];
-//      for (int j = 0; j < sublist.size(); j++) {
-//         OMPoly poly = (OMPoly) sublist.getOMGraphicAt(j);
-//         double[] data = poly.getLatLonArray();
-//         offsets[j] = pos / 2;
-//         pos += data.length;
-//      }
+                  //Get the bounding box. Points don't have a bounding box
+                  //so the coordinates are used instead.
+                    int baseType = n<4 ? SHAPE_TYPE_NULL : getBaseType(bb.getInt(0));
+                    double minX = Double.NaN, minY = Double.NaN, maxX = Double.NaN, maxY = Double.NaN;
+                    if (baseType==SHAPE_TYPE_POINT && n>=20){
+                        minX = maxX = bb.getDouble(4);
+                        minY = maxY = bb.getDouble(12);
+                    }
+                    else if (baseType!=SHAPE_TYPE_NULL && baseType!=SHAPE_TYPE_POINT && n>=36){
+                        minX = bb.getDouble(4);
+                        minY = bb.getDouble(12);
+                        maxX = bb.getDouble(20);
+                        maxY = bb.getDouble(28);
+                    }
+                    if (minX<=maxX && minY<=maxY){ //false if NaN
+                        if (numItems==ids.length){
+                            ids = Arrays.copyOf(ids, numItems*2);
+                            bounds = Arrays.copyOf(bounds, numItems*8);
+                        }
+                        ids[numItems] = numRecords;
+                        bounds[numItems*4] = minX;
+                        bounds[numItems*4+1] = minY;
+                        bounds[numItems*4+2] = maxX;
+                        bounds[numItems*4+3] = maxY;
+                        ext[0] = Math.min(ext[0], minX);
+                        ext[1] = Math.min(ext[1], minY);
+                        ext[2] = Math.max(ext[2], maxX);
+                        ext[3] = Math.max(ext[3], maxY);
+                        numItems++;
+                    }
+                    numRecords++;
+                    pos += 8 + contentLength;
+                }
+            }
+            finally{
+                is.close();
+            }
 
 
+          //Write the header and the tree
+            ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH).order(ByteOrder.LITTLE_ENDIAN);
+            header.put(MAGIC);
+            header.putInt(numRecords);
+            header.putInt(numItems);
+            header.putLong(size);
+            header.putShort((short) NODE_SIZE);
+            OutputStream os = new BufferedOutputStream(new FileOutputStream(rtx), 1024*1024);
+            try{
+                os.write(header.array());
+                if (numItems>0){
+                    int[] order = FlatGeobuf.sort(bounds, numItems, ext);
+                    FlatGeobuf.writeIndex(os, order, ids, bounds, NODE_SIZE);
+                }
+            }
+            finally{
+                os.close();
+            }
+            return numItems;
+        }
 
-//        public void close() throws IOException {
-//            _leos.close();
-//        }
 
-        private void writeCoordinates(Coordinate[] coordinates) throws IOException {
-            for (Coordinate coordinate : coordinates){
-                writeCoordinate(coordinate);
+      /** Returns the records that intersect an extent, sorted by record
+       *  number (starting with 0). Returns null if the index was created
+       *  for a different version of the shp file.
+       *  @param numRecords Number of records in the shapefile
+       *  @param size Size of the shp file
+       */
+        public static int[] search(ByteSource rtx, int numRecords, long size, Envelope extent) throws IOException {
+            byte[] header = new byte[HEADER_LENGTH];
+            rtx.readFully(0, header, 0, header.length);
+            for (int i=0; i<MAGIC.length; i++){
+                if (header[i]!=MAGIC[i]) throw new IOException("Invalid spatial index: " + rtx);
             }
+            ByteBuffer bb = ByteBuffer.wrap(header).order(ByteOrder.LITTLE_ENDIAN);
+            if (bb.getInt(8)!=numRecords || bb.getLong(16)!=size) return null;
+            int numItems = bb.getInt(12);
+            int nodeSize = bb.getShort(24) & 0xffff;
+            if (numItems==0) return new int[0];
+
+            long[][] levelBounds = FlatGeobuf.getLevelBounds(numItems, nodeSize);
+            long[] results = FlatGeobuf.search(rtx, HEADER_LENGTH, levelBounds, nodeSize, extent);
+            int[] records = new int[results.length/3];
+            for (int i=0; i<records.length; i++) records[i] = (int) results[i*3+1];
+            Arrays.sort(records);
+            return records;
         }
+    }
+
 
-        private void writeCoordinate(Coordinate coordinate) throws IOException {
-            double lon = coordinate.x;
-            double lat = coordinate.y;
-            _leos.writeLEDouble(lon);
-            _leos.writeLEDouble(lat);
+  //**************************************************************************
+  //** Index
+  //**************************************************************************
+  /** Offsets and content lengths of the records in a shp file, in 16-bit
+   *  words. Used to create shx files and as an in-memory index when a
+   *  shapefile is opened without a valid shx file.
+   */
+    private static class Index {
+        private int shapeType;
+        private double[] extents;
+        private int[] offsets = new int[1024];
+        private int[] lengths = new int[1024];
+        private int numRecords;
+
+
+      /** Reads the 8-byte record headers in the shp file and skips over the
+       *  record contents. Stops at the first record that runs past the end
+       *  of the file. The input stream is closed when done.
+       *  @param shp Input stream for the shp file
+       *  @param size Size of the shp file
+       */
+        public Index(InputStream shp, long size) throws IOException {
+            DataInputStream is = new DataInputStream(new BufferedInputStream(shp, 64*1024));
+            try{
+                byte[] header = new byte[SHAPE_FILE_HEADER_LENGTH];
+                is.readFully(header);
+                ByteBuffer bb = ByteBuffer.wrap(header);
+                if (bb.getInt(0)!=9994) throw new IOException("Invalid shp file");
+                long fileLength = Math.min(bb.getInt(24)*2L, size);
+                bb.order(ByteOrder.LITTLE_ENDIAN);
+                shapeType = bb.getInt(32);
+                extents = new double[]{
+                    bb.getDouble(44), bb.getDouble(36), bb.getDouble(60), bb.getDouble(52)
+                };
+
+
+              //Walk record headers
+                long pos = SHAPE_FILE_HEADER_LENGTH;
+                while (pos+8<=fileLength){
+                    is.readInt(); //record number
+                    int contentLength = is.readInt();
+                    if (contentLength<0 || pos+8+contentLength*2L>fileLength) break;
+                    if (numRecords==offsets.length){
+                        offsets = Arrays.copyOf(offsets, numRecords*2);
+                        lengths = Arrays.copyOf(lengths, numRecords*2);
+                    }
+                    offsets[numRecords] = (int) (pos/2);
+                    lengths[numRecords] = contentLength;
+                    numRecords++;
+
+                    long numBytes = contentLength*2L;
+                    while (numBytes>0){
+                        int n = is.skipBytes((int) Math.min(numBytes, Integer.MAX_VALUE));
+                        if (n<=0) throw new EOFException();
+                        numBytes -= n;
+                    }
+                    pos += 8 + contentLength*2L;
+                }
+            }
+            finally{
+                is.close();
+            }
         }
 
-        private void writeExtents(Envelope envelope) throws IOException {
-            _leos.writeLEDouble(envelope.getMinX()); //-180.0
-            _leos.writeLEDouble(envelope.getMinY()); //-90.0
-            _leos.writeLEDouble(envelope.getMaxX()); //180.0
-            _leos.writeLEDouble(envelope.getMaxY()); //90.0
+
+      /** Writes the index to a shx file.
+       */
+        public void write(java.io.File shx) throws IOException {
+            int[][] index = new int[][]{
+                Arrays.copyOf(offsets, numRecords),
+                Arrays.copyOf(lengths, numRecords)
+            };
+            ShxOutputStream shxOutputStream = new ShxOutputStream(new FileOutputStream(shx));
+            if (!shxOutputStream.writeIndex(index, shapeType, extents)){
+                throw new IOException("Failed to write " + shx);
+            }
         }
+    }
 
-        private void writeExtents(double[] extents) throws IOException {
-            //return new double[] { -90, -180, 90, 180 };
 
-            _leos.writeLEDouble(extents[1]); //-180.0
-            _leos.writeLEDouble(extents[0]); //-90.0
-            _leos.writeLEDouble(extents[3]); //180.0
-            _leos.writeLEDouble(extents[2]); //90.0
+  //**************************************************************************
+  //** openZip
+  //**************************************************************************
+  /** Used to find the shp, shx, dbf and prj entries in a zip file.
+   *  @param name Path of the shapefile in the zip file. If null, the first
+   *  shp file in the zip file is used.
+   */
+    private void openZip(java.io.File file, String name) throws IOException {
+        zip = new ZipArchive(file);
+        if (name==null){
+            for (String n : zip.getNames()){
+                if (n.toLowerCase().endsWith(".shp")){
+                    name = n;
+                    break;
+                }
+            }
+            if (name==null) throw new IllegalArgumentException("No shapefiles found in " + file);
+        }
+        if (name.toLowerCase().endsWith(".shp")) name = name.substring(0, name.length()-4);
+        if (zip.find(name, "shp")==null || zip.find(name, "dbf")==null){
+            throw new IllegalArgumentException("Shapefile not found: " + name);
+        }
+
+        java.io.File[] files = new java.io.File[4];
+        String[] ext = new String[]{"shp", "shx", "dbf", "prj"};
+        for (int i=0; i<ext.length; i++){
+            String entry = zip.find(name, ext[i]);
+            if (entry==null) entry = name + "." + ext[i];
+            files[i] = new java.io.File(file, entry);
         }
+        shp = files[0];
+        shx = files[1];
+        dbf = files[2];
+        prj = files[3];
+        shpSource = zip.getSource(zip.find(name, "shp"));
+        dbfSource = zip.getSource(zip.find(name, "dbf"));
+        String entry = zip.find(name, "shx");
+        if (entry!=null) shxSource = zip.getSource(entry);
+        readOnly = true;
+    }
+
+
+  //**************************************************************************
+  //** getBaseName
+  //**************************************************************************
+  /** Returns the file name without the extension.
+   */
+    private static String getBaseName(java.io.File file){
+        String name = file.getName();
+        int idx = name.lastIndexOf(".");
+        return idx>0 ? name.substring(0, idx) : name;
     }
 
 
@@ -758,7 +4866,19 @@ public class ShapeFile {
         String name = file.getName();
         int idx = name.lastIndexOf(".")+1;
         name = name.substring(0, idx) + ext;
-        return new java.io.File(dir, name);
+        java.io.File f = new java.io.File(dir, name);
+
+
+      //Look for a file with a different case (e.g. "COUNTY.SHX")
+        if (!f.exists() && dir!=null){
+            String[] names = dir.list();
+            if (names!=null){
+                for (String n : names){
+                    if (n.equalsIgnoreCase(name)) return new java.io.File(dir, n);
+                }
+            }
+        }
+        return f;
     }
 
 
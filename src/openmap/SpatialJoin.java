@@ -0,0 +1,849 @@
+package openmap;
+import static com.bbn.openmap.dataAccess.shape.ShapeConstants.*;
+import com.bbn.openmap.dataAccess.shape.input.DbfInputStream;
+
+import org.locationtech.jts.algorithm.locate.IndexedPointInAreaLocator;
+import org.locationtech.jts.geom.*;
+import org.locationtech.jts.geom.prep.PreparedGeometry;
+import org.locationtech.jts.geom.prep.PreparedGeometryFactory;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.*;
+import java.util.concurrent.*;
+
+//******************************************************************************
+//**  SpatialJoin
+//******************************************************************************
+/**
+ *   Used to join the records in one shapefile (e.g. addresses) with the
+ *   records in another shapefile (e.g. zip codes) using a spatial predicate.
+ *   The second shapefile, or join layer, is loaded into memory and indexed
+ *   with a packed Hilbert R-tree. The records in the first shapefile, or
+ *   target layer, are read in file order and split into batches that are
+ *   matched against the index by a pool of threads. Each match produces
+ *   one record with the attributes of both records and the geometry of the
+ *   target record. Results are returned in the order of the target layer.
+ *   Example:
+ <pre>
+    SpatialJoin join = new SpatialJoin(addresses, zipCodes);
+    join.setPredicate("contains");
+    join.write(new java.io.File("/temp/addresses_zip.shp"));
+ </pre>
+ *
+ ******************************************************************************/
+
+public class SpatialJoin {
+
+    private final ShapeFile target;
+    private final ShapeFile join;
+    private String predicate = "intersects";
+    private double distance;
+    private boolean keepUnmatched;
+    private int numThreads = Runtime.getRuntime().availableProcessors();
+    private Index index;
+
+    private static final int BATCH_SIZE = 4096;
+    private static final int NODE_SIZE = 16;
+    private static final int CONTAINS = 1;
+    private static final int INTERSECTS = 2;
+    private static final int WITHIN_DISTANCE = 3;
+
+
+  //**************************************************************************
+  //** Constructor
+  //**************************************************************************
+  /** @param target Shapefile with the records to join (e.g. points). This
+   *  layer is streamed and can be arbitrarily large.
+   *  @param join Shapefile with the records to join to (e.g. polygons). This
+   *  layer is loaded into memory.
+   */
+    public SpatialJoin(ShapeFile target, ShapeFile join){
+        if (target==null || join==null) throw new IllegalArgumentException("Shapefiles are required");
+        this.target = target;
+        this.join = join;
+    }
+
+
+  //**************************************************************************
+  //** setPredicate
+  //**************************************************************************
+  /** Used to set the spatial predicate used to match records. Options
+   *  include "contains" (the join geometry contains the target geometry),
+   *  "intersects" and "withinDistance" (see setDistance()). Default is
+   *  "intersects".
+   */
+    public void setPredicate(String predicate){
+        if (getPredicate(predicate)<0) throw new IllegalArgumentException("Invalid predicate: " + predicate);
+        this.predicate = predicate;
+    }
+
+
+  //**************************************************************************
+  //** setDistance
+  //**************************************************************************
+  /** Used to set the maximum distance between records for the
+   *  "withinDistance" predicate, in the units of the shapefiles.
+   */
+    public void setDistance(double distance){
+        if (distance<0 || Double.isNaN(distance)) throw new IllegalArgumentException("Invalid distance");
+        this.distance = distance;
+    }
+
+
+  //**************************************************************************
+  //** setKeepUnmatched
+  //**************************************************************************
+  /** Used to include target records that don't match any join records
+   *  (i.e. a left join). The join attributes of these records are null.
+   *  Default is false.
+   */
+    public void setKeepUnmatched(boolean keepUnmatched){
+        this.keepUnmatched = keepUnmatched;
+    }
+
+
+  //**************************************************************************
+  //** setNumThreads
+  //**************************************************************************
+  /** Used to set the number of threads used to match records. Default is
+   *  the number of available processors.
+   */
+    public void setNumThreads(int numThreads){
+        if (numThreads<1) throw new IllegalArgumentException("Invalid number of threads");
+        this.numThreads = numThreads;
+    }
+
+
+  //**************************************************************************
+  //** getSchema
+  //**************************************************************************
+  /** Returns the schema of the joined records: the target record id ("id*"),
+   *  the target columns, the join columns and the target geometry ("geom*").
+   *  Join columns with the same name as a target column are renamed with a
+   *  numeric suffix (e.g. "NAME_2").
+   */
+    public Schema getSchema() throws Exception {
+        return getIndex().schema;
+    }
+
+
+  //**************************************************************************
+  //** getRecords
+  //**************************************************************************
+  /** Returns the joined records, in the order of the target layer. Records
+   *  are matched ahead of the caller by a pool of threads. Be sure to
+   *  iterate through all the records, or close the iterator, so that the
+   *  threads and the input streams are released.
+   */
+    public Iterator<Record> getRecords() throws Exception {
+        return new JoinIterator(getIndex(), true);
+    }
+
+
+  //**************************************************************************
+  //** write
+  //**************************************************************************
+  /** Used to write the joined records to a new shapefile. Records are
+   *  copied directly from the target shp file, without decoding them again,
+   *  and the dbf rows are written by concatenating the target and join rows.
+   *  The prj file of the target layer is copied, if there is one.
+   *  @param file Path to the shp file
+   *  @return Number of records written
+   */
+    public long write(java.io.File file) throws Exception {
+        Metrics.Listener listener = Metrics.getListener();
+        long startTime = listener==Metrics.NONE ? 0 : System.nanoTime();
+        Index index = getIndex();
+
+
+      //Get output files
+        String name = file.getName();
+        int idx = name.lastIndexOf(".");
+        if (idx>0) name = name.substring(0, idx);
+        java.io.File dir = file.getAbsoluteFile().getParentFile();
+        if (!dir.exists()) dir.mkdirs();
+        java.io.File shp = new java.io.File(dir, name + ".shp");
+        java.io.File shx = new java.io.File(dir, name + ".shx");
+        java.io.File dbf = new java.io.File(dir, name + ".dbf");
+        for (java.io.File f : target.getFiles()){
+            if (f.getAbsoluteFile().equals(shp.getAbsoluteFile())){
+                throw new IllegalArgumentException("Output file can't be the same as the target");
+            }
+        }
+
+
+      //Create dbf header. The row count is updated once the records have
+      //been written.
+        byte[] dbfHeader = getDbfHeader(index);
+        int rowLength = index.targetLength + index.joinLength;
+        byte[] blank = new byte[index.joinLength];
+        Arrays.fill(blank, (byte) ' ');
+
+
+      //Write records
+        byte[] header = target.getHeader();
+        long numRecords = 0;
+        long shpLength = header.length;
+        Envelope extent = new Envelope();
+        OutputStream shpOut = null, shxOut = null, dbfOut = null;
+        OutputBuffer shpBuf = new OutputBuffer(1024*1024 + 64*1024);
+        OutputBuffer shxBuf = new OutputBuffer(64*1024);
+        OutputBuffer dbfBuf = new OutputBuffer(1024*1024 + 64*1024);
+        JoinIterator it = new JoinIterator(index, false);
+        try{
+            shpOut = new FileOutputStream(shp);
+            shxOut = new FileOutputStream(shx);
+            dbfOut = new FileOutputStream(dbf);
+            shpOut.write(header);
+            shxOut.write(header);
+            dbfOut.write(dbfHeader);
+
+            Batch batch;
+            while ((batch = it.nextBatch())!=null){
+                for (int m=0; m<batch.numMatches; m++){
+                    int i = batch.matches[m*2];
+                    int j = batch.matches[m*2+1];
+
+
+                  //Copy shp record with a new record number
+                    int offset = batch.offsets[i];
+                    int contentLength = batch.offsets[i+1]-offset-8;
+                    numRecords++;
+                    if (numRecords>Integer.MAX_VALUE) throw new IOException("Too many records");
+                    shpBuf.ensure(8);
+                    ByteBuffer.wrap(shpBuf.buf, shpBuf.length, 8).putInt((int) numRecords).putInt(contentLength/2);
+                    shpBuf.length += 8;
+                    shpBuf.put(batch.records, offset+8, contentLength);
+                    shxBuf.ensure(8);
+                    ByteBuffer.wrap(shxBuf.buf, shxBuf.length, 8).putInt((int) (shpLength/2)).putInt(contentLength/2);
+                    shxBuf.length += 8;
+                    shpLength += 8 + contentLength;
+                    if (shpLength/2>Integer.MAX_VALUE) throw new IOException("Shp file is too large");
+
+
+                  //Write dbf row
+                    dbfBuf.put((byte) ' ');
+                    dbfBuf.put(batch.rows, i*index.targetLength, index.targetLength);
+                    if (j<0) dbfBuf.put(blank, 0, blank.length);
+                    else dbfBuf.put(index.rows, j*index.joinLength, index.joinLength);
+
+
+                    Geometry geom = batch.geoms[i];
+                    if (geom!=null) extent.expandToInclude(geom.getEnvelopeInternal());
+                }
+                if (shpBuf.length>=1024*1024) shpBuf.writeTo(shpOut);
+                if (shxBuf.length>=64*1024) shxBuf.writeTo(shxOut);
+                if (dbfBuf.length>=1024*1024) dbfBuf.writeTo(dbfOut);
+            }
+            dbfBuf.put((byte) 26);
+            shpBuf.writeTo(shpOut);
+            shxBuf.writeTo(shxOut);
+            dbfBuf.writeTo(dbfOut);
+            shpOut.close();
+            shxOut.close();
+            dbfOut.close();
+        }
+        catch(Exception e){
+            it.close();
+            for (Closeable c : new Closeable[]{shpOut, shxOut, dbfOut}){
+                try{ if (c!=null) c.close(); }catch(Exception ex){}
+            }
+            shp.delete();
+            shx.delete();
+            dbf.delete();
+            throw e;
+        }
+
+
+      //Update headers
+        ByteBuffer hb = ByteBuffer.wrap(header);
+        hb.putInt(24, (int) (shpLength/2));
+        hb.order(ByteOrder.LITTLE_ENDIAN);
+        if (extent.isNull()) extent.init(0, 0, 0, 0);
+        hb.putDouble(36, extent.getMinX());
+        hb.putDouble(44, extent.getMinY());
+        hb.putDouble(52, extent.getMaxX());
+        hb.putDouble(60, extent.getMaxY());
+        writeHeader(shp, header);
+        hb.order(ByteOrder.BIG_ENDIAN).putInt(24, (int) ((header.length + numRecords*8)/2));
+        writeHeader(shx, header);
+        ByteBuffer.wrap(dbfHeader).order(ByteOrder.LITTLE_ENDIAN).putInt(4, (int) numRecords);
+        writeHeader(dbf, Arrays.copyOf(dbfHeader, 8));
+
+
+      //Copy projection
+        for (java.io.File f : target.getFiles()){
+            if (f.getName().toLowerCase().endsWith(".prj") && f.isFile()){
+                java.nio.file.Files.copy(f.toPath(), new java.io.File(dir, name + ".prj").toPath(),
+                    java.nio.file.StandardCopyOption.REPLACE_EXISTING);
+            }
+        }
+
+        if (listener!=Metrics.NONE){
+            long numBytes = shp.length() + shx.length() + dbf.length();
+            listener.recordsWritten((int) Math.min(numRecords, Integer.MAX_VALUE), numBytes, System.nanoTime()-startTime);
+        }
+        return numRecords;
+    }
+
+
+  //**************************************************************************
+  //** getIndex
+  //**************************************************************************
+  /** Returns the index of the join layer. The index is created on the first
+   *  call and reused by later joins.
+   */
+    private synchronized Index getIndex() throws Exception {
+        if (index==null) index = new Index();
+        return index;
+    }
+
+
+  //**************************************************************************
+  //** Index
+  //**************************************************************************
+  /** In-memory copy of the join layer: geometries, dbf rows and parsed
+   *  values, with a packed Hilbert R-tree of the geometry envelopes. The
+   *  tree uses the same layout as the FlatGeobuf index (root first, leaves
+   *  last) but is stored in flat arrays so searches don't create any
+   *  objects. Geometries are prepared up front. Polygons also get a
+   *  point-in-polygon locator when the target layer has points, so workers
+   *  don't contend for the locks that JTS uses to create the locators
+   *  lazily.
+   */
+    private class Index {
+
+        private final Geometry[] geoms;
+        private final PreparedGeometry[] prepared;
+        private final IndexedPointInAreaLocator[] locators;
+        private final Value[][] values;
+        private final byte[] rows;
+        private final int joinLength;
+        private final int targetLength;
+        private final int shapeType;
+        private final DbfInputStream targetDbf;
+        private final DbfInputStream joinDbf;
+        private final String[] names;
+        private final Schema schema;
+
+      //Packed R-tree. Each node has a bounding box and a range of children:
+      //nodes in the level below, or a join record for the leaves.
+        private double[] boxes;
+        private int[] first;
+        private int[] last;
+        private int leafStart;
+        private int depth;
+
+
+        private Index() throws Exception {
+            shapeType = target.getShapeType();
+            targetDbf = target.getDbfInputStream();
+            targetDbf.close();
+            targetLength = targetDbf.getRecordLength()-1;
+            joinDbf = join.getDbfInputStream();
+            joinDbf.close();
+            joinLength = joinDbf.getRecordLength()-1;
+            if (1+targetLength+joinLength>0xffff) throw new IllegalArgumentException("Joined dbf rows are too long");
+
+
+          //Create schema
+            String[] targetNames = targetDbf.getColumnNames();
+            String[] joinNames = joinDbf.getColumnNames();
+            names = new String[targetNames.length+joinNames.length];
+            HashSet<String> used = new HashSet<>();
+            for (int i=0; i<targetNames.length; i++){
+                names[i] = targetNames[i];
+                used.add(targetNames[i].toLowerCase(Locale.ROOT));
+            }
+            for (int i=0; i<joinNames.length; i++){
+                String name = joinNames[i];
+                for (int n=2; used.contains(name.toLowerCase(Locale.ROOT)); n++){
+                    String suffix = "_" + n;
+                    name = joinNames[i].substring(0, Math.min(joinNames[i].length(), 10-suffix.length())) + suffix;
+                }
+                used.add(name.toLowerCase(Locale.ROOT));
+                names[targetNames.length+i] = name;
+            }
+            String[] fields = new String[names.length+2];
+            byte[] types = new byte[names.length+2];
+            fields[0] = "id*";
+            fields[fields.length-1] = "geom*";
+            System.arraycopy(names, 0, fields, 1, names.length);
+            System.arraycopy(targetDbf.getTypes(), 0, types, 1, targetNames.length);
+            System.arraycopy(joinDbf.getTypes(), 0, types, 1+targetNames.length, joinNames.length);
+            schema = new Schema(fields, types);
+
+
+          //Read the join layer
+            ArrayList<Geometry> geoms = new ArrayList<>();
+            ArrayList<Value[]> values = new ArrayList<>();
+            OutputBuffer rows = new OutputBuffer(1024*1024);
+            ShapeFile.Cursor cursor = join.getCursor();
+            try{
+                while (cursor.advance()){
+                    Geometry geom = cursor.getGeometry();
+                    if (geom==null || geom.isEmpty()) continue;
+                    Record record = cursor.getRecord();
+                    Value[] arr = new Value[joinNames.length];
+                    for (int i=0; i<arr.length; i++) arr[i] = record.getValue(i+1);
+                    geoms.add(geom);
+                    values.add(arr);
+                    rows.put(cursor.getRow(), 0, joinLength);
+                }
+            }
+            finally{
+                cursor.close();
+            }
+            this.geoms = geoms.toArray(new Geometry[geoms.size()]);
+            this.values = values.toArray(new Value[values.size()][]);
+            this.rows = rows.buf;
+
+
+          //Prepare geometries
+            boolean points = ShapeFile.getBaseType(shapeType)==SHAPE_TYPE_POINT;
+            prepared = new PreparedGeometry[this.geoms.length];
+            locators = new IndexedPointInAreaLocator[this.geoms.length];
+            for (int i=0; i<this.geoms.length; i++){
+                Geometry geom = this.geoms[i];
+                prepared[i] = PreparedGeometryFactory.prepare(geom);
+                if (points && geom instanceof Polygonal){
+                    locators[i] = new IndexedPointInAreaLocator(geom);
+                    locators[i].locate(geom.getCoordinate()); //builds the index
+                }
+            }
+            if (this.geoms.length>0) createTree();
+        }
+
+
+      /** Used to create the packed R-tree. The join records are sorted by the
+       *  Hilbert value of the center of their envelopes. Each parent covers up
+       *  to NODE_SIZE consecutive nodes in the level below.
+       */
+        private void createTree(){
+            int numItems = geoms.length;
+            Envelope extent = new Envelope();
+            for (Geometry geom : geoms) extent.expandToInclude(geom.getEnvelopeInternal());
+            double width = extent.getWidth();
+            double height = extent.getHeight();
+            long[] keys = new long[numItems];
+            for (int i=0; i<numItems; i++){
+                Envelope env = geoms[i].getEnvelopeInternal();
+                long x = width>0 ? (long) Math.floor(0xffff*((env.getMinX()+env.getMaxX())/2-extent.getMinX())/width) : 0;
+                long y = height>0 ? (long) Math.floor(0xffff*((env.getMinY()+env.getMaxY())/2-extent.getMinY())/height) : 0;
+                keys[i] = (FlatGeobuf.hilbert((int) x, (int) y) << 31) | i;
+            }
+            Arrays.sort(keys);
+
+            long[][] levelBounds = FlatGeobuf.getLevelBounds(numItems, NODE_SIZE);
+            int numNodes = (int) levelBounds[0][1];
+            boxes = new double[numNodes*4];
+            first = new int[numNodes];
+            last = new int[numNodes];
+            leafStart = (int) levelBounds[0][0];
+            depth = levelBounds.length;
+
+
+          //Add leaves
+            for (int i=0; i<numItems; i++){
+                int item = (int) (keys[i] & 0x7fffffff);
+                Envelope env = geoms[item].getEnvelopeInternal();
+                int n = leafStart+i;
+                boxes[n*4] = env.getMinX();
+                boxes[n*4+1] = env.getMinY();
+                boxes[n*4+2] = env.getMaxX();
+                boxes[n*4+3] = env.getMaxY();
+                first[n] = item;
+            }
+
+
+          //Add parents
+            for (int level=0; level<levelBounds.length-1; level++){
+                int pos = (int) levelBounds[level][0];
+                int end = (int) levelBounds[level][1];
+                int parent = (int) levelBounds[level+1][0];
+                while (pos<end){
+                    first[parent] = pos;
+                    double minX = Double.POSITIVE_INFINITY;
+                    double minY = Double.POSITIVE_INFINITY;
+                    double maxX = Double.NEGATIVE_INFINITY;
+                    double maxY = Double.NEGATIVE_INFINITY;
+                    for (int j=0; j<NODE_SIZE && pos<end; j++, pos++){
+                        minX = Math.min(minX, boxes[pos*4]);
+                        minY = Math.min(minY, boxes[pos*4+1]);
+                        maxX = Math.max(maxX, boxes[pos*4+2]);
+                        maxY = Math.max(maxY, boxes[pos*4+3]);
+                    }
+                    last[parent] = pos;
+                    boxes[parent*4] = minX;
+                    boxes[parent*4+1] = minY;
+                    boxes[parent*4+2] = maxX;
+                    boxes[parent*4+3] = maxY;
+                    parent++;
+                }
+            }
+        }
+
+
+      /** Used to find the join records with an envelope that intersects a
+       *  bounding box. Returns the number of records found. The records are
+       *  stored in the candidates array, sorted by position in the join
+       *  layer.
+       */
+        private int search(double minX, double minY, double maxX, double maxY, Candidates c){
+            if (boxes==null) return 0;
+            int numFound = 0;
+            int[] stack = c.stack;
+            int size = 0;
+            stack[size++] = 0;
+            while (size>0){
+                int node = stack[--size];
+                for (int n=first[node], end=last[node]; n<end; n++){
+                    int p = n*4;
+                    if (boxes[p+2]<minX || boxes[p+3]<minY || boxes[p]>maxX || boxes[p+1]>maxY) continue;
+                    if (n>=leafStart){
+                        if (numFound==c.items.length) c.items = Arrays.copyOf(c.items, numFound*2);
+                        c.items[numFound++] = first[n];
+                    }
+                    else{
+                        stack[size++] = n;
+                    }
+                }
+            }
+            if (numFound>1) Arrays.sort(c.items, 0, numFound);
+            return numFound;
+        }
+    }
+
+
+  //**************************************************************************
+  //** Candidates
+  //**************************************************************************
+  /** Scratch arrays used by a worker to search the R-tree.
+   */
+    private static class Candidates {
+        private int[] items = new int[16];
+        private final int[] stack;
+
+        private Candidates(int depth){
+            stack = new int[Math.max(1, depth*NODE_SIZE)];
+        }
+    }
+
+
+  //**************************************************************************
+  //** Batch
+  //**************************************************************************
+  /** A batch of raw target records and dbf rows, along with the matches
+   *  found by a worker. Matches are stored as pairs of indexes: the position
+   *  of the target record in the batch and the position of the join record
+   *  in the index (or -1 for unmatched records).
+   */
+    private static class Batch {
+        private byte[] records;
+        private int[] offsets;
+        private byte[] rows;
+        private int[] ids;
+        private int count;
+
+        private Geometry[] geoms;
+        private int[] matches = new int[64];
+        private int numMatches;
+        private ArrayList<Record> output;
+
+        private void add(int i, int j){
+            if (numMatches*2+2>matches.length) matches = Arrays.copyOf(matches, matches.length*2);
+            matches[numMatches*2] = i;
+            matches[numMatches*2+1] = j;
+            numMatches++;
+        }
+    }
+
+
+  //**************************************************************************
+  //** JoinIterator
+  //**************************************************************************
+  /** Used to read batches of target records on the caller's thread and
+   *  match them on a pool of threads. Up to two batches per thread are
+   *  queued ahead of the caller. Batches are returned in file order.
+   */
+    private class JoinIterator implements Iterator<Record>, Closeable {
+
+        private final Index index;
+        private final boolean createRecords;
+        private final int predicate;
+        private final ShapeFile.Cursor cursor;
+        private final ExecutorService executor;
+        private final ArrayDeque<Future<Batch>> queue = new ArrayDeque<>();
+        private final OutputBuffer records = new OutputBuffer(1024*1024);
+        private boolean eof;
+        private boolean closed;
+
+        private Batch batch;
+        private int pos;
+
+
+        private JoinIterator(Index index, boolean createRecords) throws Exception {
+            this.index = index;
+            this.createRecords = createRecords;
+            this.predicate = getPredicate(SpatialJoin.this.predicate);
+            cursor = target.getCursor();
+            executor = ThreadPool.newExecutor("SpatialJoin", numThreads);
+        }
+
+
+      /** Returns the next batch of matches or null if there are no more
+       *  records.
+       */
+        private Batch nextBatch() throws Exception {
+            while (!closed){
+                while (!eof && queue.size()<numThreads*2){
+                    final Batch batch = readBatch();
+                    if (batch==null) break;
+                    queue.add(executor.submit(new Callable<Batch>(){
+                        public Batch call() throws Exception {
+                            match(batch);
+                            return batch;
+                        }
+                    }));
+                }
+                if (queue.isEmpty()){
+                    close();
+                    return null;
+                }
+                try{
+                    Batch batch = queue.poll().get();
+                    if (batch.numMatches>0) return batch;
+                }
+                catch(ExecutionException e){
+                    close();
+                    Throwable t = e.getCause();
+                    if (t instanceof Exception) throw (Exception) t;
+                    throw new RuntimeException(t);
+                }
+            }
+            return null;
+        }
+
+
+      /** Copies the next target records and rows into a new batch. Returns
+       *  null if there are no more records.
+       */
+        private Batch readBatch() throws IOException {
+            Batch batch = new Batch();
+            batch.offsets = new int[BATCH_SIZE+1];
+            batch.ids = new int[BATCH_SIZE];
+            batch.rows = new byte[Math.max(BATCH_SIZE*index.targetLength, 1)];
+            records.length = 0;
+            int n = 0;
+            while (n<BATCH_SIZE){
+                if (!cursor.advance()){
+                    eof = true;
+                    break;
+                }
+                batch.offsets[n] = records.length;
+                batch.ids[n] = cursor.getId();
+                cursor.copyRecord(records);
+                System.arraycopy(cursor.getRow(), 0, batch.rows, n*index.targetLength, index.targetLength);
+                n++;
+            }
+            if (n==0) return null;
+            batch.offsets[n] = records.length;
+            batch.records = Arrays.copyOf(records.buf, records.length);
+            batch.count = n;
+            return batch;
+        }
+
+
+      /** Decodes the records in a batch and finds the matching join records.
+       *  Called by the worker threads.
+       */
+        private void match(Batch batch) throws Exception {
+            Geometry[] geoms = target.decode(batch.records, batch.count, index.shapeType);
+            batch.geoms = geoms;
+
+            Candidates candidates = new Candidates(index.depth);
+            double d = predicate==WITHIN_DISTANCE ? distance : 0;
+            for (int i=0; i<batch.count; i++){
+                Geometry geom = geoms[i];
+                int numMatches = batch.numMatches;
+                if (geom!=null && !geom.isEmpty()){
+
+
+                  //Find candidates in the index
+                    Envelope env = geom.getEnvelopeInternal();
+                    int n = index.search(env.getMinX()-d, env.getMinY()-d, env.getMaxX()+d, env.getMaxY()+d, candidates);
+
+
+                  //Test candidates
+                    Coordinate pt = geom instanceof Point ? geom.getCoordinate() : null;
+                    for (int c=0; c<n; c++){
+                        int j = candidates.items[c];
+                        if (matches(j, geom, pt)) batch.add(i, j);
+                    }
+                }
+                if (keepUnmatched && batch.numMatches==numMatches) batch.add(i, -1);
+            }
+
+            if (createRecords) createRecords(batch);
+        }
+
+
+      /** Returns true if a target geometry matches a join record.
+       *  @param pt Coordinate of the target geometry if it is a point
+       */
+        private boolean matches(int j, Geometry geom, Coordinate pt){
+            IndexedPointInAreaLocator locator = index.locators[j];
+            switch (predicate){
+                case CONTAINS:
+                    if (pt!=null && locator!=null) return locator.locate(pt)==Location.INTERIOR;
+                    return index.prepared[j].contains(geom);
+                case INTERSECTS:
+                    if (pt!=null && locator!=null) return locator.locate(pt)!=Location.EXTERIOR;
+                    return index.prepared[j].intersects(geom);
+                default:
+                    return index.geoms[j].isWithinDistance(geom, distance);
+            }
+        }
+
+
+      /** Creates a Record for each match in a batch. Target rows are parsed
+       *  once, even if they match more than one join record.
+       */
+        private void createRecords(Batch batch){
+            java.text.DecimalFormat df = DbfInputStream.createDecimalFormat();
+            Metrics.Listener listener = Metrics.getListener();
+            int numTargetColumns = index.targetDbf.getColumnCount();
+            int numJoinColumns = index.joinDbf.getColumnCount();
+            batch.output = new ArrayList<>(batch.numMatches);
+            Value[] attr = null;
+            int prev = -1;
+            for (int m=0; m<batch.numMatches; m++){
+                int i = batch.matches[m*2];
+                int j = batch.matches[m*2+1];
+                if (i!=prev){
+                    long startTime = listener==Metrics.NONE ? 0 : System.nanoTime();
+                    ArrayList<Object> row = index.targetDbf.parseRow(batch.rows, i*index.targetLength, df);
+                    attr = new Value[row.size()];
+                    for (int c=0; c<attr.length; c++) attr[c] = new Value(row.get(c));
+                    if (listener!=Metrics.NONE) listener.rowDecoded(index.targetLength+1, System.nanoTime()-startTime);
+                    prev = i;
+                }
+
+                Value[] values = new Value[index.schema.size()];
+                values[0] = new Value(batch.ids[i]);
+                System.arraycopy(attr, 0, values, 1, numTargetColumns);
+                for (int c=0; c<numJoinColumns; c++){
+                    values[1+numTargetColumns+c] = j<0 ? new Value(null) : index.values[j][c];
+                }
+                values[values.length-1] = new Value(batch.geoms[i]);
+                batch.output.add(new Record(index.schema, values));
+            }
+        }
+
+
+        public boolean hasNext(){
+            while (batch==null || pos==batch.output.size()){
+                try{
+                    batch = nextBatch();
+                }
+                catch(RuntimeException e){
+                    throw e;
+                }
+                catch(Exception e){
+                    throw new RuntimeException(e);
+                }
+                pos = 0;
+                if (batch==null) return false;
+            }
+            return true;
+        }
+
+
+        public Record next(){
+            if (!hasNext()) throw new NoSuchElementException();
+            return batch.output.get(pos++);
+        }
+
+
+      /** Stops the workers and closes the target layer. Called automatically
+       *  after the last record.
+       */
+        public void close(){
+            if (closed) return;
+            closed = true;
+            executor.shutdownNow();
+            queue.clear();
+            try{ cursor.close(); }catch(Exception e){}
+        }
+    }
+
+
+  //**************************************************************************
+  //** getDbfHeader
+  //**************************************************************************
+  /** Returns a dbf header with the target columns followed by the join
+   *  columns. The row count is set to 0.
+   */
+    private static byte[] getDbfHeader(Index index){
+        DbfInputStream[] dbfs = new DbfInputStream[]{index.targetDbf, index.joinDbf};
+        byte[] header = new byte[32 + index.names.length*32 + 1];
+        ByteBuffer bb = ByteBuffer.wrap(header).order(ByteOrder.LITTLE_ENDIAN);
+        Calendar cal = Calendar.getInstance();
+        bb.put(0, (byte) 3);
+        bb.put(1, (byte) (cal.get(Calendar.YEAR)-1900));
+        bb.put(2, (byte) (cal.get(Calendar.MONTH)+1));
+        bb.put(3, (byte) cal.get(Calendar.DAY_OF_MONTH));
+        bb.putShort(8, (short) header.length);
+        bb.putShort(10, (short) (1 + index.targetLength + index.joinLength));
+
+        int col = 0;
+        for (DbfInputStream dbf : dbfs){
+            byte[] types = dbf.getTypes();
+            int[] lengths = dbf.getLengths();
+            byte[] decimals = dbf.getDecimalCounts();
+            for (int i=0; i<types.length; i++){
+                int offset = 32 + col*32;
+                byte[] name = index.names[col].getBytes(java.nio.charset.StandardCharsets.US_ASCII);
+                System.arraycopy(name, 0, header, offset, Math.min(name.length, 10));
+                header[offset+11] = types[i];
+                header[offset+16] = (byte) lengths[i];
+                header[offset+17] = decimals[i];
+                col++;
+            }
+        }
+        header[header.length-1] = 0x0D;
+        return header;
+    }
+
+
+  //**************************************************************************
+  //** writeHeader
+  //**************************************************************************
+  /** Overwrites the first bytes in a file.
+   */
+    private static void writeHeader(java.io.File file, byte[] header) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try{
+            raf.write(header);
+        }
+        finally{
+            raf.close();
+        }
+    }
+
+
+  //**************************************************************************
+  //** getPredicate
+  //**************************************************************************
+  /** Returns the code for a predicate name or -1 if the name is invalid.
+   */
+    private static int getPredicate(String predicate){
+        if (predicate==null) return -1;
+        if (predicate.equalsIgnoreCase("contains")) return CONTAINS;
+        if (predicate.equalsIgnoreCase("intersects")) return INTERSECTS;
+        if (predicate.equalsIgnoreCase("withinDistance")) return WITHIN_DISTANCE;
+        return -1;
+    }
+}
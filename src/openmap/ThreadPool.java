@@ -0,0 +1,44 @@
+package openmap;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+//******************************************************************************
+//**  ThreadPool
+//******************************************************************************
+/**
+ *   Used to create executors for I/O bound tasks. This version targets Java 8
+ *   and returns a bounded pool of platform threads. The jar also contains a
+ *   Java 21 version of this class (see src-java21) that uses virtual threads.
+ *
+ ******************************************************************************/
+
+class ThreadPool {
+
+
+  //**************************************************************************
+  //** newExecutor
+  //**************************************************************************
+  /** Returns an executor with the given number of daemon threads.
+   *  @param name Prefix used to name the threads.
+   */
+    public static ExecutorService newExecutor(final String name, int numThreads){
+        final AtomicInteger count = new AtomicInteger();
+        return Executors.newFixedThreadPool(numThreads, new ThreadFactory(){
+            public Thread newThread(Runnable r){
+                Thread t = new Thread(r, name + "-" + count.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+
+  //**************************************************************************
+  //** isVirtual
+  //**************************************************************************
+  /** Returns true if the executors use virtual threads.
+   */
+    public static boolean isVirtual(){
+        return false;
+    }
+}
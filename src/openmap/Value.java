@@ -38,6 +38,7 @@ public class Value {
     public Integer toInteger(){
         if (value==null) return null;
         if (value instanceof Integer) return (Integer) value;
+        if (value instanceof Number) return (int) Math.round(((Number) value).doubleValue());
         try{
             return Integer.valueOf(prepNumber(value+""));
         }
@@ -79,6 +80,7 @@ public class Value {
     public Double toDouble(){
         if (value==null) return null;
         if (value instanceof Double) return (Double) value;
+        if (value instanceof Number) return ((Number) value).doubleValue();
         try{
             return Double.valueOf(prepNumber(value+""));
         }
@@ -97,6 +99,13 @@ public class Value {
     public Long toLong(){
         if (value==null) return null;
         if (value instanceof Long) return (Long) value;
+        if (value instanceof Integer || value instanceof Short || value instanceof Byte){
+            return ((Number) value).longValue();
+        }
+        if (value instanceof Number){
+            double d = ((Number) value).doubleValue();
+            return Double.isNaN(d) ? null : Math.round(d);
+        }
         try{
             return Long.valueOf(prepNumber(value+""));
         }
@@ -106,6 +115,83 @@ public class Value {
     }
 
 
+  //**************************************************************************
+  //** getDouble
+  //**************************************************************************
+  /** Returns the value as a primitive double. Numbers are converted directly,
+   *  without boxing or string parsing. Returns the default value if the
+   *  value is null, blank, or can't be converted to a double.
+   */
+    public double getDouble(double defaultValue){
+        if (value instanceof Double) return (Double) value;
+        if (value instanceof Number) return ((Number) value).doubleValue();
+        if (value==null || isBlank()) return defaultValue;
+        Double d = toDouble();
+        return d==null ? defaultValue : d;
+    }
+
+
+  //**************************************************************************
+  //** getLong
+  //**************************************************************************
+  /** Returns the value as a primitive long. Floating point numbers are
+   *  rounded to the nearest long. Returns the default value if the value is
+   *  null, blank, NaN, or can't be converted to a long.
+   */
+    public long getLong(long defaultValue){
+        if (value instanceof Long || value instanceof Integer ||
+            value instanceof Short || value instanceof Byte){
+            return ((Number) value).longValue();
+        }
+        if (value instanceof Number){
+            double d = ((Number) value).doubleValue();
+            return Double.isNaN(d) ? defaultValue : Math.round(d);
+        }
+        if (value==null || isBlank()) return defaultValue;
+        try{
+            return Long.parseLong(prepNumber(value+""));
+        }
+        catch(Exception e){
+            double d = getDouble(Double.NaN);
+            return Double.isNaN(d) ? defaultValue : Math.round(d);
+        }
+    }
+
+
+  //**************************************************************************
+  //** getInt
+  //**************************************************************************
+  /** Returns the value as a primitive int. Floating point numbers are
+   *  rounded to the nearest int. Returns the default value if the value is
+   *  null, blank, NaN, outside the range of an int, or can't be converted
+   *  to an int.
+   */
+    public int getInt(int defaultValue){
+        if (value instanceof Integer) return (Integer) value;
+        long l = getLong(defaultValue);
+        if (l<Integer.MIN_VALUE || l>Integer.MAX_VALUE) return defaultValue;
+        return (int) l;
+    }
+
+
+  //**************************************************************************
+  //** isBlank
+  //**************************************************************************
+  /** Returns true if the value is null or a string that contains only
+   *  whitespace. Empty numeric cells in a dbf file are returned as blank
+   *  strings.
+   */
+    public boolean isBlank(){
+        if (value==null) return true;
+        if (!(value instanceof String)) return false;
+        String str = (String) value;
+        for (int i=0; i<str.length(); i++){
+            if (str.charAt(i)>' ') return false;
+        }
+        return true;
+    }
+
+
   //**************************************************************************
   //** toBigDecimal
   //**************************************************************************
@@ -133,6 +219,7 @@ public class Value {
     public Float toFloat(){
         if (value==null) return null;
         if (value instanceof Float) return (Float) value;
+        if (value instanceof Number) return ((Number) value).floatValue();
         try{
             return Float.valueOf(prepNumber(value+""));
         }
@@ -0,0 +1,820 @@
+package openmap;
+import org.locationtech.jts.geom.*;
+import org.locationtech.jts.index.strtree.STRtree;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+//******************************************************************************
+//**  VectorTileEncoder
+//******************************************************************************
+/**
+ *   Used to generate Mapbox Vector Tiles (MVT) from a shapefile. Tiles are
+ *   addressed using the z/x/y scheme used by most web maps (spherical mercator
+ *   with the y axis pointing down). Assumes that the shapefile coordinates are
+ *   in lat/lon (EPSG:4326). Each tile has a single layer with one feature per
+ *   record. The attributes found in the dbf file are stored as tags.
+ *
+ ******************************************************************************/
+
+public class VectorTileEncoder {
+
+    private int extent = 4096;
+    private int buffer = 64;
+    private String layerName;
+
+    private static final int CMD_MOVE_TO = 1;
+    private static final int CMD_LINE_TO = 2;
+    private static final int CMD_CLOSE_PATH = 7;
+
+    private static final int GEOM_POINT = 1;
+    private static final int GEOM_LINESTRING = 2;
+    private static final int GEOM_POLYGON = 3;
+
+    private static final double MAX_LAT = 85.0511287798066;
+
+
+  //**************************************************************************
+  //** TileHandler
+  //**************************************************************************
+  /** Used to process tiles generated by the getTiles() method. Note that the
+   *  process() method is called concurrently from multiple threads.
+   */
+    public static interface TileHandler {
+        public void process(int z, int x, int y, byte[] tile) throws Exception;
+    }
+
+
+  //**************************************************************************
+  //** setExtent
+  //**************************************************************************
+  /** Used to set the number of integer units across a tile. Default is 4096.
+   */
+    public void setExtent(int extent){
+        if (extent<=0) throw new IllegalArgumentException("Invalid extent");
+        this.extent = extent;
+    }
+
+
+  //**************************************************************************
+  //** setBuffer
+  //**************************************************************************
+  /** Used to set the number of tile units that geometries are allowed to
+   *  extend past the edge of the tile before being clipped. Default is 64.
+   */
+    public void setBuffer(int buffer){
+        if (buffer<0) throw new IllegalArgumentException("Invalid buffer");
+        this.buffer = buffer;
+    }
+
+
+  //**************************************************************************
+  //** setLayerName
+  //**************************************************************************
+  /** Used to set the name of the layer in the tile. By default, the layer is
+   *  named after the shapefile.
+   */
+    public void setLayerName(String layerName){
+        this.layerName = layerName;
+    }
+
+
+  //**************************************************************************
+  //** getTile
+  //**************************************************************************
+  /** Returns an MVT encoded tile for a given z/x/y. Only records that
+   *  intersect the tile are decoded. Geometries are simplified as they are
+   *  read using a tolerance of one tile unit.
+   */
+    public byte[] getTile(ShapeFile shp, int z, int x, int y) throws Exception {
+        ArrayList<Record> records = new ArrayList<>();
+        double tolerance = 360.0 / ((double) extent * (1L << z));
+        Iterator<Record> it = shp.getRecords(getEnvelope(z, x, y), tolerance);
+        while (it.hasNext()){
+            records.add(it.next());
+        }
+        return encode(records, getLayerName(shp), z, x, y);
+    }
+
+
+  //**************************************************************************
+  //** getTiles
+  //**************************************************************************
+  /** Used to generate a tile pyramid for a range of zoom levels. The records
+   *  in the shapefile are read once and indexed in memory. Tiles are then
+   *  encoded in parallel and passed to the given handler. Geometries are
+   *  simplified for each zoom level, using a tolerance of one tile unit,
+   *  before they are quantized. Empty tiles are skipped.
+   *  @param numThreads Number of threads used to encode tiles
+   */
+    public void getTiles(ShapeFile shp, int minZoom, int maxZoom, int numThreads,
+        TileHandler handler) throws Exception {
+
+        if (minZoom<0 || maxZoom<minZoom) throw new IllegalArgumentException("Invalid zoom range");
+
+
+      //Index records
+        STRtree tree = new STRtree();
+        Envelope bounds = new Envelope();
+        Iterator<Record> it = shp.getRecords();
+        while (it.hasNext()){
+            Record record = it.next();
+            Geometry geom = record.getValue(record.getSchema().size()-1).toGeometry(); //last field
+            if (geom==null || geom.isEmpty()) continue;
+            Envelope env = geom.getEnvelopeInternal();
+            tree.insert(env, record);
+            bounds.expandToInclude(env);
+        }
+        if (bounds.isNull()) return;
+        tree.build();
+        String name = getLayerName(shp);
+
+
+      //Encode tiles. Each task processes a column of tiles.
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, numThreads));
+        ArrayList<Future<?>> futures = new ArrayList<>();
+        try{
+            for (int z=minZoom; z<=maxZoom; z++){
+                final int zoom = z;
+                int n = 1 << z;
+                int minX = clamp(lon2tile(bounds.getMinX(), z), n);
+                int maxX = clamp(lon2tile(bounds.getMaxX(), z), n);
+                int minY = clamp(lat2tile(bounds.getMaxY(), z), n);
+                int maxY = clamp(lat2tile(bounds.getMinY(), z), n);
+
+                for (int x=minX; x<=maxX; x++){
+                    final int col = x;
+                    futures.add(executor.submit(new Callable<Object>(){
+                        public Object call() throws Exception {
+                            for (int y=minY; y<=maxY; y++){
+                                List<?> items = tree.query(getEnvelope(zoom, col, y));
+                                if (items.isEmpty()) continue;
+
+                                ArrayList<Record> records = new ArrayList<>(items.size());
+                                for (Object item : items) records.add((Record) item);
+                                records.sort(new Comparator<Record>(){
+                                    public int compare(Record a, Record b){
+                                        return Long.compare(a.getLong(0, 0), b.getLong(0, 0));
+                                    }
+                                });
+
+                                byte[] tile = encode(records, name, zoom, col, y);
+                                if (tile!=null) handler.process(zoom, col, y, tile);
+                            }
+                            return null;
+                        }
+                    }));
+                }
+            }
+
+            for (Future<?> future : futures){
+                try{
+                    future.get();
+                }
+                catch(ExecutionException e){
+                    Throwable t = e.getCause();
+                    if (t instanceof Exception) throw (Exception) t;
+                    throw new RuntimeException(t);
+                }
+            }
+        }
+        finally{
+            executor.shutdownNow();
+        }
+    }
+
+
+  //**************************************************************************
+  //** encode
+  //**************************************************************************
+  /** Returns an MVT encoded tile with the given records. Returns null if none
+   *  of the records fall inside the tile.
+   */
+    private byte[] encode(List<Record> records, String name, int z, int x, int y){
+
+        Layer layer = new Layer(z, x, y);
+        ProtobufWriter features = new ProtobufWriter(1024);
+        ProtobufWriter feature = new ProtobufWriter(256);
+        int numFeatures = 0;
+
+        for (Record record : records){
+            Field[] fields = record.getFields();
+            Geometry geom = null;
+            long id = -1;
+            for (Field field : fields){
+                String key = field.getName();
+                if (key==null) continue;
+                if (key.equals("geom*")) geom = field.getValue().toGeometry();
+                else if (key.equals("id*")) id = field.getValue().toInteger();
+            }
+            if (geom==null) continue;
+
+
+          //Encode geometry
+            int type = layer.addGeometry(geom);
+            if (type==0) continue;
+
+
+          //Encode attributes
+            layer.tags.clear();
+            for (Field field : fields){
+                String key = field.getName();
+                if (key==null || key.endsWith("*")) continue;
+                layer.addTag(key, field.getValue().toObject());
+            }
+
+
+          //Encode feature
+            feature.reset();
+            if (id>=0){
+                feature.writeTag(1, 0);
+                feature.writeVarint(id);
+            }
+            feature.writePacked(2, layer.tags);
+            feature.writeTag(3, 0);
+            feature.writeVarint(type);
+            feature.writePacked(4, layer.commands);
+            features.writeMessage(2, feature);
+            numFeatures++;
+        }
+        if (numFeatures==0) return null;
+
+
+      //Encode layer
+        ProtobufWriter out = new ProtobufWriter(features.size() + 1024);
+        out.writeTag(15, 0);
+        out.writeVarint(2);
+        out.writeString(1, name);
+        out.write(features);
+        for (String key : layer.keys.keySet()){
+            out.writeString(3, key);
+        }
+        ProtobufWriter value = new ProtobufWriter(32);
+        for (Object obj : layer.values.keySet()){
+            value.reset();
+            if (obj instanceof String){
+                value.writeString(1, (String) obj);
+            }
+            else if (obj instanceof Long){
+                value.writeTag(6, 0);
+                value.writeVarint(zigzag((Long) obj));
+            }
+            else if (obj instanceof Boolean){
+                value.writeTag(7, 0);
+                value.writeVarint(((Boolean) obj) ? 1 : 0);
+            }
+            else{
+                value.writeTag(3, 1);
+                value.writeDouble((Double) obj);
+            }
+            out.writeMessage(4, value);
+        }
+        out.writeTag(5, 0);
+        out.writeVarint(extent);
+
+
+      //Wrap layer in a tile
+        ProtobufWriter tile = new ProtobufWriter(out.size() + 8);
+        tile.writeMessage(3, out);
+        return tile.toByteArray();
+    }
+
+
+  //**************************************************************************
+  //** Layer
+  //**************************************************************************
+  /** Used to encode the features in a tile. Keeps track of the attribute keys
+   *  and values, and converts geometries into tile coordinates.
+   */
+    private class Layer {
+
+        private final double n;
+        private final int tileX;
+        private final int tileY;
+        private final int min;
+        private final int max;
+
+        private LinkedHashMap<String, Integer> keys = new LinkedHashMap<>();
+        private LinkedHashMap<Object, Integer> values = new LinkedHashMap<>();
+        private IntArray tags = new IntArray(32);
+        private IntArray commands = new IntArray(256);
+
+      //Scratch buffers used to clip and quantize each part
+        private double[] xy = new double[256];
+        private double[] clipped = new double[256];
+        private int[] points = new int[256];
+        private ShapeFile.Simplifier simplifier = new ShapeFile.Simplifier();
+
+      //Cursor position
+        private int cx;
+        private int cy;
+
+
+        public Layer(int z, int x, int y){
+            this.n = 1 << z;
+            this.tileX = x;
+            this.tileY = y;
+            this.min = -buffer;
+            this.max = extent + buffer;
+        }
+
+
+      /** Used to add a key/value pair for the current feature */
+        public void addTag(String key, Object obj){
+            if (key==null || obj==null) return;
+            if (obj instanceof String){
+                String str = ((String) obj).trim();
+                if (str.isEmpty()) return;
+                obj = str;
+            }
+            else if (obj instanceof Double || obj instanceof Float){
+                double d = ((Number) obj).doubleValue();
+                if (Double.isNaN(d)) return;
+                if (d==Math.rint(d) && Math.abs(d)<9.007199254740992E15) obj = (long) d;
+                else obj = d;
+            }
+            else if (obj instanceof Number){
+                obj = ((Number) obj).longValue();
+            }
+            else if (!(obj instanceof Boolean)){
+                obj = obj.toString();
+            }
+
+            Integer k = keys.get(key);
+            if (k==null){
+                k = keys.size();
+                keys.put(key, k);
+            }
+            Integer v = values.get(obj);
+            if (v==null){
+                v = values.size();
+                values.put(obj, v);
+            }
+            tags.add(k);
+            tags.add(v);
+        }
+
+
+      /** Used to encode a geometry as a sequence of commands. Returns the
+       *  geometry type or 0 if the geometry falls outside of the tile.
+       */
+        public int addGeometry(Geometry geom){
+            commands.clear();
+            cx = cy = 0;
+
+            if (geom instanceof Point || geom instanceof MultiPoint){
+                int count = 0;
+                int pos = 0;
+                commands.add(0); //placeholder
+                for (int i=0; i<geom.getNumGeometries(); i++){
+                    Coordinate c = ((Point) geom.getGeometryN(i)).getCoordinate();
+                    if (c==null) continue;
+                    int x = (int) Math.round(getX(c.x));
+                    int y = (int) Math.round(getY(c.y));
+                    if (x<min || x>max || y<min || y>max) continue;
+                    commands.add(zigzag(x-cx));
+                    commands.add(zigzag(y-cy));
+                    cx = x;
+                    cy = y;
+                    count++;
+                }
+                if (count==0) return 0;
+                commands.set(pos, command(CMD_MOVE_TO, count));
+                return GEOM_POINT;
+            }
+            else if (geom instanceof LineString || geom instanceof MultiLineString){
+                for (int i=0; i<geom.getNumGeometries(); i++){
+                    addLine(((LineString) geom.getGeometryN(i)).getCoordinateSequence());
+                }
+                return commands.size()>0 ? GEOM_LINESTRING : 0;
+            }
+            else if (geom instanceof Polygon || geom instanceof MultiPolygon){
+                for (int i=0; i<geom.getNumGeometries(); i++){
+                    Polygon polygon = (Polygon) geom.getGeometryN(i);
+                    if (!addRing(polygon.getExteriorRing().getCoordinateSequence(), true)) continue;
+                    for (int j=0; j<polygon.getNumInteriorRing(); j++){
+                        addRing(polygon.getInteriorRingN(j).getCoordinateSequence(), false);
+                    }
+                }
+                return commands.size()>0 ? GEOM_POLYGON : 0;
+            }
+            else if (geom instanceof GeometryCollection){
+                for (int i=0; i<geom.getNumGeometries(); i++){
+                    int type = addGeometry(geom.getGeometryN(i));
+                    if (type!=0) return type;
+                }
+            }
+            return 0;
+        }
+
+
+      /** Used to clip a line to the tile buffer and add one MoveTo/LineTo
+       *  sequence for each piece that falls inside the tile.
+       */
+        private void addLine(CoordinateSequence seq){
+            int numPoints = project(seq, 2);
+            int len = 0;
+            for (int i=0; i<numPoints-1; i++){
+                double x0 = xy[i*2], y0 = xy[i*2+1];
+                double x1 = xy[i*2+2], y1 = xy[i*2+3];
+
+
+              //Liang-Barsky clipping
+                double t0 = 0, t1 = 1;
+                double dx = x1-x0, dy = y1-y0;
+                double[] p = {-dx, dx, -dy, dy};
+                double[] q = {x0-min, max-x0, y0-min, max-y0};
+                boolean inside = true;
+                for (int k=0; k<4 && inside; k++){
+                    if (p[k]==0){
+                        if (q[k]<0) inside = false;
+                    }
+                    else{
+                        double r = q[k]/p[k];
+                        if (p[k]<0){
+                            if (r>t1) inside = false;
+                            else if (r>t0) t0 = r;
+                        }
+                        else{
+                            if (r<t0) inside = false;
+                            else if (r<t1) t1 = r;
+                        }
+                    }
+                }
+
+                if (!inside){
+                    flushLine(len);
+                    len = 0;
+                    continue;
+                }
+
+                if (len==0 || t0>0){
+                    flushLine(len);
+                    len = 0;
+                    len = addPoint(len, x0+t0*dx, y0+t0*dy);
+                }
+                len = addPoint(len, x0+t1*dx, y0+t1*dy);
+                if (t1<1){
+                    flushLine(len);
+                    len = 0;
+                }
+            }
+            flushLine(len);
+        }
+
+
+      /** Used to add a point to the scratch buffer, skipping duplicates */
+        private int addPoint(int len, double x, double y){
+            int ix = (int) Math.round(x);
+            int iy = (int) Math.round(y);
+            if (len>0 && points[len*2-2]==ix && points[len*2-1]==iy) return len;
+            if (points.length<(len+1)*2) points = Arrays.copyOf(points, points.length*2);
+            points[len*2] = ix;
+            points[len*2+1] = iy;
+            return len+1;
+        }
+
+
+      /** Used to write a line stored in the scratch buffer */
+        private void flushLine(int len){
+            if (len<2) return;
+            commands.add(command(CMD_MOVE_TO, 1));
+            addDelta(points[0], points[1]);
+            commands.add(command(CMD_LINE_TO, len-1));
+            for (int i=1; i<len; i++){
+                addDelta(points[i*2], points[i*2+1]);
+            }
+        }
+
+
+      /** Used to clip a polygon ring to the tile buffer (Sutherland-Hodgman)
+       *  and add it to the geometry commands. Exterior rings are written
+       *  clockwise (in screen coordinates) and holes are counter-clockwise.
+       *  Returns false if the ring falls outside the tile.
+       */
+        private boolean addRing(CoordinateSequence seq, boolean exterior){
+            int numPoints = project(seq, 4);
+            if (numPoints<3) return false;
+
+
+          //Check whether the ring needs to be clipped
+            boolean clip = false;
+            for (int i=0; i<numPoints*2; i++){
+                double d = xy[i];
+                if (d<min || d>max){
+                    clip = true;
+                    break;
+                }
+            }
+            if (clip){
+                for (int edge=0; edge<4; edge++){
+                    numPoints = clipEdge(numPoints, edge);
+                    if (numPoints<3) return false;
+                }
+            }
+
+
+          //Quantize
+            int len = 0;
+            for (int i=0; i<numPoints; i++){
+                len = addPoint(len, xy[i*2], xy[i*2+1]);
+            }
+            if (len>1 && points[0]==points[len*2-2] && points[1]==points[len*2-1]) len--;
+            if (len<3) return false;
+
+
+          //Compute area and orient the ring
+            long area = 0;
+            for (int i=0, j=len-1; i<len; j=i++){
+                area += (long) points[j*2] * points[i*2+1] - (long) points[i*2] * points[j*2+1];
+            }
+            if (area==0) return false;
+            boolean reverse = exterior ? area<0 : area>0;
+
+
+          //Write commands
+            commands.add(command(CMD_MOVE_TO, 1));
+            int first = reverse ? len-1 : 0;
+            addDelta(points[first*2], points[first*2+1]);
+            commands.add(command(CMD_LINE_TO, len-1));
+            for (int i=1; i<len; i++){
+                int idx = reverse ? len-1-i : i;
+                addDelta(points[idx*2], points[idx*2+1]);
+            }
+            commands.add(command(CMD_CLOSE_PATH, 1));
+            return true;
+        }
+
+
+      /** Used to clip the points in the xy buffer against one edge of the
+       *  tile buffer. Returns the number of points in the clipped ring.
+       */
+        private int clipEdge(int numPoints, int edge){
+            if (clipped.length<numPoints*4+4) clipped = new double[numPoints*4+4];
+            int len = 0;
+            double px = xy[(numPoints-1)*2], py = xy[(numPoints-1)*2+1];
+            boolean pin = isInside(px, py, edge);
+            for (int i=0; i<numPoints; i++){
+                double x = xy[i*2], y = xy[i*2+1];
+                boolean in = isInside(x, y, edge);
+                if (in!=pin){
+                    double t;
+                    double v = (edge<2) ? (edge==0 ? min : max) : (edge==2 ? min : max);
+                    if (edge<2) t = (v-px)/(x-px);
+                    else t = (v-py)/(y-py);
+                    clipped[len++] = px+t*(x-px);
+                    clipped[len++] = py+t*(y-py);
+                }
+                if (in){
+                    clipped[len++] = x;
+                    clipped[len++] = y;
+                }
+                px = x;
+                py = y;
+                pin = in;
+            }
+            double[] tmp = xy;
+            xy = clipped;
+            clipped = tmp;
+            return len/2;
+        }
+
+        private boolean isInside(double x, double y, int edge){
+            switch (edge){
+                case 0: return x>=min;
+                case 1: return x<=max;
+                case 2: return y>=min;
+                default: return y<=max;
+            }
+        }
+
+
+      /** Used to project coordinates into tile space and simplify them with
+       *  the Douglas-Peucker algorithm, using a tolerance of one tile unit.
+       *  Results are stored in the xy buffer. Returns the number of points,
+       *  or zero if the line or ring collapses to fewer than minPoints.
+       */
+        private int project(CoordinateSequence seq, int minPoints){
+            int numPoints = seq.size();
+            if (xy.length<numPoints*2) xy = new double[numPoints*2];
+            for (int i=0; i<numPoints; i++){
+                xy[i*2] = getX(seq.getX(i));
+                xy[i*2+1] = getY(seq.getY(i));
+            }
+
+
+          //Simplify using a tolerance of one tile unit
+            int count = simplifier.simplify(xy, numPoints, 1, minPoints, false);
+            if (count==numPoints) return numPoints;
+            int len = 0;
+            for (int i=0; i<numPoints; i++){
+                if (!simplifier.keep[i]) continue;
+                xy[len*2] = xy[i*2];
+                xy[len*2+1] = xy[i*2+1];
+                len++;
+            }
+            return len;
+        }
+
+        private void addDelta(int x, int y){
+            commands.add(zigzag(x-cx));
+            commands.add(zigzag(y-cy));
+            cx = x;
+            cy = y;
+        }
+
+        private double getX(double lon){
+            return ((lon + 180.0) / 360.0 * n - tileX) * extent;
+        }
+
+        private double getY(double lat){
+            if (lat>MAX_LAT) lat = MAX_LAT;
+            else if (lat<-MAX_LAT) lat = -MAX_LAT;
+            double sin = Math.sin(Math.toRadians(lat));
+            double y = 0.5 - Math.log((1 + sin) / (1 - sin)) / (4 * Math.PI);
+            return (y * n - tileY) * extent;
+        }
+    }
+
+
+  //**************************************************************************
+  //** ProtobufWriter
+  //**************************************************************************
+  /** Simple, growable buffer used to write protocol buffer messages.
+   */
+    private static class ProtobufWriter {
+        private byte[] buf;
+        private int pos;
+
+        public ProtobufWriter(int size){
+            buf = new byte[Math.max(16, size)];
+        }
+
+        public void reset(){
+            pos = 0;
+        }
+
+        public int size(){
+            return pos;
+        }
+
+        public byte[] toByteArray(){
+            return Arrays.copyOf(buf, pos);
+        }
+
+        private void ensureCapacity(int len){
+            if (pos+len>buf.length){
+                buf = Arrays.copyOf(buf, Math.max(buf.length*2, pos+len));
+            }
+        }
+
+        public void writeTag(int field, int wireType){
+            writeVarint((field << 3) | wireType);
+        }
+
+        public void writeVarint(long v){
+            ensureCapacity(10);
+            while ((v & ~0x7FL) != 0){
+                buf[pos++] = (byte) ((v & 0x7F) | 0x80);
+                v >>>= 7;
+            }
+            buf[pos++] = (byte) v;
+        }
+
+        public void writeDouble(double d){
+            long v = Double.doubleToLongBits(d);
+            ensureCapacity(8);
+            for (int i=0; i<8; i++){
+                buf[pos++] = (byte) (v >>> (i*8));
+            }
+        }
+
+        public void writeString(int field, String str){
+            byte[] b = str.getBytes(java.nio.charset.StandardCharsets.UTF_8);
+            writeTag(field, 2);
+            writeVarint(b.length);
+            ensureCapacity(b.length);
+            System.arraycopy(b, 0, buf, pos, b.length);
+            pos += b.length;
+        }
+
+        public void writePacked(int field, IntArray arr){
+            if (arr.size()==0) return;
+            int len = 0;
+            for (int i=0; i<arr.size(); i++){
+                len += varintSize(arr.get(i) & 0xFFFFFFFFL);
+            }
+            writeTag(field, 2);
+            writeVarint(len);
+            for (int i=0; i<arr.size(); i++){
+                writeVarint(arr.get(i) & 0xFFFFFFFFL);
+            }
+        }
+
+        public void writeMessage(int field, ProtobufWriter msg){
+            writeTag(field, 2);
+            writeVarint(msg.pos);
+            write(msg);
+        }
+
+        public void write(ProtobufWriter msg){
+            ensureCapacity(msg.pos);
+            System.arraycopy(msg.buf, 0, buf, pos, msg.pos);
+            pos += msg.pos;
+        }
+
+        private static int varintSize(long v){
+            int size = 1;
+            while ((v & ~0x7FL) != 0){
+                size++;
+                v >>>= 7;
+            }
+            return size;
+        }
+    }
+
+
+  //**************************************************************************
+  //** IntArray
+  //**************************************************************************
+  /** Growable array of ints
+   */
+    private static class IntArray {
+        private int[] arr;
+        private int size;
+
+        public IntArray(int capacity){
+            arr = new int[capacity];
+        }
+        public void add(int i){
+            if (size==arr.length) arr = Arrays.copyOf(arr, size*2);
+            arr[size++] = i;
+        }
+        public int get(int idx){
+            return arr[idx];
+        }
+        public void set(int idx, int i){
+            arr[idx] = i;
+        }
+        public int size(){
+            return size;
+        }
+        public void clear(){
+            size = 0;
+        }
+    }
+
+
+  //**************************************************************************
+  //** getEnvelope
+  //**************************************************************************
+  /** Returns the lat/lon bounding box of a tile, including the buffer.
+   */
+    private Envelope getEnvelope(int z, int x, int y){
+        double b = (double) buffer / extent;
+        double n = 1 << z;
+        double minLon = (x - b) / n * 360.0 - 180.0;
+        double maxLon = (x + 1 + b) / n * 360.0 - 180.0;
+        double maxLat = tile2lat(y - b, n);
+        double minLat = tile2lat(y + 1 + b, n);
+        return new Envelope(minLon, maxLon, minLat, maxLat);
+    }
+
+    private static double tile2lat(double y, double n){
+        double r = Math.PI - 2.0 * Math.PI * y / n;
+        return Math.toDegrees(Math.atan(Math.sinh(r)));
+    }
+
+    private static int lon2tile(double lon, int z){
+        return (int) Math.floor((lon + 180.0) / 360.0 * (1 << z));
+    }
+
+    private static int lat2tile(double lat, int z){
+        if (lat>MAX_LAT) lat = MAX_LAT;
+        else if (lat<-MAX_LAT) lat = -MAX_LAT;
+        double r = Math.toRadians(lat);
+        return (int) Math.floor((1 - Math.log(Math.tan(r) + 1 / Math.cos(r)) / Math.PI) / 2 * (1 << z));
+    }
+
+    private static int clamp(int tile, int n){
+        return Math.max(0, Math.min(n-1, tile));
+    }
+
+    private static int command(int id, int count){
+        return (id & 0x7) | (count << 3);
+    }
+
+    private static int zigzag(int n){
+        return (n << 1) ^ (n >> 31);
+    }
+
+    private static long zigzag(long n){
+        return (n << 1) ^ (n >> 63);
+    }
+
+    private String getLayerName(ShapeFile shp){
+        if (layerName!=null) return layerName;
+        String name = shp.getName();
+        return name==null ? "layer" : name;
+    }
+}
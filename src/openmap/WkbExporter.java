@@ -0,0 +1,454 @@
+package openmap;
+import static com.bbn.openmap.dataAccess.shape.ShapeConstants.*;
+import com.bbn.openmap.dataAccess.shape.input.DbfInputStream;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+
+//******************************************************************************
+//**  WkbExporter
+//******************************************************************************
+/**
+ *   Used to export a shapefile as a PostgreSQL COPY stream with the dbf
+ *   columns and a WKB geometry column. Geometries are encoded directly from
+ *   the shp records, without creating JTS geometries, and every row is
+ *   written from the same reusable buffer. Example:
+ <pre>
+    WkbExporter exporter = new WkbExporter(shp);
+    exporter.setSrid(4326);
+    System.out.println(exporter.getCreateTable("counties"));
+    System.out.println(exporter.getCopyStatement("counties"));
+    exporter.write(out);
+ </pre>
+ *   The output can be loaded with psql, using the statements above, or with
+ *   the CopyManager in the PostgreSQL JDBC driver. Both the binary and the
+ *   text COPY formats are supported. Geometries are written as EWKB if an
+ *   SRID is set and as ISO WKB otherwise. Z values are written for Z
+ *   shapefiles. M values are only written if the records have them (M
+ *   values are optional in Z shapefiles).
+ *
+ ******************************************************************************/
+
+public class WkbExporter {
+
+  //Column types
+    private static final int TEXT = 0;
+    private static final int INTEGER = 1;
+    private static final int BIGINT = 2;
+    private static final int DOUBLE = 3;
+    private static final int BOOLEAN = 4;
+    private static final int DATE = 5;
+
+    private static final byte[] COPY_SIGNATURE = new byte[]{
+        'P', 'G', 'C', 'O', 'P', 'Y', '\n', (byte) 0xff, '\r', '\n', 0
+    };
+    private static final byte[] HEX = "0123456789ABCDEF".getBytes(StandardCharsets.US_ASCII);
+
+  //Days between 1970-01-01 and 2000-01-01
+    private static final long POSTGRES_EPOCH = 10957;
+
+    private final ShapeFile shp;
+    private int srid;
+    private boolean binary = true;
+    private String geometryColumn = "geom";
+
+
+  //**************************************************************************
+  //** Constructor
+  //**************************************************************************
+    public WkbExporter(ShapeFile shp){
+        this.shp = shp;
+    }
+
+
+  //**************************************************************************
+  //** setSrid
+  //**************************************************************************
+  /** Used to set the SRID of the geometries. If the SRID is greater than 0,
+   *  geometries are written as EWKB with the SRID. Otherwise, geometries are
+   *  written as ISO WKB without an SRID. Default is 0.
+   */
+    public void setSrid(int srid){
+        this.srid = srid;
+    }
+
+
+  //**************************************************************************
+  //** setBinary
+  //**************************************************************************
+  /** Used to choose between the binary COPY format and the text COPY format
+   *  (tab-separated values with hex-encoded geometries). The binary format
+   *  is smaller and faster to load. Default is true.
+   */
+    public void setBinary(boolean binary){
+        this.binary = binary;
+    }
+
+
+  //**************************************************************************
+  //** setGeometryColumn
+  //**************************************************************************
+  /** Used to set the name of the geometry column. Default is "geom".
+   */
+    public void setGeometryColumn(String geometryColumn){
+        this.geometryColumn = geometryColumn;
+    }
+
+
+  //**************************************************************************
+  //** getCreateTable
+  //**************************************************************************
+  /** Returns a CREATE TABLE statement for a table that matches the output.
+   *  Dbf columns are mapped to SQL types using their type, length and
+   *  decimal count: character fields are varchars, numeric fields without
+   *  decimals are integers or bigints, other numeric fields are doubles,
+   *  logical fields are booleans and date fields are dates. Column names are
+   *  converted to lower case.
+   */
+    public String getCreateTable(String table) throws Exception {
+        Columns columns = getColumns();
+        StringBuilder sql = new StringBuilder();
+        sql.append("CREATE TABLE ");
+        sql.append(quote(table));
+        sql.append(" (\n");
+        for (int i=0; i<columns.names.length; i++){
+            sql.append("    ");
+            sql.append(quote(columns.names[i]));
+            sql.append(" ");
+            switch (columns.types[i]){
+                case INTEGER: sql.append("integer"); break;
+                case BIGINT: sql.append("bigint"); break;
+                case DOUBLE: sql.append("double precision"); break;
+                case BOOLEAN: sql.append("boolean"); break;
+                case DATE: sql.append("date"); break;
+                default: sql.append("varchar(").append(Math.max(1, columns.lengths[i])).append(")");
+            }
+            sql.append(",\n");
+        }
+
+
+      //Add geometry column
+        int shapeType = shp.getShapeType();
+        int baseType = ShapeFile.getBaseType(shapeType);
+        String geometryType = baseType==SHAPE_TYPE_POINT ? "Point" :
+            baseType==SHAPE_TYPE_MULTIPOINT ? "MultiPoint" : "Geometry";
+        if (!shp.isXYOnly()){
+            if (ShapeFile.hasZ(shapeType)) geometryType += "Z";
+            if (shp.hasM()) geometryType += "M";
+        }
+        sql.append("    ");
+        sql.append(quote(geometryColumn));
+        sql.append(" geometry(");
+        sql.append(geometryType);
+        if (srid>0) sql.append(",").append(srid);
+        sql.append(")\n);");
+        return sql.toString();
+    }
+
+
+  //**************************************************************************
+  //** getCopyStatement
+  //**************************************************************************
+  /** Returns a COPY statement used to load the output into a table.
+   */
+    public String getCopyStatement(String table) throws Exception {
+        Columns columns = getColumns();
+        StringBuilder sql = new StringBuilder();
+        sql.append("COPY ");
+        sql.append(quote(table));
+        sql.append(" (");
+        for (String name : columns.names){
+            sql.append(quote(name));
+            sql.append(", ");
+        }
+        sql.append(quote(geometryColumn));
+        sql.append(") FROM STDIN");
+        if (binary) sql.append(" WITH (FORMAT binary)");
+        sql.append(";");
+        return sql.toString();
+    }
+
+
+  //**************************************************************************
+  //** write
+  //**************************************************************************
+  /** Used to write the records in the shapefile as a COPY stream. Records
+   *  that are marked as deleted are skipped. Empty dbf values and values
+   *  that can't be parsed are written as nulls, as are null shapes. The
+   *  output stream is not closed.
+   *  @return Number of rows written
+   */
+    public long write(OutputStream out) throws Exception {
+        Metrics.Listener listener = Metrics.getListener();
+        long startTime = listener==Metrics.NONE ? 0 : System.nanoTime();
+        Columns columns = getColumns();
+        int numColumns = columns.names.length;
+        OutputBuffer row = new OutputBuffer();
+        OutputBuffer wkb = binary ? null : new OutputBuffer();
+        long numRows = 0;
+        long numBytes = 0;
+
+
+      //Write header
+        if (binary){
+            row.put(COPY_SIGNATURE, 0, COPY_SIGNATURE.length);
+            row.putInt(0); //flags
+            row.putInt(0); //header extension length
+        }
+
+
+      //Create geometry encoder
+        int shapeType = shp.getShapeType();
+        boolean xyOnly = shp.isXYOnly();
+        GeometryEncoder encoder = new GeometryEncoder(shapeType,
+            !xyOnly && ShapeFile.hasZ(shapeType), !xyOnly && shp.hasM());
+
+
+      //Write rows
+        ShapeFile.Cursor cursor = shp.getCursor();
+        try{
+            while (cursor.advance()){
+                if (binary) row.putShort(Short.reverseBytes((short) (numColumns+1)));
+                for (int i=0; i<numColumns; i++){
+                    int col = i+1;
+                    Object value = cursor.isNull(col) ? null : getValue(cursor.getString(col), columns.types[i]);
+                    if (binary) putBinary(row, value, columns.types[i]);
+                    else{
+                        putText(row, value);
+                        row.put((byte) '\t');
+                    }
+                }
+
+
+              //Write geometry
+                if (binary){
+                    int pos = row.length;
+                    row.putInt(0);
+                    if (encoder.writeWkb(row, cursor.getShape(), cursor.getShapeLength(), srid)) row.setInt(pos, Integer.reverseBytes(row.length-pos-4));
+                    else row.setInt(pos, -1);
+                }
+                else{
+                    wkb.length = 0;
+                    if (encoder.writeWkb(wkb, cursor.getShape(), cursor.getShapeLength(), srid)){
+                        row.ensure(wkb.length*2);
+                        for (int i=0; i<wkb.length; i++){
+                            int b = wkb.buf[i] & 0xff;
+                            row.buf[row.length++] = HEX[b >>> 4];
+                            row.buf[row.length++] = HEX[b & 0xf];
+                        }
+                    }
+                    else{
+                        row.put((byte) '\\');
+                        row.put((byte) 'N');
+                    }
+                    row.put((byte) '\n');
+                }
+
+                out.write(row.buf, 0, row.length);
+                numBytes += row.length;
+                row.length = 0;
+                numRows++;
+            }
+        }
+        finally{
+            cursor.close();
+        }
+
+
+      //Write trailer
+        if (binary){
+            row.putShort((short) -1);
+            out.write(row.buf, 0, row.length);
+            numBytes += row.length;
+        }
+        out.flush();
+        if (listener!=Metrics.NONE) listener.recordsWritten((int) numRows, numBytes, System.nanoTime()-startTime);
+        return numRows;
+    }
+
+
+  //**************************************************************************
+  //** getValue
+  //**************************************************************************
+  /** Returns a value for a dbf field, or null if the value can't be parsed.
+   *  Integers are returned as Longs, dates as LocalDates and other types as
+   *  Doubles, Booleans or Strings.
+   */
+    private static Object getValue(String str, int type){
+        switch (type){
+            case INTEGER:
+            case BIGINT:{
+                try{
+                    return Long.parseLong(str);
+                }
+                catch(NumberFormatException e){
+                    Double d = (Double) getValue(str, DOUBLE);
+                    if (d==null || Double.isNaN(d) || Double.isInfinite(d)) return null;
+                    long l = (long) Math.rint(d);
+                    if (type==INTEGER && (l<Integer.MIN_VALUE || l>Integer.MAX_VALUE)) return null;
+                    return l;
+                }
+            }
+            case DOUBLE:{
+                try{
+                    return Double.parseDouble(str);
+                }
+                catch(NumberFormatException e){
+                    return null;
+                }
+            }
+            case BOOLEAN:{
+                char c = Character.toUpperCase(str.charAt(0));
+                if (c=='T' || c=='Y') return Boolean.TRUE;
+                if (c=='F' || c=='N') return Boolean.FALSE;
+                return null;
+            }
+            case DATE:{
+                if (str.length()!=8) return null;
+                try{
+                    return java.time.LocalDate.of(
+                        Integer.parseInt(str.substring(0, 4)),
+                        Integer.parseInt(str.substring(4, 6)),
+                        Integer.parseInt(str.substring(6, 8))
+                    );
+                }
+                catch(RuntimeException e){
+                    return null;
+                }
+            }
+            default:
+                return str.indexOf('\0')<0 ? str : str.replace("\0", "");
+        }
+    }
+
+
+  //**************************************************************************
+  //** putBinary
+  //**************************************************************************
+  /** Writes a field in the binary COPY format: the length of the value
+   *  followed by the value in the binary format of the column type. All
+   *  values are big-endian. Dates are days since 2000-01-01.
+   */
+    private static void putBinary(OutputBuffer row, Object value, int type){
+        if (value==null){
+            row.putInt(-1);
+        }
+        else if (value instanceof Long){
+            long l = (Long) value;
+            if (type==INTEGER){
+                row.putInt(Integer.reverseBytes(4));
+                row.putInt(Integer.reverseBytes((int) l));
+            }
+            else{
+                row.putInt(Integer.reverseBytes(8));
+                row.putLong(Long.reverseBytes(l));
+            }
+        }
+        else if (value instanceof Double){
+            row.putInt(Integer.reverseBytes(8));
+            row.putLong(Long.reverseBytes(Double.doubleToRawLongBits((Double) value)));
+        }
+        else if (value instanceof Boolean){
+            row.putInt(Integer.reverseBytes(1));
+            row.put((byte) ((Boolean) value ? 1 : 0));
+        }
+        else if (value instanceof java.time.LocalDate){
+            long days = ((java.time.LocalDate) value).toEpochDay() - POSTGRES_EPOCH;
+            row.putInt(Integer.reverseBytes(4));
+            row.putInt(Integer.reverseBytes((int) days));
+        }
+        else{
+            byte[] b = value.toString().getBytes(StandardCharsets.UTF_8);
+            row.putInt(Integer.reverseBytes(b.length));
+            row.put(b, 0, b.length);
+        }
+    }
+
+
+  //**************************************************************************
+  //** putText
+  //**************************************************************************
+  /** Writes a field in the text COPY format. Nulls are written as \N and
+   *  backslashes, tabs and line breaks in strings are escaped.
+   */
+    private static void putText(OutputBuffer row, Object value){
+        if (value==null){
+            row.put((byte) '\\');
+            row.put((byte) 'N');
+            return;
+        }
+        String str;
+        if (value instanceof Boolean) str = (Boolean) value ? "t" : "f";
+        else str = value.toString();
+        byte[] b = str.getBytes(StandardCharsets.UTF_8);
+        row.ensure(b.length*2);
+        for (byte c : b){
+            switch (c){
+                case '\\': row.buf[row.length++] = '\\'; row.buf[row.length++] = '\\'; break;
+                case '\t': row.buf[row.length++] = '\\'; row.buf[row.length++] = 't'; break;
+                case '\n': row.buf[row.length++] = '\\'; row.buf[row.length++] = 'n'; break;
+                case '\r': row.buf[row.length++] = '\\'; row.buf[row.length++] = 'r'; break;
+                default: row.buf[row.length++] = c;
+            }
+        }
+    }
+
+
+  //**************************************************************************
+  //** getColumns
+  //**************************************************************************
+  /** Returns the names and SQL types of the dbf columns.
+   */
+    private Columns getColumns() throws Exception {
+        DbfInputStream dbf = shp.getDbfInputStream();
+        try{
+            String[] names = dbf.getColumnNames();
+            byte[] types = dbf.getTypes();
+            int[] lengths = dbf.getLengths();
+            byte[] decimals = dbf.getDecimalCounts();
+            Columns columns = new Columns();
+            columns.names = new String[names.length];
+            columns.types = new int[names.length];
+            columns.lengths = lengths;
+            for (int i=0; i<names.length; i++){
+                columns.names[i] = names[i].trim().toLowerCase();
+                switch (types[i]){
+                    case 'N':
+                    case 'F':
+                        if (decimals[i]>0 || types[i]=='F') columns.types[i] = DOUBLE;
+                        else if (lengths[i]<10) columns.types[i] = INTEGER;
+                        else if (lengths[i]<19) columns.types[i] = BIGINT;
+                        else columns.types[i] = DOUBLE;
+                        break;
+                    case 'L': columns.types[i] = BOOLEAN; break;
+                    case 'D': columns.types[i] = DATE; break;
+                    default: columns.types[i] = TEXT;
+                }
+            }
+            return columns;
+        }
+        finally{
+            dbf.close();
+        }
+    }
+
+
+  //**************************************************************************
+  //** quote
+  //**************************************************************************
+  /** Returns a quoted SQL identifier.
+   */
+    private static String quote(String name){
+        return "\"" + name.replace("\"", "\"\"") + "\"";
+    }
+
+
+  //**************************************************************************
+  //** Columns
+  //**************************************************************************
+    private static class Columns {
+        private String[] names;
+        private int[] types;
+        private int[] lengths;
+    }
+}
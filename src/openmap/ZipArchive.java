@@ -0,0 +1,402 @@
+package openmap;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.*;
+import java.util.zip.*;
+
+//******************************************************************************
+//**  ZipArchive
+//******************************************************************************
+/**
+ *   Used to read entries in a zip file without extracting them. The central
+ *   directory is parsed directly (including ZIP64 records) so the offset of
+ *   each entry in the zip file is known. Stored (uncompressed) entries are
+ *   memory-mapped at their offsets. Deflated entries are inflated as they
+ *   are read. Entries are returned as ByteSources. The zip file is only
+ *   opened while the central directory is parsed and an entry is mapped.
+ *   Sources for deflated entries are different. They keep an inflater
+ *   stream (and a file handle) open between positional reads, so that
+ *   forward reads continue where the last read ended. Close these sources
+ *   to release the file handle.
+ *
+ ******************************************************************************/
+
+class ZipArchive {
+
+    private final java.io.File file;
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>();
+
+
+  //**************************************************************************
+  //** Constructor
+  //**************************************************************************
+    public ZipArchive(java.io.File file) throws IOException {
+        this.file = file;
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try{
+            readCentralDirectory(raf);
+        }
+        finally{
+            raf.close();
+        }
+    }
+
+
+  //**************************************************************************
+  //** getFile
+  //**************************************************************************
+  /** Returns the zip file.
+   */
+    public java.io.File getFile(){
+        return file;
+    }
+
+
+  //**************************************************************************
+  //** getNames
+  //**************************************************************************
+  /** Returns the names of the entries in the zip file, in the order they
+   *  appear in the central directory. Directories are excluded.
+   */
+    public List<String> getNames(){
+        return new ArrayList<>(entries.keySet());
+    }
+
+
+  //**************************************************************************
+  //** contains
+  //**************************************************************************
+  /** Returns true if the zip file has an entry with the given name.
+   */
+    public boolean contains(String name){
+        return entries.containsKey(name);
+    }
+
+
+  //**************************************************************************
+  //** find
+  //**************************************************************************
+  /** Returns the name of an entry with the given base name and extension,
+   *  ignoring case. Returns null if there is no matching entry.
+   *  @param name Entry name without the extension (e.g. "data/counties")
+   *  @param ext File extension without the dot (e.g. "shp")
+   */
+    public String find(String name, String ext){
+        String target = name + "." + ext;
+        if (entries.containsKey(target)) return target;
+        for (String n : entries.keySet()){
+            if (n.equalsIgnoreCase(target)) return n;
+        }
+        return null;
+    }
+
+
+  //**************************************************************************
+  //** getSize
+  //**************************************************************************
+  /** Returns the uncompressed size of an entry.
+   */
+    public long getSize(String name) throws IOException {
+        return getEntry(name).size;
+    }
+
+
+  //**************************************************************************
+  //** isMapped
+  //**************************************************************************
+  /** Returns true if the entry is stored without compression and is small
+   *  enough to be memory-mapped.
+   */
+    public boolean isMapped(String name) throws IOException {
+        Entry entry = getEntry(name);
+        return entry.method==ZipEntry.STORED && entry.size<=Integer.MAX_VALUE;
+    }
+
+
+  //**************************************************************************
+  //** getSource
+  //**************************************************************************
+  /** Returns a source for an entry. Stored entries are backed by a
+   *  memory-mapped view of the zip file so they support random access
+   *  without copying. Deflated entries are inflated as they are read.
+   *  Positional reads on deflated entries are fastest when they move
+   *  forward through the entry; reading backwards restarts the inflater.
+   *  The inflater stream stays open until the source is closed.
+   */
+    public ByteSource getSource(String name) throws IOException {
+        final Entry entry = getEntry(name);
+        if (isMapped(name)) return ByteSource.of(map(entry));
+        return new ByteSource(){
+            private InputStream is;
+            private long position;
+
+            public long size(){
+                return entry.size;
+            }
+
+            public synchronized int read(long pos, byte[] b, int off, int len) throws IOException {
+                if (is==null || pos<position){
+                    close();
+                    is = ZipArchive.this.getInputStream(entry);
+                    position = 0;
+                }
+                while (position<pos){
+                    long n = is.skip(pos-position);
+                    if (n<=0){
+                        if (is.read()<0) return -1;
+                        n = 1;
+                    }
+                    position += n;
+                }
+                int n = is.read(b, off, len);
+                if (n>0) position += n;
+                return n;
+            }
+
+            public InputStream getInputStream() throws IOException {
+                return ZipArchive.this.getInputStream(entry);
+            }
+
+            public synchronized void close() throws IOException {
+                if (is!=null) is.close();
+                is = null;
+            }
+        };
+    }
+
+
+  //**************************************************************************
+  //** getInputStream
+  //**************************************************************************
+  /** Returns an input stream for an entry that is not memory-mapped.
+   */
+    private InputStream getInputStream(Entry entry) throws IOException {
+        FileInputStream fis = new FileInputStream(file);
+        try{
+            fis.getChannel().position(getDataOffset(entry, fis.getChannel()));
+        }
+        catch(IOException e){
+            fis.close();
+            throw e;
+        }
+        InputStream is = new BoundedInputStream(new BufferedInputStream(fis, 64*1024), entry.compressedSize);
+        if (entry.method==ZipEntry.STORED) return is;
+        return new InflaterInputStream(is, new Inflater(true), 64*1024){
+            private boolean closed;
+            public void close() throws IOException {
+                if (closed) return;
+                closed = true;
+                inf.end();
+                super.close();
+            }
+        };
+    }
+
+
+  //**************************************************************************
+  //** getEntry
+  //**************************************************************************
+    private Entry getEntry(String name) throws IOException {
+        Entry entry = entries.get(name);
+        if (entry==null) throw new FileNotFoundException(file + "!" + name);
+        return entry;
+    }
+
+
+  //**************************************************************************
+  //** map
+  //**************************************************************************
+  /** Returns a read-only view of a stored entry. The mapping is created on
+   *  the first call and shared by all the streams.
+   */
+    private synchronized ByteBuffer map(Entry entry) throws IOException {
+        if (entry.buffer==null){
+            FileInputStream fis = new FileInputStream(file);
+            try{
+                FileChannel channel = fis.getChannel();
+                entry.buffer = channel.map(FileChannel.MapMode.READ_ONLY,
+                    getDataOffset(entry, channel), entry.size);
+            }
+            finally{
+                fis.close();
+            }
+        }
+        return entry.buffer.duplicate();
+    }
+
+
+  //**************************************************************************
+  //** getDataOffset
+  //**************************************************************************
+  /** Returns the offset of the entry data, after the local file header.
+   *  The local header has its own name and extra field lengths, which may
+   *  differ from the central directory.
+   */
+    private static long getDataOffset(Entry entry, FileChannel channel) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(30).order(ByteOrder.LITTLE_ENDIAN);
+        readFully(channel, header, entry.headerOffset);
+        if (header.getInt(0)!=0x04034b50) throw new ZipException("Invalid local header: " + entry.name);
+        int nameLength = header.getShort(26) & 0xffff;
+        int extraLength = header.getShort(28) & 0xffff;
+        return entry.headerOffset + 30 + nameLength + extraLength;
+    }
+
+
+  //**************************************************************************
+  //** readCentralDirectory
+  //**************************************************************************
+    private void readCentralDirectory(RandomAccessFile raf) throws IOException {
+        FileChannel channel = raf.getChannel();
+        long fileSize = channel.size();
+
+
+      //Find the end of central directory record. It's followed by a
+      //comment of up to 64K.
+        int tailLength = (int) Math.min(fileSize, 22 + 0xffff);
+        ByteBuffer tail = ByteBuffer.allocate(tailLength).order(ByteOrder.LITTLE_ENDIAN);
+        readFully(channel, tail, fileSize-tailLength);
+        int eocd = -1;
+        for (int i=tailLength-22; i>=0; i--){
+            if (tail.getInt(i)==0x06054b50){
+                eocd = i;
+                break;
+            }
+        }
+        if (eocd<0) throw new ZipException("Not a zip file: " + file);
+        long numEntries = tail.getShort(eocd+10) & 0xffff;
+        long cdSize = tail.getInt(eocd+12) & 0xffffffffL;
+        long cdOffset = tail.getInt(eocd+16) & 0xffffffffL;
+
+
+      //Use the ZIP64 end of central directory record, if there is one
+        if (eocd>=20 && tail.getInt(eocd-20)==0x07064b50){
+            long zip64Offset = tail.getLong(eocd-12);
+            ByteBuffer zip64 = ByteBuffer.allocate(56).order(ByteOrder.LITTLE_ENDIAN);
+            readFully(channel, zip64, zip64Offset);
+            if (zip64.getInt(0)!=0x06064b50) throw new ZipException("Invalid ZIP64 record: " + file);
+            numEntries = zip64.getLong(32);
+            cdSize = zip64.getLong(40);
+            cdOffset = zip64.getLong(48);
+        }
+        if (cdSize>Integer.MAX_VALUE || cdOffset+cdSize>fileSize){
+            throw new ZipException("Invalid central directory: " + file);
+        }
+
+
+      //Parse entries
+        ByteBuffer cd = ByteBuffer.allocate((int) cdSize).order(ByteOrder.LITTLE_ENDIAN);
+        readFully(channel, cd, cdOffset);
+        int pos = 0;
+        for (long n=0; n<numEntries; n++){
+            if (pos+46>cdSize || cd.getInt(pos)!=0x02014b50){
+                throw new ZipException("Invalid central directory: " + file);
+            }
+            int flags = cd.getShort(pos+8) & 0xffff;
+            int method = cd.getShort(pos+10) & 0xffff;
+            long compressedSize = cd.getInt(pos+20) & 0xffffffffL;
+            long size = cd.getInt(pos+24) & 0xffffffffL;
+            int nameLength = cd.getShort(pos+28) & 0xffff;
+            int extraLength = cd.getShort(pos+30) & 0xffff;
+            int commentLength = cd.getShort(pos+32) & 0xffff;
+            long headerOffset = cd.getInt(pos+42) & 0xffffffffL;
+
+            byte[] b = new byte[nameLength];
+            cd.position(pos+46);
+            cd.get(b);
+            String name = new String(b, (flags & 0x800)!=0 ? "UTF-8" : "Cp437");
+
+
+          //Get 64-bit sizes and offset from the ZIP64 extra field. Values
+          //are only present if the 32-bit field is 0xFFFFFFFF.
+            int extra = pos+46+nameLength;
+            int extraEnd = extra+extraLength;
+            while (extra+4<=extraEnd){
+                int id = cd.getShort(extra) & 0xffff;
+                int length = cd.getShort(extra+2) & 0xffff;
+                if (id==0x0001){
+                    int p = extra+4;
+                    if (size==0xffffffffL){ size = cd.getLong(p); p += 8; }
+                    if (compressedSize==0xffffffffL){ compressedSize = cd.getLong(p); p += 8; }
+                    if (headerOffset==0xffffffffL){ headerOffset = cd.getLong(p); }
+                    break;
+                }
+                extra += 4+length;
+            }
+            pos = extraEnd+commentLength;
+
+            if (name.endsWith("/")) continue;
+            if ((flags & 1)!=0 || (method!=ZipEntry.STORED && method!=ZipEntry.DEFLATED)){
+                continue; //encrypted or unsupported compression
+            }
+
+            Entry entry = new Entry();
+            entry.name = name;
+            entry.method = method;
+            entry.size = size;
+            entry.compressedSize = compressedSize;
+            entry.headerOffset = headerOffset;
+            entries.put(name, entry);
+        }
+    }
+
+
+    private static void readFully(FileChannel channel, ByteBuffer buf, long position) throws IOException {
+        while (buf.hasRemaining()){
+            if (channel.read(buf, position+buf.position())<0) throw new EOFException();
+        }
+    }
+
+
+  //**************************************************************************
+  //** Entry
+  //**************************************************************************
+    private static class Entry {
+        private String name;
+        private int method;
+        private long size;
+        private long compressedSize;
+        private long headerOffset;
+        private ByteBuffer buffer;
+    }
+
+
+  //**************************************************************************
+  //** BoundedInputStream
+  //**************************************************************************
+  /** Used to read a fixed number of bytes from an input stream.
+   */
+    private static class BoundedInputStream extends FilterInputStream {
+        private long remaining;
+
+        public BoundedInputStream(InputStream in, long length){
+            super(in);
+            this.remaining = length;
+        }
+
+        public int read() throws IOException {
+            if (remaining<=0) return -1;
+            int b = in.read();
+            if (b>=0) remaining--;
+            return b;
+        }
+
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (remaining<=0) return -1;
+            int n = in.read(b, off, (int) Math.min(len, remaining));
+            if (n>0) remaining -= n;
+            return n;
+        }
+
+        public long skip(long n) throws IOException {
+            long k = in.skip(Math.min(n, remaining));
+            if (k>0) remaining -= k;
+            return k;
+        }
+
+        public int available() throws IOException {
+            return (int) Math.min(in.available(), remaining);
+        }
+    }
+}
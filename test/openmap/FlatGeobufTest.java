@@ -0,0 +1,216 @@
+package openmap;
+import org.locationtech.jts.geom.*;
+import org.junit.*;
+import org.junit.rules.TemporaryFolder;
+import static org.junit.Assert.*;
+import java.util.*;
+
+public class FlatGeobufTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static final GeometryFactory factory = new GeometryFactory();
+
+
+  //**************************************************************************
+  //** testRoundTrip
+  //**************************************************************************
+  /** Features are sorted along a Hilbert curve so the records are compared
+   *  using a unique name column.
+   */
+    @Test
+    public void testRoundTrip() throws Exception {
+        java.io.File dir = folder.newFolder();
+        Generator generator = new Generator(11);
+        generator.setShapeType("polygon");
+        generator.setVertexCount(4, 50);
+        generator.setHoleCount(0, 2);
+        generator.addColumn("name", 'C', 0);
+        generator.addColumn("pop", 'N', 0);
+        ShapeFile shp = new ShapeFile(generator.save("polygons", dir, 500));
+
+        java.io.File file = new java.io.File(dir, "polygons.fgb");
+        FlatGeobuf.write(shp, file);
+        FlatGeobuf fgb = new FlatGeobuf(file);
+        try{
+            assertEquals(500, fgb.getFeatureCount());
+            assertTrue(fgb.hasIndex());
+            assertFalse(fgb.hasZ());
+            assertFalse(fgb.hasM());
+
+            Map<String, Record> expected = getRecords(shp.getRecords());
+            Map<String, Record> records = getRecords(fgb.getRecords());
+            assertEquals(expected.keySet(), records.keySet());
+            for (String name : expected.keySet()){
+                Record a = expected.get(name);
+                Record b = records.get(name);
+                assertEquals(a.getValue("pop").toLong(), b.getValue("pop").toLong());
+                assertCoordinates(a.getValue("geom").toGeometry(), b.getValue("geom").toGeometry());
+            }
+        }
+        finally{
+            fgb.close();
+        }
+    }
+
+
+  //**************************************************************************
+  //** testPolygonZ
+  //**************************************************************************
+  /** A PolygonZ shapefile without M values should be written without M
+   *  values.
+   */
+    @Test
+    public void testPolygonZ() throws Exception {
+        FlatGeobuf fgb = write("polygonZ",
+            getPolygon(new Coordinate(0, 0, 5)),
+            getPolygon(new Coordinate(2, 0, 6))
+        );
+        try{
+            assertTrue(fgb.hasZ());
+            assertFalse(fgb.hasM());
+            Iterator<Record> it = fgb.getRecords();
+            while (it.hasNext()){
+                for (Coordinate c : it.next().getValue("geom").toGeometry().getCoordinates()){
+                    assertFalse(c instanceof CoordinateXYZM);
+                    assertTrue(c.getZ()==5 || c.getZ()==6);
+                    assertTrue(Double.isNaN(c.getM()));
+                }
+            }
+        }
+        finally{
+            fgb.close();
+        }
+
+
+      //M values are kept if the shapefile has them
+        fgb = write("polygonZM", getPolygon(new CoordinateXYZM(0, 0, 5, 7)));
+        try{
+            assertTrue(fgb.hasZ());
+            assertTrue(fgb.hasM());
+            Coordinate c = fgb.getRecords().next().getValue("geom").toGeometry().getCoordinate();
+            assertEquals(5, c.getZ(), 0);
+            assertEquals(7, c.getM(), 0);
+        }
+        finally{
+            fgb.close();
+        }
+    }
+
+
+  //**************************************************************************
+  //** testIndex
+  //**************************************************************************
+  /** Bbox queries using the FlatGeobuf index should return the same records
+   *  as the shapefile, with or without a spatial index (rtx file).
+   */
+    @Test
+    public void testIndex() throws Exception {
+        java.io.File dir = folder.newFolder();
+        Generator generator = new Generator(5);
+        generator.setShapeType("polyline");
+        generator.addColumn("name", 'C', 0);
+        java.io.File file = generator.save("lines", dir, 2000);
+
+        ShapeFile shp = new ShapeFile(file);
+        FlatGeobuf.write(shp, new java.io.File(dir, "lines.fgb"), 4, 2);
+        FlatGeobuf fgb = new FlatGeobuf(new java.io.File(dir, "lines.fgb"));
+        ShapeFile indexed = new ShapeFile(file);
+        indexed.setSpatialIndex(ByteSource.of(ShapeFile.createSpatialIndex(file)));
+        try{
+            Envelope extent = shp.getExtent();
+            Random random = new Random(1);
+            int numMatches = 0;
+            for (int i=0; i<20; i++){
+                double w = extent.getWidth()*random.nextDouble()/2;
+                double h = extent.getHeight()*random.nextDouble()/2;
+                double x = extent.getMinX() + random.nextDouble()*(extent.getWidth()-w);
+                double y = extent.getMinY() + random.nextDouble()*(extent.getHeight()-h);
+                Envelope bbox = new Envelope(x, x+w, y, y+h);
+
+                Set<String> expected = getRecords(shp.getRecords(bbox)).keySet();
+                numMatches += expected.size();
+                assertEquals(expected, getRecords(fgb.getRecords(bbox)).keySet());
+                assertEquals(expected, getRecords(indexed.getRecords(bbox)).keySet());
+            }
+            assertTrue(numMatches>100);
+        }
+        finally{
+            fgb.close();
+            indexed.close();
+            shp.close();
+        }
+    }
+
+
+  //**************************************************************************
+  //** write
+  //**************************************************************************
+  /** Saves polygons to a new shapefile, converts the shapefile to FlatGeobuf
+   *  and opens the FlatGeobuf file.
+   */
+    private FlatGeobuf write(String name, Geometry... geometries) throws Exception {
+        ShapeFile shp = new ShapeFile();
+        int id = 1;
+        for (Geometry geom : geometries){
+            shp.addRecord(new Record(new Field[]{
+                new Field("name", name + id++),
+                new Field("geom", geom)
+            }));
+        }
+        java.io.File dir = folder.newFolder();
+        shp.saveAs(name, dir);
+
+        java.io.File file = new java.io.File(dir, name + ".fgb");
+        shp = new ShapeFile(new java.io.File(dir, name + ".shp"));
+        FlatGeobuf.write(shp, file);
+        shp.close();
+        return new FlatGeobuf(file);
+    }
+
+
+  //**************************************************************************
+  //** getRecords
+  //**************************************************************************
+  /** Returns records keyed by name.
+   */
+    private static Map<String, Record> getRecords(Iterator<Record> it){
+        TreeMap<String, Record> records = new TreeMap<>();
+        while (it.hasNext()){
+            Record record = it.next();
+            records.put(record.getValue("name").toString(), record);
+        }
+        return records;
+    }
+
+
+  //**************************************************************************
+  //** assertCoordinates
+  //**************************************************************************
+    private static void assertCoordinates(Geometry a, Geometry b){
+        Coordinate[] x = a.getCoordinates();
+        Coordinate[] y = b.getCoordinates();
+        assertEquals(x.length, y.length);
+        for (int i=0; i<x.length; i++){
+            assertTrue(x[i].equals3D(y[i]));
+        }
+    }
+
+
+  //**************************************************************************
+  //** getPolygon
+  //**************************************************************************
+  /** Returns a square with the same Z and M values as the given coordinate.
+   */
+    private static Polygon getPolygon(Coordinate c){
+        double[][] xy = {{0,0},{0,1},{1,1},{1,0},{0,0}};
+        Coordinate[] ring = new Coordinate[xy.length];
+        for (int i=0; i<ring.length; i++){
+            ring[i] = c.copy();
+            ring[i].x = c.x + xy[i][0];
+            ring[i].y = c.y + xy[i][1];
+        }
+        return factory.createPolygon(ring);
+    }
+}
@@ -0,0 +1,332 @@
+package openmap;
+import org.locationtech.jts.geom.Envelope;
+import org.junit.*;
+import org.junit.rules.TemporaryFolder;
+import static org.junit.Assert.*;
+
+import com.sun.net.httpserver.*;
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.file.Files;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+//******************************************************************************
+//**  HttpSourceTest
+//******************************************************************************
+/**
+ *   Used to test bbox queries on shapefiles served by a local web server
+ *   that supports range requests. The server counts the bytes sent for each
+ *   file.
+ *
+ ******************************************************************************/
+
+public class HttpSourceTest {
+
+    @ClassRule
+    public static TemporaryFolder folder = new TemporaryFolder();
+
+    private static java.io.File dir;
+    private static HttpServer server;
+    private static ExecutorService executor;
+    private static final ConcurrentHashMap<String, byte[]> files = new ConcurrentHashMap<>();
+    private static final ConcurrentHashMap<String, AtomicLong> bytesSent = new ConcurrentHashMap<>();
+
+
+  //**************************************************************************
+  //** start
+  //**************************************************************************
+  /** Creates two polygon shapefiles, with about 2.3KB per record, and starts
+   *  the server.
+   */
+    @BeforeClass
+    public static void start() throws Exception {
+        dir = folder.newFolder();
+        Generator generator = new Generator(7);
+        generator.setShapeType("polygon");
+        generator.setVertexCount(140, 140);
+        generator.addColumn("name", 'C', 0);
+        generator.addColumn("pop", 'N', 0);
+        ShapeFile.createSpatialIndex(generator.save("large", dir, 2000));
+        generator.save("small", dir, 200);
+
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/", new HttpHandler(){
+            public void handle(HttpExchange exchange) throws IOException {
+                try{
+                    send(exchange);
+                }
+                finally{
+                    exchange.close();
+                }
+            }
+        });
+        executor = Executors.newFixedThreadPool(8);
+        server.setExecutor(executor);
+        server.start();
+    }
+
+
+  //**************************************************************************
+  //** stop
+  //**************************************************************************
+    @AfterClass
+    public static void stop(){
+        if (server!=null) server.stop(0);
+        if (executor!=null) executor.shutdownNow();
+    }
+
+
+  //**************************************************************************
+  //** testSpatialIndex
+  //**************************************************************************
+  /** A query for about 50 records should only fetch the index nodes, the
+   *  shx entries and the records and rows that are needed.
+   */
+    @Test
+    public void testSpatialIndex() throws Exception {
+        ShapeFile shp = open("large");
+        shp.setSpatialIndex(getSource("large.rtx"));
+        try{
+            Envelope extent = getExtent("large", 0.16);
+            List<String> records = getRecords(shp.getRecords(extent));
+            assertEquals(getRecords(new ShapeFile(new java.io.File(dir, "large.shp")).getRecords(extent)), records);
+            assertTrue(records.size()>=40 && records.size()<=60);
+
+            long shpSize = new java.io.File(dir, "large.shp").length();
+            long recordSize = shpSize/2000;
+            long shpBytes = getBytesSent("large.shp");
+            assertTrue("Fetched " + shpBytes + " bytes", shpBytes<records.size()*recordSize + 8*1024);
+
+            long total = shpBytes + getBytesSent("large.shx") + getBytesSent("large.dbf") + getBytesSent("large.rtx");
+            assertTrue("Fetched " + total + " bytes", total<shpSize/20);
+        }
+        finally{
+            shp.close();
+        }
+    }
+
+
+  //**************************************************************************
+  //** testStaleIndex
+  //**************************************************************************
+  /** An index created for another shapefile should be ignored.
+   */
+    @Test
+    public void testStaleIndex() throws Exception {
+        ShapeFile shp = open("small");
+        shp.setSpatialIndex(getSource("large.rtx"));
+        try{
+            Envelope extent = getExtent("small", 0.5);
+            assertEquals(
+                getRecords(new ShapeFile(new java.io.File(dir, "small.shp")).getRecords(extent)),
+                getRecords(shp.getRecords(extent))
+            );
+        }
+        finally{
+            shp.close();
+        }
+    }
+
+
+  //**************************************************************************
+  //** testRecordHeaders
+  //**************************************************************************
+  /** Without an index, the record headers are read without fetching the
+   *  records in between.
+   */
+    @Test
+    public void testRecordHeaders() throws Exception {
+        ShapeFile shp = open("small");
+        try{
+            Envelope extent = getExtent("small", 0.3);
+            List<String> records = getRecords(shp.getRecords(extent));
+            assertEquals(getRecords(new ShapeFile(new java.io.File(dir, "small.shp")).getRecords(extent)), records);
+            assertTrue(records.size()>0 && records.size()<40);
+
+            long shpSize = new java.io.File(dir, "small.shp").length();
+            long recordSize = shpSize/200;
+            long headers = 200*44;
+            long shpBytes = getBytesSent("small.shp");
+            assertTrue("Fetched " + shpBytes + " bytes", shpBytes<records.size()*recordSize + headers + 8*1024);
+        }
+        finally{
+            shp.close();
+        }
+    }
+
+
+  //**************************************************************************
+  //** testCache
+  //**************************************************************************
+  /** Fills the cache past its limit with ranges that replace smaller ranges
+   *  at the same offset. The cache should stay under the limit and evict
+   *  the oldest ranges first, so the last ranges are read without sending
+   *  new requests.
+   */
+    @Test
+    public void testCache() throws Exception {
+        byte[] data = Files.readAllBytes(new java.io.File(dir, "large.shp").toPath());
+        HttpSource source = getSource("large.shp");
+        source.setCacheSize(16*1024);
+        try{
+            source.size();
+
+          //Fetch headers and then the full ranges at the same offsets
+            prefetch(source, 100000, 10, 44);
+            prefetch(source, 100000, 10, 1024);
+            assertEquals(10*1024+1024, source.getCachedBytes());
+
+
+          //Fill the cache past the limit, fetch some of the evicted ranges
+          //again and then add a few more ranges
+            prefetch(source, 200000, 10, 1024);
+            prefetch(source, 100000, 4, 1024);
+            prefetch(source, 300000, 4, 1024);
+            assertTrue(source.getCachedBytes()<=16*1024);
+
+
+          //The ranges fetched again should still be cached
+            long requests = source.getRequestCount();
+            byte[] b = new byte[1024];
+            for (int i=0; i<4; i++){
+                int position = 100000+i*4096;
+                source.readFully(position, b, 0, b.length);
+                assertArrayEquals(Arrays.copyOfRange(data, position, position+b.length), b);
+            }
+            assertEquals(requests, source.getRequestCount());
+
+
+          //Reads past the limit should return the right bytes
+            for (int i=0; i<50; i++){
+                int position = 400000+i*1777;
+                source.readFully(position, b, 0, b.length);
+                assertArrayEquals(Arrays.copyOfRange(data, position, position+b.length), b);
+                assertTrue(source.getCachedBytes()<=16*1024);
+            }
+        }
+        finally{
+            source.close();
+        }
+    }
+
+
+  //**************************************************************************
+  //** prefetch
+  //**************************************************************************
+  /** Used to prefetch ranges that are 4KB apart. The ranges are fetched
+   *  one at a time so they are added to the cache in order.
+   */
+    private static void prefetch(HttpSource source, int start, int count, int length) throws Exception {
+        for (int i=0; i<count; i++){
+            source.prefetch(new long[]{start+i*4096}, new int[]{length});
+        }
+    }
+
+
+  //**************************************************************************
+  //** open
+  //**************************************************************************
+  /** Returns a remote shapefile and resets the byte counts.
+   */
+    private static ShapeFile open(String name) throws Exception {
+        bytesSent.clear();
+        return new ShapeFile(
+            getSource(name + ".shp"), getSource(name + ".shx"), getSource(name + ".dbf")
+        );
+    }
+
+
+  //**************************************************************************
+  //** getSource
+  //**************************************************************************
+  /** Returns a source that doesn't read ahead or fetch the gaps between
+   *  ranges so the bytes sent only include the ranges that were requested.
+   */
+    private static HttpSource getSource(String name) throws Exception {
+        HttpSource source = new HttpSource(new URL(
+        "http://127.0.0.1:" + server.getAddress().getPort() + "/" + name));
+        source.setReadAhead(1024);
+        source.setMaxGap(0);
+        return source;
+    }
+
+
+  //**************************************************************************
+  //** getExtent
+  //**************************************************************************
+  /** Returns a box in the center of a shapefile.
+   *  @param ratio Size of the box relative to the extent of the shapefile
+   */
+    private static Envelope getExtent(String name, double ratio) throws Exception {
+        Envelope extent = new ShapeFile(new java.io.File(dir, name + ".shp")).getExtent();
+        double w = extent.getWidth()*ratio/2;
+        double h = extent.getHeight()*ratio/2;
+        double x = extent.centre().x;
+        double y = extent.centre().y;
+        return new Envelope(x-w, x+w, y-h, y+h);
+    }
+
+
+  //**************************************************************************
+  //** getRecords
+  //**************************************************************************
+    private static List<String> getRecords(Iterator<Record> it){
+        ArrayList<String> records = new ArrayList<>();
+        while (it.hasNext()){
+            StringBuilder str = new StringBuilder();
+            for (Field field : it.next().getFields()){
+                str.append(field.getValue()).append("|");
+            }
+            records.add(str.toString());
+        }
+        return records;
+    }
+
+
+  //**************************************************************************
+  //** getBytesSent
+  //**************************************************************************
+    private static long getBytesSent(String name){
+        AtomicLong n = bytesSent.get(name);
+        return n==null ? 0 : n.get();
+    }
+
+
+  //**************************************************************************
+  //** send
+  //**************************************************************************
+  /** Used to respond to a range request (e.g. "bytes=0-99").
+   */
+    private static void send(HttpExchange exchange) throws IOException {
+        final String name = exchange.getRequestURI().getPath().substring(1);
+        byte[] data = files.get(name);
+        if (data==null){
+            data = Files.readAllBytes(new java.io.File(dir, name).toPath());
+            files.put(name, data);
+        }
+
+        String range = exchange.getRequestHeaders().getFirst("Range");
+        String[] arr = range.substring(range.indexOf("=")+1).split("-");
+        int start = Integer.parseInt(arr[0]);
+        int end = (int) Math.min(Long.parseLong(arr[1]), data.length-1);
+        if (start>=data.length){
+            exchange.getResponseHeaders().add("Content-Range", "bytes */" + data.length);
+            exchange.sendResponseHeaders(416, -1);
+            return;
+        }
+        int length = end-start+1;
+        exchange.getResponseHeaders().add("Content-Range", "bytes " + start + "-" + end + "/" + data.length);
+        exchange.sendResponseHeaders(206, length);
+        exchange.getResponseBody().write(data, start, length);
+
+        AtomicLong n = bytesSent.get(name);
+        if (n==null){
+            bytesSent.putIfAbsent(name, new AtomicLong());
+            n = bytesSent.get(name);
+        }
+        n.addAndGet(length);
+    }
+}
@@ -0,0 +1,119 @@
+package openmap;
+import org.locationtech.jts.geom.*;
+import org.junit.*;
+import org.junit.rules.TemporaryFolder;
+import static org.junit.Assert.*;
+import java.util.Iterator;
+
+public class SchemaTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+
+  //**************************************************************************
+  //** testAliases
+  //**************************************************************************
+    @Test
+    public void testAliases(){
+        Schema schema = new Schema(new String[]{"id*", "NAME", "geom*"}, null);
+        assertEquals(0, schema.getIndex("id"));
+        assertEquals(0, schema.getIndex("ID*"));
+        assertEquals(1, schema.getIndex("name"));
+        assertEquals(2, schema.getIndex("geom"));
+        assertEquals(-1, schema.getIndex("pop"));
+    }
+
+
+  //**************************************************************************
+  //** testSharedSchema
+  //**************************************************************************
+  /** Records created from fields with the same names should share a schema.
+   */
+    @Test
+    public void testSharedSchema(){
+        Record a = new Record(new Field[]{new Field("name", "a"), new Field("pop", 1)});
+        Record b = new Record(new Field[]{new Field("name", "b"), new Field("pop", 2)});
+        Record c = new Record(new Field[]{new Field("name", "c"), new Field("POP", 3)});
+        assertSame(a.getSchema(), b.getSchema());
+        assertNotSame(b.getSchema(), c.getSchema());
+        assertEquals("b", b.getValue("name").toString());
+        assertEquals(3, c.getInt(c.getSchema().getIndex("pop"), -1));
+    }
+
+
+  //**************************************************************************
+  //** testGetInt
+  //**************************************************************************
+  /** Values outside the range of an int should return the default value
+   *  instead of wrapping around.
+   */
+    @Test
+    public void testGetInt(){
+        assertEquals(42, new Value(42L).getInt(-1));
+        assertEquals(43, new Value(42.6).getInt(-1));
+        assertEquals(Integer.MAX_VALUE, new Value((long) Integer.MAX_VALUE).getInt(-1));
+        assertEquals(Integer.MIN_VALUE, new Value(" " + Integer.MIN_VALUE + " ").getInt(-1));
+        assertEquals(-1, new Value(Integer.MAX_VALUE+1L).getInt(-1));
+        assertEquals(-1, new Value(-3e9).getInt(-1));
+        assertEquals(-1, new Value("4294967296").getInt(-1));
+        assertEquals(-1, new Value(Double.NaN).getInt(-1));
+    }
+
+
+  //**************************************************************************
+  //** testFieldNamesShadowAliases
+  //**************************************************************************
+  /** A field named "ID" or "Geom" should take precedence over the aliases
+   *  for the "id*" and "geom*" fields.
+   */
+    @Test
+    public void testFieldNamesShadowAliases(){
+        Schema schema = new Schema(new String[]{"id*", "ID", "Geom", "geom*"}, null);
+        assertEquals(1, schema.getIndex("id"));
+        assertEquals(1, schema.getIndex("ID"));
+        assertEquals(0, schema.getIndex("id*"));
+        assertEquals(2, schema.getIndex("geom"));
+        assertEquals(3, schema.getIndex("geom*"));
+    }
+
+
+  //**************************************************************************
+  //** testIdColumn
+  //**************************************************************************
+  /** Used to read and update a shapefile with an "ID" column.
+   */
+    @Test
+    public void testIdColumn() throws Exception {
+        GeometryFactory factory = new GeometryFactory();
+        ShapeFile shp = new ShapeFile();
+        for (int i=1; i<=5; i++){
+            shp.addRecord(new Record(new Field[]{
+                new Field("ID", 100+i),
+                new Field("geom", factory.createPoint(new Coordinate(i, i)))
+            }));
+        }
+        java.io.File dir = folder.newFolder();
+        shp.saveAs("ids", dir);
+
+
+        shp = new ShapeFile(new java.io.File(dir, "ids.shp"));
+        ShapeFile.Editor editor = shp.edit();
+        try{
+            editor.setValue(5, "id", 777);
+        }
+        finally{
+            editor.close();
+        }
+
+
+        int[] expected = {101, 102, 103, 104, 777};
+        Iterator<Record> it = shp.getRecords();
+        for (int i=0; i<expected.length; i++){
+            Record record = it.next();
+            assertEquals(i+1, record.getValue("id*").toInteger().intValue());
+            assertEquals(expected[i], record.getValue("id").toInteger().intValue());
+        }
+        assertFalse(it.hasNext());
+    }
+}
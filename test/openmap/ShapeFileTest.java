@@ -0,0 +1,355 @@
+package openmap;
+import org.locationtech.jts.geom.*;
+import org.junit.*;
+import org.junit.rules.TemporaryFolder;
+import static org.junit.Assert.*;
+import static com.bbn.openmap.dataAccess.shape.ShapeConstants.*;
+import java.util.ConcurrentModificationException;
+import java.util.Iterator;
+
+public class ShapeFileTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static final GeometryFactory factory = new GeometryFactory();
+
+
+  //**************************************************************************
+  //** testHasM
+  //**************************************************************************
+  /** Z shapefiles only have M values if the records include the optional M
+   *  range and array.
+   */
+    @Test
+    public void testHasM() throws Exception {
+        assertFalse(save("polygon", getPolygon(new Coordinate(0, 0, 0))).hasM());
+        assertFalse(save("polygonZ", getPolygon(new Coordinate(0, 0, 5))).hasM());
+        assertTrue(save("polygonZM", getPolygon(new CoordinateXYZM(0, 0, 5, 7))).hasM());
+        assertTrue(save("polygonM", getPolygon(new CoordinateXYM(0, 0, 7))).hasM());
+        assertFalse(save("pointZ", factory.createPoint(new Coordinate(1, 2, 3))).hasM());
+        assertTrue(save("pointZM", factory.createPoint(new CoordinateXYZM(1, 2, 3, 4))).hasM());
+
+        ShapeFile shp = save("lineZ", null, factory.createLineString(new Coordinate[]{
+            new Coordinate(0, 0, 1), new Coordinate(1, 1, 2)
+        }));
+        assertEquals(SHAPE_TYPE_POLYLINEZ, shp.getShapeType());
+        assertFalse(shp.hasM());
+
+
+      //M values should still be decoded for ZM records
+        Iterator<Geometry> it = save("decodeZM", getPolygon(new CoordinateXYZM(0, 0, 5, 7))).getGeometries();
+        Coordinate c = it.next().getCoordinates()[0];
+        assertEquals(5, c.getZ(), 0);
+        assertEquals(7, c.getM(), 0);
+    }
+
+
+  //**************************************************************************
+  //** testPipeline
+  //**************************************************************************
+  /** Pipelined reads should return the same records as sequential reads,
+   *  with and without an extent.
+   */
+    @Test
+    public void testPipeline() throws Exception {
+        java.io.File file = generate(3000);
+        ShapeFile shp = new ShapeFile(file);
+        ShapeFile pipelined = new ShapeFile(file);
+        pipelined.setPipeline(3, 2);
+        try{
+            Envelope extent = shp.getExtent();
+            Envelope bbox = new Envelope(
+                extent.getMinX(), extent.centre().x,
+                extent.getMinY(), extent.centre().y
+            );
+            for (Envelope e : new Envelope[]{null, bbox}){
+                Iterator<Record> a = shp.getRecords(e);
+                Iterator<Record> b = pipelined.getRecords(e);
+                int numRecords = 0;
+                while (a.hasNext()){
+                    assertTrue(b.hasNext());
+                    Record x = a.next();
+                    Record y = b.next();
+                    Field[] fields = x.getFields();
+                    assertEquals(fields.length, y.getFields().length);
+                    for (int i=0; i<fields.length-1; i++){
+                        assertEquals(String.valueOf(x.getValue(i)), String.valueOf(y.getValue(i)));
+                    }
+                    assertTrue(x.getValue("geom").toGeometry().equalsExact(y.getValue("geom").toGeometry()));
+                    numRecords++;
+                }
+                assertFalse(b.hasNext());
+                assertTrue(numRecords>(e==null ? 2999 : 100));
+            }
+        }
+        finally{
+            shp.close();
+            pipelined.close();
+        }
+    }
+
+
+  //**************************************************************************
+  //** testPipelineClose
+  //**************************************************************************
+  /** Closing a pipelined iterator before the last record should stop the
+   *  reader and decoder threads.
+   */
+    @Test
+    public void testPipelineClose() throws Exception {
+        ShapeFile shp = new ShapeFile(generate(5000));
+        shp.setPipeline(2, 1);
+        try{
+            Iterator<Record> it = shp.getRecords();
+            assertTrue(it instanceof java.io.Closeable);
+            int numRecords = 0;
+            while (it.hasNext()){
+                it.next();
+                if (++numRecords==10) break;
+            }
+            ((java.io.Closeable) it).close();
+
+            long timeout = System.currentTimeMillis()+5000;
+            while (getPipelineThreads()>0 && System.currentTimeMillis()<timeout){
+                Thread.sleep(20);
+            }
+            assertEquals(0, getPipelineThreads());
+        }
+        finally{
+            shp.close();
+        }
+    }
+
+
+  //**************************************************************************
+  //** testCompact
+  //**************************************************************************
+  /** Iterators created before compact() should keep reading the original
+   *  records, except for bbox queries with a spatial index.
+   */
+    @Test
+    public void testCompact() throws Exception {
+        java.io.File file = generate(1000);
+        ShapeFile shp = new ShapeFile(file);
+        ShapeFile.Editor editor = shp.edit();
+        try{
+            for (int id=1; id<=1000; id+=10) editor.delete(id);
+        }
+        finally{
+            editor.close();
+        }
+        shp.setSpatialIndex(ByteSource.of(ShapeFile.createSpatialIndex(file)));
+        try{
+            Iterator<Record> sequential = shp.getRecords();
+            shp.setPipeline(2, 1);
+            Iterator<Record> pipelined = shp.getRecords();
+            shp.setPipeline(0, 1);
+            Iterator<Record> range = shp.getRecords(shp.getExtent());
+            assertEquals(2, sequential.next().getValue(0).toInteger().intValue());
+            assertEquals(2, pipelined.next().getValue(0).toInteger().intValue());
+
+            assertEquals(100, shp.compact());
+            assertEquals(900, shp.getRecordCount());
+
+            int numRecords = 1;
+            while (sequential.hasNext()){
+                Record a = sequential.next();
+                Record b = pipelined.next();
+                assertEquals(a.getValue(0).toInteger(), b.getValue(0).toInteger());
+                assertTrue(a.getValue(0).toInteger()%10!=1);
+                numRecords++;
+            }
+            assertFalse(pipelined.hasNext());
+            assertEquals(900, numRecords);
+
+            try{
+                range.hasNext();
+                fail("Expected ConcurrentModificationException");
+            }
+            catch(ConcurrentModificationException e){}
+        }
+        finally{
+            shp.close();
+        }
+    }
+
+
+  //**************************************************************************
+  //** testVerify
+  //**************************************************************************
+  /** verify() should report corrupted shx entries and dbf rows with the
+   *  ids of the records.
+   */
+    @Test
+    public void testVerify() throws Exception {
+        java.io.File file = generate(100);
+        java.io.File shx = new java.io.File(file.getParentFile(), "polygons.shx");
+        java.io.File dbf = new java.io.File(file.getParentFile(), "polygons.dbf");
+        assertTrue(new ShapeFile(file).verify().isEmpty());
+
+
+      //Make record 5 longer, so it overlaps record 6, and point record 10
+      //at record 9
+        java.io.RandomAccessFile raf = new java.io.RandomAccessFile(shx, "rw");
+        try{
+            raf.seek(100 + 4*8 + 4);
+            int contentLength = raf.readInt();
+            raf.seek(100 + 4*8 + 4);
+            raf.writeInt(contentLength+2);
+            raf.seek(100 + 8*8);
+            int offset = raf.readInt();
+            raf.seek(100 + 9*8);
+            raf.writeInt(offset);
+        }
+        finally{
+            raf.close();
+        }
+
+
+      //Change the deletion flag of row 7 and the row count
+        int headerLength;
+        int recordLength;
+        raf = new java.io.RandomAccessFile(dbf, "rw");
+        try{
+            raf.seek(8);
+            headerLength = Short.reverseBytes(raf.readShort()) & 0xffff;
+            recordLength = Short.reverseBytes(raf.readShort()) & 0xffff;
+            raf.seek(headerLength + 6L*recordLength);
+            raf.write('X');
+            raf.seek(4);
+            raf.writeInt(Integer.reverseBytes(99));
+        }
+        finally{
+            raf.close();
+        }
+
+
+        java.util.List<ShapeFile.Problem> problems = new ShapeFile(file).verify();
+        java.util.TreeMap<Integer, String> messages = new java.util.TreeMap<>();
+        for (ShapeFile.Problem problem : problems){
+            String message = messages.get(problem.getId());
+            messages.put(problem.getId(), (message==null ? "" : message + "\n") + problem.getMessage());
+        }
+        assertEquals(messages.toString(), new java.util.TreeSet<>(java.util.Arrays.asList(0, 5, 6, 7, 10)), messages.keySet());
+        assertTrue(messages.get(0), messages.get(0).contains("Dbf row count (99)"));
+        assertTrue(messages.get(5), messages.get(5).contains("Content length in the shp"));
+        assertTrue(messages.get(6), messages.get(6).contains("overlaps the previous record"));
+        assertTrue(messages.get(7), messages.get(7).contains("Invalid deletion flag in the dbf (0x58)"));
+        assertTrue(messages.get(10), messages.get(10).contains("overlaps the previous record"));
+        assertTrue(messages.get(10), messages.get(10).contains("Record number in the shp (9)"));
+    }
+
+
+  //**************************************************************************
+  //** testRecordsFiltered
+  //**************************************************************************
+  /** Only records outside of the extent should be reported as filtered,
+   *  not null shapes.
+   */
+    @Test
+    public void testRecordsFiltered() throws Exception {
+        ShapeFile shp = save("points", null,
+            factory.createPoint(new Coordinate(0, 0)),
+            factory.createPoint(new Coordinate(10, 10)),
+            null
+        );
+        final java.util.concurrent.atomic.AtomicInteger numFiltered = new java.util.concurrent.atomic.AtomicInteger();
+        Metrics.setListener(new Metrics.Listener(){
+            public void shxParsed(long bytes, long nanos){}
+            public void geometryDecoded(long bytes, int numVertices, long nanos){}
+            public void rowDecoded(long bytes, long nanos){}
+            public void recordAssembled(long nanos){}
+            public void recordFiltered(){ numFiltered.incrementAndGet(); }
+            public void cacheHit(){}
+            public void recordsWritten(int numRecords, long bytes, long nanos){}
+        });
+        try{
+            int numRecords = 0;
+            Iterator<Record> it = shp.getRecords(new Envelope(-1, 1, -1, 1));
+            while (it.hasNext()){
+                it.next();
+                numRecords++;
+            }
+            assertEquals(1, numRecords);
+            assertEquals(1, numFiltered.get());
+
+            numFiltered.set(0);
+            it = shp.getRecords();
+            while (it.hasNext()) it.next();
+            assertEquals(0, numFiltered.get());
+        }
+        finally{
+            Metrics.setListener(null);
+            shp.close();
+        }
+    }
+
+
+  //**************************************************************************
+  //** getPipelineThreads
+  //**************************************************************************
+  /** Returns the number of live pipeline reader and decoder threads.
+   */
+    private static int getPipelineThreads(){
+        int numThreads = 0;
+        for (Thread t : Thread.getAllStackTraces().keySet()){
+            if (t.isAlive() && t.getName().startsWith("ShapeFile-")) numThreads++;
+        }
+        return numThreads;
+    }
+
+
+  //**************************************************************************
+  //** generate
+  //**************************************************************************
+  /** Creates a polygon shapefile with a few attribute columns.
+   */
+    private java.io.File generate(int numRecords) throws Exception {
+        Generator generator = new Generator(3);
+        generator.setShapeType("polygon");
+        generator.setVertexCount(4, 40);
+        generator.addColumn("name", 'C', 0);
+        generator.addColumn("pop", 'N', 0);
+        generator.addColumn("updated", 'D', 365);
+        return generator.save("polygons", folder.newFolder(), numRecords);
+    }
+
+
+  //**************************************************************************
+  //** save
+  //**************************************************************************
+  /** Saves geometries to a new shapefile and opens it. Null geometries are
+   *  saved as null shapes.
+   */
+    private ShapeFile save(String name, Geometry... geometries) throws Exception {
+        ShapeFile shp = new ShapeFile();
+        int id = 1;
+        for (Geometry geom : geometries){
+            shp.addRecord(new Record(new Field[]{
+                new Field("name", name + id++),
+                new Field("geom", geom)
+            }));
+        }
+        java.io.File dir = folder.newFolder();
+        shp.saveAs(name, dir);
+        return new ShapeFile(new java.io.File(dir, name + ".shp"));
+    }
+
+
+  //**************************************************************************
+  //** getPolygon
+  //**************************************************************************
+  /** Returns a square with the same Z and M values as the given coordinate.
+   */
+    private static Polygon getPolygon(Coordinate c){
+        Coordinate[] ring = new Coordinate[5];
+        double[][] xy = {{0,0},{0,1},{1,1},{1,0},{0,0}};
+        for (int i=0; i<ring.length; i++){
+            ring[i] = c.copy();
+            ring[i].x = xy[i][0];
+            ring[i].y = xy[i][1];
+        }
+        return factory.createPolygon(ring);
+    }
+}
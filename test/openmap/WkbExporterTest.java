@@ -0,0 +1,184 @@
+package openmap;
+import org.locationtech.jts.geom.*;
+import org.junit.*;
+import org.junit.rules.TemporaryFolder;
+import static org.junit.Assert.*;
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+
+public class WkbExporterTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static final GeometryFactory factory = new GeometryFactory();
+    private static final double[][] SQUARE = {{0,0},{0,1},{1,1},{1,0},{0,0}};
+
+
+  //**************************************************************************
+  //** testPoint
+  //**************************************************************************
+    @Test
+    public void testPoint() throws Exception {
+        ShapeFile shp = save("point", factory.createPoint(new Coordinate(1.5, -2)));
+        assertEquals(hex(wkb(1, 0).putDouble(1.5).putDouble(-2)), getWkb(shp, 0));
+        assertEquals(hex(wkb(0x20000001, 4326).putDouble(1.5).putDouble(-2)), getWkb(shp, 4326));
+    }
+
+
+  //**************************************************************************
+  //** testLineString
+  //**************************************************************************
+    @Test
+    public void testLineString() throws Exception {
+        ShapeFile shp = save("line", factory.createLineString(new Coordinate[]{
+            new Coordinate(0, 0), new Coordinate(1, 1), new Coordinate(2, 0)
+        }));
+        assertEquals(hex(wkb(2, 0).putInt(3)
+            .putDouble(0).putDouble(0).putDouble(1).putDouble(1).putDouble(2).putDouble(0)),
+            getWkb(shp, 0));
+        assertEquals(hex(wkb(0x20000002, 4326).putInt(3)
+            .putDouble(0).putDouble(0).putDouble(1).putDouble(1).putDouble(2).putDouble(0)),
+            getWkb(shp, 4326));
+    }
+
+
+  //**************************************************************************
+  //** testPolygon
+  //**************************************************************************
+  /** The ring is clockwise, as written to the shp file.
+   */
+    @Test
+    public void testPolygon() throws Exception {
+        ShapeFile shp = save("polygon", getPolygon(new Coordinate()));
+        ByteBuffer iso = wkb(3, 0).putInt(1).putInt(5);
+        ByteBuffer ewkb = wkb(0x20000003, 4326).putInt(1).putInt(5);
+        for (double[] xy : SQUARE){
+            iso.putDouble(xy[0]).putDouble(xy[1]);
+            ewkb.putDouble(xy[0]).putDouble(xy[1]);
+        }
+        assertEquals(hex(iso), getWkb(shp, 0));
+        assertEquals(hex(ewkb), getWkb(shp, 4326));
+        assertTrue(new WkbExporter(shp).getCreateTable("t").contains("geometry(Geometry)"));
+    }
+
+
+  //**************************************************************************
+  //** testPolygonZ
+  //**************************************************************************
+  /** A PolygonZ shapefile without M values should be exported as XYZ, not
+   *  XYZM.
+   */
+    @Test
+    public void testPolygonZ() throws Exception {
+        ShapeFile shp = save("polygonZ", getPolygon(new Coordinate(0, 0, 5)));
+        ByteBuffer iso = wkb(1003, 0).putInt(1).putInt(5);
+        ByteBuffer ewkb = wkb(0xA0000003, 4326).putInt(1).putInt(5);
+        for (double[] xy : SQUARE){
+            iso.putDouble(xy[0]).putDouble(xy[1]).putDouble(5);
+            ewkb.putDouble(xy[0]).putDouble(xy[1]).putDouble(5);
+        }
+        assertEquals(hex(iso), getWkb(shp, 0));
+        assertEquals(hex(ewkb), getWkb(shp, 4326));
+
+        WkbExporter exporter = new WkbExporter(shp);
+        exporter.setSrid(4326);
+        assertTrue(exporter.getCreateTable("t").contains("geometry(GeometryZ,4326)"));
+    }
+
+
+  //**************************************************************************
+  //** testPolygonZM
+  //**************************************************************************
+    @Test
+    public void testPolygonZM() throws Exception {
+        ShapeFile shp = save("polygonZM", getPolygon(new CoordinateXYZM(0, 0, 5, 7)));
+        ByteBuffer iso = wkb(3003, 0).putInt(1).putInt(5);
+        ByteBuffer ewkb = wkb(0xE0000003, 4326).putInt(1).putInt(5);
+        for (double[] xy : SQUARE){
+            iso.putDouble(xy[0]).putDouble(xy[1]).putDouble(5).putDouble(7);
+            ewkb.putDouble(xy[0]).putDouble(xy[1]).putDouble(5).putDouble(7);
+        }
+        assertEquals(hex(iso), getWkb(shp, 0));
+        assertEquals(hex(ewkb), getWkb(shp, 4326));
+        assertTrue(new WkbExporter(shp).getCreateTable("t").contains("geometry(GeometryZM)"));
+    }
+
+
+  //**************************************************************************
+  //** getWkb
+  //**************************************************************************
+  /** Returns the hex-encoded geometry in the first row of a text COPY
+   *  stream.
+   */
+    private static String getWkb(ShapeFile shp, int srid) throws Exception {
+        WkbExporter exporter = new WkbExporter(shp);
+        exporter.setSrid(srid);
+        exporter.setBinary(false);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        assertEquals(1, exporter.write(out));
+        String row = new String(out.toByteArray(), StandardCharsets.UTF_8).trim();
+        return row.substring(row.lastIndexOf('\t')+1);
+    }
+
+
+  //**************************************************************************
+  //** wkb
+  //**************************************************************************
+  /** Returns a little-endian buffer with the byte order, the geometry type
+   *  and the SRID, if there is one.
+   */
+    private static ByteBuffer wkb(int type, int srid){
+        ByteBuffer bb = ByteBuffer.allocate(1024).order(ByteOrder.LITTLE_ENDIAN);
+        bb.put((byte) 1).putInt(type);
+        if (srid>0) bb.putInt(srid);
+        return bb;
+    }
+
+
+  //**************************************************************************
+  //** hex
+  //**************************************************************************
+    private static String hex(ByteBuffer bb){
+        StringBuilder str = new StringBuilder();
+        for (int i=0; i<bb.position(); i++){
+            str.append(String.format("%02X", bb.get(i)));
+        }
+        return str.toString();
+    }
+
+
+  //**************************************************************************
+  //** save
+  //**************************************************************************
+  /** Saves a geometry to a new shapefile and opens it.
+   */
+    private ShapeFile save(String name, Geometry geom) throws Exception {
+        ShapeFile shp = new ShapeFile();
+        shp.addRecord(new Record(new Field[]{
+            new Field("name", name),
+            new Field("geom", geom)
+        }));
+        java.io.File dir = folder.newFolder();
+        shp.saveAs(name, dir);
+        return new ShapeFile(new java.io.File(dir, name + ".shp"));
+    }
+
+
+  //**************************************************************************
+  //** getPolygon
+  //**************************************************************************
+  /** Returns a square with the same Z and M values as the given coordinate.
+   */
+    private static Polygon getPolygon(Coordinate c){
+        Coordinate[] ring = new Coordinate[SQUARE.length];
+        for (int i=0; i<ring.length; i++){
+            ring[i] = c.copy();
+            ring[i].x = SQUARE[i][0];
+            ring[i].y = SQUARE[i][1];
+        }
+        return factory.createPolygon(ring);
+    }
+}